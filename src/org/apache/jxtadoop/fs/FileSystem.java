@@ -18,6 +18,8 @@
 package org.apache.jxtadoop.fs;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
@@ -28,6 +30,7 @@ import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,6 +44,7 @@ import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.conf.Configured;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.hdfs.server.namenode.NameNode;
+import org.apache.jxtadoop.io.IOUtils;
 import org.apache.jxtadoop.io.MultipleIOException;
 import org.apache.jxtadoop.security.UserGroupInformation;
 import org.apache.jxtadoop.util.Progressable;
@@ -339,6 +343,19 @@ public abstract class FileSystem extends Configured implements Closeable {
     String[] host = { "localhost" };
     return new BlockLocation[] { new BlockLocation(name, host, 0, file.getLen()) };
   }
+
+  /**
+   * Return the block locations of the same portion of several files.
+   * @see #getFileBlockLocations(FileStatus, long, long)
+   */
+  public BlockLocation[][] getFileBlockLocations(FileStatus[] files, 
+      long start, long len) throws IOException {
+    BlockLocation[][] locations = new BlockLocation[files.length][];
+    for (int i = 0; i < files.length; i++) {
+      locations[i] = getFileBlockLocations(files[i], start, len);
+    }
+    return locations;
+  }
   
   /**
    * Opens an FSDataInputStream at the indicated Path.
@@ -695,6 +712,15 @@ public abstract class FileSystem extends Configured implements Closeable {
     return new ContentSummary(summary[0], summary[1], summary[2]);
   }
 
+  /** Return the {@link ContentSummary} of each given {@link Path}. */
+  public ContentSummary[] getContentSummary(Path[] paths) throws IOException {
+    ContentSummary[] summaries = new ContentSummary[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      summaries[i] = getContentSummary(paths[i]);
+    }
+    return summaries;
+  }
+
   final private static PathFilter DEFAULT_FILTER = new PathFilter() {
       public boolean accept(Path file) {
         return true;
@@ -747,6 +773,44 @@ public abstract class FileSystem extends Configured implements Closeable {
     return results.toArray(new FileStatus[results.size()]);
   }
 
+  /**
+   * List the statuses of the files/directories in the given path if the path
+   * is a directory. The statuses are fetched lazily when the file system
+   * supports it, so that large directories can be walked as the entries
+   * arrive. By default the whole listing is fetched at once.
+   * 
+   * @param f
+   *          given path
+   * @return an iterator over the statuses of the files/directories
+   * @throws FileNotFoundException if the path does not exist
+   * @throws IOException
+   */
+  public RemoteIterator<FileStatus> listStatusIterator(final Path f) 
+    throws IOException {
+    final FileStatus[] listing = listStatus(f);
+    if (listing == null) {
+      throw new FileNotFoundException("File " + f + " does not exist.");
+    }
+    return new CountedRemoteIterator<FileStatus>() {
+      private int i = 0;
+
+      public int getCount() {
+        return listing.length;
+      }
+
+      public boolean hasNext() {
+        return i < listing.length;
+      }
+
+      public FileStatus next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more entries in " + f);
+        }
+        return listing[i++];
+      }
+    };
+  }
+
   /**
    * Filter files/directories in the given list of paths using default
    * path filter.
@@ -1216,6 +1280,17 @@ public abstract class FileSystem extends Configured implements Closeable {
     FileUtil.copy(this, src, getLocal(getConf()), dst, delSrc, getConf());
   }
 
+  /**
+   * Copy the content of the file src under FS to the local file dst, 
+   * which is overwritten. The file systems supporting it read up to
+   * <i>parallelism</i> parts of the file at once, the default 
+   * implementation reads it sequentially.
+   */
+  public void download(Path src, File dst, int parallelism) 
+    throws IOException {
+    IOUtils.copyBytes(open(src), new FileOutputStream(dst), getConf(), true);
+  }
+
   /**
    * Returns a local File that the user can write output to.  The caller
    * provides both the eventual FS target name and the local working
@@ -1320,7 +1395,7 @@ public abstract class FileSystem extends Configured implements Closeable {
    * @throws IOException
    *           see specific implementation
    */
-  private FileStatus[] getFileStatus(Path[] paths) throws IOException {
+  protected FileStatus[] getFileStatus(Path[] paths) throws IOException {
     if (paths == null) {
       return null;
     }
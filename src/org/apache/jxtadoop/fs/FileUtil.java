@@ -306,6 +306,18 @@ public class FileUtil {
   public static boolean copy(FileSystem srcFS, Path src, 
                              File dst, boolean deleteSource,
                              Configuration conf) throws IOException {
+    return copy(srcFS, src, dst, deleteSource, 1, conf);
+  }
+
+  /**
+   * Copy FileSystem files to local files, reading up to 
+   * <i>parallelism</i> parts of each file at once.
+   * @see FileSystem#download(Path, File, int)
+   */
+  public static boolean copy(FileSystem srcFS, Path src, 
+                             File dst, boolean deleteSource,
+                             int parallelism,
+                             Configuration conf) throws IOException {
     if (srcFS.getFileStatus(src).isDir()) {
       if (!dst.mkdirs()) {
         return false;
@@ -314,11 +326,10 @@ public class FileUtil {
       for (int i = 0; i < contents.length; i++) {
         copy(srcFS, contents[i].getPath(), 
              new File(dst, contents[i].getPath().getName()),
-             deleteSource, conf);
+             deleteSource, parallelism, conf);
       }
     } else if (srcFS.isFile(src)) {
-      InputStream in = srcFS.open(src);
-      IOUtils.copyBytes(in, new FileOutputStream(dst), conf);
+      srcFS.download(src, dst, parallelism);
     } else {
       throw new IOException(src.toString() + 
                             ": No such file or directory");
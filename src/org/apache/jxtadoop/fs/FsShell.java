@@ -36,6 +36,7 @@ import org.apache.jxtadoop.conf.Configured;
 import org.apache.jxtadoop.fs.shell.CommandFormat;
 import org.apache.jxtadoop.fs.shell.Count;
 import org.apache.jxtadoop.hdfs.DFSClient;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
 import org.apache.jxtadoop.io.DataInputBuffer;
 import org.apache.jxtadoop.io.DataOutputBuffer;
 import org.apache.jxtadoop.io.IOUtils;
@@ -72,7 +73,7 @@ public class FsShell extends Configured implements Tool {
     modifFmt.setTimeZone(TimeZone.getTimeZone("UTC"));
   }
   static final String SETREP_SHORT_USAGE="-setrep [-R] [-w] <rep> <path/file>";
-  static final String GET_SHORT_USAGE = "-get [-ignoreCrc] [-crc] <src> <localdst>";
+  static final String GET_SHORT_USAGE = "-get [-ignoreCrc] [-crc] [-parallel] <src> <localdst>";
   static final String COPYTOLOCAL_SHORT_USAGE = GET_SHORT_USAGE.replace(
       "-get", "-copyToLocal");
   static final String TAIL_USAGE="-tail [-f] <file>";
@@ -182,7 +183,7 @@ public class FsShell extends Configured implements Tool {
    * @see org.apache.jxtadoop.fs.FileSystem.globStatus 
    */
   void copyToLocal(String[]argv, int pos) throws IOException {
-    CommandFormat cf = new CommandFormat("copyToLocal", 2,2,"crc","ignoreCrc");
+    CommandFormat cf = new CommandFormat("copyToLocal", 2,2,"crc","ignoreCrc","parallel");
     
     String srcstr = null;
     String dststr = null;
@@ -197,6 +198,11 @@ public class FsShell extends Configured implements Tool {
     }
     boolean copyCrc = cf.getOpt("crc");
     final boolean verifyChecksum = !cf.getOpt("ignoreCrc");
+    int parallelism = 1;
+    if (cf.getOpt("parallel")) {
+      parallelism = getConf().getInt("dfs.client.download.parallelism",
+                                     P2PConstants.DFS_CLIENT_DOWNLOAD_PARALLELISM);
+    }
 
     if (dststr.equals("-")) {
       if (copyCrc) {
@@ -221,7 +227,7 @@ public class FsShell extends Configured implements Tool {
       for (FileStatus status : srcs) {
         Path p = status.getPath();
         File f = dstIsDir? new File(dst, p.getName()): dst;
-        copyToLocal(srcFS, p, f, copyCrc);
+        copyToLocal(srcFS, p, f, copyCrc, parallelism);
       }
     }
   }
@@ -250,10 +256,12 @@ public class FsShell extends Configured implements Tool {
    * @param src source path
    * @param dst destination
    * @param copyCrc copy CRC files?
+   * @param parallelism number of parts of a file read at once
    * @exception IOException If some IO failed
    */
   private void copyToLocal(final FileSystem srcFS, final Path src,
-                           final File dst, final boolean copyCrc)
+                           final File dst, final boolean copyCrc,
+                           final int parallelism)
     throws IOException {
     /* Keep the structure similar to ChecksumFileSystem.copyToLocal(). 
      * Ideal these two should just invoke FileUtil.copy() and not repeat
@@ -270,7 +278,7 @@ public class FsShell extends Configured implements Tool {
       // use absolute name so that tmp file is always created under dest dir
       File tmp = FileUtil.createLocalTempFile(dst.getAbsoluteFile(),
                                               COPYTOLOCAL_PREFIX, true);
-      if (!FileUtil.copy(srcFS, src, tmp, false, srcFS.getConf())) {
+      if (!FileUtil.copy(srcFS, src, tmp, false, parallelism, srcFS.getConf())) {
         throw new IOException("Failed to copy " + src + " to " + dst); 
       }
       
@@ -288,14 +296,15 @@ public class FsShell extends Configured implements Tool {
         File dstcs = FileSystem.getLocal(srcFS.getConf())
           .pathToFile(csfs.getChecksumFile(new Path(dst.getCanonicalPath())));
         copyToLocal(csfs.getRawFileSystem(), csfs.getChecksumFile(src),
-                    dstcs, false);
+                    dstcs, false, 1);
       } 
     } else {
       // once FileUtil.copy() supports tmp file, we don't need to mkdirs().
       dst.mkdirs();
       for(FileStatus path : srcFS.listStatus(src)) {
         copyToLocal(srcFS, path.getPath(), 
-                    new File(dst, path.getPath().getName()), copyCrc);
+                    new File(dst, path.getPath().getName()), copyCrc,
+                    parallelism);
       }
     }
   }
@@ -614,54 +623,79 @@ public class FsShell extends Configured implements Tool {
 
   /* list all files under the directory <i>src</i>
    * ideally we should provide "-l" option, that lists like "ls -l".
+   * The entries are printed by pages of dfs.ls.limit as they are fetched.
+   * The item count is the one of the directory when its first page was
+   * fetched. The column widths fit the entries printed so far, so a
+   * column only gets wider on a later page.
    */
   private int ls(FileStatus src, FileSystem srcFs, boolean recursive,
       boolean printHeader) throws IOException {
     final String cmd = recursive? "lsr": "ls";
-    final FileStatus[] items = shellListStatus(cmd, srcFs, src);
+    final RemoteIterator<FileStatus> items = shellListStatusIterator(cmd, srcFs, src);
     if (items == null) {
       return 1;
     } else {
       int numOfErrors = 0;
-      if (!recursive && printHeader) {
-        if (items.length != 0) {
-          System.out.println("Found " + items.length + " items");
-        }
-      }
-      
       int maxReplication = 3, maxLen = 10, maxOwner = 0,maxGroup = 0;
-
-      for(int i = 0; i < items.length; i++) {
-        FileStatus stat = items[i];
-        int replication = String.valueOf(stat.getReplication()).length();
-        int len = String.valueOf(stat.getLen()).length();
-        int owner = String.valueOf(stat.getOwner()).length();
-        int group = String.valueOf(stat.getGroup()).length();
-        
-        if (replication > maxReplication) maxReplication = replication;
-        if (len > maxLen) maxLen = len;
-        if (owner > maxOwner)  maxOwner = owner;
-        if (group > maxGroup)  maxGroup = group;
-      }
-      
-      for (int i = 0; i < items.length; i++) {
-        FileStatus stat = items[i];
-        Path cur = stat.getPath();
-        String mdate = dateForm.format(new Date(stat.getModificationTime()));
+      int pageSize = Math.max(1, getConf().getInt("dfs.ls.limit", 
+                                                  P2PConstants.DFS_LS_LIMIT));
+      List<FileStatus> page = new ArrayList<FileStatus>();
+      boolean firstPage = true;
+      boolean more = true;
+
+      while (more) {
+        page.clear();
+        try {
+          while (page.size() < pageSize && items.hasNext()) {
+            page.add(items.next());
+          }
+          if (firstPage && !recursive && printHeader && page.size() != 0) {
+            int count = (items instanceof CountedRemoteIterator) ?
+              ((CountedRemoteIterator<FileStatus>)items).getCount() : page.size();
+            System.out.println("Found " + count + " items");
+          }
+        } catch (IOException e) {
+          System.err.println(cmd + 
+                             ": could not get get listing for '" + src.getPath() + 
+                             "' : " + e.getMessage().split("\n")[0]);
+          numOfErrors++;
+          more = false;
+        }
+        if (page.isEmpty()) {
+          break;
+        }
+        firstPage = false;
+
+        for(FileStatus stat : page) {
+          int replication = String.valueOf(stat.getReplication()).length();
+          int len = String.valueOf(stat.getLen()).length();
+          int owner = String.valueOf(stat.getOwner()).length();
+          int group = String.valueOf(stat.getGroup()).length();
+          
+          if (replication > maxReplication) maxReplication = replication;
+          if (len > maxLen) maxLen = len;
+          if (owner > maxOwner)  maxOwner = owner;
+          if (group > maxGroup)  maxGroup = group;
+        }
         
-        System.out.print((stat.isDir() ? "d" : "-") + 
-          stat.getPermission() + " ");
-        System.out.printf("%"+ maxReplication + 
-          "s ", (!stat.isDir() ? stat.getReplication() : "-"));
-        if (maxOwner > 0)
-          System.out.printf("%-"+ maxOwner + "s ", stat.getOwner());
-        if (maxGroup > 0)
-          System.out.printf("%-"+ maxGroup + "s ", stat.getGroup());
-        System.out.printf("%"+ maxLen + "d ", stat.getLen());
-        System.out.print(mdate + " ");
-        System.out.println(cur.toUri().getPath());
-        if (recursive && stat.isDir()) {
-          numOfErrors += ls(stat,srcFs, recursive, printHeader);
+        for (FileStatus stat : page) {
+          Path cur = stat.getPath();
+          String mdate = dateForm.format(new Date(stat.getModificationTime()));
+          
+          System.out.print((stat.isDir() ? "d" : "-") + 
+            stat.getPermission() + " ");
+          System.out.printf("%"+ maxReplication + 
+            "s ", (!stat.isDir() ? stat.getReplication() : "-"));
+          if (maxOwner > 0)
+            System.out.printf("%-"+ maxOwner + "s ", stat.getOwner());
+          if (maxGroup > 0)
+            System.out.printf("%-"+ maxGroup + "s ", stat.getGroup());
+          System.out.printf("%"+ maxLen + "d ", stat.getLen());
+          System.out.print(mdate + " ");
+          System.out.println(cur.toUri().getPath());
+          if (recursive && stat.isDir()) {
+            numOfErrors += ls(stat,srcFs, recursive, printHeader);
+          }
         }
       }
       return numOfErrors;
@@ -689,9 +723,17 @@ public class FsShell extends Configured implements Tool {
       int maxLength = 10;
       
       long length[] = new long[items.length];
+      List<Path> dirs = new ArrayList<Path>();
       for (int i = 0; i < items.length; i++) {
+        if (items[i].isDir()) {
+          dirs.add(items[i].getPath());
+        }
+      }
+      ContentSummary[] summaries = 
+        srcFs.getContentSummary(dirs.toArray(new Path[dirs.size()]));
+      for (int i = 0, d = 0; i < items.length; i++) {
         length[i] = items[i].isDir() ?
-          srcFs.getContentSummary(items[i].getPath()).getLength() :
+          summaries[d++].getLength() :
           items[i].getLen();
         int len = String.valueOf(length[i]).length();
         if (len > maxLength) maxLength = len;
@@ -718,8 +760,10 @@ public class FsShell extends Configured implements Tool {
       throw new FileNotFoundException("Cannot access " + src + 
           ": No such file or directory.");
     }
+    ContentSummary[] summaries = 
+      srcFs.getContentSummary(FileUtil.stat2Paths(status));
     for(int i=0; i<status.length; i++) {
-      long totalSize = srcFs.getContentSummary(status[i].getPath()).getLength();
+      long totalSize = summaries[i].getLength();
       String pathStr = status[i].getPath().toString();
       System.out.println(("".equals(pathStr)?".":pathStr) + "\t" + totalSize);
     }
@@ -1203,6 +1247,45 @@ public class FsShell extends Configured implements Tool {
   }
   
   
+  /** helper returns listStatusIterator() */
+  private static RemoteIterator<FileStatus> shellListStatusIterator(String cmd, 
+                                                   FileSystem srcFs,
+                                                   final FileStatus src) {
+    if (!src.isDir()) {
+      return new CountedRemoteIterator<FileStatus>() {
+        private boolean done = false;
+
+        public int getCount() {
+          return 1;
+        }
+
+        public boolean hasNext() {
+          return !done;
+        }
+
+        public FileStatus next() {
+          if (done) {
+            throw new NoSuchElementException();
+          }
+          done = true;
+          return src;
+        }
+      };
+    }
+    Path path = src.getPath();
+    try {
+      return srcFs.listStatusIterator(path);
+    } catch (FileNotFoundException e) {
+      System.err.println(cmd + 
+                         ": could not get listing for '" + path + "'");
+    } catch (IOException e) {
+      System.err.println(cmd + 
+                         ": could not get get listing for '" + path + "' : " +
+                         e.getMessage().split("\n")[0]);
+    }
+    return null;
+  }
+  
   /**
    * Runs the command on a given file with the command handler. 
    * If recursive is set, command is run recursively.
@@ -1317,7 +1400,10 @@ public class FsShell extends Configured implements Tool {
       "\t\tand file entries are of the form \n" + 
       "\t\t\tfileName(full path) <r n> size \n" +
       "\t\twhere n is the number of replicas specified for the file \n" + 
-      "\t\tand size is the size of the file, in bytes.\n";
+      "\t\tand size is the size of the file, in bytes.\n" +
+      "\t\tThe entries are printed by pages of dfs.ls.limit as they \n" +
+      "\t\tare fetched, a column getting wider on a later page if \n" +
+      "\t\tneeded.\n";
 
     String lsr = "-lsr <path>: \tRecursively list the contents that match the specified\n" +
       "\t\tfile pattern.  Behaves very similarly to hadoop fs -ls,\n" + 
@@ -1366,7 +1452,9 @@ public class FsShell extends Configured implements Tool {
     String get = GET_SHORT_USAGE
       + ":  Copy files that match the file pattern <src> \n" +
       "\t\tto the local name.  <src> is kept.  When copying mutiple, \n" +
-      "\t\tfiles, the destination must be a directory. \n";
+      "\t\tfiles, the destination must be a directory. With -parallel, \n" +
+      "\t\tthe blocks of a file are downloaded at once from the datanodes \n" +
+      "\t\tholding them.\n";
 
     String getmerge = "-getmerge <src> <localdst>:  Get all the files in the directories that \n" +
       "\t\tmatch the source file pattern and merge and sort them to only\n" +
@@ -23,6 +23,7 @@ import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.conf.Configured;
 import org.apache.jxtadoop.fs.FileStatus;
 import org.apache.jxtadoop.fs.FileSystem;
+import org.apache.jxtadoop.fs.FileUtil;
 import org.apache.jxtadoop.fs.Path;
 import org.apache.jxtadoop.ipc.RemoteException;
 
@@ -48,6 +49,20 @@ abstract public class Command extends Configured {
    */
   abstract protected void run(Path path) throws IOException;
   
+  /** 
+   * Execute the command on the paths matching a source pattern.
+   * By default the command runs on each path in turn.
+   * 
+   * @param fs the file system of the paths
+   * @param paths the input paths
+   * @throws IOException if any error occurs
+   */
+  protected void run(FileSystem fs, Path[] paths) throws IOException {
+    for (Path path : paths) {
+      run(path);
+    }
+  }
+  
   /** 
    * For each source path, execute the command
    * 
@@ -64,9 +79,7 @@ abstract public class Command extends Configured {
           System.err.println("Can not find listing for " + src);
           exitCode = -1;
         } else {
-          for(FileStatus s : statuses) {
-            run(s.getPath());
-          }
+          run(fs, FileUtil.stat2Paths(statuses));
         }
       } catch (RemoteException re) {
         exitCode = -1;
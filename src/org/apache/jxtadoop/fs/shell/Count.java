@@ -21,6 +21,7 @@ import java.io.*;
 import java.util.List;
 
 import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.ContentSummary;
 import org.apache.jxtadoop.fs.FileSystem;
 import org.apache.jxtadoop.fs.Path;
 
@@ -74,4 +75,13 @@ public class Count extends Command {
     FileSystem fs = path.getFileSystem(getConf());
     System.out.println(fs.getContentSummary(path).toString(qOption) + path);
   }
+
+  /** Get the summaries of all the paths at once */
+  @Override
+  protected void run(FileSystem fs, Path[] paths) throws IOException {
+    ContentSummary[] summaries = fs.getContentSummary(paths);
+    for (int i = 0; i < paths.length; i++) {
+      System.out.println(summaries[i].toString(qOption) + paths[i]);
+    }
+  }
 }
@@ -45,7 +45,9 @@ import org.apache.jxtadoop.net.NodeBase;
 import org.apache.jxtadoop.hdfs.DistributedFileSystem.DiskStatus;
 import org.apache.jxtadoop.hdfs.p2p.DFSClientPeer;
 import org.apache.jxtadoop.hdfs.p2p.DatanodePeer;
+import org.apache.jxtadoop.hdfs.p2p.InfoSocketPool;
 import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+import org.apache.jxtadoop.hdfs.p2p.Peer;
 import org.apache.jxtadoop.hdfs.protocol.AlreadyBeingCreatedException;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.ClientDatanodeProtocol;
@@ -54,10 +56,12 @@ import org.apache.jxtadoop.hdfs.protocol.DSQuotaExceededException;
 import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.jxtadoop.hdfs.protocol.NSQuotaExceededException;
+import org.apache.jxtadoop.hdfs.protocol.PathResults;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants;
 import org.apache.jxtadoop.hdfs.server.common.UpgradeStatusReport;
 import org.apache.jxtadoop.hdfs.server.datanode.DataNode;
@@ -72,6 +76,7 @@ import org.apache.jxtadoop.util.StringUtils;
 
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
+import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.socket.JxtaSocket;
 import net.jxta.socket.JxtaSocketAddress;
@@ -79,13 +84,30 @@ import net.jxta.socket.JxtaSocketAddress;
 import org.apache.commons.logging.*;
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import java.net.*;
 import java.util.*;
 import java.util.zip.CRC32;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.net.SocketFactory;
 import javax.security.auth.login.LoginException;
@@ -105,6 +127,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   public static final Log LOG = LogFactory.getLog(DFSClient.class);
   public static final int MAX_BLOCK_ACQUIRE_FAILURES = 3;
   private static final int TCP_WINDOW_SIZE = 128 * 1024; // 128 KB
+  private static final int DOWNLOAD_RANGE_SIZE = 4 * 1024 * 1024; // 4 MB
   public final ClientProtocol namenode;
   private final ClientProtocol rpcNamenode;
   final UnixUserGroupInformation ugi;
@@ -121,6 +144,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   final int writePacketSize;
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
+  private final int namenodeBatchSize;
+  private final int listingPageSize;
+  final ReplicaScores replicaScores;
+  final DFSClientMetrics clientMetrics;
+  private final boolean hedgedReads;
+  private final long hedgedReadThreshold;
+  private static ThreadPoolExecutor hedgedReadPool = null;
+  private final int readPrefetchBlocks;
+  private final int readPrefetchBuffer;
+  private final long readPrefetchMaxIdle;
+  private static ThreadPoolExecutor prefetchPool = null;
+  private static ScheduledExecutorService prefetchExpiry = null;
+  private final int downloadMaxPerPeer;
   private DFSClientPeer dfspeer;
   private static DFSClient dfsclientObject;
   private String seed = "";
@@ -234,8 +270,36 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.maxBlockAcquireFailures = 
                           conf.getInt("dfs.client.max.block.acquire.failures",
                                       MAX_BLOCK_ACQUIRE_FAILURES);
+    this.namenodeBatchSize = Math.max(1, conf.getInt("dfs.client.namenode.batch.size",
+                                      P2PConstants.DFS_CLIENT_NAMENODE_BATCH_SIZE));
+    this.listingPageSize = Math.max(1, conf.getInt("dfs.ls.limit", 
+                                    P2PConstants.DFS_LS_LIMIT));
+    this.clientMetrics = new DFSClientMetrics(conf);
+    this.replicaScores = new ReplicaScores(conf, clientMetrics.registry);
+    this.hedgedReadThreshold = conf.getLong("dfs.client.hedged.read.threshold",
+                                  P2PConstants.DFS_CLIENT_HEDGED_READ_THRESHOLD);
+    int hedgedReadPoolSize = conf.getInt("dfs.client.hedged.read.threadpool.size",
+                                  P2PConstants.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE);
+    this.hedgedReads = (hedgedReadPoolSize > 0);
+    if (hedgedReads) {
+      initHedgedReadPool(hedgedReadPoolSize);
+    }
+    this.readPrefetchBlocks = conf.getInt("dfs.client.read.prefetch.blocks",
+                                  P2PConstants.DFS_CLIENT_READ_PREFETCH_BLOCKS);
+    this.readPrefetchBuffer = conf.getInt("dfs.client.read.prefetch.buffer",
+                                  P2PConstants.DFS_CLIENT_READ_PREFETCH_BUFFER);
+    this.readPrefetchMaxIdle = conf.getLong("dfs.client.read.prefetch.max.idle",
+                                  P2PConstants.DFS_CLIENT_READ_PREFETCH_MAX_IDLE);
+    int prefetchPoolSize = conf.getInt("dfs.client.read.prefetch.threadpool.size",
+                                  P2PConstants.DFS_CLIENT_READ_PREFETCH_THREADPOOL_SIZE);
+    if (readPrefetchBlocks > 0 && prefetchPoolSize > 0) {
+      initPrefetchPool(prefetchPoolSize);
+    }
+    this.downloadMaxPerPeer = Math.max(1, conf.getInt("dfs.client.download.max.per.peer",
+                                  P2PConstants.DFS_CLIENT_DOWNLOAD_MAX_PER_PEER));
     
     this.dfspeer = new DFSClientPeer("DFS - "+ seed + System.getProperty("jxtadoop.datanode.id"));
+    dfspeer.initInfoSocketPool(clientMetrics.registry);
     
     if (System.getProperties().containsKey("jxtadoop.local.datanode")) {
     	if(System.getProperty("jxtadoop.local.datanode").length() == P2PConstants.PEER_ID_LENGTH ) {
@@ -308,6 +372,51 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Create a pool of at most <i>size</i> daemon threads, which end after
+   * a minute without any read to run.
+   */
+  private static ThreadPoolExecutor newReadPool(int size, 
+                                                RejectedExecutionHandler handler) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, size, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(r);
+          }
+        }, handler);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Create the thread pool running the hedged reads, shared by all the
+   * clients of the process. A read is rejected when all the threads of
+   * the pool are busy.
+   */
+  private static synchronized void initHedgedReadPool(int size) {
+    if (hedgedReadPool == null) {
+      hedgedReadPool = newReadPool(size, new ThreadPoolExecutor.AbortPolicy());
+    }
+  }
+
+  /**
+   * Create the thread pool running the block prefetches, shared by all the
+   * clients of the process. A prefetch is rejected when all the threads of
+   * the pool are busy. The prefetched connections left idle are closed by
+   * a single scheduler thread.
+   */
+  private static synchronized void initPrefetchPool(int size) {
+    if (prefetchPool == null) {
+      prefetchPool = newReadPool(size, new ThreadPoolExecutor.AbortPolicy());
+      prefetchExpiry = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(r);
+          }
+        });
+    }
+  }
+
   public void init() {
 	  if (NameNode.getNameNode() == null)
 		  LOG.debug("This is not a NameNode DFS Client");
@@ -335,6 +444,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   
       // close connections to the namenode
       RPC.stopProxy(rpcNamenode);
+      
+      // close the idle sockets to the datanodes
+      dfspeer.shutdownInfoSocketPool();
+      replicaScores.shutdown();
+      clientMetrics.shutdown();
     }
   }
 
@@ -433,7 +547,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public BlockLocation[] getBlockLocations(String src, long start, 
     long length) throws IOException {
-    LocatedBlocks blocks = callGetBlockLocations(namenode, src, start, length);
+    return locatedBlocks2Locations(callGetBlockLocations(namenode, src, 
+                                                         start, length));
+  }
+
+  private static BlockLocation[] locatedBlocks2Locations(LocatedBlocks blocks) {
     if (blocks == null) {
       return new BlockLocation[0];
     }
@@ -479,6 +597,29 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     return new DFSInputStream(src, buffersize, verifyChecksum);
   }
 
+  /**
+   * Copy the file src to the local file dst, which is overwritten.
+   * Up to <i>parallelism</i> ranges of the file are read at once from the
+   * datanodes holding their replicas, and written at their offset in dst.
+   * @see DFSInputStream#download(FileChannel, int)
+   */
+  public void download(String src, File dst, int parallelism,
+                       boolean verifyChecksum) throws IOException {
+    checkOpen();
+    DFSInputStream in = new DFSInputStream(src, 
+        conf.getInt("io.file.buffer.size", P2PConstants.IO_FILE_BUFFER_SIZE),
+        verifyChecksum);
+    RandomAccessFile out = null;
+    try {
+      out = new RandomAccessFile(dst, "rw");
+      out.setLength(in.getFileLength());
+      in.download(out.getChannel(), parallelism);
+    } finally {
+      IOUtils.closeStream(out);
+      in.close();
+    }
+  }
+
   /**
    * Create a new dfs file and return an output stream for writing into it. 
    * 
@@ -707,11 +848,44 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   }
 
   /**
+   * Get the listing of a directory. The listing is fetched by pages of at
+   * most dfs.ls.limit entries, so it is not an atomic snapshot of a 
+   * directory modified meanwhile.
+   * @return the listing, or null if src does not exist
    */
   public FileStatus[] listPaths(String src) throws IOException {
+    DirectoryListing page = listPaths(src, "");
+    if (page == null) {
+      return null;
+    }
+    if (!page.hasMore()) {
+      return page.getPartialListing();
+    }
+    
+    List<FileStatus> listing = new ArrayList<FileStatus>(
+        page.getPartialListing().length + page.getRemainingEntries());
+    do {
+      listing.addAll(Arrays.asList(page.getPartialListing()));
+      if (!page.hasMore()) {
+        break;
+      }
+      page = listPaths(src, page.getLastName());
+    } while (page != null);                   // null if src was deleted
+    return listing.toArray(new FileStatus[listing.size()]);
+  }
+
+  /**
+   * Get a page of the listing of a directory.
+   * @param src the directory
+   * @param startAfter the local name the page starts after, the empty 
+   *                   string for the first page
+   * @return the page, or null if src does not exist
+   */
+  public DirectoryListing listPaths(String src, String startAfter) 
+    throws IOException {
     checkOpen();
     try {
-      return namenode.getListing(src);
+      return namenode.getListing(src, startAfter, listingPageSize);
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class);
     }
@@ -726,6 +900,152 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Get the listings of several directories with batched getListing calls.
+   * @param srcs the directories
+   * @return the listings, null for a path which does not exist
+   */
+  public FileStatus[][] listPaths(String[] srcs) throws IOException {
+    PathResults[] batches = batchNamenodeCalls("getListing", srcs);
+    FileStatus[][] listings = new FileStatus[srcs.length][];
+    for (int i = 0; i < srcs.length; i++) {
+      listings[i] = (FileStatus[])getBatchedResult(batches, i,
+                                                   AccessControlException.class);
+    }
+    return listings;
+  }
+
+  /**
+   * Get the file info of several paths with batched getFileInfo calls.
+   * @param srcs the paths
+   * @return the file infos, null for a path which does not exist
+   */
+  public FileStatus[] getFileInfo(String[] srcs) throws IOException {
+    PathResults[] batches = batchNamenodeCalls("getFileInfo", srcs);
+    FileStatus[] infos = new FileStatus[srcs.length];
+    for (int i = 0; i < srcs.length; i++) {
+      infos[i] = (FileStatus)getBatchedResult(batches, i,
+                                              AccessControlException.class);
+    }
+    return infos;
+  }
+
+  /**
+   * Get the content summaries of several paths with batched 
+   * getContentSummary calls.
+   * @param srcs the paths
+   * @return the content summaries
+   * @throws FileNotFoundException if one of the paths does not exist
+   */
+  ContentSummary[] getContentSummary(String[] srcs) throws IOException {
+    PathResults[] batches = batchNamenodeCalls("getContentSummary", srcs);
+    ContentSummary[] summaries = new ContentSummary[srcs.length];
+    for (int i = 0; i < srcs.length; i++) {
+      summaries[i] = (ContentSummary)getBatchedResult(batches, i,
+                                                      AccessControlException.class,
+                                                      FileNotFoundException.class);
+    }
+    return summaries;
+  }
+
+  /**
+   * Get the block locations of the same region of several files with
+   * batched getBlockLocations calls.
+   * @see #getBlockLocations(String, long, long)
+   */
+  public BlockLocation[][] getBlockLocations(String[] srcs, long start, 
+    long length) throws IOException {
+    PathResults[] batches = batchNamenodeCalls("getBlockLocations", srcs, 
+                                               start, length);
+    BlockLocation[][] locations = new BlockLocation[srcs.length][];
+    for (int i = 0; i < srcs.length; i++) {
+      LocatedBlocks blocks = (LocatedBlocks)getBatchedResult(batches, i,
+                                                      AccessControlException.class,
+                                                      FileNotFoundException.class);
+      locations[i] = locatedBlocks2Locations(blocks);
+    }
+    return locations;
+  }
+
+  /*
+   * Call a batched ClientProtocol method, whose first parameter is the
+   * array of paths, with at most namenodeBatchSize paths per call. When 
+   * several calls are needed they are all in flight at once on the 
+   * namenode connection.
+   */
+  private PathResults[] batchNamenodeCalls(String methodName, String[] srcs,
+                                           Object... args) throws IOException {
+    checkOpen();
+    Method method = null;
+    for (Method m : ClientProtocol.class.getMethods()) {
+      if (m.getName().equals(methodName) 
+          && m.getParameterTypes().length == args.length + 1
+          && m.getParameterTypes()[0] == String[].class) {
+        method = m;
+      }
+    }
+    if (method == null) {
+      throw new IOException("No batched ClientProtocol method " + methodName);
+    }
+    
+    int nbatches = (srcs.length + namenodeBatchSize - 1) / namenodeBatchSize;
+    Object[][] batchArgs = new Object[nbatches][];
+    for (int b = 0; b < nbatches; b++) {
+      int from = b * namenodeBatchSize;
+      String[] batch = new String[Math.min(namenodeBatchSize, srcs.length - from)];
+      System.arraycopy(srcs, from, batch, 0, batch.length);
+      batchArgs[b] = new Object[args.length + 1];
+      batchArgs[b][0] = batch;
+      System.arraycopy(args, 0, batchArgs[b], 1, args.length);
+    }
+    
+    PathResults[] results = new PathResults[nbatches];
+    RPC.AsyncProxy async = (nbatches > 1) ? RPC.getAsyncProxy(rpcNamenode) : null;
+    try {
+      if (async == null) {
+        for (int b = 0; b < nbatches; b++) {
+          results[b] = (PathResults)method.invoke(namenode, batchArgs[b]);
+        }
+      } else {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(nbatches);
+        for (int b = 0; b < nbatches; b++) {
+          futures.add(async.call(method, batchArgs[b]));
+        }
+        for (int b = 0; b < nbatches; b++) {
+          results[b] = (PathResults)futures.get(b).get();
+        }
+      }
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException("Interrupted while waiting for " + methodName);
+    } catch (IllegalAccessException e) {
+      throw new IOException(e.toString());
+    } catch (InvocationTargetException e) {
+      throw unwrapBatchException(e.getCause());
+    } catch (ExecutionException e) {
+      throw unwrapBatchException(e.getCause());
+    }
+    return results;
+  }
+
+  private static IOException unwrapBatchException(Throwable cause) {
+    if (cause instanceof RemoteException) {
+      return ((RemoteException)cause).unwrapRemoteException(AccessControlException.class);
+    } else if (cause instanceof IOException) {
+      return (IOException)cause;
+    }
+    return new IOException(String.valueOf(cause));
+  }
+
+  /* Get the result of the i-th path of batched calls */
+  private Object getBatchedResult(PathResults[] batches, int i, 
+                                  Class<?>... lookupTypes) throws IOException {
+    try {
+      return batches[i / namenodeBatchSize].get(i % namenodeBatchSize);
+    } catch(RemoteException re) {
+      throw re.unwrapRemoteException(lookupTypes);
+    }
+  }
+
   /**
    * Get the checksum of a file.
    * @param src The file path
@@ -768,7 +1088,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                          NetUtils.createSocketAddr(datanodes[j].getName()),
                          timeout);
         sock.setSoTimeout(timeout);*/
-    	JxtaSocket jsock = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(datanodes[j].getName());
+    	InfoSocketPool pool = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocketPool();
+    	PeerID dnpid = Peer.getPeerID(datanodes[j].getName());
+    	JxtaSocket jsock = pool.getSocket(dnpid);
     	// jsock.setSoTimeout(timeout);
     	jsock.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
 
@@ -833,9 +1155,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           LOG.warn("src=" + src + ", datanodes[" + j + "].getName()="
               + datanodes[j].getName(), ie);
         } finally {
-          IOUtils.closeStream(in);
-          IOUtils.closeStream(out);
-          IOUtils.closeSocket(jsock);        
+          if (done) {
+            // the datanode waits for the next op on this socket
+            pool.returnSocket(dnpid, jsock);
+          } else {
+            IOUtils.closeStream(in);
+            IOUtils.closeStream(out);
+            IOUtils.closeSocket(jsock);
+          }
         }
       }
 
@@ -1079,17 +1406,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
   /**
    * Pick the best node from which to stream the data.
-   * Entries in <i>nodes</i> are already in the priority order
+   * Entries in <i>nodes</i> are ranked by their {@link ReplicaScores},
+   * the namenode priority order breaking the ties.
    */
   private DatanodeInfo bestNode(DatanodeInfo nodes[], 
                                 AbstractMap<DatanodeInfo, DatanodeInfo> deadNodes)
                                 throws IOException {
-    if (nodes != null) { 
-      for (int i = 0; i < nodes.length; i++) {
-        if (!deadNodes.containsKey(nodes[i])) {
-          return nodes[i];
-        }
-      }
+    DatanodeInfo chosenNode = replicaScores.bestNode(nodes, deadNodes);
+    if (chosenNode != null) {
+      return chosenNode;
     }
     throw new IOException("No live nodes contain current block");
   }
@@ -1209,6 +1534,56 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /** A range of a block copied by a download, and its offset in the file. */
+  private static class DownloadRange {
+    final LocatedBlock block;
+    final long start;
+    final long end;
+    final long position;
+    DatanodeInfo node = null;
+
+    DownloadRange(LocatedBlock block, long start, long end) {
+      this.block = block;
+      this.start = start;
+      this.end = end;
+      this.position = block.getStartOffset() + start;
+    }
+  }
+
+  /** A read from a replica of a block, as run by the hedged reads. */
+  private interface ReplicaRead<T> {
+    T read(DatanodeInfo node) throws IOException;
+  }
+
+  /** A block reader opened to a datanode, with its INFO socket. */
+  private class BlockConnection {
+    final DatanodeInfo node;
+    final PeerID peer;
+    final JxtaSocket sock;
+    final BlockReader reader;
+
+    BlockConnection(DatanodeInfo node, PeerID peer, JxtaSocket sock, 
+                    BlockReader reader) {
+      this.node = node;
+      this.peer = peer;
+      this.sock = sock;
+      this.reader = reader;
+    }
+
+    /**
+     * Close the block reader. The socket is given back to the pool if the
+     * range has been fully read and acknowledged, closed otherwise.
+     */
+    void close() {
+      IOUtils.closeStream(reader);
+      if (reader.isReusable()) {
+        dfspeer.getInfoSocketPool().returnSocket(peer, sock);
+      } else {
+        IOUtils.closeSocket(sock);
+      }
+    }
+  }
+
   /** This is a wrapper around connection to datadone
    * and understands checksum, offset etc
    */
@@ -1226,6 +1601,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private int bytesPerChecksum;
     private int checksumSize;
     private boolean gotEOS = false;
+    private boolean reusable = false;
     
     byte[] skipBuf = null;
     ByteBuffer checksumBytes = null;
@@ -1264,7 +1640,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // if gotEOS was set in the previous read and checksum is enabled :
       if (gotEOS && !eosBefore && nRead >= 0 && needChecksum()) {
         //checksum is verified and there are no errors.
-        checksumOk(dnSock);
+        reusable = readEndOfBlock() && checksumOk(dnSock);
       }
       return nRead;
     }
@@ -1487,7 +1863,13 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                   bufferSize));*/
       DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
       
-      if ( in.readShort() != DataTransferProtocol.OP_STATUS_SUCCESS ) {
+      short status = in.readShort();
+      if ( status == DataTransferProtocol.OP_STATUS_ERROR_BUSY ) {
+        throw new IOException("Datanode busy in response to OP_READ_BLOCK " +
+                              "for file " + file + 
+                              " for block " + blockId);
+      }
+      if ( status != DataTransferProtocol.OP_STATUS_SUCCESS ) {
         throw new IOException("Got error in response to OP_READ_BLOCK " +
                               "for file " + file + 
                               " for block " + blockId);
@@ -1516,6 +1898,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // in will be closed when its Socket is closed.
     }
     
+    /**
+     * Returns true if the whole range has been read and acknowledged so
+     * that the datanode waits for the next operation on the socket.
+     */
+    public boolean isReusable() {
+      return reusable;
+    }
+    
     /** kind of like readFully(). Only reads as much as possible.
      * And allows use of protected readFully().
      */
@@ -1527,7 +1917,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * errors, we send OP_STATUS_CHECKSUM_OK to datanode to inform that 
      * checksum was verified and there was no error.
      */ 
-    private void checksumOk(JxtaSocket sock) {
+    private boolean checksumOk(JxtaSocket sock) {
       try {
         OutputStream out = NetUtils.getOutputStream(sock, HdfsConstants.WRITE_TIMEOUT);
         
@@ -1535,10 +1925,24 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                        (DataTransferProtocol.OP_STATUS_CHECKSUM_OK) & 0xff };
         out.write(buf);
         out.flush();
+        return true;
       } catch (IOException e) {
         // its ok not to be able to send this.
         LOG.debug("Could not write to datanode " + sock.getInetAddress() +
                   ": " + e.getMessage());
+        return false;
+      }
+    }
+    
+    /* The datanode ends the block with an empty int once the last packet
+     * has been sent. It has to be consumed before the socket is reused.
+     */
+    private boolean readEndOfBlock() {
+      try {
+        return in.readInt() == 0;
+      } catch (IOException e) {
+        LOG.debug("Could not read end of block marker: " + e.getMessage());
+        return false;
       }
     }
   }
@@ -1549,6 +1953,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    ****************************************************************/
   class DFSInputStream extends FSInputStream {
     private JxtaSocket s = null;
+    private PeerID sPeer = null;
     private boolean closed = false;
 
     private String src;
@@ -1561,6 +1966,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private long pos = 0;
     private long blockEnd = -1;
     private int failures = 0;
+    /* the node of the current block reader and the data read from it */
+    private DatanodeInfo readerNode = null;
+    private long readerBytes = 0;
+    private long readerNanos = 0;
+    /* the prefetched blocks by start offset, and the first bytes of the
+     * current block when read by its prefetch */
+    private final Map<Long, BlockPrefetch> prefetches = 
+      new HashMap<Long, BlockPrefetch>();
+    private byte[] head = null;
+    private int headPos = 0;
+    private int headLen = 0;
 
     /* XXX Use of CocurrentHashMap is temp fix. Need to fix 
      * parallel accesses to DFSInputStream (through ptreads) properly */
@@ -1639,6 +2055,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * @throws IOException
      */
     private LocatedBlock getBlockAt(long offset) throws IOException {
+      LocatedBlock blk = locateBlock(offset);
+      // update current position
+      this.pos = offset;
+      this.blockEnd = blk.getStartOffset() + blk.getBlockSize() - 1;
+      this.currentBlock = blk.getBlock();
+      return blk;
+    }
+
+    /**
+     * Get block at the specified position, without moving the stream.
+     * Fetch it from the namenode if not cached.
+     */
+    private synchronized LocatedBlock locateBlock(long offset) throws IOException {
       assert (locatedBlocks != null) : "locatedBlocks is null";
       // search cached blocks first
       int targetBlockIdx = locatedBlocks.findBlock(offset);
@@ -1650,12 +2079,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         assert (newBlocks != null) : "Could not find target position " + offset;
         locatedBlocks.insertRange(targetBlockIdx, newBlocks.getLocatedBlocks());
       }
-      LocatedBlock blk = locatedBlocks.get(targetBlockIdx);
-      // update current position
-      this.pos = offset;
-      this.blockEnd = blk.getStartOffset() + blk.getBlockSize() - 1;
-      this.currentBlock = blk.getBlock();
-      return blk;
+      return locatedBlocks.get(targetBlockIdx);
     }
 
     /**
@@ -1704,22 +2128,20 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * We get block ID and the IDs of the destinations at startup, from the namenode.
      */
     private synchronized DatanodeInfo blockSeekTo(long target) throws IOException {
+      return blockSeekTo(target, false);
+    }
+
+    /**
+     * Same as {@link #blockSeekTo(long)}. When the stream reached the target
+     * by reading sequentially, the following blocks are prefetched.
+     */
+    private synchronized DatanodeInfo blockSeekTo(long target, boolean sequential)
+                                                  throws IOException {
       if (target >= getFileLength()) {
         throw new IOException("Attempted to read past end of file");
       }
 
-      if ( blockReader != null ) {
-    	blockReader.close(); 
-        blockReader = null;
-      }
-      
-      if (s != null) {
-    	// s.close();
-    	s.shutdownInput();
-    	s.shutdownOutput();
-    	s.close();
-        s = null;
-      }
+      releaseSocket();
 
       //
       // Compute desired block
@@ -1731,42 +2153,355 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       //
       // Connect to best DataNode for desired Block, with potential offset
       //
-      DatanodeInfo chosenNode = null;
-      while (s == null) {
-        DNAddrPair retval = chooseDataNode(targetBlock);
-        chosenNode = retval.info;
-        // InetSocketAddress targetAddr = retval.addr;
-        JxtaSocketAddress targetAddr = retval.addr;
+      final Block blk = targetBlock.getBlock();
+      final long offset = offsetIntoBlock;
+      BlockConnection conn = (offset == 0) ? takePrefetch(targetBlock) : null;
+      if (conn != null) {
+        // the block was prefetched
+      } else if (hedgedReads) {
+        final AtomicBoolean decided = new AtomicBoolean(false);
+        try {
+          conn = hedgedRead(targetBlock, new ReplicaRead<BlockConnection>() {
+            public BlockConnection read(DatanodeInfo node) throws IOException {
+              BlockConnection c = connect(node, blk, offset,
+                                          blk.getNumBytes() - offset);
+              // only the first connection is kept, the late ones are closed
+              if (!decided.compareAndSet(false, true)) {
+                c.close();
+                throw new IOException("Hedged connection to " + node.getName()
+                                      + " not needed");
+              }
+              return c;
+            }
+          });
+        } finally {
+          decided.set(true);
+        }
+      } else {
+        while (true) {
+          DNAddrPair retval = chooseDataNode(targetBlock);
+          try {
+            conn = connect(retval.info, blk, offset, blk.getNumBytes() - offset);
+            break;
+          } catch (IOException ex) {
+            // Put chosen node into dead list, continue
+            LOG.debug("Failed to connect to " + retval.addr + ":" 
+                      + StringUtils.stringifyException(ex));
+            addToDeadNodes(retval.info);
+          }
+        }
+      }
+      s = conn.sock;
+      sPeer = conn.peer;
+      blockReader = conn.reader;
+      readerNode = conn.node;
+      if (sequential && prefetchPool != null && readPrefetchBlocks > 0) {
+        prefetch(targetBlock);
+      }
+      return conn.node;
+    }
+
+    /**
+     * Start the prefetch of the dfs.client.read.prefetch.blocks blocks
+     * following the given one.
+     */
+    private synchronized void prefetch(LocatedBlock block) throws IOException {
+      long offset = block.getStartOffset() + block.getBlockSize();
+      for (int i = 0; i < readPrefetchBlocks && offset < getFileLength(); i++) {
+        LocatedBlock next = locateBlock(offset);
+        if (!prefetches.containsKey(offset)) {
+          BlockPrefetch p = new BlockPrefetch(next);
+          try {
+            p.future = prefetchPool.submit(p);
+          } catch (RejectedExecutionException e) {
+            // all the prefetch threads are busy
+            break;
+          }
+          prefetches.put(offset, p);
+          clientMetrics.prefetchedBlocks.inc();
+        }
+        offset += next.getBlockSize();
+      }
+    }
+
+    /**
+     * Take the prefetched connection to the given block, waiting for its
+     * prefetch to complete. The prefetches of the blocks before it are
+     * cancelled, as the stream will not read them.
+     * @return the connection, or null if the block was not prefetched
+     */
+    private synchronized BlockConnection takePrefetch(LocatedBlock block)
+                                                      throws IOException {
+      long start = block.getStartOffset();
+      for (Iterator<Map.Entry<Long, BlockPrefetch>> it = 
+             prefetches.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<Long, BlockPrefetch> e = it.next();
+        if (e.getKey() < start) {
+          e.getValue().cancel();
+          it.remove();
+        }
+      }
+      BlockPrefetch p = prefetches.remove(start);
+      if (p == null) {
+        return null;
+      }
+      try {
+        p.future.get();
+      } catch (ExecutionException e) {
+        LOG.debug("Prefetch of " + p.block.getBlock() + " of " + src + 
+                  " failed: " + e.getCause());
+        return null;
+      } catch (InterruptedException ie) {
+        p.cancel();
+        throw new InterruptedIOException("Interrupted while reading " + src);
+      }
+      if (!p.block.getBlock().equals(block.getBlock())) {
+        p.cancel();
+        return null;
+      }
+      BlockConnection conn = p.take();
+      if (conn == null) {
+        // left idle for too long
+        return null;
+      }
+      clientMetrics.prefetchHits.inc();
+      head = p.head;
+      headPos = 0;
+      headLen = p.headLen;
+      return conn;
+    }
+
+    /**
+     * The connection to a block and its first dfs.client.read.prefetch.buffer
+     * bytes, opened ahead of the stream.
+     * <p>
+     * The datanode keeps an xceiver on the connection until it is read, so
+     * the connection is closed if the stream does not take it within
+     * dfs.client.read.prefetch.max.idle ms.
+     */
+    private class BlockPrefetch implements Callable<Void> {
+      final LocatedBlock block;
+      Future<Void> future;
+      private boolean cancelled = false;
+      private BlockConnection conn = null;
+      private byte[] head = null;
+      private int headLen = 0;
+
+      BlockPrefetch(LocatedBlock block) {
+        this.block = block;
+      }
 
+      public Void call() throws IOException {
+        Block blk = block.getBlock();
+        DatanodeInfo node = replicaScores.bestNode(block.getLocations(), deadNodes);
+        if (node == null) {
+          throw new IOException("No live nodes contain " + blk);
+        }
+        BlockConnection c = connect(node, blk, 0, blk.getNumBytes());
+        byte[] buf = new byte[(int)Math.min(readPrefetchBuffer, blk.getNumBytes())];
+        int n;
         try {
-          // s = socketFactory.createSocket();
-          // NetUtils.connect(s, targetAddr, socketTimeout);
-          // NetUtils.connect(s, targetAddr, socketTimeout);
-          s = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(chosenNode.getPeerId());
-          // s.setSoTimeout(socketTimeout);
-          s.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
-          Block blk = targetBlock.getBlock();
-          
-          blockReader = BlockReader.newBlockReader(s, src, blk.getBlockId(), 
-              blk.getGenerationStamp(),
-              offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock,
+          long readStart = System.nanoTime();
+          n = c.reader.readAll(buf, 0, buf.length);
+          replicaScores.addRead(node.getPeerId(), n, System.nanoTime() - readStart);
+        } catch (IOException e) {
+          c.close();
+          throw e;
+        }
+        synchronized (this) {
+          if (cancelled) {
+            c.close();
+            return null;
+          }
+          conn = c;
+          head = buf;
+          headLen = n;
+        }
+        prefetchExpiry.schedule(new Runnable() {
+          public void run() {
+            expire();
+          }
+        }, readPrefetchMaxIdle, TimeUnit.MILLISECONDS);
+        return null;
+      }
+
+      /**
+       * Take the prefetched connection.
+       * @return the connection, or null if it was closed meanwhile
+       */
+      synchronized BlockConnection take() {
+        BlockConnection c = conn;
+        conn = null;
+        return c;
+      }
+
+      /** Close the prefetched connection unless it was taken. */
+      synchronized void expire() {
+        if (conn != null) {
+          LOG.debug("Prefetch of " + block.getBlock() + " of " + src +
+                    " left idle, closing its connection");
+          conn.close();
+          conn = null;
+          clientMetrics.prefetchesExpired.inc();
+        }
+      }
+
+      /** Close the prefetched connection, or have the prefetch close it. */
+      synchronized void cancel() {
+        cancelled = true;
+        future.cancel(false);
+        if (conn != null) {
+          conn.close();
+          conn = null;
+        }
+      }
+    }
+
+    /**
+     * Open a block reader to the given datanode, on an idle INFO socket of
+     * the pool if any. A pooled socket may have been closed by the datanode
+     * meanwhile, a new socket is opened then.
+     */
+    private BlockConnection connect(DatanodeInfo node, Block blk,
+                                    long offset, long len) throws IOException {
+      PeerID peer = Peer.getPeerID(node.getPeerId());
+      long startTime = System.currentTimeMillis();
+      JxtaSocket sock = dfspeer.getInfoSocketPool().getIdleSocket(peer);
+      boolean reused = (sock != null);
+      while (true) {
+        try {
+          if (!reused) {
+            sock = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(node.getPeerId());
+            if (sock == null) {
+              throw new SocketTimeoutException("Timed out connecting to " 
+                                               + node.getName());
+            }
+          }
+          sock.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
+          BlockReader reader = BlockReader.newBlockReader(sock, src, 
+              blk.getBlockId(), blk.getGenerationStamp(), offset, len,
               buffersize, verifyChecksum, clientName);
-          return chosenNode;
-        } catch (IOException ex) {
-          // Put chosen node into dead list, continue
-          LOG.debug("Failed to connect to " + targetAddr + ":" 
-                    + StringUtils.stringifyException(ex));
-          addToDeadNodes(chosenNode);
-          if (s != null) {
-            try {
-              s.close();
-            } catch (IOException iex) {
-            }                        
+          replicaScores.addFirstByte(node.getPeerId(),
+                                     System.currentTimeMillis() - startTime);
+          return new BlockConnection(node, peer, sock, reader);
+        } catch (IOException e) {
+          IOUtils.closeSocket(sock);
+          sock = null;
+          if (!reused) {
+            replicaScores.addError(node.getPeerId());
+            throw e;
           }
-          s = null;
+          LOG.debug("Pooled socket to " + node.getName() + " failed: " + e);
+          reused = false;
+        }
+      }
+    }
+
+    /**
+     * Read from the replicas of a block, starting with the best one. If the
+     * read has not completed after dfs.client.hedged.read.threshold ms,
+     * the same read is started on the next best replica, and so on. The
+     * first read to complete wins and the others are cancelled.
+     * <p>
+     * When all the threads of the pool are busy, a hedge is skipped and
+     * the reads in progress are waited for. If no read is in progress, the
+     * read is run by the calling thread instead.
+     */
+    private <T> T hedgedRead(LocatedBlock block, final ReplicaRead<T> read
+                             ) throws IOException {
+      CompletionService<T> hedgeService =
+        new ExecutorCompletionService<T>(hedgedReadPool);
+      Map<Future<T>, DatanodeInfo> futures = new HashMap<Future<T>, DatanodeInfo>();
+      ConcurrentHashMap<DatanodeInfo, DatanodeInfo> tried =
+        new ConcurrentHashMap<DatanodeInfo, DatanodeInfo>();
+      DatanodeInfo firstNode = null;
+      IOException ioe = null;
+      try {
+        boolean startRead = true;
+        while (true) {
+          if (startRead) {
+            DatanodeInfo node;
+            if (firstNode == null) {
+              node = chooseDataNode(block).info;
+              firstNode = node;
+            } else {
+              ConcurrentHashMap<DatanodeInfo, DatanodeInfo> excluded =
+                new ConcurrentHashMap<DatanodeInfo, DatanodeInfo>(deadNodes);
+              excluded.putAll(tried);
+              node = replicaScores.bestNode(block.getLocations(), excluded);
+            }
+            if (node != null) {
+              final DatanodeInfo target = node;
+              boolean hedge = !futures.isEmpty();
+              try {
+                futures.put(hedgeService.submit(new Callable<T>() {
+                  public T call() throws IOException {
+                    return read.read(target);
+                  }
+                }), node);
+                tried.put(node, node);
+                if (hedge) {
+                  clientMetrics.hedgedReadOps.inc();
+                }
+              } catch (RejectedExecutionException e) {
+                if (hedge) {
+                  LOG.debug("Hedged read of " + block.getBlock() + " from " +
+                            node.getName() + " skipped, no thread available");
+                } else {
+                  tried.put(node, node);
+                  try {
+                    return read.read(node);
+                  } catch (IOException ie) {
+                    ioe = ie;
+                    LOG.warn("Failed to read " + block.getBlock() + " of " + 
+                             src + " from " + node.getName() + ": " + ioe);
+                    addToDeadNodes(node);
+                    continue;
+                  }
+                }
+              }
+            } else if (futures.isEmpty()) {
+              throw (ioe == null) ? new IOException("Could not read data") : ioe;
+            }
+            startRead = false;
+          }
+
+          Future<T> done;
+          try {
+            done = hedgeService.poll(hedgedReadThreshold, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading " + src);
+          }
+          if (done == null) {
+            // the reads in progress are too slow, start another one
+            startRead = true;
+            continue;
+          }
+          DatanodeInfo node = futures.remove(done);
+          try {
+            T result = done.get();
+            if (node != firstNode) {
+              clientMetrics.hedgedReadOpsWin.inc();
+            }
+            return result;
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            ioe = (cause instanceof IOException) ? (IOException)cause :
+              (IOException)new IOException("Read from " + node.getName() 
+                                           + " failed").initCause(cause);
+            LOG.warn("Failed to read " + block.getBlock() + " of " + src + 
+                     " from " + node.getName() + ": " + ioe);
+            addToDeadNodes(node);
+            startRead = futures.isEmpty();
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading " + src);
+          }
+        }
+      } finally {
+        for (Future<T> f : futures.keySet()) {
+          f.cancel(true);
         }
       }
-      return chosenNode;
     }
 
     /**
@@ -1779,25 +2514,52 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
       checkOpen();
       
+      for (BlockPrefetch p : prefetches.values()) {
+        p.cancel();
+      }
+      prefetches.clear();
+      releaseSocket();
+      super.close();
+      closed = true;
+    }
+
+    /**
+     * Close the current block reader. Its socket is given back to the pool
+     * if the block has been fully read and acknowledged, closed otherwise.
+     */
+    private synchronized void releaseSocket() throws IOException {
+      boolean reusable = false;
+      
       if ( blockReader != null ) {
+        reusable = blockReader.isReusable();
         blockReader.close();
         blockReader = null;
       }
+      if (readerNode != null) {
+        replicaScores.addRead(readerNode.getPeerId(), readerBytes, readerNanos);
+        readerNode = null;
+        readerBytes = 0;
+        readerNanos = 0;
+      }
+      head = null;
+      headPos = 0;
+      headLen = 0;
       
       if (s != null) {
-        //s.close();
-    	  try {
-          	//s.close();
-          	s.shutdownInput();
-          	s.shutdownOutput();
-          	s.close();
-        } catch (SocketTimeoutException ste) {
-        	//throw new IOException("Timeout while shutting down socket");
+        if (reusable) {
+          dfspeer.getInfoSocketPool().returnSocket(sPeer, s);
+        } else {
+          try {
+            s.shutdownInput();
+            s.shutdownOutput();
+            s.close();
+          } catch (SocketTimeoutException ste) {
+            //throw new IOException("Timeout while shutting down socket");
+          }
         }
         s = null;
+        sPeer = null;
       }
-      super.close();
-      closed = true;
     }
 
     @Override
@@ -1813,6 +2575,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private synchronized int readBuffer(byte buf[], int off, int len) 
                                                     throws IOException {
       IOException ioe;
+
+      // the first bytes of a prefetched block are already there
+      if (headPos < headLen) {
+        int n = Math.min(len, headLen - headPos);
+        System.arraycopy(head, headPos, buf, off, n);
+        headPos += n;
+        return n;
+      }
       
       /* we retry current node only once. So this is set to true only here.
        * Intention is to handle one common case of an error that is not a
@@ -1825,15 +2595,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       while (true) {
         // retry as many times as seekToNewSource allows.
         try {
-          return blockReader.read(buf, off, len);
+          long start = System.nanoTime();
+          int nread = blockReader.read(buf, off, len);
+          readerNanos += System.nanoTime() - start;
+          readerBytes += Math.max(nread, 0);
+          return nread;
         } catch ( ChecksumException ce ) {
           LOG.warn("Found Checksum error for " + currentBlock + " from " +
                    currentNode.getName() + " at " + ce.getPos());          
           reportChecksumFailure(src, currentBlock, currentNode);
+          replicaScores.addError(currentNode.getPeerId());
           ioe = ce;
           retryCurrentNode = false;
         } catch ( IOException e ) {
           if (!retryCurrentNode) {
+            replicaScores.addError(currentNode.getPeerId());
             LOG.warn("Exception while reading from " + currentBlock +
                      " of " + src + " from " + currentNode + ": " +
                      StringUtils.stringifyException(e));
@@ -1872,7 +2648,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         while (retries > 0) {
           try {
             if (pos > blockEnd) {
-              currentNode = blockSeekTo(pos);
+              boolean sequential = (blockEnd >= 0 && pos == blockEnd + 1);
+              currentNode = blockSeekTo(pos, sequential);
             }
             int realLen = Math.min(len, (int) (blockEnd - pos + 1));
             int result = readBuffer(buf, off, realLen);
@@ -1937,57 +2714,41 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
     } 
         
-    private void fetchBlockByteRange(LocatedBlock block, long start,
-                                     long end, byte[] buf, int offset) throws IOException {
+    private void fetchBlockByteRange(final LocatedBlock block, final long start,
+                                     final long end, byte[] buf, int offset) throws IOException {
+      if (hedgedReads) {
+        final int len = (int) (end - start + 1);
+        byte[] data = hedgedRead(block, new ReplicaRead<byte[]>() {
+          public byte[] read(DatanodeInfo node) throws IOException {
+            byte[] range = new byte[len];
+            fetchBlockByteRange(node, block, start, end, range, 0);
+            return range;
+          }
+        });
+        System.arraycopy(data, 0, buf, offset, len);
+        return;
+      }
+
       //
       // Connect to best DataNode for desired Block, with potential offset
       //
-      JxtaSocket dn = null;
       int numAttempts = block.getLocations().length;
       IOException ioe = null;
       
-      while (dn == null && numAttempts-- > 0 ) {
+      while (numAttempts-- > 0) {
         DNAddrPair retval = chooseDataNode(block);
         DatanodeInfo chosenNode = retval.info;
-        JxtaSocketAddress targetAddr = retval.addr;
-        BlockReader reader = null;
-            
         try {
-          // dn = socketFactory.createSocket();
-          // NetUtils.connect(dn, targetAddr, socketTimeout);
-          dn = DFSClient.getDfsClient().getDfsClientPeer().getInfoSocket(chosenNode.getPeerId());
-          // dn.setSoTimeout(socketTimeout);
-          dn.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
-              
-          int len = (int) (end - start + 1);
-              
-          reader = BlockReader.newBlockReader(dn, src, 
-                                              block.getBlock().getBlockId(),
-                                              block.getBlock().getGenerationStamp(),
-                                              start, len, buffersize, 
-                                              verifyChecksum, clientName);
-          int nread = reader.readAll(buf, offset, len);
-          if (nread != len) {
-            throw new IOException("truncated return from reader.read(): " +
-                                  "excpected " + len + ", got " + nread);
-          }
+          fetchBlockByteRange(chosenNode, block, start, end, buf, offset);
           return;
-        } catch (ChecksumException e) {
-          ioe = e;
-          LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
-                   src + " at " + block.getBlock() + ":" + 
-                   e.getPos() + " from " + chosenNode.getName());
-          reportChecksumFailure(src, block.getBlock(), chosenNode);
         } catch (IOException e) {
           ioe = e;
-          LOG.warn("Failed to connect to " + targetAddr + 
-                   " for file " + src + 
-                   " for block " + block.getBlock().getBlockId() + ":"  +
-                   StringUtils.stringifyException(e));
-        } finally {
-          IOUtils.closeStream(reader);
-          IOUtils.closeSocket(dn);
-          dn = null;
+          if (!(e instanceof ChecksumException)) {
+            LOG.warn("Failed to connect to " + retval.addr + 
+                     " for file " + src + 
+                     " for block " + block.getBlock().getBlockId() + ":"  +
+                     StringUtils.stringifyException(e));
+          }
         }
         // Put chosen node into dead list, continue
         addToDeadNodes(chosenNode);
@@ -1995,6 +2756,158 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       throw (ioe == null) ? new IOException("Could not read data") : ioe;
     }
 
+    /**
+     * Read a range of a block from the given datanode.
+     */
+    private void fetchBlockByteRange(DatanodeInfo chosenNode, LocatedBlock block,
+                                     long start, long end, byte[] buf, int offset
+                                     ) throws IOException {
+      int len = (int) (end - start + 1);
+      BlockConnection conn = connect(chosenNode, block.getBlock(), start, len);
+      try {
+        long readStart = System.nanoTime();
+        int nread = conn.reader.readAll(buf, offset, len);
+        replicaScores.addRead(chosenNode.getPeerId(), nread,
+                              System.nanoTime() - readStart);
+        if (nread != len) {
+          throw new IOException("truncated return from reader.read(): " +
+                                "excpected " + len + ", got " + nread);
+        }
+      } catch (ChecksumException e) {
+        LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
+                 src + " at " + block.getBlock() + ":" + 
+                 e.getPos() + " from " + chosenNode.getName());
+        reportChecksumFailure(src, block.getBlock(), chosenNode);
+        replicaScores.addError(chosenNode.getPeerId());
+        throw e;
+      } catch (IOException e) {
+        replicaScores.addError(chosenNode.getPeerId());
+        throw e;
+      } finally {
+        conn.close();
+      }
+    }
+
+    /**
+     * Copy the whole file to the given channel, reading up to 
+     * <i>parallelism</i> ranges of at most DOWNLOAD_RANGE_SIZE bytes at once.
+     * <p>
+     * The range is read from the replica with the fewest reads in progress,
+     * the replica scores breaking the ties, and at most
+     * dfs.client.download.max.per.peer ranges are read from a datanode at
+     * once, so that the reads are spread over the datanodes. A range is
+     * read again from another replica on failure, and through
+     * {@link #fetchBlockByteRange(LocatedBlock, long, long, byte[], int)}
+     * once all its replicas failed.
+     */
+    void download(final FileChannel out, int parallelism) throws IOException {
+      LinkedList<DownloadRange> pending = new LinkedList<DownloadRange>();
+      for (LocatedBlock blk : getAllBlocks()) {
+        for (long start = 0; start < blk.getBlockSize(); start += DOWNLOAD_RANGE_SIZE) {
+          long end = Math.min(start + DOWNLOAD_RANGE_SIZE, blk.getBlockSize()) - 1;
+          pending.add(new DownloadRange(blk, start, end));
+        }
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(parallelism, 
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(r);
+          }
+        });
+      CompletionService<DownloadRange> service = 
+        new ExecutorCompletionService<DownloadRange>(pool);
+      Map<Future<DownloadRange>, DownloadRange> running = 
+        new HashMap<Future<DownloadRange>, DownloadRange>();
+      Map<DatanodeInfo, Integer> inFlight = new HashMap<DatanodeInfo, Integer>();
+      try {
+        while (!pending.isEmpty() || !running.isEmpty()) {
+          for (Iterator<DownloadRange> it = pending.iterator();
+               it.hasNext() && running.size() < parallelism;) {
+            final DownloadRange r = it.next();
+            // the live replicas with the fewest reads in progress
+            int minLoad = Integer.MAX_VALUE;
+            for (DatanodeInfo node : r.block.getLocations()) {
+              if (!deadNodes.containsKey(node)) {
+                minLoad = Math.min(minLoad, getLoad(inFlight, node));
+              }
+            }
+            if (minLoad == Integer.MAX_VALUE) {
+              r.node = null;
+            } else if (minLoad >= downloadMaxPerPeer) {
+              // all the replicas are busy, try the next range
+              continue;
+            } else {
+              ConcurrentHashMap<DatanodeInfo, DatanodeInfo> excluded =
+                new ConcurrentHashMap<DatanodeInfo, DatanodeInfo>(deadNodes);
+              for (DatanodeInfo node : r.block.getLocations()) {
+                if (getLoad(inFlight, node) > minLoad) {
+                  excluded.put(node, node);
+                }
+              }
+              r.node = replicaScores.bestNode(r.block.getLocations(), excluded);
+              inFlight.put(r.node, getLoad(inFlight, r.node) + 1);
+            }
+            it.remove();
+            running.put(service.submit(new Callable<DownloadRange>() {
+              public DownloadRange call() throws IOException {
+                byte[] buf = new byte[(int)(r.end - r.start + 1)];
+                if (r.node != null) {
+                  fetchBlockByteRange(r.node, r.block, r.start, r.end, buf, 0);
+                } else {
+                  fetchBlockByteRange(r.block, r.start, r.end, buf, 0);
+                }
+                ByteBuffer data = ByteBuffer.wrap(buf);
+                long position = r.position;
+                while (data.hasRemaining()) {
+                  position += out.write(data, position);
+                }
+                return r;
+              }
+            }), r);
+          }
+
+          Future<DownloadRange> done;
+          try {
+            done = service.take();
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while downloading " + src);
+          }
+          DownloadRange r = running.remove(done);
+          if (r.node != null) {
+            inFlight.put(r.node, getLoad(inFlight, r.node) - 1);
+          }
+          try {
+            done.get();
+            if (stats != null) {
+              stats.incrementBytesRead(r.end - r.start + 1);
+            }
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            IOException ioe = (cause instanceof IOException) ? (IOException)cause :
+              (IOException)new IOException("Download of " + src 
+                                           + " failed").initCause(cause);
+            if (r.node == null) {
+              throw ioe;
+            }
+            LOG.warn("Failed to read " + r.block.getBlock() + " of " + src + 
+                     " from " + r.node.getName() + ": " + ioe);
+            addToDeadNodes(r.node);
+            pending.addFirst(r);
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while downloading " + src);
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    private int getLoad(Map<DatanodeInfo, Integer> inFlight, DatanodeInfo node) {
+      Integer load = inFlight.get(node);
+      return (load == null) ? 0 : load;
+    }
+
     /**
      * Read bytes starting from the specified position.
      * 
@@ -2074,7 +2987,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         int diff = (int)(targetPos - pos);
         if (diff <= TCP_WINDOW_SIZE) {
           try {
-            pos += blockReader.skip(diff);
+            int skipped = Math.min(diff, headLen - headPos);
+            headPos += skipped;
+            pos += skipped;
+            pos += blockReader.skip(diff - skipped);
             if (pos == targetPos) {
               done = true;
             }
@@ -3120,16 +4036,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         
         blockReplyStream = new DataInputStream(ris);
         
-        try {
-        	LOG.debug("Reading in createBlockOutputStream" );
-        	firstBadLink = Text.readString(blockReplyStream);
-        } catch (EOFException eof) {
-        	LOG.warn("Failed to read on createBlockOutputStream" );
-        	eof.printStackTrace();
-        } catch (IOException ioe) {
-        	LOG.warn("Failed to read on createBlockOutputStream" );
-        	ioe.printStackTrace();
-        }
+        // a busy datanode answers with itself as the first bad link
+        LOG.debug("Reading in createBlockOutputStream" );
+        firstBadLink = Text.readString(blockReplyStream);
 	
         LOG.debug("firstBadLink : "+firstBadLink);
         if (firstBadLink.length() != 0) {
@@ -3147,7 +4056,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         // find the datanode that matches
         if (firstBadLink.length() != 0) {
           for (int i = 0; i < nodes.length; i++) {
-            if (nodes[i].getName().equals(firstBadLink)) {
+            if (firstBadLink.equals(nodes[i].getPeerId()) ||
+                firstBadLink.equals(nodes[i].getName())) {
               errorIndex = i;
               break;
             }
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.metrics.MetricsContext;
+import org.apache.jxtadoop.metrics.MetricsRecord;
+import org.apache.jxtadoop.metrics.MetricsUtil;
+import org.apache.jxtadoop.metrics.Updater;
+import org.apache.jxtadoop.metrics.util.MetricsBase;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+
+/**
+ * The counters of a DFS client, published in the "dfs" metrics context as
+ * a "dfsclient" record.
+ * <p>
+ * The replica scores and the INFO socket pool of the client register their
+ * counters here once this updater is running, so the registry is copied
+ * under its lock at each update.
+ */
+class DFSClientMetrics implements Updater {
+  private final MetricsContext context;
+  private final MetricsRecord metricsRecord;
+  final MetricsRegistry registry = new MetricsRegistry();
+
+  final MetricsTimeVaryingInt hedgedReadOps =
+    new MetricsTimeVaryingInt("hedged_reads", registry);
+  final MetricsTimeVaryingInt hedgedReadOpsWin =
+    new MetricsTimeVaryingInt("hedged_reads_won", registry);
+  final MetricsTimeVaryingInt prefetchedBlocks =
+    new MetricsTimeVaryingInt("prefetched_blocks", registry);
+  final MetricsTimeVaryingInt prefetchHits =
+    new MetricsTimeVaryingInt("prefetch_hits", registry);
+  final MetricsTimeVaryingInt prefetchesExpired =
+    new MetricsTimeVaryingInt("prefetches_expired", registry);
+
+  DFSClientMetrics(Configuration conf) {
+    context = MetricsUtil.getContext("dfs");
+    metricsRecord = MetricsUtil.createRecord(context, "dfsclient");
+    metricsRecord.setTag("sessionId", conf.get("session.id"));
+    context.registerUpdater(this);
+  }
+
+  void shutdown() {
+    context.unregisterUpdater(this);
+  }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    List<MetricsBase> metrics;
+    synchronized (registry) {
+      metrics = new ArrayList<MetricsBase>(registry.getMetricsList());
+    }
+    for (MetricsBase m : metrics) {
+      m.pushMetric(metricsRecord);
+    }
+    metricsRecord.update();
+  }
+}
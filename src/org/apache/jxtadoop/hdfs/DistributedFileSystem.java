@@ -20,18 +20,24 @@ package org.apache.jxtadoop.hdfs;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
 
 import org.apache.jxtadoop.fs.BlockLocation;
 import org.apache.jxtadoop.fs.ContentSummary;
+import org.apache.jxtadoop.fs.CountedRemoteIterator;
 import org.apache.jxtadoop.fs.FSDataInputStream;
 import org.apache.jxtadoop.fs.FSDataOutputStream;
 import org.apache.jxtadoop.fs.FileStatus;
 import org.apache.jxtadoop.fs.FileSystem;
 import org.apache.jxtadoop.fs.MD5MD5CRC32FileChecksum;
 import org.apache.jxtadoop.fs.Path;
+import org.apache.jxtadoop.fs.PathFilter;
+import org.apache.jxtadoop.fs.RemoteIterator;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
@@ -193,6 +199,19 @@ public class DistributedFileSystem extends FileSystem {
     return dfs.getBlockLocations(getPathName(file.getPath()), start, len);
   }
 
+  /** {@inheritDoc}
+   * The block locations are fetched with batched namenode calls.
+   */
+  @Override
+  public BlockLocation[][] getFileBlockLocations(FileStatus[] files, 
+      long start, long len) throws IOException {
+    String[] srcs = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      srcs[i] = getPathName(files[i].getPath());
+    }
+    return dfs.getBlockLocations(srcs, start, len);
+  }
+
   public void setVerifyChecksum(boolean verifyChecksum) {
     this.verifyChecksum = verifyChecksum;
   }
@@ -202,6 +221,18 @@ public class DistributedFileSystem extends FileSystem {
           dfs.open(getPathName(f), bufferSize, verifyChecksum, statistics));
   }
 
+  /**
+   * {@inheritDoc}
+   * The parts of the file are read at once from the datanodes holding them.
+   */
+  public void download(Path src, File dst, int parallelism) throws IOException {
+    if (parallelism <= 1) {
+      super.download(src, dst, parallelism);
+      return;
+    }
+    dfs.download(getPathName(src), dst, parallelism, verifyChecksum);
+  }
+
   /** This optional operation is not yet supported. */
   public FSDataOutputStream append(Path f, int bufferSize,
       Progressable progress) throws IOException {
@@ -255,6 +286,18 @@ public class DistributedFileSystem extends FileSystem {
     return dfs.getContentSummary(getPathName(f));
   }
 
+  /** {@inheritDoc}
+   * The summaries are computed with batched namenode calls.
+   */
+  @Override
+  public ContentSummary[] getContentSummary(Path[] paths) throws IOException {
+    String[] srcs = new String[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      srcs[i] = getPathName(paths[i]);
+    }
+    return dfs.getContentSummary(srcs);
+  }
+
   /** Set a directory's quotas
    * @see org.apache.jxtadoop.hdfs.protocol.ClientProtocol#setQuota(String, long, long) 
    */
@@ -281,6 +324,83 @@ public class DistributedFileSystem extends FileSystem {
     return stats;
   }
 
+  /** {@inheritDoc}
+   * The listing is fetched by pages of at most dfs.ls.limit entries as
+   * the iteration proceeds.
+   */
+  @Override
+  public RemoteIterator<FileStatus> listStatusIterator(Path p) 
+    throws IOException {
+    return new DirListingIterator(p);
+  }
+
+  /** Fetches the pages of a directory listing on demand */
+  private class DirListingIterator implements CountedRemoteIterator<FileStatus> {
+    private final Path path;
+    private final String src;
+    private DirectoryListing page;
+    private int i = 0;
+    private final int count;
+
+    DirListingIterator(Path path) throws IOException {
+      this.path = path;
+      this.src = getPathName(path);
+      this.page = dfs.listPaths(src, "");
+      if (page == null) {
+        throw new FileNotFoundException("File " + path + " does not exist.");
+      }
+      this.count = page.getPartialListing().length + page.getRemainingEntries();
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public boolean hasNext() throws IOException {
+      if (i >= page.getPartialListing().length && page.hasMore()) {
+        DirectoryListing next = dfs.listPaths(src, page.getLastName());
+        if (next == null) {
+          throw new FileNotFoundException("File " + path + " does not exist.");
+        }
+        page = next;
+        i = 0;
+      }
+      return i < page.getPartialListing().length;
+    }
+
+    public FileStatus next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more entries in " + path);
+      }
+      return makeQualified(page.getPartialListing()[i++]);
+    }
+  }
+
+  /** {@inheritDoc}
+   * The directories are listed with batched namenode calls.
+   */
+  @Override
+  public FileStatus[] listStatus(Path[] files, PathFilter filter) 
+    throws IOException {
+    String[] srcs = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      srcs[i] = getPathName(files[i]);
+    }
+    
+    FileStatus[][] listings = dfs.listPaths(srcs);
+    ArrayList<FileStatus> results = new ArrayList<FileStatus>();
+    for (FileStatus[] listing : listings) {
+      if (listing == null) continue;
+      for (FileStatus info : listing) {
+        FileStatus stat = makeQualified(info);
+        if (filter.accept(stat.getPath())) {
+          results.add(stat);
+        }
+      }
+    }
+    return results.toArray(new FileStatus[results.size()]);
+  }
+
   public boolean mkdirs(Path f, FsPermission permission) throws IOException {
     return dfs.mkdirs(getPathName(f), permission);
   }
@@ -481,6 +601,28 @@ public class DistributedFileSystem extends FileSystem {
     }
   }
 
+  /** {@inheritDoc}
+   * The file infos are fetched with batched namenode calls.
+   */
+  @Override
+  protected FileStatus[] getFileStatus(Path[] paths) throws IOException {
+    if (paths == null) {
+      return null;
+    }
+    String[] srcs = new String[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      srcs[i] = getPathName(paths[i]);
+    }
+    FileStatus[] infos = dfs.getFileInfo(srcs);
+    ArrayList<FileStatus> results = new ArrayList<FileStatus>(infos.length);
+    for (FileStatus info : infos) {
+      if (info != null) {
+        results.add(makeQualified(info));
+      }
+    }
+    return results.toArray(new FileStatus[results.size()]);
+  }
+
   /** {@inheritDoc} */
   public MD5MD5CRC32FileChecksum getFileChecksum(Path f) throws IOException {
     return dfs.getFileChecksum(getPathName(f));
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.metrics.MetricsContext;
+import org.apache.jxtadoop.metrics.MetricsRecord;
+import org.apache.jxtadoop.metrics.MetricsUtil;
+import org.apache.jxtadoop.metrics.Updater;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+
+/**
+ * Scores the datanodes a client reads from, so that the replica behind the
+ * fastest path is read first.
+ * <p>
+ * For each datanode, keyed by its peer identifier, the table keeps the
+ * smoothed time to first byte, throughput and error rate of the recent
+ * block reads. The cost of a replica is the expected time to read a block
+ * from it, retries on error included. The datanodes never scored are
+ * tried first, the ones that only failed are given the cost of the best
+ * known one raised by their error rate. A random replica is read with
+ * probability dfs.client.read.explore.rate so that the scores do not go
+ * stale.
+ * <p>
+ * The scores are published in the "dfs" metrics context, one
+ * "dfsclient.replica" record per datanode. The read counters are published
+ * with the other client counters, in the registry given by the client.
+ */
+class ReplicaScores implements Updater {
+  /* weight of a new sample in the smoothed values */
+  private static final double SAMPLE_WEIGHT = 0.25;
+
+  private static class Score {
+    double firstByteMs = -1;
+    double bytesPerMs = -1;
+    double errorRate = 0;
+    MetricsRecord record = null;
+
+    void addError(boolean failed) {
+      errorRate = SAMPLE_WEIGHT * (failed ? 1 : 0) + (1 - SAMPLE_WEIGHT) * errorRate;
+    }
+  }
+
+  private final Map<String, Score> scores = new HashMap<String, Score>();
+  private final long blockSize;
+  private final double exploreRate;
+  private final Random random = new Random();
+
+  private final MetricsContext context;
+  final MetricsTimeVaryingInt replicaReads;
+  final MetricsTimeVaryingInt replicaErrors;
+  final MetricsTimeVaryingInt replicaExplorations;
+
+  ReplicaScores(Configuration conf, MetricsRegistry registry) {
+    this.blockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
+    this.exploreRate = conf.getFloat("dfs.client.read.explore.rate",
+                                     P2PConstants.DFS_CLIENT_READ_EXPLORE_RATE);
+    replicaReads = new MetricsTimeVaryingInt("replica_reads", registry);
+    replicaErrors = new MetricsTimeVaryingInt("replica_errors", registry);
+    replicaExplorations = new MetricsTimeVaryingInt("replica_explorations", registry);
+    context = MetricsUtil.getContext("dfs");
+    context.registerUpdater(this);
+  }
+
+  /**
+   * Pick the node to read from among the ones not in <i>deadNodes</i>.
+   * @return the chosen node, or null if they are all dead
+   */
+  synchronized DatanodeInfo bestNode(DatanodeInfo[] nodes,
+                           AbstractMap<DatanodeInfo, DatanodeInfo> deadNodes) {
+    List<DatanodeInfo> live = new ArrayList<DatanodeInfo>();
+    if (nodes != null) {
+      for (DatanodeInfo node : nodes) {
+        if (!deadNodes.containsKey(node)) {
+          live.add(node);
+        }
+      }
+    }
+    if (live.isEmpty()) {
+      return null;
+    }
+    if (live.size() > 1 && random.nextDouble() < exploreRate) {
+      replicaExplorations.inc();
+      return live.get(random.nextInt(live.size()));
+    }
+
+    double best = Double.MAX_VALUE;
+    for (DatanodeInfo node : live) {
+      Score score = scores.get(node.getPeerId());
+      if (score != null && score.bytesPerMs >= 0) {
+        best = Math.min(best, cost(score));
+      }
+    }
+    if (best == Double.MAX_VALUE) {
+      best = 1;
+    }
+    // the first node with the lowest cost keeps the namenode order on ties
+    DatanodeInfo chosen = null;
+    double chosenCost = Double.MAX_VALUE;
+    for (DatanodeInfo node : live) {
+      Score score = scores.get(node.getPeerId());
+      double c;
+      if (score == null) {
+        c = 0;
+      } else if (score.bytesPerMs < 0) {
+        c = best / Math.max(1 - score.errorRate, 0.01);
+      } else {
+        c = cost(score);
+      }
+      if (chosen == null || c < chosenCost) {
+        chosen = node;
+        chosenCost = c;
+      }
+    }
+    return chosen;
+  }
+
+  /* expected time in ms to read a block from a node already read from */
+  private double cost(Score score) {
+    double readMs = Math.max(score.firstByteMs, 0) +
+                    blockSize / Math.max(score.bytesPerMs, 1e-3);
+    return readMs / Math.max(1 - score.errorRate, 0.01);
+  }
+
+  private Score getScore(String peer) {
+    Score score = scores.get(peer);
+    if (score == null) {
+      score = new Score();
+      scores.put(peer, score);
+    }
+    return score;
+  }
+
+  /**
+   * Record a successful connection to a datanode.
+   * @param peer the datanode peer identifier
+   * @param firstByteMs the time from the request to the first byte of the
+   *        datanode response
+   */
+  synchronized void addFirstByte(String peer, long firstByteMs) {
+    Score score = getScore(peer);
+    score.firstByteMs = (score.firstByteMs < 0) ? firstByteMs :
+      SAMPLE_WEIGHT * firstByteMs + (1 - SAMPLE_WEIGHT) * score.firstByteMs;
+    score.addError(false);
+  }
+
+  /**
+   * Record the data read from a datanode.
+   * @param peer the datanode peer identifier
+   * @param bytes the number of bytes read
+   * @param nanos the time spent reading them
+   */
+  synchronized void addRead(String peer, long bytes, long nanos) {
+    if (bytes <= 0) {
+      return;
+    }
+    replicaReads.inc();
+    double rate = bytes / Math.max(nanos / 1000000.0, 0.001);
+    Score score = getScore(peer);
+    score.bytesPerMs = (score.bytesPerMs < 0) ? rate :
+      SAMPLE_WEIGHT * rate + (1 - SAMPLE_WEIGHT) * score.bytesPerMs;
+  }
+
+  /**
+   * Record a failed connection to or read from a datanode.
+   * @param peer the datanode peer identifier
+   */
+  synchronized void addError(String peer) {
+    replicaErrors.inc();
+    getScore(peer).addError(true);
+  }
+
+  void shutdown() {
+    context.unregisterUpdater(this);
+  }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      for (Map.Entry<String, Score> e : scores.entrySet()) {
+        Score score = e.getValue();
+        if (score.record == null) {
+          score.record = MetricsUtil.createRecord(context, "dfsclient.replica");
+          score.record.setTag("peer", e.getKey());
+        }
+        score.record.setMetric("first_byte_ms", (float)score.firstByteMs);
+        score.record.setMetric("bytes_per_ms", (float)score.bytesPerMs);
+        score.record.setMetric("error_rate", (float)score.errorRate);
+        score.record.update();
+      }
+    }
+  }
+}
@@ -267,8 +267,11 @@ public class DatanodePeer extends Peer implements DiscoveryListener {
 		int soTimeout = Integer.parseInt(pc.get("hadoop.p2p.rpc.timeout"));
 		
 		try {
+			long start = System.currentTimeMillis();
 			// js = new JxtaSocket(this.getInfoSocketAddress(pid),soTimeout,true);
 			js = new JxtaSocket(npg,pid,this.getInfoSocketAddress(pid).getPipeAdv(),soTimeout,true);
+			// The connection set up is a round trip to the remote peer
+			PeerLatencyTracker.getTracker().addSample(pid, System.currentTimeMillis() - start);
 			js.setNetPeerGroup(npg);
 			js.setTcpNoDelay(true);
 		} catch (SocketTimeoutException ste) {}
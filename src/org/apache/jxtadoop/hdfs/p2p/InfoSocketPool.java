@@ -0,0 +1,276 @@
+package org.apache.jxtadoop.hdfs.p2p;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import net.jxta.peer.PeerID;
+import net.jxta.socket.JxtaSocket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.io.IOUtils;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.jxtadoop.util.Daemon;
+
+/**
+ * Keeps the idle INFO sockets opened to the remote datanodes so that they can be reused for the next block transfer.
+ * <br>Setting up a reliable jxta socket requires a full pipe handshake through the relay, which costs more than
+ * transferring a whole block at the default block size.
+ * <p>
+ * A socket is only given back to the pool once the datanode is known to wait for the next operation on it,
+ * i.e. after a clean OP_READ_BLOCK acknowledged with OP_STATUS_CHECKSUM_OK or after an OP_BLOCK_CHECKSUM.<br>
+ * Idle sockets are evicted after <i>hadoop.p2p.info.pool.idle.timeout</i> ms, which must remain lower than the
+ * datanode <i>hadoop.p2p.info.keepalive.timeout</i>. At most <i>hadoop.p2p.info.pool.max.per.peer</i> idle sockets
+ * are kept for a given peer.
+ */
+public class InfoSocketPool {
+	public static final Log LOG = LogFactory.getLog(InfoSocketPool.class);
+	/**
+	 * The peer used to open the new INFO sockets
+	 */
+	private final Peer peer;
+	/**
+	 * The maximum number of idle sockets kept per remote peer; 0 disables the pooling
+	 */
+	private final int maxPerPeer;
+	/**
+	 * The time after which an idle socket is closed
+	 */
+	private final long idleTimeout;
+	/**
+	 * The idle sockets per remote peer, the most recently returned one being the last
+	 */
+	private final Map<PeerID,LinkedList<IdleSocket>> idleSockets = new HashMap<PeerID,LinkedList<IdleSocket>>();
+
+	private volatile boolean running = true;
+	private Daemon evictor = null;
+
+	public final MetricsTimeVaryingInt poolHits;
+	public final MetricsTimeVaryingInt poolMisses;
+	public final MetricsTimeVaryingInt poolEvictions;
+
+	/**
+	 * Constructor of the pool.
+	 * @param peer The peer opening the INFO sockets
+	 * @param conf The configuration holding the pool settings
+	 * @param registry The metrics registry where to publish the pool counters
+	 */
+	public InfoSocketPool(Peer peer, Configuration conf, MetricsRegistry registry) {
+		this.peer = peer;
+		this.maxPerPeer = conf.getInt("hadoop.p2p.info.pool.max.per.peer", P2PConstants.INFO_POOL_MAX_PER_PEER);
+		this.idleTimeout = conf.getLong("hadoop.p2p.info.pool.idle.timeout", P2PConstants.INFO_POOL_IDLE_TIMEOUT);
+
+		poolHits = new MetricsTimeVaryingInt("infosocket_pool_hits", registry);
+		poolMisses = new MetricsTimeVaryingInt("infosocket_pool_misses", registry);
+		poolEvictions = new MetricsTimeVaryingInt("infosocket_pool_evictions", registry);
+
+		if (maxPerPeer > 0 && idleTimeout > 0) {
+			evictor = new Daemon(new Evictor());
+			evictor.start();
+		}
+	}
+	/**
+	 * Return a healthy idle socket to the remote peer or null if there is none.
+	 * @param pid The remote peer identifier
+	 * @return An idle socket or null
+	 */
+	public JxtaSocket getIdleSocket(PeerID pid) {
+		if (!running)
+			return null;
+
+		while (true) {
+			IdleSocket is = null;
+
+			synchronized(idleSockets) {
+				LinkedList<IdleSocket> sockets = idleSockets.get(pid);
+				if (sockets != null) {
+					is = sockets.pollLast();
+					if (sockets.isEmpty())
+						idleSockets.remove(pid);
+				}
+			}
+
+			if (is == null) {
+				poolMisses.inc();
+				return null;
+			}
+
+			if (isHealthy(is.socket) && !is.isExpired(System.currentTimeMillis())) {
+				poolHits.inc();
+				return is.socket;
+			}
+
+			evict(is.socket);
+		}
+	}
+	/**
+	 * Return an idle socket to the remote peer or open a new one.
+	 * @param pid The remote peer identifier
+	 * @return A connected INFO socket
+	 * @throws IOException Thrown if a new socket cannot be opened
+	 */
+	public JxtaSocket getSocket(PeerID pid) throws IOException {
+		JxtaSocket js = getIdleSocket(pid);
+
+		if (js == null)
+			js = peer.getInfoSocket(pid);
+
+		return js;
+	}
+	/**
+	 * Give a socket back to the pool once the remote datanode waits for the next operation.
+	 * <br>The socket is closed if it is unhealthy or if the pool for that peer is full.
+	 * @param pid The remote peer identifier
+	 * @param js The socket to be reused
+	 */
+	public void returnSocket(PeerID pid, JxtaSocket js) {
+		if (js == null)
+			return;
+
+		if (!running || pid == null || !isHealthy(js)) {
+			IOUtils.closeSocket(js);
+			return;
+		}
+
+		JxtaSocket evicted = null;
+
+		synchronized(idleSockets) {
+			// the pool may have been shut down meanwhile
+			if (!running) {
+				IOUtils.closeSocket(js);
+				return;
+			}
+
+			LinkedList<IdleSocket> sockets = idleSockets.get(pid);
+			if (sockets == null) {
+				sockets = new LinkedList<IdleSocket>();
+				idleSockets.put(pid, sockets);
+			}
+			sockets.addLast(new IdleSocket(js, System.currentTimeMillis() + idleTimeout));
+
+			if (sockets.size() > maxPerPeer)
+				evicted = sockets.removeFirst().socket;
+
+			if (sockets.isEmpty())
+				idleSockets.remove(pid);
+		}
+
+		if (evicted != null)
+			evict(evicted);
+	}
+	/**
+	 * Close all the idle sockets and stop the evictor thread. The sockets given back afterwards are closed.
+	 */
+	public void shutdown() {
+		if (evictor != null)
+			evictor.interrupt();
+
+		synchronized(idleSockets) {
+			running = false;
+
+			for (LinkedList<IdleSocket> sockets : idleSockets.values()) {
+				for (IdleSocket is : sockets) {
+					IOUtils.closeSocket(is.socket);
+				}
+			}
+			idleSockets.clear();
+		}
+	}
+	/**
+	 * Return the number of idle sockets currently in the pool
+	 * @return The idle socket count
+	 */
+	public int getIdleCount() {
+		int count = 0;
+
+		synchronized(idleSockets) {
+			for (LinkedList<IdleSocket> sockets : idleSockets.values()) {
+				count += sockets.size();
+			}
+		}
+
+		return count;
+	}
+	/**
+	 * Check the socket is still usable : connected and without pending bytes left from a previous operation.
+	 */
+	private boolean isHealthy(JxtaSocket js) {
+		try {
+			return !js.isClosed() && js.isConnected() && !js.isInputShutdown() && !js.isOutputShutdown()
+					&& js.getInputStream().available() == 0;
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	private void evict(JxtaSocket js) {
+		poolEvictions.inc();
+		IOUtils.closeSocket(js);
+	}
+	/**
+	 * An idle socket with its expiration date.
+	 */
+	private static class IdleSocket {
+		final JxtaSocket socket;
+		final long expiry;
+
+		IdleSocket(JxtaSocket socket, long expiry) {
+			this.socket = socket;
+			this.expiry = expiry;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiry;
+		}
+	}
+	/**
+	 * Periodically close the sockets which have been idle for too long.
+	 */
+	private class Evictor implements Runnable {
+		public void run() {
+			while (running) {
+				try {
+					Thread.sleep(Math.max(idleTimeout / 2, 1000));
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				LinkedList<JxtaSocket> expired = new LinkedList<JxtaSocket>();
+				long now = System.currentTimeMillis();
+
+				synchronized(idleSockets) {
+					Iterator<LinkedList<IdleSocket>> it = idleSockets.values().iterator();
+					while (it.hasNext()) {
+						LinkedList<IdleSocket> sockets = it.next();
+						Iterator<IdleSocket> sit = sockets.iterator();
+						while (sit.hasNext()) {
+							IdleSocket is = sit.next();
+							if (is.isExpired(now)) {
+								expired.add(is.socket);
+								sit.remove();
+							}
+						}
+						if (sockets.isEmpty())
+							it.remove();
+					}
+				}
+
+				for (JxtaSocket js : expired) {
+					evict(js);
+				}
+
+				if (!expired.isEmpty())
+					LOG.debug("Evicted "+expired.size()+" idle INFO sockets");
+			}
+		}
+
+		public String toString() {
+			return "INFO socket pool evictor";
+		}
+	}
+}
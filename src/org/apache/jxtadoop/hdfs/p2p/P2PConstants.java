@@ -105,4 +105,116 @@ public interface P2PConstants {
 	 * Number of chars in the peer id
 	 */
 	public static final int PEER_ID_LENGTH = 66;
+	/**
+	 * Default maximum number of idle INFO sockets kept per remote peer
+	 */
+	public static final int INFO_POOL_MAX_PER_PEER = 4;
+	/**
+	 * Default time in ms after which an idle pooled INFO socket is closed
+	 */
+	public static final long INFO_POOL_IDLE_TIMEOUT = 10000;
+	/**
+	 * Default time in ms a datanode waits for the next operation on a kept-alive INFO socket
+	 */
+	public static final int INFO_KEEPALIVE_TIMEOUT = 20000;
+	/**
+	 * Default maximum number of paths sent in a single batched namenode call
+	 */
+	public static final int DFS_CLIENT_NAMENODE_BATCH_SIZE = 1000;
+	/**
+	 * Default maximum number of entries of a directory listing page
+	 */
+	public static final int DFS_LS_LIMIT = 1000;
+	/**
+	 * Default for sending block report deltas between full block reports
+	 */
+	public static final boolean DFS_BLOCKREPORT_DELTA = true;
+	/**
+	 * Default number of delta block reports sent between two full block reports
+	 */
+	public static final int DFS_BLOCKREPORT_FULL_INTERVAL = 24;
+	/**
+	 * Default for compressing the sections of the namenode image
+	 */
+	public static final boolean DFS_IMAGE_COMPRESS = true;
+	/**
+	 * Default codec compressing the sections of the namenode image
+	 */
+	public static final String DFS_IMAGE_COMPRESSION_CODEC = "org.apache.jxtadoop.io.compress.DefaultCodec";
+	/**
+	 * Default number of threads saving and loading the namenode image sections
+	 */
+	public static final int DFS_IMAGE_PARALLELISM = 4;
+	/**
+	 * Default for syncing the namenode edits from a dedicated thread
+	 */
+	public static final boolean DFS_NAMENODE_EDITS_SYNCER = true;
+	/**
+	 * Default time in milliseconds the edits syncer waits for more transactions to batch
+	 */
+	public static final long DFS_NAMENODE_EDITS_SYNC_DELAY = 0;
+	/**
+	 * Default number of pending transactions the edits syncer syncs without waiting
+	 */
+	public static final int DFS_NAMENODE_EDITS_SYNC_BATCH = 1000;
+	/**
+	 * Default interval in seconds between two reports of the datanode latencies to the namenode
+	 */
+	public static final long DFS_LATENCY_REPORT_INTERVAL = 60;
+	/**
+	 * Default interval in seconds between two latency based clusterings of the datanodes into racks
+	 */
+	public static final long TOPOLOGY_LATENCY_RECOMPUTE_INTERVAL = 300;
+	/**
+	 * Default probability for a client to read a random replica rather than the best scored one
+	 */
+	public static final float DFS_CLIENT_READ_EXPLORE_RATE = 0.05f;
+	/**
+	 * Default number of threads running the hedged reads of a client process; 0 disables the hedged reads
+	 */
+	public static final int DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE = 0;
+	/**
+	 * Default time in ms after which a read is hedged on another replica
+	 */
+	public static final long DFS_CLIENT_HEDGED_READ_THRESHOLD = 500;
+	/**
+	 * Default number of blocks prefetched ahead of a sequential read; 0 disables the prefetch
+	 */
+	public static final int DFS_CLIENT_READ_PREFETCH_BLOCKS = 1;
+	/**
+	 * Default number of bytes read by the prefetch of a block
+	 */
+	public static final int DFS_CLIENT_READ_PREFETCH_BUFFER = 64 * 1024;
+	/**
+	 * Default number of threads running the block prefetches of a client process
+	 */
+	public static final int DFS_CLIENT_READ_PREFETCH_THREADPOOL_SIZE = 8;
+	/**
+	 * Default time in ms after which a prefetched connection not read yet is closed
+	 */
+	public static final long DFS_CLIENT_READ_PREFETCH_MAX_IDLE = 10000;
+	/**
+	 * Default maximum number of ranges a parallel download reads at once from the same datanode
+	 */
+	public static final int DFS_CLIENT_DOWNLOAD_MAX_PER_PEER = 2;
+	/**
+	 * Default number of ranges read at once by the parallel downloads of the shell
+	 */
+	public static final int DFS_CLIENT_DOWNLOAD_PARALLELISM = 8;
+	/**
+	 * Default number of locks the blocks of a datanode are spread over
+	 */
+	public static final int DFS_DATANODE_DATASET_LOCK_STRIPES = 64;
+	/**
+	 * Default number of threads scanning the volumes of a datanode at startup
+	 */
+	public static final int DFS_DATANODE_VOLUME_SCAN_THREADS = 8;
+	/**
+	 * Default for saving the replicas of the volumes at shutdown, so that the next startup skips the directory scan
+	 */
+	public static final boolean DFS_DATANODE_REPLICA_CACHE = true;
+	/**
+	 * Default number of connections waiting for a free xceiver thread before the new ones are rejected as busy
+	 */
+	public static final int DFS_DATANODE_XCEIVER_QUEUE_SIZE = 32;
 }
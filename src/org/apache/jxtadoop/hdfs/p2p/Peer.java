@@ -39,11 +39,13 @@ import net.jxta.platform.NetworkManager;
 import net.jxta.protocol.DiscoveryResponseMsg;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.socket.JxtaSocket;
 import net.jxta.socket.JxtaSocketAddress;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
 import org.apache.jxtadoop.security.UserGroupInformation;
 
 /**
@@ -177,6 +179,10 @@ public abstract class Peer implements P2PConstants {
 	 * The list of namenode peers in the cloud (for now, there should only be one)
 	 */
 	protected List<PeerAdvertisement> namenodepeers;
+	/**
+	 * The pool of idle INFO sockets to the remote datanodes
+	 */
+	protected InfoSocketPool infoSocketPool;
 	/**
 	 * Constructor with the peer name unique ID. This is important for the peer ID and key generation. 
 	 * @param s The peer unique name
@@ -489,6 +495,48 @@ public abstract class Peer implements P2PConstants {
 		return datanodepeers;
 	};
 	
+	/**
+	 * Open a new INFO socket to a remote datanode.
+	 * <br>To be overridden by the peers which transfer blocks.
+	 * @param pid The remote datanode peer identifier
+	 * @return The connected INFO socket
+	 * @throws IOException Thrown if the socket cannot be opened
+	 */
+	public JxtaSocket getInfoSocket(PeerID pid) throws IOException {
+		throw new IOException("Operation not supported");
+	}
+	/**
+	 * Create the INFO socket pool publishing its counters in the given metrics registry.
+	 * @param registry The metrics registry of the peer daemon
+	 * @return The INFO socket pool
+	 */
+	public synchronized InfoSocketPool initInfoSocketPool(MetricsRegistry registry) {
+		if (infoSocketPool == null)
+			infoSocketPool = new InfoSocketPool(this, pc, registry);
+		
+		return infoSocketPool;
+	}
+	/**
+	 * Return the INFO socket pool created by {@link #initInfoSocketPool(MetricsRegistry)}.
+	 * <br>Once shut down, the pool is still returned to the reads running late : it then opens a new socket for
+	 * each of them and closes the sockets given back.
+	 * @return The INFO socket pool
+	 * @throws IllegalStateException Thrown if the pool has not been created
+	 */
+	public synchronized InfoSocketPool getInfoSocketPool() {
+		if (infoSocketPool == null)
+			throw new IllegalStateException("The INFO socket pool has not been initialized");
+
+		return infoSocketPool;
+	}
+	/**
+	 * Close the pooled INFO sockets and stop pooling the new ones.
+	 */
+	public synchronized void shutdownInfoSocketPool() {
+		if (infoSocketPool != null)
+			infoSocketPool.shutdown();
+	}
+	
 	public static PeerID getPeerID(String pid) {
 		try {
 			if(!pid.startsWith("urn:jxta:cbid-"))
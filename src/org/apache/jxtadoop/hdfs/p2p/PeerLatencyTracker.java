@@ -0,0 +1,69 @@
+package org.apache.jxtadoop.hdfs.p2p;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jxta.peer.PeerID;
+
+/**
+ * Collects the round trip times measured to the remote peers, from the RPC calls and the INFO socket set ups.
+ * <br>The jxta sockets go through the relay when the peers cannot reach each other directly, so the samples
+ * account for the relay path as well.
+ * <p>
+ * Only the lowest sample per peer is kept between two drains, the higher ones mostly measuring the remote
+ * processing and queueing rather than the network path.<br>
+ * The peers are identified without their URN header, as the datanodes are in the network topology.
+ */
+public class PeerLatencyTracker {
+	private static final PeerLatencyTracker tracker = new PeerLatencyTracker();
+	/**
+	 * The lowest round trip time in ms per remote peer since the last drain
+	 */
+	private final Map<String,Long> minRtts = new HashMap<String,Long>();
+
+	/**
+	 * Return the tracker of this process
+	 * @return The latency tracker
+	 */
+	public static PeerLatencyTracker getTracker() {
+		return tracker;
+	}
+	/**
+	 * Record a round trip time measured to a remote peer
+	 * @param pid The remote peer identifier
+	 * @param rtt The round trip time in ms
+	 */
+	public void addSample(PeerID pid, long rtt) {
+		if (pid != null)
+			addSample(pid.toString(), rtt);
+	}
+	/**
+	 * Record a round trip time measured to a remote peer
+	 * @param peer The remote peer identifier, with or without the URN header
+	 * @param rtt The round trip time in ms
+	 */
+	public void addSample(String peer, long rtt) {
+		if (peer == null || rtt < 0)
+			return;
+
+		if (peer.startsWith("urn:jxta:cbid-"))
+			peer = peer.substring("urn:jxta:cbid-".length());
+
+		synchronized(minRtts) {
+			Long min = minRtts.get(peer);
+			if (min == null || rtt < min)
+				minRtts.put(peer, rtt);
+		}
+	}
+	/**
+	 * Return the lowest round trip time per remote peer since the last drain, and start over
+	 * @return The round trip times in ms per remote peer
+	 */
+	public Map<String,Long> drain() {
+		synchronized(minRtts) {
+			Map<String,Long> rtts = new HashMap<String,Long>(minRtts);
+			minRtts.clear();
+			return rtts;
+		}
+	}
+}
@@ -40,9 +40,9 @@ public interface ClientProtocol extends VersionedProtocol {
    * Compared to the previous version the following changes have been introduced:
    * (Only the latest change is reflected.
    * The log of historical changes can be retrieved from the svn).
-   * 41: saveNamespace introduced.
+   * 43: paginated getListing introduced.
    */
-  public static final long versionID = 41L;
+  public static final long versionID = 43L;
   
   ///////////////////////////////////////
   // File contents
@@ -70,6 +70,22 @@ public interface ClientProtocol extends VersionedProtocol {
                                           long offset,
                                           long length) throws IOException;
 
+  /**
+   * Get locations of the blocks of several files within the same range,
+   * in a single namespace lock acquisition.
+   * @see #getBlockLocations(String, long, long)
+   * 
+   * @param srcs file names
+   * @param offset range start offset
+   * @param length range length
+   * @return the {@link LocatedBlocks} of each file, or the exception
+   *         raised for it
+   * @throws IOException
+   */
+  public PathResults getBlockLocations(String[] srcs,
+                                       long offset,
+                                       long length) throws IOException;
+
   /**
    * Create a new file entry in the namespace.
    * <p>
@@ -261,6 +277,27 @@ public interface ClientProtocol extends VersionedProtocol {
    */
   public FileStatus[] getListing(String src) throws IOException;
 
+  /**
+   * Get a page of the listing of the indicated directory. The entries are
+   * sorted by name.
+   * @param src the directory
+   * @param startAfter the local name of the entry the page starts after,
+   *                   the empty string for the first page
+   * @param limit the maximum number of entries of the page; the namenode
+   *              may return less
+   * @return the page, or null if the directory does not exist
+   */
+  public DirectoryListing getListing(String src, String startAfter, int limit)
+    throws IOException;
+
+  /**
+   * Get the listings of several directories, in a single namespace
+   * lock acquisition.
+   * @return the <code>FileStatus[]</code> of each directory, or the
+   *         exception raised for it
+   */
+  public PathResults getListing(String[] srcs) throws IOException;
+
   ///////////////////////////////////////
   // System issues and management
   ///////////////////////////////////////
@@ -429,12 +466,29 @@ public interface ClientProtocol extends VersionedProtocol {
    */
   public FileStatus getFileInfo(String src) throws IOException;
 
+  /**
+   * Get the file info of several files or directories, in a single 
+   * namespace lock acquisition.
+   * @param srcs The string representations of the paths
+   * @return the {@link FileStatus} of each path, null if not found, or 
+   *         the exception raised for it
+   */
+  public PathResults getFileInfo(String[] srcs) throws IOException;
+
   /**
    * Get {@link ContentSummary} rooted at the specified directory.
    * @param path The string representation of the path
    */
   public ContentSummary getContentSummary(String path) throws IOException;
 
+  /**
+   * Get the {@link ContentSummary} of several directories, in a single
+   * namespace lock acquisition.
+   * @return the {@link ContentSummary} of each path, or the exception
+   *         raised for it
+   */
+  public PathResults getContentSummary(String[] paths) throws IOException;
+
   /**
    * Set the quota for a directory.
    * @param path  The string representation of the path to the directory
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+
+/**
+ * A page of a directory listing, and the number of entries left after it.
+ */
+public class DirectoryListing implements Writable {
+  private FileStatus[] partialListing;
+  private int remainingEntries;
+
+  DirectoryListing() {
+    this(new FileStatus[0], 0);
+  }
+
+  /**
+   * @param partialListing the entries of the page
+   * @param remainingEntries the number of entries following the page
+   */
+  public DirectoryListing(FileStatus[] partialListing, int remainingEntries) {
+    this.partialListing = partialListing;
+    this.remainingEntries = remainingEntries;
+  }
+
+  /** Get the entries of the page. */
+  public FileStatus[] getPartialListing() {
+    return partialListing;
+  }
+
+  /** Get the number of entries following the page. */
+  public int getRemainingEntries() {
+    return remainingEntries;
+  }
+
+  /** Check if there are entries following the page. */
+  public boolean hasMore() {
+    return remainingEntries > 0;
+  }
+
+  /**
+   * Get the local name of the last entry of the page, from which the next
+   * page starts.
+   * @return the name, or the empty string if the page is empty
+   */
+  public String getLastName() {
+    if (partialListing.length == 0) {
+      return "";
+    }
+    return partialListing[partialListing.length - 1].getPath().getName();
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (DirectoryListing.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new DirectoryListing(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(partialListing.length);
+    for (FileStatus file : partialListing) {
+      file.write(out);
+    }
+    out.writeInt(remainingEntries);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    int numEntries = in.readInt();
+    partialListing = new FileStatus[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      partialListing[i] = new FileStatus();
+      partialListing[i].readFields(in);
+    }
+    remainingEntries = in.readInt();
+  }
+}
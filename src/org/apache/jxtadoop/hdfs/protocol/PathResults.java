@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+import org.apache.jxtadoop.io.Text;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableFactory;
+import org.apache.jxtadoop.io.WritableUtils;
+import org.apache.jxtadoop.ipc.RemoteException;
+import org.apache.jxtadoop.util.StringUtils;
+
+/**
+ * The results of a batched {@link ClientProtocol} call, one per path.
+ * A result is either the value returned for the path, possibly null,
+ * or the exception raised for it. The value class is a {@link Writable}
+ * or an array of {@link Writable}.
+ */
+public class PathResults implements Writable {
+  /* Result tags */
+  private static final byte NULL = 0;
+  private static final byte VALUE = 1;
+  private static final byte ERROR = 2;
+
+  private Class<?> valueClass;
+  private Object[] values;
+  private String[] errorClasses;
+  private String[] errorMessages;
+
+  PathResults() {
+    this(Writable.class, 0);
+  }
+
+  /**
+   * @param valueClass the class of the values
+   * @param size the number of paths
+   */
+  public PathResults(Class<?> valueClass, int size) {
+    this.valueClass = valueClass;
+    this.values = new Object[size];
+    this.errorClasses = new String[size];
+    this.errorMessages = new String[size];
+  }
+
+  /** Return the number of paths. */
+  public int size() {
+    return values.length;
+  }
+
+  /** Set the value of the i-th path. */
+  public void set(int i, Object value) {
+    values[i] = value;
+    errorClasses[i] = null;
+    errorMessages[i] = null;
+  }
+
+  /** Set the exception raised for the i-th path. */
+  public void setError(int i, IOException e) {
+    values[i] = null;
+    errorClasses[i] = e.getClass().getName();
+    errorMessages[i] = StringUtils.stringifyException(e);
+  }
+
+  /**
+   * Get the value of the i-th path.
+   * @return the value, possibly null
+   * @throws RemoteException wrapping the exception raised for the path
+   */
+  public Object get(int i) throws RemoteException {
+    if (errorClasses[i] != null) {
+      throw new RemoteException(errorClasses[i], errorMessages[i]);
+    }
+    return values[i];
+  }
+
+  //////////////////////////////////////////////////
+  // Writable
+  //////////////////////////////////////////////////
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (PathResults.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new PathResults(); }
+       });
+  }
+
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, valueClass.getName());
+    WritableUtils.writeVInt(out, values.length);
+    for (int i = 0; i < values.length; i++) {
+      if (errorClasses[i] != null) {
+        out.writeByte(ERROR);
+        Text.writeString(out, errorClasses[i]);
+        Text.writeString(out, errorMessages[i]);
+      } else if (values[i] == null) {
+        out.writeByte(NULL);
+      } else if (valueClass.isArray()) {
+        out.writeByte(VALUE);
+        int length = Array.getLength(values[i]);
+        WritableUtils.writeVInt(out, length);
+        for (int j = 0; j < length; j++) {
+          ((Writable)Array.get(values[i], j)).write(out);
+        }
+      } else {
+        out.writeByte(VALUE);
+        ((Writable)values[i]).write(out);
+      }
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    String className = Text.readString(in);
+    try {
+      valueClass = Class.forName(className);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("PathResults can't find class " + className);
+    }
+    int size = WritableUtils.readVInt(in);
+    values = new Object[size];
+    errorClasses = new String[size];
+    errorMessages = new String[size];
+    for (int i = 0; i < size; i++) {
+      byte tag = in.readByte();
+      if (tag == ERROR) {
+        errorClasses[i] = Text.readString(in);
+        errorMessages[i] = Text.readString(in);
+      } else if (tag == VALUE) {
+        if (valueClass.isArray()) {
+          Class<?> componentClass = valueClass.getComponentType();
+          int length = WritableUtils.readVInt(in);
+          Object array = Array.newInstance(componentClass, length);
+          for (int j = 0; j < length; j++) {
+            Array.set(array, j, readWritable(componentClass, in));
+          }
+          values[i] = array;
+        } else {
+          values[i] = readWritable(valueClass, in);
+        }
+      }
+    }
+  }
+
+  private static Writable readWritable(Class<?> c, DataInput in)
+    throws IOException {
+    Writable w = WritableFactories.newInstance(c.asSubclass(Writable.class));
+    w.readFields(in);
+    return w;
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.jxtadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.jxtadoop.util.DiskChecker.DiskOutOfSpaceException;
+
+/**
+ * Picks a volume at random among the ones with room for the block, each
+ * with a probability proportional to its available space. The volumes of
+ * different sizes thus fill up at the same pace, instead of the smallest
+ * ones filling first.
+ */
+class AvailableSpaceVolumeChoosingPolicy implements VolumeChoosingPolicy {
+  private final Random random = new Random();
+
+  /** {@inheritDoc} */
+  public FSVolume chooseVolume(FSVolume[] volumes, long blockSize)
+    throws IOException {
+    long[] available = new long[volumes.length];
+    long total = 0;
+    for (int i = 0; i < volumes.length; i++) {
+      long a = volumes[i].getAvailable();
+      if (a > blockSize) {
+        available[i] = a;
+        total += a;
+      }
+    }
+    if (total == 0) {
+      throw new DiskOutOfSpaceException("Insufficient space for an additional block");
+    }
+    long r = (long)(random.nextDouble() * total);
+    int last = 0;
+    for (int i = 0; i < volumes.length; i++) {
+      if (available[i] == 0) {
+        continue;
+      }
+      if (r < available[i]) {
+        return volumes[i];
+      }
+      r -= available[i];
+      last = i;
+    }
+    return volumes[last];
+  }
+}
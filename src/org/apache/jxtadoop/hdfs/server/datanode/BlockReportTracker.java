@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jxtadoop.hdfs.protocol.Block;
+
+/**
+ * Keeps the last block report acknowledged by the namenode, so that the
+ * following reports only carry the blocks added or removed since then.
+ * <p>
+ * Each acknowledged report bumps a generation number, which the namenode
+ * checks against its own before applying a delta. A generation of -1
+ * means that no report is acknowledged and the next one must be full.
+ */
+class BlockReportTracker {
+  private long generation = -1;
+  private Map<Long, Block> acknowledged = new HashMap<Long, Block>();
+
+  private final List<Block> added = new ArrayList<Block>();
+  private final List<Block> removed = new ArrayList<Block>();
+
+  /** Check if a delta can be sent, i.e. a report was acknowledged. */
+  boolean hasBaseReport() {
+    return generation >= 0;
+  }
+
+  /** Get the generation of the last acknowledged report. */
+  long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Compute the difference between the acknowledged report and the
+   * given one. A block whose length changed is reported as added ; a block
+   * whose generation stamp changed is reported as removed with its old
+   * stamp and added with the new one.
+   */
+  void diff(Block[] report) {
+    added.clear();
+    removed.clear();
+    Map<Long, Block> unreported = new HashMap<Long, Block>(acknowledged);
+    for (Block b : report) {
+      Block old = unreported.remove(b.getBlockId());
+      if (old == null) {
+        added.add(b);
+      } else if (old.getGenerationStamp() != b.getGenerationStamp()) {
+        removed.add(old);
+        added.add(b);
+      } else if (old.getNumBytes() != b.getNumBytes()) {
+        added.add(b);
+      }
+    }
+    removed.addAll(unreported.values());
+  }
+
+  /** Get the blocks added by the last {@link #diff(Block[])}. */
+  Block[] getAdded() {
+    return added.toArray(new Block[added.size()]);
+  }
+
+  /** Get the blocks removed by the last {@link #diff(Block[])}. */
+  Block[] getRemoved() {
+    return removed.toArray(new Block[removed.size()]);
+  }
+
+  /** The namenode acknowledged the given full report. */
+  void fullReportAcknowledged(Block[] report) {
+    generation = 0;
+    setAcknowledged(report);
+  }
+
+  /** The namenode acknowledged the delta leading to the given report. */
+  void deltaAcknowledged(Block[] report) {
+    generation++;
+    setAcknowledged(report);
+  }
+
+  /**
+   * The namenode was told about the given received blocks, they are now
+   * part of the acknowledged report. This way a received block deleted
+   * before the next report is reported as removed.
+   */
+  void blocksReceived(Block[] blocks) {
+    if (!hasBaseReport()) {
+      return;
+    }
+    for (Block b : blocks) {
+      acknowledged.put(b.getBlockId(), b);
+    }
+  }
+
+  /** Forget the acknowledged report, so that the next one is full. */
+  void reset() {
+    generation = -1;
+    acknowledged = new HashMap<Long, Block>();
+    added.clear();
+    removed.clear();
+  }
+
+  private void setAcknowledged(Block[] report) {
+    Map<Long, Block> blocks = new HashMap<Long, Block>(report.length * 4 / 3 + 1);
+    for (Block b : report) {
+      blocks.put(b.getBlockId(), b);
+    }
+    acknowledged = blocks;
+  }
+}
@@ -31,11 +31,11 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,6 +52,7 @@ import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
 /*
  * This keeps track of blocks and their last verification times.
  * Currently it does not modify the metadata for block.
+ * The verification times are kept in the replica map of the dataset.
  */
 
 class DataBlockScanner implements Runnable {
@@ -74,9 +75,8 @@ class DataBlockScanner implements Runnable {
   DataNode datanode;
   FSDataset dataset;
   
-  // sorted set
-  TreeSet<BlockScanInfo> blockInfoSet;
-  HashMap<Block, BlockScanInfo> blockMap;
+  // the blocks scheduled by scan time
+  ReplicaMap blockMap;
   
   long totalScans = 0;
   long totalVerifications = 0; // includes remote verification by clients.
@@ -93,13 +93,17 @@ class DataBlockScanner implements Runnable {
   
   BlockTransferThrottler throttler = null;
   
-  private static enum ScanType {
+  static enum ScanType {
     REMOTE_READ,           // Verified when a block read by a client etc
     VERIFICATION_SCAN,     // scanned as part of periodic verfication
     NONE,
   }
   
-  static class BlockScanInfo implements Comparable<BlockScanInfo> {
+  /*
+   * A copy of the scan state of a block. The changes are stored back by
+   * ReplicaMap.putScanInfo().
+   */
+  static class BlockScanInfo {
     Block block;
     long lastScanTime = 0;
     long lastLogTime = 0;
@@ -110,25 +114,9 @@ class DataBlockScanner implements Runnable {
       this.block = block;
     }
     
-    public int hashCode() {
-      return block.hashCode();
-    }
-    
-    public boolean equals(Object other) {
-      return other instanceof BlockScanInfo &&
-             compareTo((BlockScanInfo)other) == 0;
-    }
-    
     long getLastScanTime() {
       return ( lastScanType == ScanType.NONE) ? 0 : lastScanTime;
     }
-    
-    public int compareTo(BlockScanInfo other) {
-      long t1 = lastScanTime;
-      long t2 = other.lastScanTime;
-      return ( t1 < t2 ) ? -1 : 
-                          (( t1 > t2 ) ? 1 : block.compareTo(other.block)); 
-    }
   }
   
   DataBlockScanner(DataNode datanode, FSDataset dataset, Configuration conf) {
@@ -157,25 +145,23 @@ class DataBlockScanner implements Runnable {
   }
   
   private synchronized void addBlockInfo(BlockScanInfo info) {
-    boolean added = blockInfoSet.add(info);
-    blockMap.put(info.block, info);
+    boolean added = blockMap.putScanInfo(info);
     
     if ( added ) {
       LogFileHandler log = verificationLog;
       if (log != null) {
-        log.setMaxNumLines(blockMap.size() * verficationLogLimit);
+        log.setMaxNumLines(blockMap.getNumScans() * verficationLogLimit);
       }
       updateBytesToScan(info.block.getNumBytes(), info.lastScanTime);
     }
   }
   
   private synchronized void delBlockInfo(BlockScanInfo info) {
-    boolean exists = blockInfoSet.remove(info);
-    blockMap.remove(info.block);
+    boolean exists = blockMap.removeScanInfo(info.block);
     if ( exists ) {
       LogFileHandler log = verificationLog;
       if (log != null) {
-        log.setMaxNumLines(blockMap.size() * verficationLogLimit);
+        log.setMaxNumLines(blockMap.getNumScans() * verficationLogLimit);
       }
       updateBytesToScan(-info.block.getNumBytes(), info.lastScanTime);
     }
@@ -183,7 +169,7 @@ class DataBlockScanner implements Runnable {
   
   /** Update blockMap by the given LogEntry */
   private synchronized void updateBlockInfo(LogEntry e) {
-    BlockScanInfo info = blockMap.get(new Block(e.blockId, 0, e.genStamp));
+    BlockScanInfo info = blockMap.getScanInfo(new Block(e.blockId, 0, e.genStamp));
     
     if(info != null && e.verificationTime > 0 && 
         info.lastScanTime < e.verificationTime) {
@@ -200,8 +186,7 @@ class DataBlockScanner implements Runnable {
     Block arr[] = dataset.getBlockReport();
     Collections.shuffle(Arrays.asList(arr));
     
-    blockInfoSet = new TreeSet<BlockScanInfo>();
-    blockMap = new HashMap<Block, BlockScanInfo>();
+    blockMap = dataset.volumeMap;
     
     long scanTime = -1;
     for (Block block : arr) {
@@ -244,7 +229,7 @@ class DataBlockScanner implements Runnable {
      * the scan period. Otherwise something sooner.
      */
     long period = Math.min(scanPeriod, 
-                           Math.max(blockMap.size(),1) * 600 * 1000L);
+                           Math.max(blockMap.getNumScans(),1) * 600 * 1000L);
     return System.currentTimeMillis() - scanPeriod + 
            random.nextInt((int)period);    
   }
@@ -255,7 +240,7 @@ class DataBlockScanner implements Runnable {
       return;
     }
     
-    BlockScanInfo info = blockMap.get(block);
+    BlockScanInfo info = blockMap.getScanInfo(block);
     if ( info != null ) {
       LOG.warn("Adding an already existing block " + block);
       delBlockInfo(info);
@@ -273,7 +258,7 @@ class DataBlockScanner implements Runnable {
     if (!isInitiliazed()) {
       return;
     }
-    BlockScanInfo info = blockMap.get(block);
+    BlockScanInfo info = blockMap.getScanInfo(block);
     if ( info != null ) {
       delBlockInfo(info);
     }
@@ -284,7 +269,7 @@ class DataBlockScanner implements Runnable {
     if (!isInitiliazed()) {
       return 0;
     }
-    BlockScanInfo info = blockMap.get(block);
+    BlockScanInfo info = blockMap.getScanInfo(block);
     return info == null? 0: info.lastScanTime;
   }
 
@@ -302,7 +287,7 @@ class DataBlockScanner implements Runnable {
   private synchronized void updateScanStatus(Block block, 
                                              ScanType type,
                                              boolean scanOk) {
-    BlockScanInfo info = blockMap.get(block);
+    BlockScanInfo info = blockMap.getScanInfo(block);
     
     if ( info != null ) {
       delBlockInfo(info);
@@ -470,8 +455,9 @@ class DataBlockScanner implements Runnable {
   }
   
   private synchronized long getEarliestScanTime() {
-    if ( blockInfoSet.size() > 0 ) {
-      return blockInfoSet.first().lastScanTime;
+    BlockScanInfo info = blockMap.firstScanInfo();
+    if ( info != null ) {
+      return info.lastScanTime;
     }
     return Long.MAX_VALUE; 
   }
@@ -480,8 +466,9 @@ class DataBlockScanner implements Runnable {
   private void verifyFirstBlock() {
     Block block = null;
     synchronized (this) {
-      if ( blockInfoSet.size() > 0 ) {
-        block = blockInfoSet.first().block;
+      BlockScanInfo info = blockMap.firstScanInfo();
+      if ( info != null ) {
+        block = info.block;
       }
     }
     
@@ -496,7 +483,7 @@ class DataBlockScanner implements Runnable {
   private boolean assignInitialVerificationTimes() {
     int numBlocks = 1;
     synchronized (this) {
-      numBlocks = Math.max(blockMap.size(), 1);
+      numBlocks = Math.max(blockMap.getNumScans(), 1);
     }
     
     //First udpates the last verification times from the log file.
@@ -537,14 +524,15 @@ class DataBlockScanner implements Runnable {
                                             10*60*1000 ));
     long lastScanTime = System.currentTimeMillis() - scanPeriod;
     
-    /* Before this loop, entries in blockInfoSet that are not
+    /* Before this loop, blocks scheduled that are not
      * updated above have lastScanTime of <= 0 . Loop until first entry has
      * lastModificationTime > 0.
      */    
     synchronized (this) {
-      if (blockInfoSet.size() > 0 ) {
+      if (blockMap.getNumScans() > 0 ) {
         BlockScanInfo info;
-        while ((info =  blockInfoSet.first()).lastScanTime < 0) {
+        while ((info =  blockMap.firstScanInfo()) != null &&
+               info.lastScanTime < 0) {
           delBlockInfo(info);        
           info.lastScanTime = lastScanTime;
           lastScanTime += verifyInterval;
@@ -623,14 +611,24 @@ class DataBlockScanner implements Runnable {
     int inScanPeriod = 0;
     int neverScanned = 0;
     
-    int total = blockInfoSet.size();
+    List<BlockScanInfo> infos = blockMap.getScanInfos();
+    int total = infos.size();
+    if (!summaryOnly) {
+      Collections.sort(infos, new Comparator<BlockScanInfo>() {
+        public int compare(BlockScanInfo i1, BlockScanInfo i2) {
+          long t1 = i1.lastScanTime;
+          long t2 = i2.lastScanTime;
+          return ( t1 < t2 ) ? -1 : 
+                              (( t1 > t2 ) ? 1 : i1.block.compareTo(i2.block));
+        }
+      });
+    }
     
     long now = System.currentTimeMillis();
     
     Date date = new Date();
     
-    for(Iterator<BlockScanInfo> it = blockInfoSet.iterator(); it.hasNext();) {
-      BlockScanInfo info = it.next();
+    for(BlockScanInfo info : infos) {
       
       long scanTime = info.getLastScanTime();
       long diff = now - scanTime;
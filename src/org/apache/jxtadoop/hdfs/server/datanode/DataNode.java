@@ -52,6 +52,8 @@ import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.conf.Configured;
 import org.apache.jxtadoop.hdfs.HDFSPolicyProvider;
 import org.apache.jxtadoop.hdfs.p2p.DatanodePeer;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+import org.apache.jxtadoop.hdfs.p2p.PeerLatencyTracker;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.ClientDatanodeProtocol;
@@ -169,9 +171,17 @@ public class DataNode extends Configured
   //disallow the sending of BR before instructed to do so
   long lastBlockReport = 0;
   boolean resetBlockReportTime = true;
+  boolean deltaBlockReport;
+  int fullBlockReportInterval;
+  int deltaReportsSinceFull = 0;
+  private final BlockReportTracker blockReportTracker = new BlockReportTracker();
   long initialBlockReportDelay = BLOCKREPORT_INITIAL_DELAY * 1000L;
   long lastHeartbeat = 0;
   long heartBeatInterval;
+  long lastLatencyReport = 0;
+  long latencyReportInterval;
+  private long startupBegin = 0;
+  private long volumeScanTime = 0;
   private DataStorage storage = null;
   DataNodeMetrics myMetrics;
   private InetSocketAddress selfAddr;
@@ -233,6 +243,7 @@ public class DataNode extends Configured
   void startDataNode(Configuration conf, 
                      AbstractList<File> dataDirs
                      ) throws IOException {
+	  startupBegin = now();
 	  dnpeer.initialize();
 	  dnpeer.start();
 	  
@@ -310,7 +321,9 @@ public class DataNode extends Configured
       
       this.dnRegistration.setStorageInfo(storage);
       // initialize data node internal structure
+      long scanStart = now();
       this.data = new FSDataset(storage, conf);
+      volumeScanTime = now() - scanStart;
     }
 
       
@@ -343,7 +356,13 @@ public class DataNode extends Configured
       LOG.info("dfs.blockreport.initialDelay is greater than " +
         "dfs.blockreport.intervalMsec." + " Setting initial delay to 0 msec:");
     }
+    this.deltaBlockReport = conf.getBoolean("dfs.blockreport.delta",
+                                            P2PConstants.DFS_BLOCKREPORT_DELTA);
+    this.fullBlockReportInterval = conf.getInt("dfs.blockreport.full.interval",
+        P2PConstants.DFS_BLOCKREPORT_FULL_INTERVAL);
     this.heartBeatInterval = conf.getLong("dfs.heartbeat.interval", HEARTBEAT_INTERVAL) * 1000L;
+    this.latencyReportInterval = conf.getLong("dfs.latency.report.interval",
+        P2PConstants.DFS_LATENCY_REPORT_INTERVAL) * 1000L;
 
     //initialize periodic block scanner
     String reason = null;
@@ -360,6 +379,10 @@ public class DataNode extends Configured
     }
 
    myMetrics = new DataNodeMetrics(conf, dnRegistration.getStorageID());
+   if (data instanceof FSDataset) {
+     ((FSDataset)data).setMetrics(myMetrics);
+   }
+   myMetrics.volumeScanTime.set(volumeScanTime);
     
     // set service-level authorization security policy
     if (conf.getBoolean(
@@ -558,7 +581,14 @@ public class DataNode extends Configured
           + ". Expecting " + storage.getStorageID());
     }
     
+    if (startupBegin > 0) {
+      myMetrics.startupTime.set(now() - startupBegin);
+      startupBegin = 0;
+    }
+
     // random short delay - helps scatter the BR from all DNs
+    // the first report after a registration is a full one
+    blockReportTracker.reset();
     scheduleBlockReport(initialBlockReportDelay);
   }
 
@@ -666,7 +696,8 @@ public class DataNode extends Configured
     
   /** Number of concurrent xceivers per node. */
   int getXceiverCount() {
-    return threadGroup == null ? 0 : threadGroup.activeCount();
+    return dataXceiverServer == null ? 0 :
+      ((DataXceiverServer) dataXceiverServer.getRunnable()).getActiveCount();
   }
     
   /**
@@ -734,6 +765,7 @@ public class DataNode extends Configured
             LOG.warn("Panic: block array & delHintArray are not the same" );
           }
           namenode.blockReceived(dnRegistration, blockArray, delHintArray);
+          blockReportTracker.blocksReceived(blockArray);
           synchronized (receivedBlockList) {
             synchronized (delHints) {
               for(int i=0; i<blockArray.length; i++) {
@@ -744,6 +776,22 @@ public class DataNode extends Configured
           }
         }
 
+        // send the round trip times measured to the peers
+        if (startTime - lastLatencyReport > latencyReportInterval) {
+          lastLatencyReport = startTime;
+          Map<String,Long> rtts = PeerLatencyTracker.getTracker().drain();
+          if (!rtts.isEmpty()) {
+            String[] peers = new String[rtts.size()];
+            long[] times = new long[rtts.size()];
+            int i = 0;
+            for (Map.Entry<String,Long> e : rtts.entrySet()) {
+              peers[i] = e.getKey();
+              times[i++] = e.getValue();
+            }
+            namenode.reportLatencies(dnRegistration, peers, times);
+          }
+        }
+
         // send block report
         if (startTime - lastBlockReport > blockReportInterval) {
           //
@@ -753,12 +801,45 @@ public class DataNode extends Configured
           //
           long brStartTime = now();
           Block[] bReport = data.getBlockReport();
-          DatanodeCommand cmd = namenode.blockReport(dnRegistration,
-                  BlockListAsLongs.convertToArrayLongs(bReport));
-          long brTime = now() - brStartTime;
-          myMetrics.blockReports.inc(brTime);
-          LOG.info("BlockReport of " + bReport.length +
-              " blocks got processed in " + brTime + " msecs");
+          DatanodeCommand cmd;
+          if (deltaBlockReport && blockReportTracker.hasBaseReport() &&
+              (fullBlockReportInterval <= 0 ||
+               deltaReportsSinceFull < fullBlockReportInterval)) {
+            //
+            // Only send the blocks added and removed since the last
+            // acknowledged report. Every dfs.blockreport.full.interval
+            // reports a full one is sent instead, so that the namenode
+            // view of the node is reconciled with what is really on disk.
+            //
+            blockReportTracker.diff(bReport);
+            Block[] added = blockReportTracker.getAdded();
+            Block[] removed = blockReportTracker.getRemoved();
+            cmd = namenode.blockReportDelta(dnRegistration,
+                    blockReportTracker.getGeneration(),
+                    BlockListAsLongs.convertToArrayLongs(added),
+                    BlockListAsLongs.convertToArrayLongs(removed));
+            if (cmd == null ||
+                cmd.getAction() != DatanodeProtocol.DNA_BLOCKREPORT) {
+              blockReportTracker.deltaAcknowledged(bReport);
+            }
+            deltaReportsSinceFull++;
+            long brTime = now() - brStartTime;
+            myMetrics.blockReportDeltas.inc(brTime);
+            LOG.info("BlockReport delta of " + added.length + " added and " +
+                removed.length + " removed blocks got processed in " +
+                brTime + " msecs");
+          } else {
+            cmd = namenode.blockReport(dnRegistration,
+                    BlockListAsLongs.convertToArrayLongs(bReport));
+            if (deltaBlockReport) {
+              blockReportTracker.fullReportAcknowledged(bReport);
+            }
+            deltaReportsSinceFull = 0;
+            long brTime = now() - brStartTime;
+            myMetrics.blockReports.inc(brTime);
+            LOG.info("BlockReport of " + bReport.length +
+                " blocks got processed in " + brTime + " msecs");
+          }
           //
           // If we have sent the first block report, then wait a random
           // time before we start the periodic block reports.
@@ -893,6 +974,12 @@ public class DataNode extends Configured
     case DatanodeProtocol.DNA_RECOVERBLOCK:
       recoverBlocks(bcmd.getBlocks(), bcmd.getTargets());
       break;
+    case DatanodeProtocol.DNA_BLOCKREPORT:
+      // namenode lost track of the report generation
+      LOG.info("DatanodeCommand action: DNA_BLOCKREPORT");
+      blockReportTracker.reset();
+      scheduleBlockReport(0);
+      break;
     default:
       LOG.warn("Unknown DatanodeCommand action: " + cmd.getAction());
     }
@@ -82,6 +82,7 @@ class DataXceiver implements Runnable, FSConstants {
   public void run() {
     DataInputStream in=null; 
     LOG.debug("DataXceiver starts processing new incoming data");
+    dataXceiverServer.xceiverStarted();
     
     try {
       //in = new DataInputStream(
@@ -96,35 +97,51 @@ class DataXceiver implements Runnable, FSConstants {
       BufferedInputStream bis = new BufferedInputStream(ris);
       
       in = new DataInputStream(bis); 
-	  	  
-      short version = in.readShort();
-      LOG.debug("Version read : "+version);
-      if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
-        throw new IOException( "Version Mismatch" );
-      }
+	  
+      boolean keepAlive = true;
+      int opsProcessed = 0;
       
-      //boolean local = s.getInetAddress().equals(s.getLocalAddress());
-      boolean local = false; /** TODO A modifier proprement **/
+      while (keepAlive) {
+        short version;
+        
+        if (opsProcessed > 0) {
+          // the client may reuse the socket for its next operation
+          int first;
+          try {
+            first = waitForNextOp(in);
+          } catch (IOException ignored) {
+            first = -1;
+          }
+          if (first < 0) {
+            LOG.debug("Kept alive connection from " + remoteAddress + " closed after " + opsProcessed + " ops");
+            break;
+          }
+          s.setSoTimeout(Integer.parseInt(datanode.getConf().get("hadoop.p2p.info.timeout")));
+          version = (short)((first << 8) | in.readUnsignedByte());
+        } else {
+          version = in.readShort();
+        }
+        
+        LOG.debug("Version read : "+version);
+        if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
+          throw new IOException( "Version Mismatch" );
+        }
       
-      LOG.debug("Reading op type from stream");
-      byte op = in.readByte();
+        //boolean local = s.getInetAddress().equals(s.getLocalAddress());
+        boolean local = false; /** TODO A modifier proprement **/
       
-      LOG.debug("op type read : "+op);
+        LOG.debug("Reading op type from stream");
+        byte op = in.readByte();
       
-      // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
-      if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
-        throw new IOException("xceiverCount " + curXceiverCount
-                              + " exceeds the limit of concurrent xcievers "
-                              + dataXceiverServer.maxXceiverCount);
-      }
+        LOG.debug("op type read : "+op);
       
-      long startTime = DataNode.now();
+        long startTime = DataNode.now();
+        keepAlive = false;
      
-      switch ( op ) {
+        switch ( op ) {
 	      case DataTransferProtocol.OP_READ_BLOCK:
 	    	 LOG.debug("Received a OP_READ_BLOCK op");
-	        readBlock( in );
+	        keepAlive = readBlock( in );
 	        datanode.myMetrics.readBlockOp.inc(DataNode.now() - startTime);
 	        if (local)
 	          datanode.myMetrics.readsFromLocalClient.inc();
@@ -158,12 +175,14 @@ class DataXceiver implements Runnable, FSConstants {
 	        break;
 	      case DataTransferProtocol.OP_BLOCK_CHECKSUM: //get the checksum of a block
 	    	  LOG.debug("Received a OP_BLOCK_CHECKSUM op");
-	    	  getBlockChecksum(in);
+	    	  keepAlive = getBlockChecksum(in);
 	        datanode.myMetrics.blockChecksumOp.inc(DataNode.now() - startTime);
 	        break;
 	      default:
 	    	  LOG.debug("Unknown op code");
 	        throw new IOException("Unknown opcode " + op + " in data stream");
+        }
+        opsProcessed++;
       }
     } catch (SocketTimeoutException ste) {
     	ste.printStackTrace();
@@ -180,15 +199,17 @@ class DataXceiver implements Runnable, FSConstants {
       IOUtils.closeStream(in);
       IOUtils.closeSocket(s);
       dataXceiverServer.childSockets.remove(s);
+      dataXceiverServer.xceiverFinished();
     }
   }
 
   /**
    * Read a block from the disk.
    * @param in The stream to read from
+   * @return true if the client acknowledged the block and may reuse the socket
    * @throws IOException
    */
-  private void readBlock(DataInputStream in) throws IOException {
+  private boolean readBlock(DataInputStream in) throws IOException {
 	  LOG.debug("Mathod called : readBlock()");
     //
     // Read in the header
@@ -207,6 +228,7 @@ class DataXceiver implements Runnable, FSConstants {
     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(baseStream));
     
     BlockSender blockSender = null;
+    boolean keepAlive = false;
     final String clientTraceFmt =
       clientName.length() > 0 && ClientTraceLog.isInfoEnabled()
         ? String.format(DN_CLIENTTRACE_FORMAT, localAddress, remoteAddress,
@@ -226,16 +248,17 @@ class DataXceiver implements Runnable, FSConstants {
       out.writeShort(DataTransferProtocol.OP_STATUS_SUCCESS); // send op status
       long read = blockSender.sendBlock(out, baseStream, null); // send data
 
-      if (blockSender.isBlockReadFully()) {
-        // See if client verification succeeded. 
-        // This is an optional response from client.
-        try {
-          if (in.readShort() == DataTransferProtocol.OP_STATUS_CHECKSUM_OK  && 
-              datanode.blockScanner != null) {
+      // See if client verification succeeded. 
+      // This is an optional response from client. It also tells the 
+      // client consumed the whole range and may send another op.
+      try {
+        if (in.readShort() == DataTransferProtocol.OP_STATUS_CHECKSUM_OK) {
+          keepAlive = true;
+          if (blockSender.isBlockReadFully() && datanode.blockScanner != null) {
             datanode.blockScanner.verifiedByClient(block);
           }
-        } catch (IOException ignored) {}
-      }
+        }
+      } catch (IOException ignored) {}
       
       datanode.myMetrics.bytesRead.inc((int) read);
       datanode.myMetrics.blocksRead.inc();
@@ -253,9 +276,11 @@ class DataXceiver implements Runnable, FSConstants {
       throw ioe;
     } finally {
     	LOG.debug("Finalizing : readBlock()");
-    	IOUtils.closeStream(out);
+    	if (!keepAlive)
+    	  IOUtils.closeStream(out);
       IOUtils.closeStream(blockSender);
     }
+    return keepAlive;
   }
 
   /**
@@ -504,7 +529,7 @@ class DataXceiver implements Runnable, FSConstants {
    * Get block checksum (MD5 of CRC32).
    * @param in
    */
-  void getBlockChecksum(DataInputStream in) throws IOException {
+  boolean getBlockChecksum(DataInputStream in) throws IOException {
 	  LOG.debug("Mathod called : getBlockChecksum()");
     final Block block = new Block(in.readLong(), 0 , in.readLong());
 
@@ -538,9 +563,10 @@ class DataXceiver implements Runnable, FSConstants {
       out.writeLong(crcPerBlock);
       md5.write(out);
       out.flush();
+      // the reply is complete, the client may reuse the socket
+      return true;
     } finally {
     	LOG.debug("Finalizing : getBlockChecksum()");
-      IOUtils.closeStream(out);
       IOUtils.closeStream(checksumIn);
       IOUtils.closeStream(metadataIn);
     }
@@ -717,13 +743,37 @@ class DataXceiver implements Runnable, FSConstants {
     }
   }
   
+  /**
+   * Wait for the first byte of the next operation on a socket kept alive.
+   * The wait ends after the keep alive timeout, or as soon as all the
+   * xceiver threads are taken, so that an idle socket does not hold a
+   * thread a new connection needs. The client then sees its pooled socket
+   * closed, and opens a new one.
+   * @return the byte, or -1 if the socket is to be closed
+   */
+  private int waitForNextOp(DataInputStream in) throws IOException {
+    long deadline = DataNode.now() + dataXceiverServer.keepAliveTimeout;
+    while (true) {
+      long remaining = deadline - DataNode.now();
+      if (remaining <= 0 || dataXceiverServer.isSaturated()) {
+        return -1;
+      }
+      s.setSoTimeout((int)Math.min(remaining, DataXceiverServer.KEEPALIVE_POLL));
+      try {
+        return in.read();
+      } catch (SocketTimeoutException ignored) {
+        // check the pool again
+      }
+    }
+  }
+
   /**
    * Utility function for sending a response.
    * @param s socket to write to
    * @param opStatus status message to write
    * @param timeout send timeout
    **/
-  private void sendResponse(JxtaSocket s, short opStatus, long timeout) 
+  static void sendResponse(JxtaSocket s, short opStatus, long timeout) 
                                                        throws IOException {
 	  LOG.debug("Mathod called : sendResponse()");
 	  //DataOutputStream reply = 
@@ -17,6 +17,9 @@
  */
 package org.apache.jxtadoop.hdfs.server.datanode;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -25,6 +28,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jxta.socket.JxtaServerSocket;
 import net.jxta.socket.JxtaSocket;
@@ -32,8 +43,12 @@ import net.jxta.socket.JxtaSocket;
 import org.apache.commons.logging.Log;
 import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+import org.apache.jxtadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
 import org.apache.jxtadoop.hdfs.server.balancer.Balancer;
+import org.apache.jxtadoop.io.IOUtils;
+import org.apache.jxtadoop.io.Text;
 import org.apache.jxtadoop.util.Daemon;
 import org.apache.jxtadoop.util.StringUtils;
 
@@ -42,6 +57,15 @@ import org.apache.jxtadoop.util.StringUtils;
  * This is created to listen for requests from clients or 
  * other DataNodes.  This small server does not use the 
  * Hadoop IPC mechanism.
+ * <p>
+ * The connections are served by a pool of at most dfs.datanode.max.xcievers
+ * threads. Up to dfs.datanode.xceiver.queue.size more connections wait for
+ * a free thread ; the ones beyond are rejected by a few other threads, which
+ * read the operation and answer it as busy before closing the connection,
+ * so that the clients turn to another replica. A writer is answered with a
+ * connect ack naming this datanode as the first bad link of the pipeline,
+ * and the other operations with
+ * {@link DataTransferProtocol#OP_STATUS_ERROR_BUSY}.
  */
 class DataXceiverServer implements Runnable, FSConstants {
   public static final Log LOG = DataNode.LOG;
@@ -61,6 +85,26 @@ class DataXceiverServer implements Runnable, FSConstants {
   static final int MAX_XCEIVER_COUNT = 256;
   int maxXceiverCount = MAX_XCEIVER_COUNT;
 
+  /* Time an idle xceiver thread is kept in the pool */
+  private static final long XCEIVER_KEEPALIVE = 60;
+
+  /* Threads and queue answering the rejected connections */
+  private static final int REJECT_THREADS = 4;
+  private static final int REJECT_QUEUE_SIZE = 64;
+
+  /* Time between two checks of the pool by a xceiver kept alive */
+  static final int KEEPALIVE_POLL = 1000;
+
+  private final ThreadPoolExecutor executor;
+  private final ThreadPoolExecutor rejector;
+  private final AtomicInteger activeCount = new AtomicInteger();
+
+  /**
+   * Time a xceiver waits for the next operation on a socket kept alive
+   * after a clean read, so that the client can reuse its pooled socket.
+   */
+  int keepAliveTimeout = P2PConstants.INFO_KEEPALIVE_TIMEOUT;
+
   /** A manager to make sure that cluster balancing does not
    * take too much resources.
    * 
@@ -120,6 +164,32 @@ class DataXceiverServer implements Runnable, FSConstants {
     
     this.maxXceiverCount = conf.getInt("dfs.datanode.max.xcievers",
         MAX_XCEIVER_COUNT);
+    int queueSize = conf.getInt("dfs.datanode.xceiver.queue.size",
+        P2PConstants.DFS_DATANODE_XCEIVER_QUEUE_SIZE);
+    BlockingQueue<Runnable> queue = (queueSize > 0) ?
+        new ArrayBlockingQueue<Runnable>(queueSize) :
+        new SynchronousQueue<Runnable>();
+    final ThreadGroup threadGroup = datanode.threadGroup;
+    this.executor = new ThreadPoolExecutor(maxXceiverCount, maxXceiverCount,
+        XCEIVER_KEEPALIVE, TimeUnit.SECONDS, queue,
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(threadGroup, r);
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.rejector = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS,
+        XCEIVER_KEEPALIVE, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(REJECT_QUEUE_SIZE),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(threadGroup, r);
+          }
+        });
+    this.rejector.allowCoreThreadTimeOut(true);
+    
+    this.keepAliveTimeout = conf.getInt("hadoop.p2p.info.keepalive.timeout",
+        P2PConstants.INFO_KEEPALIVE_TIMEOUT);
     
     this.estimateBlockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
     
@@ -139,8 +209,14 @@ class DataXceiverServer implements Runnable, FSConstants {
         // s.setReceiveBufferSize(P2PConstants.JXTA_SOCKET_RECVBUFFER_SIZE);
         s.setSoTimeout(Integer.parseInt(conf.get("hadoop.p2p.info.timeout")));
         LOG.debug("New incoming info connection");
-        new Daemon(datanode.threadGroup, 
-            new DataXceiver(s, datanode, this)).start();
+        DataXceiver xceiver = new DataXceiver(s, datanode, this);
+        try {
+          executor.execute(xceiver);
+          updateMetrics();
+        } catch (RejectedExecutionException e) {
+          childSockets.remove(s);
+          reject(s);
+        }
       } catch (SocketTimeoutException ignored) {
     	  // ignored.printStackTrace();
       } catch (IOException ie) {
@@ -159,6 +235,100 @@ class DataXceiverServer implements Runnable, FSConstants {
       LOG.warn(datanode.dnRegistration + ":DataXceiveServer: " 
                               + StringUtils.stringifyException(ie));
     }
+    executor.shutdown();
+    rejector.shutdown();
+  }
+
+  /**
+   * Tell the client that all the xceivers are busy, and close the
+   * connection. When even the rejector is full, the connection is closed
+   * at once, which the clients see as a failed datanode.
+   */
+  private void reject(JxtaSocket s) {
+    DataNodeMetrics metrics = datanode.myMetrics;
+    if (metrics != null) {
+      metrics.xceiversRejected.inc();
+    }
+    LOG.info("Rejecting connection from " + s.getRemoteSocketAddress() +
+             ", " + activeCount.get() + " active and " +
+             executor.getQueue().size() + " queued xceivers");
+    try {
+      rejector.execute(new Rejection(s));
+    } catch (RejectedExecutionException e) {
+      IOUtils.closeSocket(s);
+    }
+  }
+
+  /**
+   * Answer a rejected connection in the format its operation expects.
+   */
+  private class Rejection implements Runnable {
+    private final JxtaSocket s;
+
+    Rejection(JxtaSocket s) {
+      this.s = s;
+    }
+
+    public void run() {
+      try {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(s.getInputStream()));
+        short version = in.readShort();
+        byte op = in.readByte();
+        if (version == DataTransferProtocol.DATA_TRANSFER_VERSION &&
+            op == DataTransferProtocol.OP_WRITE_BLOCK) {
+          in.readLong();      // block id
+          in.readLong();      // generation stamp
+          in.readInt();       // pipeline size
+          in.readBoolean();   // recovery flag
+          // only the clients read a connect ack, the replications just fail
+          if (Text.readString(in).length() != 0) {
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            Text.writeString(out, datanode.dnRegistration.getPeerId());
+            out.flush();
+          }
+        } else {
+          DataXceiver.sendResponse(s, (short)DataTransferProtocol.OP_STATUS_ERROR_BUSY,
+                                   datanode.socketWriteTimeout);
+        }
+      } catch (IOException ignored) {
+        // the client gets an error anyway
+      } finally {
+        IOUtils.closeSocket(s);
+      }
+    }
+  }
+
+  /** Return the number of connections being served. */
+  int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /**
+   * Whether all the xceiver threads are taken, or connections wait for one.
+   * The xceivers kept alive then close their idle socket.
+   */
+  boolean isSaturated() {
+    return activeCount.get() >= maxXceiverCount ||
+           !executor.getQueue().isEmpty();
+  }
+
+  void xceiverStarted() {
+    activeCount.incrementAndGet();
+    updateMetrics();
+  }
+
+  void xceiverFinished() {
+    activeCount.decrementAndGet();
+    updateMetrics();
+  }
+
+  private void updateMetrics() {
+    DataNodeMetrics metrics = datanode.myMetrics;
+    if (metrics != null) {
+      metrics.xceiversActive.set(activeCount.get());
+      metrics.xceiversQueued.set(executor.getQueue().size());
+    }
   }
   
   void kill() {
@@ -182,5 +352,7 @@ class DataXceiverServer implements Runnable, FSConstants {
         }
       }
     }
+    executor.shutdownNow();
+    rejector.shutdownNow();
   }
 }
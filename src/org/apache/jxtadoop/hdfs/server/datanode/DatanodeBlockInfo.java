@@ -29,8 +29,8 @@ import org.apache.jxtadoop.fs.FileUtil.HardLink;
 import org.apache.jxtadoop.io.IOUtils;
 
 /**
- * This class is used by the datanode to maintain the map from a block 
- * to its metadata.
+ * This class is used by the datanode to work on the metadata of a block,
+ * as found in its {@link ReplicaMap}.
  */
 class DatanodeBlockInfo {
 
@@ -19,6 +19,15 @@ package org.apache.jxtadoop.hdfs.server.datanode;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -28,13 +37,16 @@ import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.fs.DF;
 import org.apache.jxtadoop.fs.DU;
 import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.metrics.util.MBeanUtil;
+import org.apache.jxtadoop.util.Daemon;
 import org.apache.jxtadoop.util.DataChecksum;
 import org.apache.jxtadoop.util.DiskChecker;
 import org.apache.jxtadoop.util.DiskChecker.DiskErrorException;
-import org.apache.jxtadoop.util.DiskChecker.DiskOutOfSpaceException;
+import org.apache.jxtadoop.util.ReflectionUtils;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
 import org.apache.jxtadoop.hdfs.server.datanode.metrics.FSDatasetMBean;
 import org.apache.jxtadoop.hdfs.server.protocol.InterDatanodeProtocol;
 
@@ -52,50 +64,94 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   class FSDir {
     File dir;
+    final FSVolume volume;
+    final int index;            // index in the directories of the volume
     int numBlocks = 0;
     FSDir children[];
     int lastChildIdx = 0;
+
     /**
+     * The blocks and the children of the directory are found by
+     * {@link #scan(Map, ReplicaMap, int)}.
      */
-    public FSDir(File dir) 
-      throws IOException {
+    public FSDir(FSVolume volume, File dir) {
       this.dir = dir;
+      this.volume = volume;
+      this.index = volume.addDir(this);
       this.children = null;
-      if (!dir.exists()) {
+    }
+
+    /**
+     * Put the blocks of the directory, not including the ones of its
+     * children, in the replica map, and create its children. They are
+     * taken from the replica cache if the directory did not change since
+     * it was saved, else from a single listing of the directory, where
+     * only the names starting with the subdir prefix are checked for
+     * being directories.
+     * @param cache the directories of the replica cache by path, or null
+     * @return whether the directory was found in the replica cache
+     */
+    boolean scan(Map<String, CachedDir> cache, ReplicaMap volumeMap,
+                 int volumeIdx) throws IOException {
+      CachedDir cached = (cache == null) ? null : cache.get(dir.getPath());
+      if (cached != null && cached.modified == dir.lastModified()) {
+        long[] blocks = cached.blocks;
+        for (int i = 0; i < blocks.length; i += 3) {
+          volumeMap.put(new Block(blocks[i], blocks[i + 2], blocks[i + 1]),
+                        volumeIdx, index);
+        }
+        numBlocks = blocks.length / 3;
+        if (cached.children.length > 0) {
+          children = new FSDir[cached.children.length];
+          for (int idx = 0; idx < children.length; idx++) {
+            children[idx] = new FSDir(volume, new File(dir, cached.children[idx]));
+          }
+        }
+        return true;
+      }
+
+      File[] files = dir.listFiles();
+      if (files == null) {
+        if (dir.exists()) {
+          throw new IOException("Could not list " + dir);
+        }
         if (!dir.mkdirs()) {
           throw new IOException("Mkdirs failed to create " + 
                                 dir.toString());
         }
-      } else {
-        File[] files = dir.listFiles();
-        int numChildren = 0;
-        for (int idx = 0; idx < files.length; idx++) {
-          if (files[idx].isDirectory()) {
-            numChildren++;
-          } else if (Block.isBlockFilename(files[idx])) {
-            numBlocks++;
-          }
-        }
-        if (numChildren > 0) {
-          children = new FSDir[numChildren];
-          int curdir = 0;
-          for (int idx = 0; idx < files.length; idx++) {
-            if (files[idx].isDirectory()) {
-              children[curdir] = new FSDir(files[idx]);
-              curdir++;
-            }
+        return false;
+      }
+      List<FSDir> subdirs = null;
+      for (int idx = 0; idx < files.length; idx++) {
+        if (Block.isBlockFilename(files[idx])) {
+          long genStamp = getGenerationStampFromFile(files, files[idx]);
+          volumeMap.put(new Block(files[idx], files[idx].length(), genStamp),
+                        volumeIdx, index);
+          numBlocks++;
+        } else if (files[idx].getName().startsWith(DataStorage.BLOCK_SUBDIR_PREFIX) &&
+                   files[idx].isDirectory()) {
+          if (subdirs == null) {
+            subdirs = new ArrayList<FSDir>();
           }
+          subdirs.add(new FSDir(volume, files[idx]));
         }
       }
+      if (subdirs != null) {
+        children = subdirs.toArray(new FSDir[subdirs.size()]);
+      }
+      return false;
     }
         
-    public File addBlock(Block b, File src) throws IOException {
+    /**
+     * @return the directory the block was moved to
+     */
+    public FSDir addBlock(Block b, File src) throws IOException {
       //First try without creating subdirectories
-      File file = addBlock(b, src, false, false);          
-      return (file != null) ? file : addBlock(b, src, true, true);
+      FSDir dest = addBlock(b, src, false, false);          
+      return (dest != null) ? dest : addBlock(b, src, true, true);
     }
 
-    private File addBlock(Block b, File src, boolean createOk, 
+    private FSDir addBlock(Block b, File src, boolean createOk, 
                           boolean resetIdx) throws IOException {
       if (numBlocks < maxBlocksPerDir) {
         File dest = new File(dir, b.getBlockName());
@@ -113,7 +169,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
 
         numBlocks += 1;
-        return dest;
+        return this;
       }
             
       if (lastChildIdx < 0 && resetIdx) {
@@ -125,10 +181,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         //Check if any child-tree has room for a block.
         for (int i=0; i < children.length; i++) {
           int idx = (lastChildIdx + i)%children.length;
-          File file = children[idx].addBlock(b, src, false, resetIdx);
-          if (file != null) {
+          FSDir dest = children[idx].addBlock(b, src, false, resetIdx);
+          if (dest != null) {
             lastChildIdx = idx;
-            return file; 
+            return dest; 
           }
         }
         lastChildIdx = -1;
@@ -141,7 +197,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       if (children == null || children.length == 0) {
         children = new FSDir[maxBlocksPerDir];
         for (int idx = 0; idx < maxBlocksPerDir; idx++) {
-          children[idx] = new FSDir(new File(dir, DataStorage.BLOCK_SUBDIR_PREFIX+idx));
+          File subdir = new File(dir, DataStorage.BLOCK_SUBDIR_PREFIX+idx);
+          if (!subdir.isDirectory() && !subdir.mkdirs()) {
+            throw new IOException("Mkdirs failed to create " + subdir);
+          }
+          children[idx] = new FSDir(volume, subdir);
         }
       }
             
@@ -195,23 +255,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
 
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
-      if (children != null) {
-        for (int i = 0; i < children.length; i++) {
-          children[i].getVolumeMap(volumeMap, volume);
-        }
-      }
-
-      File blockFiles[] = dir.listFiles();
-      for (int i = 0; i < blockFiles.length; i++) {
-        if (Block.isBlockFilename(blockFiles[i])) {
-          long genStamp = getGenerationStampFromFile(blockFiles, blockFiles[i]);
-          volumeMap.put(new Block(blockFiles[i], blockFiles[i].length(), genStamp), 
-                        new DatanodeBlockInfo(volume, blockFiles[i]));
-        }
-      }
-    }
-        
     /**
      * check if a data diretory is healthy
      * @throws DiskErrorException
@@ -290,11 +333,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   class FSVolume {
     private FSDir dataDir;
+    /* the directories of the tree, by index ; only appended to */
+    private volatile FSDir[] dirs = new FSDir[16];
+    private int numDirs = 0;
     private File tmpDir;
     private File detachDir; // copy on write for blocks in snapshot
+    private File replicaCache;
+    /* the directories of the replica cache by path, until the volume is scanned */
+    private Map<String, CachedDir> cachedDirs;
+    /* the number of directories found in the replica cache */
+    private final AtomicInteger numCachedDirs = new AtomicInteger();
     private DF usage;
     private DU dfsUsage;
     private long reserved;
+    /* the number of block files being written */
+    private final AtomicInteger writers = new AtomicInteger();
 
     
     FSVolume(File currentDir, Configuration conf) throws IOException {
@@ -320,7 +373,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           FileUtil.fullyDelete(tmpDir);
         }
       }
-      this.dataDir = new FSDir(currentDir);
+      this.replicaCache = new File(parent, REPLICA_CACHE_FILE);
+      this.cachedDirs = readReplicaCache();
+      this.dataDir = new FSDir(this, currentDir);
       if (!tmpDir.mkdirs()) {
         if (!tmpDir.isDirectory()) {
           throw new IOException("Mkdirs failed to create " + tmpDir.toString());
@@ -344,17 +399,31 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return dfsUsage.getUsed();
     }
     
+    /*
+     * The volume is chosen outside of the dataset lock, and DF runs df
+     * through a Shell that a single thread at a time may run.
+     */
     long getCapacity() throws IOException {
-      if (reserved > usage.getCapacity()) {
-        return 0;
-      }
+      synchronized (usage) {
+        if (reserved > usage.getCapacity()) {
+          return 0;
+        }
 
-      return usage.getCapacity()-reserved;
+        return usage.getCapacity()-reserved;
+      }
     }
       
+    /** Return the number of blocks being written to the volume. */
+    int getNumWriters() {
+      return writers.get();
+    }
+
     long getAvailable() throws IOException {
       long remaining = getCapacity()-getDfsUsed();
-      long available = usage.getAvailable();
+      long available;
+      synchronized (usage) {
+        available = usage.getAvailable();
+      }
       if (remaining>available) {
         remaining = available;
       }
@@ -362,12 +431,41 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
       
     String getMount() throws IOException {
-      return usage.getMount();
+      synchronized (usage) {
+        return usage.getMount();
+      }
     }
       
     File getDir() {
       return dataDir.dir;
     }
+
+    /**
+     * Register a directory of the tree.
+     * @return the index of the directory
+     */
+    synchronized int addDir(FSDir dir) {
+      FSDir[] d = dirs;
+      if (numDirs == d.length) {
+        d = Arrays.copyOf(d, 2 * d.length);
+      }
+      d[numDirs] = dir;
+      dirs = d;
+      return numDirs++;
+    }
+
+    /** Get the number of directories of the tree. */
+    synchronized int getNumDirs() {
+      return numDirs;
+    }
+
+    /**
+     * Get the file of a finalized block.
+     * @param dir the index of the directory holding the block
+     */
+    File getBlockFile(int dir, Block b) {
+      return new File(dirs[dir].dir, b.getBlockName());
+    }
     
     /**
      * Temporary files. They get moved to the real block directory either when
@@ -415,11 +513,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return f;
     }
       
-    File addBlock(Block b, File f) throws IOException {
-      File blockFile = dataDir.addBlock(b, f);
+    /**
+     * Move a finalized block into the block directory tree. The tree is
+     * shared by all the blocks of the volume, so its changes are
+     * serialized on the volume.
+     */
+    synchronized FSDir addBlock(Block b, File f) throws IOException {
+      FSDir dest = dataDir.addBlock(b, f);
+      File blockFile = new File(dest.dir, b.getBlockName());
       File metaFile = getMetaFile( blockFile , b);
       dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
-      return blockFile;
+      return dest;
     }
       
     void checkDirs() throws DiskErrorException {
@@ -431,11 +535,155 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       dataDir.getBlockInfo(blockSet);
     }
       
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
-      dataDir.getVolumeMap(volumeMap, this);
+    /**
+     * Build the tree of the volume and populate the replica map with its
+     * blocks. The directories are walked in parallel by the given executor,
+     * the scan of a directory submitting the scans of its children.
+     * @param tasks the scans of the directories, added to ; it must be
+     *        synchronized, as the scans add to it
+     */
+    void getVolumeMap(ReplicaMap volumeMap, int volumeIdx,
+                      ExecutorService executor, List<Future<?>> tasks) {
+      Map<String, CachedDir> cache = cachedDirs;
+      cachedDirs = null;
+      scan(dataDir, cache, volumeMap, volumeIdx, executor, tasks);
+    }
+
+    private void scan(final FSDir dir, final Map<String, CachedDir> cache,
+                      final ReplicaMap volumeMap, final int volumeIdx,
+                      final ExecutorService executor,
+                      final List<Future<?>> tasks) {
+      tasks.add(executor.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          if (dir.scan(cache, volumeMap, volumeIdx)) {
+            numCachedDirs.incrementAndGet();
+          }
+          if (dir.children != null) {
+            for (FSDir child : dir.children) {
+              scan(child, cache, volumeMap, volumeIdx, executor, tasks);
+            }
+          }
+          return null;
+        }
+      }));
+    }
+
+    /**
+     * Read the replica cache saved at the last clean shutdown, and delete
+     * it so that it is not used after a crash.
+     * @return the directories found in the cache by path, or null if the
+     *         cache is disabled, missing or unreadable
+     */
+    private Map<String, CachedDir> readReplicaCache() {
+      if (!replicaCache.exists()) {
+        return null;
+      }
+      Map<String, CachedDir> cache = null;
+      if (useReplicaCache) {
+        try {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                 new FileInputStream(replicaCache)));
+          try {
+            if (in.readInt() != REPLICA_CACHE_VERSION) {
+              throw new IOException("Unknown version");
+            }
+            CachedDir[] dirs = new CachedDir[in.readInt()];
+            int[] numBlocks = new int[dirs.length];
+            cache = new HashMap<String, CachedDir>(dirs.length * 4 / 3 + 1);
+            for (int i = 0; i < dirs.length; i++) {
+              String path = in.readUTF();
+              CachedDir dir = new CachedDir();
+              dir.modified = in.readLong();
+              dir.children = new String[in.readInt()];
+              for (int j = 0; j < dir.children.length; j++) {
+                dir.children[j] = in.readUTF();
+              }
+              dir.blocks = new long[3 * 4];
+              dirs[i] = dir;
+              cache.put(path, dir);
+            }
+            // the blocks follow in the order of the replica map
+            for (int i = in.readInt(); i != ReplicaMap.TMP_DIR; i = in.readInt()) {
+              if (i < 0 || i >= dirs.length) {
+                throw new IOException("Unknown directory " + i);
+              }
+              CachedDir dir = dirs[i];
+              if (3 * numBlocks[i] == dir.blocks.length) {
+                dir.blocks = Arrays.copyOf(dir.blocks, 2 * dir.blocks.length);
+              }
+              dir.blocks[3 * numBlocks[i]] = in.readLong();
+              dir.blocks[3 * numBlocks[i] + 1] = in.readLong();
+              dir.blocks[3 * numBlocks[i] + 2] = in.readLong();
+              numBlocks[i]++;
+            }
+            for (int i = 0; i < dirs.length; i++) {
+              dirs[i].blocks = Arrays.copyOf(dirs[i].blocks, 3 * numBlocks[i]);
+            }
+          } finally {
+            in.close();
+          }
+        } catch (IOException e) {
+          DataNode.LOG.warn("Ignoring the replica cache " + replicaCache, e);
+          cache = null;
+        }
+      }
+      if (!replicaCache.delete()) {
+        DataNode.LOG.warn("Could not delete the replica cache " + replicaCache);
+        return null;
+      }
+      return cache;
+    }
+
+    /**
+     * Save the blocks of the volume, so that the next startup does not
+     * have to scan the directories that did not change meanwhile.
+     */
+    void saveReplicaCache(ReplicaMap volumeMap, int volumeIdx) {
+      File tmp = new File(replicaCache.getPath() + ".tmp");
+      try {
+        FSDir[] d;
+        int n;
+        synchronized (this) {
+          d = dirs;
+          n = numDirs;
+        }
+        // a directory changed after this point is not trusted at startup
+        long[] modified = new long[n];
+        for (int i = 0; i < n; i++) {
+          modified[i] = d[i].dir.lastModified();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                 new FileOutputStream(tmp)));
+        try {
+          out.writeInt(REPLICA_CACHE_VERSION);
+          out.writeInt(n);
+          for (int i = 0; i < n; i++) {
+            out.writeUTF(d[i].dir.getPath());
+            out.writeLong(modified[i]);
+            FSDir[] children;
+            synchronized (this) {
+              children = d[i].children;
+            }
+            out.writeInt(children == null ? 0 : children.length);
+            for (int j = 0; children != null && j < children.length; j++) {
+              out.writeUTF(children[j].dir.getName());
+            }
+          }
+          volumeMap.writeFinalized(volumeIdx, out);
+          out.writeInt(ReplicaMap.TMP_DIR);
+        } finally {
+          out.close();
+        }
+        if (!tmp.renameTo(replicaCache)) {
+          throw new IOException("Could not rename " + tmp + " to " + replicaCache);
+        }
+      } catch (IOException e) {
+        DataNode.LOG.warn("Could not save the replica cache of " + this, e);
+        tmp.delete();
+      }
     }
       
-    void clearPath(File f) {
+    synchronized void clearPath(File f) {
       dataDir.clearPath(f);
     }
       
@@ -482,22 +730,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     
   static class FSVolumeSet {
     FSVolume[] volumes = null;
-    int curVolume = 0;
+    private final VolumeChoosingPolicy policy;
       
-    FSVolumeSet(FSVolume[] volumes) {
+    FSVolumeSet(FSVolume[] volumes, VolumeChoosingPolicy policy) {
       this.volumes = volumes;
+      this.policy = policy;
     }
       
-    synchronized FSVolume getNextVolume(long blockSize) throws IOException {
-      int startVolume = curVolume;
-      while (true) {
-        FSVolume volume = volumes[curVolume];
-        curVolume = (curVolume + 1) % volumes.length;
-        if (volume.getAvailable() > blockSize) { return volume; }
-        if (curVolume == startVolume) {
-          throw new DiskOutOfSpaceException("Insufficient space for an additional block");
-        }
-      }
+    /**
+     * Pick the volume of a new block, as told by the volume choosing policy.
+     */
+    FSVolume getNextVolume(long blockSize) throws IOException {
+      return policy.chooseVolume(volumes, blockSize);
     }
       
     long getDfsUsed() throws IOException {
@@ -530,10 +774,33 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
       
-    synchronized void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
+    /**
+     * Populate the replica map, scanning the directories of all the volumes
+     * in parallel.
+     */
+    void getVolumeMap(ReplicaMap volumeMap, ExecutorService executor)
+        throws IOException {
+      List<Future<?>> tasks =
+        Collections.synchronizedList(new ArrayList<Future<?>>());
+      for (int idx = 0; idx < volumes.length; idx++) {
+        volumes[idx].getVolumeMap(volumeMap, idx, executor, tasks);
+      }
+      waitFor(tasks);
+      for (FSVolume volume : volumes) {
+        DataNode.LOG.info("Found " + volume.numCachedDirs.get() + " of the " +
+                          volume.getNumDirs() + " directories of " + volume +
+                          " in the replica cache");
+      }
+    }
+
+    /** Get the index of a volume. */
+    int indexOf(FSVolume volume) throws IOException {
       for (int idx = 0; idx < volumes.length; idx++) {
-        volumes[idx].getVolumeMap(volumeMap);
+        if (volumes[idx] == volume) {
+          return idx;
+        }
       }
+      throw new IOException("Unknown volume " + volume);
     }
       
     synchronized void checkDirs() throws DiskErrorException {
@@ -561,6 +828,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   //Find better place?
   public static final String METADATA_EXTENSION = ".meta";
   public static final short METADATA_VERSION = 1;
+
+  static final String REPLICA_CACHE_FILE = "replicas";
+  static final int REPLICA_CACHE_VERSION = 2;
+
+  /**
+   * A directory as saved in the replica cache of its volume. The cache
+   * holds the directories, then the blocks of the volume, each with the
+   * index of its directory, until {@link ReplicaMap#TMP_DIR}.
+   */
+  static class CachedDir {
+    long modified;
+    String[] children;
+    long[] blocks;      // the ID, generation stamp and length of each block
+  }
     
 
   static class ActiveFile {
@@ -649,14 +930,19 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** {@inheritDoc} */
-  public synchronized Block getStoredBlock(long blkid) throws IOException {
-    File blockfile = findBlockFile(blkid);
-    if (blockfile == null) {
-      return null;
+  public Block getStoredBlock(long blkid) throws IOException {
+    lock.lock(blkid);
+    try {
+      File blockfile = findBlockFile(blkid);
+      if (blockfile == null) {
+        return null;
+      }
+      File metafile = findMetaFile(blockfile);
+      return new Block(blkid, blockfile.length(),
+          parseGenerationStamp(blockfile, metafile));
+    } finally {
+      lock.unlock(blkid);
     }
-    File metafile = findMetaFile(blockfile);
-    return new Block(blkid, blockfile.length(),
-        parseGenerationStamp(blockfile, metafile));
   }
 
   public boolean metaFileExists(Block b) throws IOException {
@@ -676,26 +962,97 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   FSVolumeSet volumes;
-  private HashMap<Block,ActiveFile> ongoingCreates = new HashMap<Block,ActiveFile>();
+  private final Map<Block,ActiveFile> ongoingCreates =
+    new ConcurrentHashMap<Block,ActiveFile>();
   private int maxBlocksPerDir = 0;
-  private HashMap<Block,DatanodeBlockInfo> volumeMap = null;
+  ReplicaMap volumeMap = null;
+  /*
+   * The changes of a block in the maps and on disk are serialized by the
+   * lock of the block. The lookups read the concurrent maps without it.
+   */
+  private final FSDatasetLock lock;
+  private final boolean useReplicaCache;
   static  Random random = new Random();
   
   /**
    * An FSDataset has a directory where it loads its data files.
    */
-  public FSDataset(DataStorage storage, Configuration conf) throws IOException {
+  public FSDataset(DataStorage storage, final Configuration conf) throws IOException {
     this.maxBlocksPerDir = conf.getInt("dfs.datanode.numblocks", 64);
-    FSVolume[] volArray = new FSVolume[storage.getNumStorageDirs()];
-    for (int idx = 0; idx < storage.getNumStorageDirs(); idx++) {
-      volArray[idx] = new FSVolume(storage.getStorageDir(idx).getCurrentDir(), conf);
+    this.lock = new FSDatasetLock(conf.getInt("dfs.datanode.dataset.lock.stripes",
+                                  P2PConstants.DFS_DATANODE_DATASET_LOCK_STRIPES));
+    this.useReplicaCache = conf.getBoolean("dfs.datanode.replica.cache",
+                                           P2PConstants.DFS_DATANODE_REPLICA_CACHE);
+    volumeMap = new ReplicaMap(conf.getInt("dfs.datanode.dataset.lock.stripes",
+                               P2PConstants.DFS_DATANODE_DATASET_LOCK_STRIPES));
+
+    // the volumes, then the directories of all of them, are loaded in parallel
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(conf.getInt("dfs.datanode.volume.scan.threads",
+                             P2PConstants.DFS_DATANODE_VOLUME_SCAN_THREADS), 1),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(r);
+          }
+        });
+    try {
+      long start = System.currentTimeMillis();
+      final FSVolume[] volArray = new FSVolume[storage.getNumStorageDirs()];
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (int idx = 0; idx < storage.getNumStorageDirs(); idx++) {
+        final int i = idx;
+        final File currentDir = storage.getStorageDir(idx).getCurrentDir();
+        tasks.add(executor.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            volArray[i] = new FSVolume(currentDir, conf);
+            return null;
+          }
+        }));
+      }
+      waitFor(tasks);
+      VolumeChoosingPolicy policy = ReflectionUtils.newInstance(
+          conf.getClass("dfs.datanode.volume.choosing.policy",
+                        AvailableSpaceVolumeChoosingPolicy.class,
+                        VolumeChoosingPolicy.class), conf);
+      volumes = new FSVolumeSet(volArray, policy);
+      volumes.getVolumeMap(volumeMap, executor);
+      DataNode.LOG.info("Loaded " + volumeMap.size() + " replicas from " +
+                        volumes + " in " + (System.currentTimeMillis() - start) +
+                        " ms");
+    } finally {
+      executor.shutdownNow();
     }
-    volumes = new FSVolumeSet(volArray);
-    volumeMap = new HashMap<Block, DatanodeBlockInfo>();
-    volumes.getVolumeMap(volumeMap);
     registerMBean(storage.getStorageID());
   }
 
+  /**
+   * Wait for the given tasks, and throw the first failure. The tasks may
+   * add more before they complete.
+   */
+  private static void waitFor(List<Future<?>> tasks) throws IOException {
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        tasks.get(i).get();
+      }
+    } catch (InterruptedException e) {
+      throw (IOException)new IOException("Interrupted while loading the volumes")
+                           .initCause(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw (IOException)new IOException("Could not load the volumes")
+                           .initCause(e.getCause());
+    }
+  }
+
+  /**
+   * Report the waits on the block locks to the datanode metrics.
+   */
+  void setMetrics(DataNodeMetrics metrics) {
+    lock.setMetrics(metrics);
+  }
+
   /**
    * Return the total space used by dfs datanode
    */
@@ -727,7 +1084,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get File name for a given block.
    */
-  public synchronized File getBlockFile(Block b) throws IOException {
+  public File getBlockFile(Block b) throws IOException {
     File f = validateBlockFile(b);
     if(f == null) {
       if (InterDatanodeProtocol.LOG.isDebugEnabled()) {
@@ -738,11 +1095,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return f;
   }
   
-  public synchronized InputStream getBlockInputStream(Block b) throws IOException {
+  public InputStream getBlockInputStream(Block b) throws IOException {
     return new FileInputStream(getBlockFile(b));
   }
 
-  public synchronized InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
+  public InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
 
     File blockFile = getBlockFile(b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
@@ -755,14 +1112,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Returns handles to the block file and its metadata file
    */
-  public synchronized BlockInputStreams getTmpInputStreams(Block b, 
+  public BlockInputStreams getTmpInputStreams(Block b, 
                           long blkOffset, long ckoff) throws IOException {
 
-    DatanodeBlockInfo info = volumeMap.get(b);
-    if (info == null) {
+    FSVolume v = getVolume(b);
+    if (v == null) {
       throw new IOException("Block " + b + " does not exist in volumeMap.");
     }
-    FSVolume v = info.getVolume();
     File blockFile = v.getTmpFile(b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
     if (blkOffset > 0) {
@@ -777,10 +1133,40 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                 new FileInputStream(metaInFile.getFD()));
   }
     
-  private BlockWriteStreams createBlockWriteStreams( File f , File metafile) throws IOException {
-      return new BlockWriteStreams(new FileOutputStream(new RandomAccessFile( f , "rw" ).getFD()),
-          new FileOutputStream( new RandomAccessFile( metafile , "rw" ).getFD() ));
+  /**
+   * The block file of a write in progress. The write is counted on the
+   * volume of the block until the stream is closed.
+   */
+  private static class BlockFileOutputStream extends FileOutputStream {
+    private final FSVolume volume;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
+    BlockFileOutputStream(FileDescriptor fd, FSVolume volume) {
+      super(fd);
+      this.volume = volume;
+      volume.writers.incrementAndGet();
+    }
+
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (closed.compareAndSet(false, true)) {
+          volume.writers.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  private BlockWriteStreams createBlockWriteStreams( File f , File metafile, FSVolume v) throws IOException {
+      FileOutputStream dataOut = new BlockFileOutputStream(new RandomAccessFile( f , "rw" ).getFD(), v);
+      try {
+        return new BlockWriteStreams(dataOut,
+            new FileOutputStream( new RandomAccessFile( metafile , "rw" ).getFD() ));
+      } catch (IOException e) {
+        dataOut.close();
+        throw e;
+      }
   }
 
   /**
@@ -793,12 +1179,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * @return - true if the specified block was detached
    */
   public boolean detachBlock(Block block, int numLinks) throws IOException {
-    DatanodeBlockInfo info = null;
-
-    synchronized (this) {
-      info = volumeMap.get(block);
+    DatanodeBlockInfo info = new DatanodeBlockInfo(getVolume(block), getFile(block));
+    if (volumeMap.isDetached(block)) {
+      info.setDetached();
     }
-    return info.detachBlock(block, numLinks);
+    if (!info.detachBlock(block, numLinks)) {
+      return false;
+    }
+    volumeMap.setDetached(block);
+    return true;
   }
 
   static private <T> void updateBlockMap(Map<Block, T> blockmap,
@@ -843,7 +1232,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * 
    * @return ongoing create threads if there is any. Otherwise, return null.
    */
-  private synchronized List<Thread> tryUpdateBlock(
+  private List<Thread> tryUpdateBlock(
+      Block oldblock, Block newblock) throws IOException {
+    lock.lock(oldblock.getBlockId());
+    try {
+      return tryUpdateBlockLocked(oldblock, newblock);
+    } finally {
+      lock.unlock(oldblock.getBlockId());
+    }
+  }
+
+  private List<Thread> tryUpdateBlockLocked(
       Block oldblock, Block newblock) throws IOException {
     //check ongoing create threads
     final ActiveFile activefile = ongoingCreates.get(oldblock);
@@ -901,7 +1300,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
 
     updateBlockMap(ongoingCreates, oldblock, newblock);
-    updateBlockMap(volumeMap, oldblock, newblock);
+    volumeMap.update(oldblock, newblock);
 
     // paranoia! verify that the contents of the stored block 
     // matches the block file on disk.
@@ -997,8 +1396,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     // Serialize access to /tmp, and check if file already there.
     //
     File f = null;
+    FSVolume v = null;
     List<Thread> threads = null;
-    synchronized (this) {
+    lock.lock(b.getBlockId());
+    try {
       //
       // Is it already in the create process?
       //
@@ -1017,21 +1418,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         ongoingCreates.remove(b);
       }
-      FSVolume v = null;
       if (!isRecovery) {
         v = volumes.getNextVolume(blockSize);
         // create temporary file to hold block in the designated volume
         f = createTmpFile(v, b);
-        volumeMap.put(b, new DatanodeBlockInfo(v));
+        volumeMap.put(b, volumes.indexOf(v), ReplicaMap.TMP_DIR);
       } else if (f != null) {
         DataNode.LOG.info("Reopen already-open Block for append " + b);
         // create or reuse temporary file to hold block in the designated volume
-        v = volumeMap.get(b).getVolume();
-        volumeMap.put(b, new DatanodeBlockInfo(v));
+        v = getVolume(b);
+        volumeMap.put(b, volumes.indexOf(v), ReplicaMap.TMP_DIR);
       } else {
         // reopening block for appending to it.
         DataNode.LOG.info("Reopen Block for append " + b);
-        v = volumeMap.get(b).getVolume();
+        v = getVolume(b);
         f = createTmpFile(v, b);
         File blkfile = getBlockFile(b);
         File oldmeta = getMetaFile(b);
@@ -1058,7 +1458,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                   " to tmp dir " + f);
           }
         }
-        volumeMap.put(b, new DatanodeBlockInfo(v));
+        volumeMap.put(b, volumes.indexOf(v), ReplicaMap.TMP_DIR);
       }
       if (f == null) {
         DataNode.LOG.warn("Block " + b + " reopen failed " +
@@ -1067,6 +1467,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                               " Unable to locate tmp file.");
       }
       ongoingCreates.put(b, new ActiveFile(f, threads));
+    } finally {
+      lock.unlock(b.getBlockId());
     }
 
     try {
@@ -1087,7 +1489,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     File metafile = getMetaFile(f, b);
     DataNode.LOG.debug("writeTo blockfile is " + f + " of size " + f.length());
     DataNode.LOG.debug("writeTo metafile is " + metafile + " of size " + metafile.length());
-    return createBlockWriteStreams( f , metafile);
+    return createBlockWriteStreams( f , metafile, v);
   }
 
   /**
@@ -1107,11 +1509,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public void setChannelPosition(Block b, BlockWriteStreams streams, 
                                  long dataOffset, long ckOffset) 
                                  throws IOException {
-    long size = 0;
-    synchronized (this) {
-      FSVolume vol = volumeMap.get(b).getVolume();
-      size = vol.getTmpFile(b).length();
-    }
+    FSVolume vol = getVolume(b);
+    long size = vol.getTmpFile(b).length();
     if (size < dataOffset) {
       String msg = "Trying to change block file offset of block " + b +
                      " to " + dataOffset +
@@ -1125,9 +1524,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     file.getChannel().position(ckOffset);
   }
 
-  synchronized File createTmpFile( FSVolume vol, Block blk ) throws IOException {
+  File createTmpFile( FSVolume vol, Block blk ) throws IOException {
     if ( vol == null ) {
-      vol = volumeMap.get( blk ).getVolume();
+      vol = getVolume( blk );
       if ( vol == null ) {
         throw new IOException("Could not find volume for block " + blk);
       }
@@ -1146,7 +1545,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Complete the block write!
    */
-  public synchronized void finalizeBlock(Block b) throws IOException {
+  public void finalizeBlock(Block b) throws IOException {
+    lock.lock(b.getBlockId());
+    try {
+      finalizeBlockLocked(b);
+    } finally {
+      lock.unlock(b.getBlockId());
+    }
+  }
+
+  private void finalizeBlockLocked(Block b) throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
     if (activeFile == null) {
       throw new IOException("Block " + b + " is already finalized.");
@@ -1155,28 +1563,33 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     if (f == null || !f.exists()) {
       throw new IOException("No temporary file " + f + " for block " + b);
     }
-    FSVolume v = volumeMap.get(b).getVolume();
+    FSVolume v = getVolume(b);
     if (v == null) {
       throw new IOException("No volume for temporary file " + f + 
                             " for block " + b);
     }
         
-    File dest = null;
-    dest = v.addBlock(b, f);
-    volumeMap.put(b, new DatanodeBlockInfo(v, dest));
+    FSDir dest = v.addBlock(b, f);
+    volumeMap.put(b, volumes.indexOf(v), dest.index);
     ongoingCreates.remove(b);
   }
 
   /**
    * Remove the temporary block file (if any)
    */
-  public synchronized void unfinalizeBlock(Block b) throws IOException {
+  public void unfinalizeBlock(Block b) throws IOException {
     // remove the block from in-memory data structure
-    ActiveFile activefile = ongoingCreates.remove(b);
-    if (activefile == null) {
-      return;
+    ActiveFile activefile;
+    lock.lock(b.getBlockId());
+    try {
+      activefile = ongoingCreates.remove(b);
+      if (activefile == null) {
+        return;
+      }
+      volumeMap.remove(b);
+    } finally {
+      lock.unlock(b.getBlockId());
     }
-    volumeMap.remove(b);
     
     // delete the on-disk temp file
     if (delBlockFromDisk(activefile.file, getMetaFile(activefile.file, b), b)) {
@@ -1247,11 +1660,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   /** {@inheritDoc} */
   public void validateBlockMetadata(Block b) throws IOException {
-    DatanodeBlockInfo info = volumeMap.get(b);
-    if (info == null) {
+    FSVolume v = getVolume(b);
+    if (v == null) {
       throw new IOException("Block " + b + " does not exist in volumeMap.");
     }
-    FSVolume v = info.getVolume();
     File tmp = v.getTmpFile(b);
     File f = getFile(b);
     if (f == null) {
@@ -1303,17 +1715,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
-      synchronized (this) {
+      lock.lock(invalidBlks[i].getBlockId());
+      try {
         f = getFile(invalidBlks[i]);
-        DatanodeBlockInfo dinfo = volumeMap.get(invalidBlks[i]);
-        if (dinfo == null) {
+        v = getVolume(invalidBlks[i]);
+        if (v == null) {
           DataNode.LOG.warn("Unexpected error trying to delete block "
                            + invalidBlks[i] + 
                            ". BlockInfo not found in volumeMap.");
           error = true;
           continue;
         }
-        v = dinfo.getVolume();
         if (f == null) {
           DataNode.LOG.warn("Unexpected error trying to delete block "
                             + invalidBlks[i] + 
@@ -1340,6 +1752,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         v.clearPath(parent);
         volumeMap.remove(invalidBlks[i]);
+      } finally {
+        lock.unlock(invalidBlks[i].getBlockId());
       }
       File metaFile = getMetaFile( f, invalidBlks[i] );
       long blockSize = f.length()+metaFile.length();
@@ -1367,12 +1781,25 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Turn the block identifier into a filename.
    */
-  public synchronized File getFile(Block b) {
-    DatanodeBlockInfo info = volumeMap.get(b);
-    if (info != null) {
-      return info.getFile();
+  public File getFile(Block b) {
+    long location = volumeMap.getLocation(b);
+    if (location == ReplicaMap.NO_REPLICA ||
+        ReplicaMap.getDir(location) == ReplicaMap.TMP_DIR) {
+      return null;
     }
-    return null;
+    return volumes.volumes[ReplicaMap.getVolume(location)].getBlockFile(
+        ReplicaMap.getDir(location), b);
+  }
+
+  /**
+   * Get the volume holding the block, or null if the block is unknown.
+   */
+  FSVolume getVolume(Block b) {
+    long location = volumeMap.getLocation(b);
+    if (location == ReplicaMap.NO_REPLICA) {
+      return null;
+    }
+    return volumes.volumes[ReplicaMap.getVolume(location)];
   }
 
   /**
@@ -1420,6 +1847,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     if (mbeanName != null)
       MBeanUtil.unregisterMBean(mbeanName);
     
+    if (volumes != null && useReplicaCache) {
+      for (int idx = 0; idx < volumes.volumes.length; idx++) {
+        volumes.volumes[idx].saveReplicaCache(volumeMap, idx);
+      }
+    }
     if(volumes != null) {
       for (FSVolume volume : volumes.volumes) {
         if(volume != null) {
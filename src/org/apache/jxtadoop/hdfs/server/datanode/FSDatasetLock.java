@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+
+/**
+ * The block locks of {@link FSDataset}.
+ * <p>
+ * The blocks are spread by identifier over a fixed number of reentrant
+ * locks, so that the operations on different blocks seldom wait for each
+ * other. Two generations of the same block share the same lock. A thread
+ * must never hold the locks of two blocks at once.
+ * <p>
+ * The acquisitions that had to wait for another thread are counted, and
+ * their wait time is reported to the {@link DataNodeMetrics} in
+ * microseconds.
+ */
+class FSDatasetLock {
+  private final ReentrantLock[] stripes;
+  private volatile DataNodeMetrics metrics = null;
+
+  FSDatasetLock(int numStripes) {
+    stripes = new ReentrantLock[Math.max(numStripes, 1)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  void setMetrics(DataNodeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  private ReentrantLock getStripe(long blockId) {
+    int hash = (int)(blockId ^ (blockId >>> 32));
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  void lock(long blockId) {
+    ReentrantLock stripe = getStripe(blockId);
+    if (stripe.tryLock()) {
+      return;
+    }
+    long start = System.nanoTime();
+    stripe.lock();
+    DataNodeMetrics m = metrics;
+    if (m != null) {
+      m.datasetLockWaits.inc((System.nanoTime() - start) / 1000);
+    }
+  }
+
+  void unlock(long blockId) {
+    getStripe(blockId).unlock();
+  }
+}
@@ -0,0 +1,577 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.datanode.DataBlockScanner.BlockScanInfo;
+import org.apache.jxtadoop.hdfs.server.datanode.DataBlockScanner.ScanType;
+
+/**
+ * The replicas of a datanode, keyed by block ID.
+ * <p>
+ * A datanode with small blocks and large disks holds millions of
+ * replicas, so the map keeps no object per replica : the generation stamp,
+ * the length, the volume and directory indexes, and the scan state of the
+ * replicas are stored in primitive arrays, by open addressing on the block
+ * ID. A slot costs 52 bytes ; the tables double when 3/4 full, so that a
+ * million replicas take about 100 MB.
+ * <p>
+ * The lookups by {@link Block} match the generation stamp, as the block
+ * equality does. The map is split into segments locked separately, so
+ * that the lookups on different blocks seldom wait for each other.
+ * <p>
+ * The replicas scheduled for a verification by the
+ * {@link DataBlockScanner} are ordered by scan time in a heap per segment.
+ */
+class ReplicaMap {
+  /** The location of an unknown replica */
+  static final long NO_REPLICA = -1;
+  /** The directory index of a replica being written, in the tmp directory */
+  static final int TMP_DIR = -1;
+
+  /* the packed replica info : length, volume index and flags */
+  private static final long LENGTH_MASK = (1L << 40) - 1;
+  private static final int VOLUME_SHIFT = 40;
+  private static final long VOLUME_MASK = 0xffffL;
+  private static final long DETACHED = 1L << 56;
+  private static final long SCAN_OK = 1L << 57;
+  private static final int SCAN_TYPE_SHIFT = 58;
+  private static final long SCAN_TYPE_MASK = 3L;
+  private static final long USED = 1L << 63;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  /**
+   * @param numSegments the number of segments, rounded up to a power of two
+   */
+  ReplicaMap(int numSegments) {
+    int bits = 0;
+    while ((1 << bits) < numSegments && bits < 16) {
+      bits++;
+    }
+    segments = new Segment[1 << bits];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+    segmentShift = 32 - bits;
+  }
+
+  /*
+   * Block ids are often allocated in runs, and linear probing turns close
+   * slots into long clusters, so all the bits of the id are mixed in.
+   */
+  static int hash(long blockId) {
+    long h = blockId;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+
+  /* the segments take the high bits of the hash, the slots the low bits */
+  private Segment segmentFor(int hash) {
+    return segments[(hash >>> segmentShift) & (segments.length - 1)];
+  }
+
+  /** Get the volume index of a replica location. */
+  static int getVolume(long location) {
+    return (int)(location >>> 32);
+  }
+
+  /** Get the directory index of a replica location. */
+  static int getDir(long location) {
+    return (int)location;
+  }
+
+  /**
+   * Add a replica, or move it. The scan state of a replica already known
+   * is kept.
+   * @param b the block, with its generation stamp and length
+   * @param volume the index of the volume holding the replica
+   * @param dir the index of the directory holding the replica in the
+   *        volume, or {@link #TMP_DIR}
+   */
+  void put(Block b, int volume, int dir) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.insert(b.getBlockId(), hash);
+      s.stamps[i] = b.getGenerationStamp();
+      s.infos[i] = (s.infos[i] & ~(LENGTH_MASK | (VOLUME_MASK << VOLUME_SHIFT) | DETACHED))
+                   | (b.getNumBytes() & LENGTH_MASK)
+                   | ((volume & VOLUME_MASK) << VOLUME_SHIFT);
+      s.dirs[i] = dir;
+    }
+  }
+
+  /**
+   * Get the location of a replica.
+   * @return the volume index in the high 32 bits and the directory index in
+   *         the low ones, or {@link #NO_REPLICA}
+   */
+  long getLocation(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      if (i < 0) {
+        return NO_REPLICA;
+      }
+      return (((s.infos[i] >>> VOLUME_SHIFT) & VOLUME_MASK) << 32)
+             | (s.dirs[i] & 0xffffffffL);
+    }
+  }
+
+  /**
+   * Change the generation stamp and length of a replica.
+   * @return false if the old block is unknown
+   */
+  boolean update(Block oldblock, Block newblock) {
+    int hash = hash(oldblock.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(oldblock, hash);
+      if (i < 0) {
+        return false;
+      }
+      s.stamps[i] = newblock.getGenerationStamp();
+      s.infos[i] = (s.infos[i] & ~LENGTH_MASK) | (newblock.getNumBytes() & LENGTH_MASK);
+      return true;
+    }
+  }
+
+  /**
+   * Remove a replica, and its scan state.
+   * @return false if the block is unknown
+   */
+  boolean remove(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      if (i < 0) {
+        return false;
+      }
+      s.delete(i);
+      return true;
+    }
+  }
+
+  /** Check if the replica was copied out of the snapshot hard links. */
+  boolean isDetached(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      return i >= 0 && (s.infos[i] & DETACHED) != 0;
+    }
+  }
+
+  /** The replica was copied out of the snapshot hard links. */
+  void setDetached(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      if (i >= 0) {
+        s.infos[i] |= DETACHED;
+      }
+    }
+  }
+
+  /**
+   * Write the finalized replicas of a volume, as the directory index, the
+   * ID, the generation stamp and the length of each. The replicas of a
+   * segment are copied under its lock, and written once it is released.
+   * @return the number of replicas written
+   */
+  int writeFinalized(int volume, DataOutput out) throws IOException {
+    int[] dirs = new int[MIN_CAPACITY];
+    long[] blocks = new long[3 * MIN_CAPACITY];
+    int count = 0;
+    for (Segment s : segments) {
+      int n = 0;
+      synchronized (s) {
+        if (dirs.length < s.size) {
+          dirs = new int[s.size];
+          blocks = new long[3 * s.size];
+        }
+        for (int i = 0; i < s.ids.length; i++) {
+          if ((s.infos[i] & USED) == 0 || s.dirs[i] == TMP_DIR ||
+              ((s.infos[i] >>> VOLUME_SHIFT) & VOLUME_MASK) != volume) {
+            continue;
+          }
+          dirs[n] = s.dirs[i];
+          blocks[3 * n] = s.ids[i];
+          blocks[3 * n + 1] = s.stamps[i];
+          blocks[3 * n + 2] = s.infos[i] & LENGTH_MASK;
+          n++;
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        out.writeInt(dirs[i]);
+        out.writeLong(blocks[3 * i]);
+        out.writeLong(blocks[3 * i + 1]);
+        out.writeLong(blocks[3 * i + 2]);
+      }
+      count += n;
+    }
+    return count;
+  }
+
+  /** Get the number of replicas. */
+  int size() {
+    int size = 0;
+    for (Segment s : segments) {
+      synchronized (s) {
+        size += s.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Get the scan state of a replica.
+   * @return the scan state, or null if the replica is not scheduled
+   */
+  BlockScanInfo getScanInfo(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      return (i < 0 || s.heapIndex[i] < 0) ? null : s.getScanInfo(i);
+    }
+  }
+
+  /**
+   * Set the scan state of a replica, and schedule it at its last scan time.
+   * @return true if the replica was not scheduled yet, false if it was or
+   *         if it is unknown
+   */
+  boolean putScanInfo(BlockScanInfo info) {
+    int hash = hash(info.block.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(info.block, hash);
+      if (i < 0) {
+        return false;
+      }
+      boolean added = s.heapIndex[i] < 0;
+      long flags = (info.lastScanOk ? SCAN_OK : 0) |
+                   ((long)info.lastScanType.ordinal() << SCAN_TYPE_SHIFT);
+      s.infos[i] = (s.infos[i] & ~(SCAN_OK | (SCAN_TYPE_MASK << SCAN_TYPE_SHIFT))) | flags;
+      s.logTimes[i] = info.lastLogTime;
+      s.schedule(i, info.lastScanTime);
+      return added;
+    }
+  }
+
+  /**
+   * Unschedule a replica.
+   * @return true if the replica was scheduled
+   */
+  boolean removeScanInfo(Block b) {
+    int hash = hash(b.getBlockId());
+    Segment s = segmentFor(hash);
+    synchronized (s) {
+      int i = s.find(b, hash);
+      if (i < 0 || s.heapIndex[i] < 0) {
+        return false;
+      }
+      s.unschedule(i);
+      return true;
+    }
+  }
+
+  /**
+   * Get the scan state of the replica scheduled first.
+   * @return the scan state, or null if no replica is scheduled
+   */
+  BlockScanInfo firstScanInfo() {
+    Segment first = null;
+    long firstTime = Long.MAX_VALUE;
+    for (Segment s : segments) {
+      synchronized (s) {
+        if (s.numScans > 0 && (first == null || s.scanTimes[s.heap[0]] < firstTime)) {
+          first = s;
+          firstTime = s.scanTimes[s.heap[0]];
+        }
+      }
+    }
+    if (first == null) {
+      return null;
+    }
+    synchronized (first) {
+      return first.numScans > 0 ? first.getScanInfo(first.heap[0]) : null;
+    }
+  }
+
+  /** Get the number of replicas scheduled. */
+  int getNumScans() {
+    int numScans = 0;
+    for (Segment s : segments) {
+      synchronized (s) {
+        numScans += s.numScans;
+      }
+    }
+    return numScans;
+  }
+
+  /** Get the scan state of all the replicas scheduled, in no order. */
+  List<BlockScanInfo> getScanInfos() {
+    List<BlockScanInfo> infos = new ArrayList<BlockScanInfo>();
+    for (Segment s : segments) {
+      synchronized (s) {
+        for (int k = 0; k < s.numScans; k++) {
+          infos.add(s.getScanInfo(s.heap[k]));
+        }
+      }
+    }
+    return infos;
+  }
+
+  public String toString() {
+    return getClass().getSimpleName() + "(size=" + size() + ")";
+  }
+
+  /**
+   * An open addressing table with linear probing. The deletions shift the
+   * following slots back, so that no tombstone is left.
+   */
+  private static class Segment {
+    long[] ids;
+    long[] stamps;
+    long[] infos;
+    long[] scanTimes;
+    long[] logTimes;
+    int[] dirs;
+    /* the scheduled slots, a binary heap on the scan times */
+    int[] heap;
+    /* the position of each slot in the heap, or -1 */
+    int[] heapIndex;
+    int size = 0;
+    int numScans = 0;
+
+    Segment() {
+      allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      ids = new long[capacity];
+      stamps = new long[capacity];
+      infos = new long[capacity];
+      scanTimes = new long[capacity];
+      logTimes = new long[capacity];
+      dirs = new int[capacity];
+      heap = new int[capacity];
+      heapIndex = new int[capacity];
+      Arrays.fill(heapIndex, -1);
+    }
+
+    int find(long id, int hash) {
+      int mask = ids.length - 1;
+      for (int i = hash & mask; (infos[i] & USED) != 0; i = (i + 1) & mask) {
+        if (ids[i] == id) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    int find(Block b, int hash) {
+      int i = find(b.getBlockId(), hash);
+      if (i >= 0 &&
+          !GenerationStamp.equalsWithWildcard(stamps[i], b.getGenerationStamp())) {
+        return -1;
+      }
+      return i;
+    }
+
+    /** Find the slot of a block ID, adding it if needed. */
+    int insert(long id, int hash) {
+      int i = find(id, hash);
+      if (i >= 0) {
+        return i;
+      }
+      if ((size + 1) * 4 > ids.length * 3) {
+        resize(ids.length * 2);
+      }
+      int mask = ids.length - 1;
+      for (i = hash & mask; (infos[i] & USED) != 0; i = (i + 1) & mask);
+      ids[i] = id;
+      infos[i] = USED;
+      heapIndex[i] = -1;
+      size++;
+      return i;
+    }
+
+    void delete(int i) {
+      unschedule(i);
+      int mask = ids.length - 1;
+      for (int j = (i + 1) & mask; (infos[j] & USED) != 0; j = (j + 1) & mask) {
+        int home = hash(ids[j]) & mask;
+        // the slot stays if its home is cyclically in (i, j]
+        boolean stays = (i <= j) ? (i < home && home <= j)
+                                 : (i < home || home <= j);
+        if (!stays) {
+          move(j, i);
+          i = j;
+        }
+      }
+      infos[i] = 0;
+      heapIndex[i] = -1;
+      size--;
+      if (ids.length > MIN_CAPACITY && size * 8 < ids.length) {
+        resize(ids.length / 2);
+      }
+    }
+
+    private void move(int from, int to) {
+      ids[to] = ids[from];
+      stamps[to] = stamps[from];
+      infos[to] = infos[from];
+      scanTimes[to] = scanTimes[from];
+      logTimes[to] = logTimes[from];
+      dirs[to] = dirs[from];
+      heapIndex[to] = heapIndex[from];
+      if (heapIndex[to] >= 0) {
+        heap[heapIndex[to]] = to;
+      }
+    }
+
+    private void resize(int capacity) {
+      long[] oldIds = ids;
+      long[] oldStamps = stamps;
+      long[] oldInfos = infos;
+      long[] oldScanTimes = scanTimes;
+      long[] oldLogTimes = logTimes;
+      int[] oldDirs = dirs;
+      int[] oldHeap = heap;
+      allocate(capacity);
+
+      // the heap positions are kept, only the slots change
+      int mask = capacity - 1;
+      int[] slots = new int[oldIds.length];
+      for (int j = 0; j < oldIds.length; j++) {
+        if ((oldInfos[j] & USED) == 0) {
+          continue;
+        }
+        int i;
+        for (i = hash(oldIds[j]) & mask; (infos[i] & USED) != 0; i = (i + 1) & mask);
+        ids[i] = oldIds[j];
+        stamps[i] = oldStamps[j];
+        infos[i] = oldInfos[j];
+        scanTimes[i] = oldScanTimes[j];
+        logTimes[i] = oldLogTimes[j];
+        dirs[i] = oldDirs[j];
+        slots[j] = i;
+      }
+      for (int k = 0; k < numScans; k++) {
+        heap[k] = slots[oldHeap[k]];
+        heapIndex[heap[k]] = k;
+      }
+    }
+
+    BlockScanInfo getScanInfo(int i) {
+      BlockScanInfo info =
+        new BlockScanInfo(new Block(ids[i], infos[i] & LENGTH_MASK, stamps[i]));
+      info.lastScanTime = scanTimes[i];
+      info.lastLogTime = logTimes[i];
+      info.lastScanType =
+        ScanType.values()[(int)((infos[i] >>> SCAN_TYPE_SHIFT) & SCAN_TYPE_MASK)];
+      info.lastScanOk = (infos[i] & SCAN_OK) != 0;
+      return info;
+    }
+
+    void schedule(int i, long scanTime) {
+      scanTimes[i] = scanTime;
+      if (heapIndex[i] < 0) {
+        heap[numScans] = i;
+        heapIndex[i] = numScans;
+        siftUp(numScans++);
+      } else {
+        siftUp(heapIndex[i]);
+        siftDown(heapIndex[i]);
+      }
+    }
+
+    void unschedule(int i) {
+      int k = heapIndex[i];
+      if (k < 0) {
+        return;
+      }
+      heapIndex[i] = -1;
+      int last = heap[--numScans];
+      if (k < numScans) {
+        heap[k] = last;
+        heapIndex[last] = k;
+        siftUp(k);
+        siftDown(heapIndex[last]);
+      }
+    }
+
+    private void siftUp(int k) {
+      while (k > 0) {
+        int parent = (k - 1) / 2;
+        if (scanTimes[heap[parent]] <= scanTimes[heap[k]]) {
+          return;
+        }
+        swap(parent, k);
+        k = parent;
+      }
+    }
+
+    private void siftDown(int k) {
+      while (true) {
+        int child = 2 * k + 1;
+        if (child >= numScans) {
+          return;
+        }
+        if (child + 1 < numScans &&
+            scanTimes[heap[child + 1]] < scanTimes[heap[child]]) {
+          child++;
+        }
+        if (scanTimes[heap[k]] <= scanTimes[heap[child]]) {
+          return;
+        }
+        swap(k, child);
+        k = child;
+      }
+    }
+
+    private void swap(int k1, int k2) {
+      int i = heap[k1];
+      heap[k1] = heap[k2];
+      heap[k2] = i;
+      heapIndex[heap[k1]] = k1;
+      heapIndex[heap[k2]] = k2;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+
+import org.apache.jxtadoop.hdfs.server.datanode.FSDataset.FSVolume;
+
+/**
+ * Chooses the volume a new block is written to.
+ * <p>
+ * The policy of a datanode is set by dfs.datanode.volume.choosing.policy.
+ * It is called by all the concurrent writers of the datanode without any
+ * lock held, and should not serialize them.
+ */
+interface VolumeChoosingPolicy {
+  /**
+   * Choose a volume with room for a new block.
+   * @param volumes the volumes of the datanode
+   * @param blockSize the size of the block
+   * @return the chosen volume
+   * @throws IOException if no volume has room for the block
+   */
+  FSVolume chooseVolume(FSVolume[] volumes, long blockSize) throws IOException;
+}
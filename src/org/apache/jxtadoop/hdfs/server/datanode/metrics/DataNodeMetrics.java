@@ -24,6 +24,8 @@ import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.Updater;
 import org.apache.jxtadoop.metrics.jvm.JvmMetrics;
 import org.apache.jxtadoop.metrics.util.MetricsBase;
+import org.apache.jxtadoop.metrics.util.MetricsIntValue;
+import org.apache.jxtadoop.metrics.util.MetricsLongValue;
 import org.apache.jxtadoop.metrics.util.MetricsRegistry;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingLong;
@@ -90,6 +92,22 @@ public class DataNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate blockReportDeltas = 
+                    new MetricsTimeVaryingRate("blockReportDeltas", registry);
+  public MetricsTimeVaryingRate datasetLockWaits = 
+                    new MetricsTimeVaryingRate("datasetLockWaits", registry);
+
+  public MetricsLongValue volumeScanTime = new MetricsLongValue("volumeScanTime",
+      registry, "Time in ms to load the replicas of the volumes at startup");
+  public MetricsLongValue startupTime = new MetricsLongValue("startupTime",
+      registry, "Time in ms from the start to the first registration");
+
+  public MetricsIntValue xceiversActive = new MetricsIntValue("xceiversActive",
+      registry, "Number of connections being served");
+  public MetricsIntValue xceiversQueued = new MetricsIntValue("xceiversQueued",
+      registry, "Number of connections waiting for a free xceiver thread");
+  public MetricsTimeVaryingInt xceiversRejected =
+                new MetricsTimeVaryingInt("xceivers_rejected", registry);
 
     
   public DataNodeMetrics(Configuration conf, String storageId) {
@@ -134,5 +152,7 @@ public class DataNodeMetrics implements Updater {
     replaceBlockOp.resetMinMax();
     heartbeats.resetMinMax();
     blockReports.resetMinMax();
+    blockReportDeltas.resetMinMax();
+    datasetLockWaits.resetMinMax();
   }
 }
@@ -290,35 +290,129 @@ public class BlocksMap {
     }
   }
 
-  // Used for tracking HashMap capacity growth
-  private int capacity;
+  /*
+   * The blocks are kept in an open addressed table with linear probing,
+   * keyed by block id. Unlike a HashMap, this does not allocate an entry
+   * object per block : a block costs one table slot on top of its
+   * BlockInfo and triplets.
+   */
+  private BlockInfo[] table;
+  private int size = 0;
+  private int threshold;
+  private int modCount = 0;
   private final float loadFactor;
-  
-  private Map<BlockInfo, BlockInfo> map;
 
   BlocksMap(int initialCapacity, float loadFactor) {
-    this.capacity = 1;
+    if (loadFactor <= 0 || loadFactor >= 1) {
+      throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+    }
+    int capacity = 1;
     // Capacity is initialized to the next multiple of 2 of initialCapacity
-    while (this.capacity < initialCapacity)
-      this.capacity <<= 1;
+    while (capacity < initialCapacity)
+      capacity <<= 1;
     this.loadFactor = loadFactor;
-    this.map = new HashMap<BlockInfo, BlockInfo>(initialCapacity, loadFactor);
+    this.table = new BlockInfo[capacity];
+    this.threshold = (int)(capacity * loadFactor);
+  }
+
+  /**
+   * Spread the bits of the block id over the table index.
+   * Block ids are often allocated in runs, and linear probing turns close
+   * home slots into long clusters, so all the bits are mixed in.
+   */
+  static int indexFor(long blockId, int length) {
+    long h = blockId;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int)h & (length - 1);
+  }
+
+  /** Return the slot of the block, or -1 if it is not in the table. */
+  private int find(Block b) {
+    long blockId = b.getBlockId();
+    int mask = table.length - 1;
+    for (int i = indexFor(blockId, table.length); ; i = (i + 1) & mask) {
+      BlockInfo cur = table[i];
+      if (cur == null)
+        return -1;
+      if (cur.getBlockId() == blockId && cur.equals(b))
+        return i;
+    }
+  }
+
+  private BlockInfo get(Block b) {
+    int i = find(b);
+    return i < 0 ? null : table[i];
+  }
+
+  /** Insert a block which is not in the table yet. */
+  private void put(BlockInfo info) {
+    if (size >= threshold) {
+      resize(table.length << 1);
+    }
+    insert(table, info);
+    size++;
+    modCount++;
+  }
+
+  private static void insert(BlockInfo[] tab, BlockInfo info) {
+    int mask = tab.length - 1;
+    int i = indexFor(info.getBlockId(), tab.length);
+    while (tab[i] != null)
+      i = (i + 1) & mask;
+    tab[i] = info;
+  }
+
+  private void resize(int newCapacity) {
+    BlockInfo[] newTable = new BlockInfo[newCapacity];
+    for (BlockInfo info : table) {
+      if (info != null)
+        insert(newTable, info);
+    }
+    table = newTable;
+    threshold = (int)(newCapacity * loadFactor);
+  }
+
+  /**
+   * Remove the block from the table, shifting back the following blocks
+   * of the probe sequence so that no tombstone is needed.
+   */
+  private void remove(Block b) {
+    int i = find(b);
+    if (i < 0)
+      return;
+    int mask = table.length - 1;
+    table[i] = null;
+    for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+      int k = indexFor(table[j].getBlockId(), table.length);
+      // move the block back unless its home slot k is cyclically in (i, j]
+      if ((i < j) ? (k <= i || k > j) : (k <= i && k > j)) {
+        table[i] = table[j];
+        table[j] = null;
+        i = j;
+      }
+    }
+    size--;
+    modCount++;
   }
 
   /**
    * Add BlockInfo if mapping does not exist.
    */
   private BlockInfo checkBlockInfo(Block b, int replication) {
-    BlockInfo info = map.get(b);
+    BlockInfo info = get(b);
     if (info == null) {
       info = new BlockInfo(b, replication);
-      map.put(info, info);
+      put(info);
     }
     return info;
   }
 
   INodeFile getINode(Block b) {
-    BlockInfo info = map.get(b);
+    BlockInfo info = get(b);
     return (info != null) ? info.inode : null;
   }
 
@@ -337,11 +431,11 @@ public class BlocksMap {
    * then remove the block from the block map.
    */
   void removeINode(Block b) {
-    BlockInfo info = map.get(b);
+    BlockInfo info = get(b);
     if (info != null) {
       info.inode = null;
       if (info.getDatanode(0) == null) {  // no datanodes left
-        map.remove(b);  // remove block from the map
+        remove(b);  // remove block from the map
       }
     }
   }
@@ -359,22 +453,22 @@ public class BlocksMap {
       DatanodeDescriptor dn = blockInfo.getDatanode(idx);
       dn.removeBlock(blockInfo); // remove from the list and wipe the location
     }
-    map.remove(blockInfo);  // remove block from the map
+    remove(blockInfo);  // remove block from the map
   }
 
   /** Returns the block object it it exists in the map. */
   BlockInfo getStoredBlock(Block b) {
-    return map.get(b);
+    return get(b);
   }
 
   /** Returned Iterator does not support. */
   Iterator<DatanodeDescriptor> nodeIterator(Block b) {
-    return new NodeIterator(map.get(b));
+    return new NodeIterator(get(b));
   }
 
   /** counts number of containing nodes. Better than using iterator. */
   int numNodes(Block b) {
-    BlockInfo info = map.get(b);
+    BlockInfo info = get(b);
     return info == null ? 0 : info.numNodes();
   }
 
@@ -393,7 +487,7 @@ public class BlocksMap {
    * only if it does not belong to any file and data-nodes.
    */
   boolean removeNode(Block b, DatanodeDescriptor node) {
-    BlockInfo info = map.get(b);
+    BlockInfo info = get(b);
     if (info == null)
       return false;
 
@@ -402,30 +496,70 @@ public class BlocksMap {
 
     if (info.getDatanode(0) == null     // no datanodes left
               && info.inode == null) {  // does not belong to a file
-      map.remove(b);  // remove block from the map
+      remove(b);  // remove block from the map
     }
     return removed;
   }
 
   int size() {
-    return map.size();
+    return size;
   }
 
+  /** The returned collection is backed by the map and does not support
+   * removal; iterating it while the map is modified fails. */
   Collection<BlockInfo> getBlocks() {
-    return map.values();
+    return new AbstractCollection<BlockInfo>() {
+      public int size() {
+        return size;
+      }
+
+      public Iterator<BlockInfo> iterator() {
+        return new TableIterator();
+      }
+    };
+  }
+
+  private class TableIterator implements Iterator<BlockInfo> {
+    private final int expectedModCount = modCount;
+    private int nextIdx = advance(0);
+
+    private int advance(int idx) {
+      while (idx < table.length && table[idx] == null)
+        idx++;
+      return idx;
+    }
+
+    public boolean hasNext() {
+      return nextIdx < table.length;
+    }
+
+    public BlockInfo next() {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (nextIdx >= table.length)
+        throw new NoSuchElementException();
+      BlockInfo info = table[nextIdx];
+      nextIdx = advance(nextIdx + 1);
+      return info;
+    }
+
+    public void remove()  {
+      throw new UnsupportedOperationException("Sorry. can't remove.");
+    }
   }
+
   /**
    * Check if the block exists in map
    */
   boolean contains(Block block) {
-    return map.containsKey(block);
+    return find(block) >= 0;
   }
   
   /**
    * Check if the replica at the given datanode exists in map
    */
   boolean contains(Block block, DatanodeDescriptor datanode) {
-    BlockInfo info = map.get(block);
+    BlockInfo info = get(block);
     if (info == null)
       return false;
     
@@ -435,17 +569,44 @@ public class BlocksMap {
     return true;
   }
   
-  /** Get the capacity of the HashMap that stores blocks */
+  /** Get the capacity of the table that stores blocks */
   public int getCapacity() {
-    // Capacity doubles every time the map size reaches the threshold
-    while (map.size() > (int)(capacity * loadFactor)) {
-      capacity <<= 1;
-    }
-    return capacity;
+    return table.length;
   }
   
   /** Get the load factor of the map */
   public float getLoadFactor() {
     return loadFactor;
   }
+
+  /* Sizes of the heap layout, assuming compressed references */
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Estimate the heap used by the map : the table, the BlockInfo objects
+   * and their triplets. The INodes and DatanodeDescriptors are not counted.
+   * This walks all the blocks.
+   */
+  long estimateHeapUsage() {
+    long blockInfoBytes = align(OBJECT_HEADER + 3 * 8 + 2 * REFERENCE);
+    long bytes = align(ARRAY_HEADER + (long)table.length * REFERENCE);
+    for (BlockInfo info : table) {
+      if (info != null) {
+        bytes += blockInfoBytes
+            + align(ARRAY_HEADER + (long)info.triplets.length * REFERENCE);
+      }
+    }
+    return bytes;
+  }
+
+  /** Scale a heap usage to the one of a million blocks of the map. */
+  long heapUsagePerMillionBlocks(long heapUsage) {
+    return size == 0 ? 0 : heapUsage * 1000000L / size;
+  }
 }
@@ -76,6 +76,8 @@ public class DatanodeDescriptor extends DatanodeInfo {
   private BlockQueue recoverBlocks = new BlockQueue();
   /** A set of blocks to be invalidated by this datanode */
   private Set<Block> invalidateBlocks = new TreeSet<Block>();
+  /** The generation of the last block report, -1 before the first full one */
+  private long blockReportGeneration = -1;
 
   /* Variables for maintaning number of blocks scheduled to be written to
    * this datanode. This count is approximate and might be slightly higger
@@ -192,6 +194,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.xceiverCount = 0;
     this.blockList = null;
     this.invalidateBlocks.clear();
+    this.blockReportGeneration = -1;
   }
 
   public int numBlocks() {
@@ -392,6 +395,49 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.removeBlock(delimiter);
   }
 
+  /**
+   * Sort the blocks of a block report delta the way {@link #reportDiff}
+   * does, looking only at the blocks of the delta.
+   */
+  void deltaDiff(BlocksMap blocksMap,
+                 BlockListAsLongs added,
+                 BlockListAsLongs removed,
+                 Collection<Block> toAdd,
+                 Collection<Block> toRemove,
+                 Collection<Block> toInvalidate) {
+    Block iblk = new Block();
+    for (int i = 0; i < removed.getNumberOfBlocks(); ++i) {
+      iblk.set(removed.getBlockId(i), removed.getBlockLen(i), 
+               removed.getBlockGenStamp(i));
+      BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+      if(storedBlock != null && storedBlock.findDatanode(this) >= 0) {
+        toRemove.add(storedBlock);
+      }
+    }
+    for (int i = 0; i < added.getNumberOfBlocks(); ++i) {
+      iblk.set(added.getBlockId(i), added.getBlockLen(i), 
+               added.getBlockGenStamp(i));
+      BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+      if(storedBlock == null) {
+        toInvalidate.add(new Block(iblk));
+      } else if(storedBlock.findDatanode(this) < 0) {
+        if (storedBlock.getNumBytes() != iblk.getNumBytes()) {
+          toAdd.add(new Block(iblk));
+        } else {
+          toAdd.add(storedBlock);
+        }
+      }
+    }
+  }
+
+  long getBlockReportGeneration() {
+    return blockReportGeneration;
+  }
+
+  void setBlockReportGeneration(long generation) {
+    this.blockReportGeneration = generation;
+  }
+
   /** Serialization for FSEditLog */
   void readFieldsFromFSEditLog(DataInput in) throws IOException {
     this.id = UTF8.readString(in);
@@ -58,8 +58,11 @@ class DecommissionManager {
      */
     public void run() {
       for(; fsnamesystem.isRunning(); ) {
-        synchronized(fsnamesystem) {
+        fsnamesystem.writeLock("decommissionCheck");
+        try {
           check();
+        } finally {
+          fsnamesystem.writeUnlock();
         }
   
         try {
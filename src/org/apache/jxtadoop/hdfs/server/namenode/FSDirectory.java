@@ -31,6 +31,7 @@ import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.MetricsContext;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.QuotaExceededException;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
@@ -53,6 +54,12 @@ class FSDirectory implements FSConstants, Closeable {
   // Metrics record
   private MetricsRecord directoryMetrics = null;
 
+  /* While the edit log is replayed, the ancestors of the last resolved
+   * path are kept, since consecutive transactions mostly share a parent. */
+  private boolean replayCache = false;
+  private String cachedParentPath = null;
+  private INode[] cachedParentINodes = null;
+
   /** Access an existing dfs name directory. */
   FSDirectory(FSNamesystem ns, Configuration conf) {
     this(new FSImage(), ns, conf);
@@ -65,6 +72,7 @@ class FSDirectory implements FSConstants, Closeable {
         ns.createFsOwnerPermissions(new FsPermission((short)0755)),
         Integer.MAX_VALUE, -1);
     this.fsImage = fsImage;
+    this.fsImage.setImageOptions(conf);
     namesystem = ns;
     initialize(conf);
   }
@@ -103,6 +111,53 @@ class FSDirectory implements FSConstants, Closeable {
     }
   }
 
+  /**
+   * Enable or disable the caching of the last resolved parent directory.
+   * Only the edit log replay may enable it, as it is not thread safe and
+   * only invalidated by the unprotected operations.
+   */
+  void setReplayCache(boolean enabled) {
+    synchronized (rootDir) {
+      replayCache = enabled;
+      invalidateReplayCache();
+    }
+  }
+
+  private void invalidateReplayCache() {
+    cachedParentPath = null;
+    cachedParentINodes = null;
+  }
+
+  /**
+   * Fill inodes with the existing INodes of the given path, as
+   * {@link INodeDirectory#getExistingPathINodes(byte[][], INode[])} does
+   * for an array the size of the path components. The ancestors are taken
+   * from the replay cache when the path shares the last resolved parent.
+   */
+  private void getExistingPathINodes(String src, byte[][] components,
+                                     INode[] inodes) {
+    int last = components.length - 1;
+    if (!replayCache || last < 1 || src.endsWith(Path.SEPARATOR)) {
+      rootDir.getExistingPathINodes(components, inodes);
+      return;
+    }
+    String parentPath = src.substring(0, src.lastIndexOf(Path.SEPARATOR_CHAR));
+    if (parentPath.equals(cachedParentPath)) {
+      System.arraycopy(cachedParentINodes, 0, inodes, 0, last);
+      inodes[last] = ((INodeDirectory)inodes[last-1]).getChildINode(
+                                                         components[last]);
+      return;
+    }
+    rootDir.getExistingPathINodes(components, inodes);
+    if (inodes[last-1] != null && inodes[last-1].isDirectory()) {
+      cachedParentPath = parentPath;
+      cachedParentINodes = new INode[last];
+      System.arraycopy(inodes, 0, cachedParentINodes, 0, last);
+    } else {
+      invalidateReplayCache();
+    }
+  }
+
   private void incrDeletedFileCount(int count) {
     directoryMetrics.incrMetric("files_deleted", count);
     directoryMetrics.update();
@@ -359,6 +414,7 @@ class FSDirectory implements FSConstants, Closeable {
   boolean unprotectedRenameTo(String src, String dst, long timestamp) 
   throws QuotaExceededException {
     synchronized (rootDir) {
+      invalidateReplayCache();
       INode[] srcInodes = rootDir.getExistingPathINodes(src);
 
       // check the validation of the source
@@ -602,7 +658,9 @@ class FSDirectory implements FSConstants, Closeable {
     src = normalizePath(src);
 
     synchronized (rootDir) {
-      INode[] inodes =  rootDir.getExistingPathINodes(src);
+      byte[][] components = INode.getPathComponents(src);
+      INode[] inodes = new INode[components.length];
+      getExistingPathINodes(src, components, inodes);
       INode targetNode = inodes[inodes.length-1];
 
       if (targetNode == null) { // non-existent src
@@ -618,6 +676,9 @@ class FSDirectory implements FSConstants, Closeable {
         try {
           // Remove the node from the namespace
           removeChild(inodes, inodes.length-1);
+          if (targetNode.isDirectory()) {
+            invalidateReplayCache();
+          }
           // set the parent's modification time
           inodes[inodes.length-2].setModificationTime(modificationTime);
           // GC all the blocks underneath the node.
@@ -721,6 +782,44 @@ class FSDirectory implements FSConstants, Closeable {
     }
   }
 
+  /**
+   * Get a page of the listing of files given path 'src'
+   * @param src the directory
+   * @param startAfter the local name the page starts after
+   * @param limit the maximum number of entries of the page
+   * @return the page, or null if src does not exist
+   */
+  DirectoryListing getListing(String src, String startAfter, int limit) {
+    String srcs = normalizePath(src);
+
+    synchronized (rootDir) {
+      INode targetNode = rootDir.getNode(srcs);
+      if (targetNode == null)
+        return null;
+      if (!targetNode.isDirectory()) {
+        return new DirectoryListing(
+            new FileStatus[]{createFileStatus(srcs, targetNode)}, 0);
+      }
+      List<INode> contents = ((INodeDirectory)targetNode).getChildren();
+      int start = 0;
+      if (startAfter != null && startAfter.length() > 0) {
+        // the children are sorted by name
+        start = Collections.binarySearch(contents, 
+                                         INode.string2Bytes(startAfter));
+        start = (start < 0) ? -start - 1 : start + 1;
+      }
+      int count = Math.max(0, Math.min(limit, contents.size() - start));
+      FileStatus listing[] = new FileStatus[count];
+      if(! srcs.endsWith(Path.SEPARATOR))
+        srcs += Path.SEPARATOR;
+      for (int i = 0; i < count; i++) {
+        INode cur = contents.get(start + i);
+        listing[i] = createFileStatus(srcs+cur.getLocalName(), cur);
+      }
+      return new DirectoryListing(listing, contents.size() - start - count);
+    }
+  }
+
   /** Get the file info for a specific file.
    * @param src The string representation of the path to the file
    * @return object containing information regarding the file
@@ -950,7 +1049,7 @@ class FSDirectory implements FSConstants, Closeable {
     byte[][] components = INode.getPathComponents(src);
     INode[] inodes = new INode[components.length];
     synchronized (rootDir) {
-      rootDir.getExistingPathINodes(components, inodes);
+      getExistingPathINodes(src, components, inodes);
       unprotectedMkdir(inodes, inodes.length-1, components[inodes.length-1],
           permissions, false, timestamp);
       return inodes[inodes.length-1];
@@ -979,7 +1078,7 @@ class FSDirectory implements FSConstants, Closeable {
     child.setLocalName(components[components.length-1]);
     INode[] inodes = new INode[components.length];
     synchronized (rootDir) {
-      rootDir.getExistingPathINodes(components, inodes);
+      getExistingPathINodes(src, components, inodes);
       return addChild(inodes, inodes.length-1, child, childDiskspace,
                       inheritPermission);
     }
@@ -1151,6 +1250,7 @@ class FSDirectory implements FSConstants, Closeable {
     }
     
     String srcs = normalizePath(src);
+    invalidateReplayCache();
     INode[] inodes = rootDir.getExistingPathINodes(src);
     INode targetNode = inodes[inodes.length-1];
     if (targetNode == null) {
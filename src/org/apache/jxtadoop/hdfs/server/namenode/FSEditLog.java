@@ -26,13 +26,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.lang.Math;
 import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
 
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
@@ -50,6 +62,8 @@ import org.apache.jxtadoop.io.WritableFactory;
 import org.apache.jxtadoop.fs.FileStatus;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.fs.permission.PermissionStatus;
+import org.apache.jxtadoop.util.Daemon;
+import org.apache.jxtadoop.util.StringUtils;
 
 /**
  * FSEditLog maintains a log of the namespace modifications.
@@ -84,7 +98,7 @@ public class FSEditLog {
   private long txid = 0;
 
   // stores the last synced transactionId.
-  private long synctxid = 0;
+  private volatile long synctxid = 0;
 
   // the time of printing the statistics to the log file.
   private long lastPrintTime;
@@ -92,6 +106,13 @@ public class FSEditLog {
   // is a sync currently running?
   private boolean isSyncRunning;
 
+  // the thread syncing the edits for the handlers, if started
+  private volatile EditLogSyncer syncer = null;
+  private Thread syncerThread = null;
+
+  // the monitor the handlers wait on for the syncer to sync their edits
+  private final Object syncDone = new Object();
+
   // these are statistics counters.
   private long numTransactions;        // number of transactions
   private long numTransactionsBatchedInSync;
@@ -483,22 +504,22 @@ public class FSEditLog {
    * Load an edit log, and apply the changes to the in-memory structure
    * This is where we apply edits that we've been writing to disk all
    * along.
+   * <p>
+   * The transactions are decoded by an {@link EditDecoder} thread while
+   * this thread applies them, and the directory caches the last resolved
+   * parent directory meanwhile.
    */
   static int loadFSEdits(EditLogInputStream edits) throws IOException {
     FSNamesystem fsNamesys = FSNamesystem.getFSNamesystem();
     FSDirectory fsDir = fsNamesys.dir;
     int numEdits = 0;
     int logVersion = 0;
-    String clientName = null;
-    String clientMachine = null;
-    String path = null;
-    int numOpAdd = 0, numOpClose = 0, numOpDelete = 0,
-        numOpRename = 0, numOpSetRepl = 0, numOpMkDir = 0,
-        numOpSetPerm = 0, numOpSetOwner = 0, numOpSetGenStamp = 0,
-        numOpTimes = 0, numOpOther = 0;
+    int[] numOps = new int[OP_SET_QUOTA + 1];
     long startTime = FSNamesystem.now();
 
     DataInputStream in = new DataInputStream(new BufferedInputStream(edits));
+    EditDecoder decoder = null;
+    Thread decoderThread = null;
     try {
       // Read log file version. Could be missing. 
       in.mark(4);
@@ -522,293 +543,464 @@ public class FSEditLog {
       assert logVersion <= Storage.LAST_UPGRADABLE_LAYOUT_VERSION :
                             "Unsupported version " + logVersion;
 
-      while (true) {
-        long timestamp = 0;
-        long mtime = 0;
-        long atime = 0;
-        long blockSize = 0;
-        byte opcode = -1;
+      decoder = new EditDecoder(in, logVersion, fsNamesys);
+      decoderThread = new Daemon(decoder);
+      decoderThread.start();
+      fsDir.setReplayCache(true);
+      List<EditRecord> batch;
+      while ((batch = decoder.nextBatch()) != null) {
+        for (EditRecord edit : batch) {
+          numEdits++;
+          numOps[edit.opcode]++;
+          applyEdit(edit, fsNamesys);
+        }
+      }
+      FSNamesystem.LOG.info("Reached end of edit log " +
+                            "Number of transactions found " + numEdits);
+    } finally {
+      fsDir.setReplayCache(false);
+      if (decoderThread != null) {
+        decoderThread.interrupt();
         try {
-          opcode = in.readByte();
-          if (opcode == OP_INVALID) {
-            FSNamesystem.LOG.info("Invalid opcode, reached end of edit log " +
-                                   "Number of transactions found " + numEdits);
-            break; // no more transactions
-          }
-        } catch (EOFException e) {
-          break; // no more transactions
+          decoderThread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
-        numEdits++;
-        switch (opcode) {
-        case OP_ADD:
-        case OP_CLOSE: {
-          // versions > 0 support per file replication
-          // get name and replication
-          int length = in.readInt();
-          if (-7 == logVersion && length != 3||
-              -17 < logVersion && logVersion < -7 && length != 4 ||
-              logVersion <= -17 && length != 5) {
-              throw new IOException("Incorrect data format."  +
-                                    " logVersion is " + logVersion +
-                                    " but writables.length is " +
-                                    length + ". ");
-          }
-          path = FSImage.readString(in);
-          short replication = adjustReplication(readShort(in));
-          mtime = readLong(in);
-          if (logVersion <= -17) {
-            atime = readLong(in);
-          }
-          if (logVersion < -7) {
-            blockSize = readLong(in);
-          }
-          // get blocks
-          Block blocks[] = null;
-          if (logVersion <= -14) {
-            blocks = readBlocks(in);
-          } else {
-            BlockTwo oldblk = new BlockTwo();
-            int num = in.readInt();
-            blocks = new Block[num];
-            for (int i = 0; i < num; i++) {
-              oldblk.readFields(in);
-              blocks[i] = new Block(oldblk.blkid, oldblk.len, 
-                                    Block.GRANDFATHER_GENERATION_STAMP);
-            }
-          }
+      }
+      in.close();
+    }
+    long elapsed = FSNamesystem.now() - startTime;
+    FSImage.LOG.info("Edits file " + edits.getName() 
+        + " of size " + edits.length() + " edits # " + numEdits 
+        + " loaded in " + elapsed/1000 + " seconds ("
+        + (elapsed == 0 ? numEdits : numEdits * 1000L / elapsed)
+        + " edits/sec).");
 
-          // Older versions of HDFS does not store the block size in inode.
-          // If the file has more than one block, use the size of the
-          // first block as the blocksize. Otherwise use the default
-          // block size.
-          if (-8 <= logVersion && blockSize == 0) {
-            if (blocks.length > 1) {
-              blockSize = blocks[0].getNumBytes();
-            } else {
-              long first = ((blocks.length == 1)? blocks[0].getNumBytes(): 0);
-              blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
-            }
-          }
-           
-          PermissionStatus permissions = fsNamesys.getUpgradePermission();
-          if (logVersion <= -11) {
-            permissions = PermissionStatus.read(in);
-          }
+    if (FSImage.LOG.isDebugEnabled()) {
+      FSImage.LOG.debug("numOpAdd = " + numOps[OP_ADD] 
+          + " numOpClose = " + numOps[OP_CLOSE] 
+          + " numOpDelete = " + numOps[OP_DELETE] 
+          + " numOpRename = " + numOps[OP_RENAME] 
+          + " numOpSetRepl = " + numOps[OP_SET_REPLICATION] 
+          + " numOpMkDir = " + numOps[OP_MKDIR]
+          + " numOpSetPerm = " + numOps[OP_SET_PERMISSIONS] 
+          + " numOpSetOwner = " + numOps[OP_SET_OWNER]
+          + " numOpSetGenStamp = " + numOps[OP_SET_GENSTAMP] 
+          + " numOpTimes = " + numOps[OP_TIMES]
+          + " numOpOther = " + (numOps[OP_DATANODE_ADD] 
+                                + numOps[OP_DATANODE_REMOVE]));
+    }
 
-          // clientname, clientMachine and block locations of last block.
-          if (opcode == OP_ADD && logVersion <= -12) {
-            clientName = FSImage.readString(in);
-            clientMachine = FSImage.readString(in);
-            if (-13 <= logVersion) {
-              readDatanodeDescriptorArray(in);
-            }
-          } else {
-            clientName = "";
-            clientMachine = "";
-          }
+    if (logVersion != FSConstants.LAYOUT_VERSION) // other version
+      numEdits++; // save this image asap
+    return numEdits;
+  }
 
-          // The open lease transaction re-creates a file if necessary.
-          // Delete the file if it already exists.
-          if (FSNamesystem.LOG.isDebugEnabled()) {
-            FSNamesystem.LOG.debug(opcode + ": " + path + 
-                                   " numblocks : " + blocks.length +
-                                   " clientHolder " +  clientName +
-                                   " clientMachine " + clientMachine);
-          }
+  /**
+   * A decoded edit log transaction. Only the fields of its opcode are set.
+   */
+  static class EditRecord {
+    byte opcode;
+    String path;
+    String dst;
+    short replication;
+    long mtime;
+    long atime;
+    long blockSize;
+    long timestamp;
+    Block[] blocks;
+    PermissionStatus permissions;
+    String clientName;
+    String clientMachine;
+    FsPermission permission;
+    String username;
+    String groupname;
+    long nsQuota;
+    long dsQuota;
+    long genStamp;
+  }
 
-          fsDir.unprotectedDelete(path, mtime);
-
-          // add to the file tree
-          INodeFile node = (INodeFile)fsDir.unprotectedAddFile(
-                                                    path, permissions,
-                                                    blocks, replication, 
-                                                    mtime, atime, blockSize);
-          if (opcode == OP_ADD) {
-            numOpAdd++;
-            //
-            // Replace current node with a INodeUnderConstruction.
-            // Recreate in-memory lease record.
-            //
-            INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-                                      node.getLocalNameBytes(),
-                                      node.getReplication(), 
-                                      node.getModificationTime(),
-                                      node.getPreferredBlockSize(),
-                                      node.getBlocks(),
-                                      node.getPermissionStatus(),
-                                      clientName, 
-                                      clientMachine, 
-                                      null);
-            fsDir.replaceNode(path, node, cons);
-            fsNamesys.leaseManager.addLease(cons.clientName, path);
-          }
-          break;
-        } 
-        case OP_SET_REPLICATION: {
-          numOpSetRepl++;
-          path = FSImage.readString(in);
-          short replication = adjustReplication(readShort(in));
-          fsDir.unprotectedSetReplication(path, replication, null);
-          break;
-        } 
-        case OP_RENAME: {
-          numOpRename++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
-          String s = FSImage.readString(in);
-          String d = FSImage.readString(in);
-          timestamp = readLong(in);
-          FileStatus dinfo = fsDir.getFileInfo(d);
-          fsDir.unprotectedRenameTo(s, d, timestamp);
-          fsNamesys.changeLease(s, d, dinfo);
-          break;
-        }
-        case OP_DELETE: {
-          numOpDelete++;
-          int length = in.readInt();
-          if (length != 2) {
-            throw new IOException("Incorrect data format. " 
-                                  + "delete operation.");
-          }
-          path = FSImage.readString(in);
-          timestamp = readLong(in);
-          fsDir.unprotectedDelete(path, timestamp);
-          break;
-        }
-        case OP_MKDIR: {
-          numOpMkDir++;
-          PermissionStatus permissions = fsNamesys.getUpgradePermission();
-          int length = in.readInt();
-          if (-17 < logVersion && length != 2 ||
-              logVersion <= -17 && length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
-          path = FSImage.readString(in);
-          timestamp = readLong(in);
-
-          // The disk format stores atimes for directories as well.
-          // However, currently this is not being updated/used because of
-          // performance reasons.
-          if (logVersion <= -17) {
-            atime = readLong(in);
-          }
+  /**
+   * Decodes the transactions of an edit log and hands them over in
+   * batches, so that the decoding of a batch overlaps with the applying
+   * of the previous one.
+   */
+  static class EditDecoder implements Runnable {
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_PENDING_BATCHES = 16;
+    /* the batch ending the edit log, or standing for a decoding error */
+    private static final List<EditRecord> END = new ArrayList<EditRecord>(0);
+
+    private final DataInputStream in;
+    private final int logVersion;
+    private final FSNamesystem fsNamesys;
+    private final BlockingQueue<List<EditRecord>> batches =
+      new ArrayBlockingQueue<List<EditRecord>>(MAX_PENDING_BATCHES);
+    private volatile Throwable error = null;
+
+    EditDecoder(DataInputStream in, int logVersion, FSNamesystem fsNamesys) {
+      this.in = in;
+      this.logVersion = logVersion;
+      this.fsNamesys = fsNamesys;
+    }
 
-          if (logVersion <= -11) {
-            permissions = PermissionStatus.read(in);
-          }
-          fsDir.unprotectedMkdir(path, permissions, timestamp);
-          break;
-        }
-        case OP_SET_GENSTAMP: {
-          numOpSetGenStamp++;
-          long lw = in.readLong();
-          fsDir.namesystem.setGenerationStamp(lw);
-          break;
-        } 
-        case OP_DATANODE_ADD: {
-          numOpOther++;
-          FSImage.DatanodeImage nodeimage = new FSImage.DatanodeImage();
-          nodeimage.readFields(in);
-          //Datnodes are not persistent any more.
-          break;
-        }
-        case OP_DATANODE_REMOVE: {
-          numOpOther++;
-          DatanodeID nodeID = new DatanodeID();
-          nodeID.readFields(in);
-          //Datanodes are not persistent any more.
-          break;
-        }
-        case OP_SET_PERMISSIONS: {
-          numOpSetPerm++;
-          if (logVersion > -11)
-            throw new IOException("Unexpected opcode " + opcode
-                                  + " for version " + logVersion);
-          fsDir.unprotectedSetPermission(
-              FSImage.readString(in), FsPermission.read(in));
-          break;
-        }
-        case OP_SET_OWNER: {
-          numOpSetOwner++;
-          if (logVersion > -11)
-            throw new IOException("Unexpected opcode " + opcode
-                                  + " for version " + logVersion);
-          fsDir.unprotectedSetOwner(FSImage.readString(in),
-              FSImage.readString_EmptyAsNull(in),
-              FSImage.readString_EmptyAsNull(in));
-          break;
-        }
-        case OP_SET_NS_QUOTA: {
-          if (logVersion > -16) {
-            throw new IOException("Unexpected opcode " + opcode
-                + " for version " + logVersion);
+    public void run() {
+      try {
+        List<EditRecord> batch = new ArrayList<EditRecord>(BATCH_SIZE);
+        EditRecord edit = new EditRecord();
+        while (readEdit(in, logVersion, fsNamesys, edit)) {
+          batch.add(edit);
+          edit = new EditRecord();
+          if (batch.size() == BATCH_SIZE) {
+            batches.put(batch);
+            batch = new ArrayList<EditRecord>(BATCH_SIZE);
           }
-          fsDir.unprotectedSetQuota(FSImage.readString(in), 
-                                    readLongWritable(in), 
-                                    FSConstants.QUOTA_DONT_SET);
-          break;
         }
-        case OP_CLEAR_NS_QUOTA: {
-          if (logVersion > -16) {
-            throw new IOException("Unexpected opcode " + opcode
-                + " for version " + logVersion);
-          }
-          fsDir.unprotectedSetQuota(FSImage.readString(in),
-                                    FSConstants.QUOTA_RESET,
-                                    FSConstants.QUOTA_DONT_SET);
-          break;
+        if (!batch.isEmpty()) {
+          batches.put(batch);
         }
+      } catch (InterruptedException e) {
+        return; // the replay was aborted
+      } catch (Throwable t) {
+        error = t;
+      }
+      try {
+        batches.put(END);
+      } catch (InterruptedException e) {
+        // the replay was aborted
+      }
+    }
 
-        case OP_SET_QUOTA:
-          fsDir.unprotectedSetQuota(FSImage.readString(in),
-                                    readLongWritable(in),
-                                    readLongWritable(in));
-                                      
-          break;
+    /**
+     * Wait for the next batch of transactions.
+     * @return the batch, or null at the end of the edit log
+     * @throws IOException if the decoding failed
+     */
+    List<EditRecord> nextBatch() throws IOException {
+      List<EditRecord> batch;
+      try {
+        batch = batches.take();
+      } catch (InterruptedException e) {
+        throw (IOException)new InterruptedIOException(
+            "Interrupted while loading the edit log").initCause(e);
+      }
+      if (batch != END) {
+        return batch;
+      }
+      batches.offer(END); // stay at the end
+      if (error instanceof IOException) {
+        throw (IOException)error;
+      } else if (error instanceof RuntimeException) {
+        throw (RuntimeException)error;
+      } else if (error instanceof Error) {
+        throw (Error)error;
+      } else if (error != null) {
+        throw (IOException)new IOException(
+            "Failed to decode the edit log").initCause(error);
+      }
+      return null;
+    }
+  }
 
-        case OP_TIMES: {
-          numOpTimes++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "times operation.");
-          }
-          path = FSImage.readString(in);
-          mtime = readLong(in);
-          atime = readLong(in);
-          fsDir.unprotectedSetTimes(path, mtime, atime, true);
-          break;
+  /**
+   * Decode the next transaction of an edit log.
+   * @return false at the end of the edit log
+   */
+  static boolean readEdit(DataInputStream in, int logVersion,
+                          FSNamesystem fsNamesys, EditRecord edit
+                          ) throws IOException {
+    byte opcode = -1;
+    try {
+      opcode = in.readByte();
+      if (opcode == OP_INVALID) {
+        return false; // no more transactions
+      }
+    } catch (EOFException e) {
+      return false; // no more transactions
+    }
+    edit.opcode = opcode;
+    switch (opcode) {
+    case OP_ADD:
+    case OP_CLOSE: {
+      // versions > 0 support per file replication
+      // get name and replication
+      int length = in.readInt();
+      if (-7 == logVersion && length != 3||
+          -17 < logVersion && logVersion < -7 && length != 4 ||
+          logVersion <= -17 && length != 5) {
+          throw new IOException("Incorrect data format."  +
+                                " logVersion is " + logVersion +
+                                " but writables.length is " +
+                                length + ". ");
+      }
+      edit.path = FSImage.readString(in);
+      edit.replication = adjustReplication(readShort(in));
+      edit.mtime = readLong(in);
+      if (logVersion <= -17) {
+        edit.atime = readLong(in);
+      }
+      if (logVersion < -7) {
+        edit.blockSize = readLong(in);
+      }
+      // get blocks
+      Block blocks[] = null;
+      if (logVersion <= -14) {
+        blocks = readBlocks(in);
+      } else {
+        BlockTwo oldblk = new BlockTwo();
+        int num = in.readInt();
+        blocks = new Block[num];
+        for (int i = 0; i < num; i++) {
+          oldblk.readFields(in);
+          blocks[i] = new Block(oldblk.blkid, oldblk.len, 
+                                Block.GRANDFATHER_GENERATION_STAMP);
         }
-        default: {
-          throw new IOException("Never seen opcode " + opcode);
+      }
+      edit.blocks = blocks;
+
+      // Older versions of HDFS does not store the block size in inode.
+      // If the file has more than one block, use the size of the
+      // first block as the blocksize. Otherwise use the default
+      // block size.
+      if (-8 <= logVersion && edit.blockSize == 0) {
+        if (blocks.length > 1) {
+          edit.blockSize = blocks[0].getNumBytes();
+        } else {
+          long first = ((blocks.length == 1)? blocks[0].getNumBytes(): 0);
+          edit.blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
         }
+      }
+       
+      edit.permissions = fsNamesys.getUpgradePermission();
+      if (logVersion <= -11) {
+        edit.permissions = PermissionStatus.read(in);
+      }
+
+      // clientname, clientMachine and block locations of last block.
+      if (opcode == OP_ADD && logVersion <= -12) {
+        edit.clientName = FSImage.readString(in);
+        edit.clientMachine = FSImage.readString(in);
+        if (-13 <= logVersion) {
+          readDatanodeDescriptorArray(in);
         }
+      } else {
+        edit.clientName = "";
+        edit.clientMachine = "";
       }
-    } finally {
-      in.close();
+      break;
+    } 
+    case OP_SET_REPLICATION: {
+      edit.path = FSImage.readString(in);
+      edit.replication = adjustReplication(readShort(in));
+      break;
+    } 
+    case OP_RENAME: {
+      int length = in.readInt();
+      if (length != 3) {
+        throw new IOException("Incorrect data format. " 
+                              + "Mkdir operation.");
+      }
+      edit.path = FSImage.readString(in);
+      edit.dst = FSImage.readString(in);
+      edit.timestamp = readLong(in);
+      break;
     }
-    FSImage.LOG.info("Edits file " + edits.getName() 
-        + " of size " + edits.length() + " edits # " + numEdits 
-        + " loaded in " + (FSNamesystem.now()-startTime)/1000 + " seconds.");
+    case OP_DELETE: {
+      int length = in.readInt();
+      if (length != 2) {
+        throw new IOException("Incorrect data format. " 
+                              + "delete operation.");
+      }
+      edit.path = FSImage.readString(in);
+      edit.timestamp = readLong(in);
+      break;
+    }
+    case OP_MKDIR: {
+      edit.permissions = fsNamesys.getUpgradePermission();
+      int length = in.readInt();
+      if (-17 < logVersion && length != 2 ||
+          logVersion <= -17 && length != 3) {
+        throw new IOException("Incorrect data format. " 
+                              + "Mkdir operation.");
+      }
+      edit.path = FSImage.readString(in);
+      edit.timestamp = readLong(in);
+
+      // The disk format stores atimes for directories as well.
+      // However, currently this is not being updated/used because of
+      // performance reasons.
+      if (logVersion <= -17) {
+        edit.atime = readLong(in);
+      }
 
-    if (FSImage.LOG.isDebugEnabled()) {
-      FSImage.LOG.debug("numOpAdd = " + numOpAdd + " numOpClose = " + numOpClose 
-          + " numOpDelete = " + numOpDelete + " numOpRename = " + numOpRename 
-          + " numOpSetRepl = " + numOpSetRepl + " numOpMkDir = " + numOpMkDir
-          + " numOpSetPerm = " + numOpSetPerm 
-          + " numOpSetOwner = " + numOpSetOwner
-          + " numOpSetGenStamp = " + numOpSetGenStamp 
-          + " numOpTimes = " + numOpTimes
-          + " numOpOther = " + numOpOther);
+      if (logVersion <= -11) {
+        edit.permissions = PermissionStatus.read(in);
+      }
+      break;
+    }
+    case OP_SET_GENSTAMP: {
+      edit.genStamp = in.readLong();
+      break;
+    } 
+    case OP_DATANODE_ADD: {
+      FSImage.DatanodeImage nodeimage = new FSImage.DatanodeImage();
+      nodeimage.readFields(in);
+      //Datnodes are not persistent any more.
+      break;
+    }
+    case OP_DATANODE_REMOVE: {
+      DatanodeID nodeID = new DatanodeID();
+      nodeID.readFields(in);
+      //Datanodes are not persistent any more.
+      break;
+    }
+    case OP_SET_PERMISSIONS: {
+      if (logVersion > -11)
+        throw new IOException("Unexpected opcode " + opcode
+                              + " for version " + logVersion);
+      edit.path = FSImage.readString(in);
+      edit.permission = FsPermission.read(in);
+      break;
+    }
+    case OP_SET_OWNER: {
+      if (logVersion > -11)
+        throw new IOException("Unexpected opcode " + opcode
+                              + " for version " + logVersion);
+      edit.path = FSImage.readString(in);
+      edit.username = FSImage.readString_EmptyAsNull(in);
+      edit.groupname = FSImage.readString_EmptyAsNull(in);
+      break;
+    }
+    case OP_SET_NS_QUOTA: {
+      if (logVersion > -16) {
+        throw new IOException("Unexpected opcode " + opcode
+            + " for version " + logVersion);
+      }
+      edit.path = FSImage.readString(in);
+      edit.nsQuota = readLongWritable(in);
+      edit.dsQuota = FSConstants.QUOTA_DONT_SET;
+      break;
+    }
+    case OP_CLEAR_NS_QUOTA: {
+      if (logVersion > -16) {
+        throw new IOException("Unexpected opcode " + opcode
+            + " for version " + logVersion);
+      }
+      edit.path = FSImage.readString(in);
+      edit.nsQuota = FSConstants.QUOTA_RESET;
+      edit.dsQuota = FSConstants.QUOTA_DONT_SET;
+      break;
     }
 
-    if (logVersion != FSConstants.LAYOUT_VERSION) // other version
-      numEdits++; // save this image asap
-    return numEdits;
+    case OP_SET_QUOTA:
+      edit.path = FSImage.readString(in);
+      edit.nsQuota = readLongWritable(in);
+      edit.dsQuota = readLongWritable(in);
+      break;
+
+    case OP_TIMES: {
+      int length = in.readInt();
+      if (length != 3) {
+        throw new IOException("Incorrect data format. " 
+                              + "times operation.");
+      }
+      edit.path = FSImage.readString(in);
+      edit.mtime = readLong(in);
+      edit.atime = readLong(in);
+      break;
+    }
+    default: {
+      throw new IOException("Never seen opcode " + opcode);
+    }
+    }
+    return true;
+  }
+
+  /**
+   * Apply a decoded transaction to the namespace.
+   */
+  static void applyEdit(EditRecord edit, FSNamesystem fsNamesys
+                        ) throws IOException {
+    FSDirectory fsDir = fsNamesys.dir;
+    switch (edit.opcode) {
+    case OP_ADD:
+    case OP_CLOSE: {
+      // The open lease transaction re-creates a file if necessary.
+      // Delete the file if it already exists.
+      if (FSNamesystem.LOG.isDebugEnabled()) {
+        FSNamesystem.LOG.debug(edit.opcode + ": " + edit.path + 
+                               " numblocks : " + edit.blocks.length +
+                               " clientHolder " +  edit.clientName +
+                               " clientMachine " + edit.clientMachine);
+      }
+
+      fsDir.unprotectedDelete(edit.path, edit.mtime);
+
+      // add to the file tree
+      INodeFile node = (INodeFile)fsDir.unprotectedAddFile(
+                                                edit.path, edit.permissions,
+                                                edit.blocks, edit.replication, 
+                                                edit.mtime, edit.atime,
+                                                edit.blockSize);
+      if (edit.opcode == OP_ADD) {
+        //
+        // Replace current node with a INodeUnderConstruction.
+        // Recreate in-memory lease record.
+        //
+        INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+                                  node.getLocalNameBytes(),
+                                  node.getReplication(), 
+                                  node.getModificationTime(),
+                                  node.getPreferredBlockSize(),
+                                  node.getBlocks(),
+                                  node.getPermissionStatus(),
+                                  edit.clientName, 
+                                  edit.clientMachine, 
+                                  null);
+        fsDir.replaceNode(edit.path, node, cons);
+        fsNamesys.leaseManager.addLease(cons.clientName, edit.path);
+      }
+      break;
+    } 
+    case OP_SET_REPLICATION:
+      fsDir.unprotectedSetReplication(edit.path, edit.replication, null);
+      break;
+    case OP_RENAME: {
+      FileStatus dinfo = fsDir.getFileInfo(edit.dst);
+      fsDir.unprotectedRenameTo(edit.path, edit.dst, edit.timestamp);
+      fsNamesys.changeLease(edit.path, edit.dst, dinfo);
+      break;
+    }
+    case OP_DELETE:
+      fsDir.unprotectedDelete(edit.path, edit.timestamp);
+      break;
+    case OP_MKDIR:
+      fsDir.unprotectedMkdir(edit.path, edit.permissions, edit.timestamp);
+      break;
+    case OP_SET_GENSTAMP:
+      fsDir.namesystem.setGenerationStamp(edit.genStamp);
+      break;
+    case OP_DATANODE_ADD:
+    case OP_DATANODE_REMOVE:
+      //Datanodes are not persistent any more.
+      break;
+    case OP_SET_PERMISSIONS:
+      fsDir.unprotectedSetPermission(edit.path, edit.permission);
+      break;
+    case OP_SET_OWNER:
+      fsDir.unprotectedSetOwner(edit.path, edit.username, edit.groupname);
+      break;
+    case OP_SET_NS_QUOTA:
+    case OP_CLEAR_NS_QUOTA:
+    case OP_SET_QUOTA:
+      fsDir.unprotectedSetQuota(edit.path, edit.nsQuota, edit.dsQuota);
+      break;
+    case OP_TIMES:
+      fsDir.unprotectedSetTimes(edit.path, edit.mtime, edit.atime, true);
+      break;
+    default:
+      throw new IOException("Never seen opcode " + edit.opcode);
+    }
   }
 
   // a place holder for reading a long
@@ -880,6 +1072,11 @@ public class FSEditLog {
     // Fetch the transactionId of this thread. 
     long mytxid = myTransactionId.get().txid;
 
+    // let the syncer do the sync, if running
+    if (syncer != null && waitForSyncer(mytxid)) {
+      return;
+    }
+
     final int numEditStreams;
     synchronized (this) {
       numEditStreams = editStreams.size();
@@ -945,6 +1142,286 @@ public class FSEditLog {
       metrics.syncs.inc(elapsed);
   }
 
+  /**
+   * Start the thread syncing the edits, unless disabled in the
+   * configuration. The handlers then wait in {@link #logSync()} for the
+   * syncer to flush their transactions instead of flushing them.
+   */
+  synchronized void startSyncer(Configuration conf) {
+    if (syncer != null || !conf.getBoolean("dfs.namenode.edits.syncer",
+                                   P2PConstants.DFS_NAMENODE_EDITS_SYNCER)) {
+      return;
+    }
+    syncer = new EditLogSyncer(
+        conf.getLong("dfs.namenode.edits.sync.delay",
+                     P2PConstants.DFS_NAMENODE_EDITS_SYNC_DELAY),
+        conf.getInt("dfs.namenode.edits.sync.batch",
+                    P2PConstants.DFS_NAMENODE_EDITS_SYNC_BATCH));
+    syncerThread = new Daemon(syncer);
+    syncerThread.start();
+  }
+
+  /**
+   * Stop the syncer once the pending transactions are synced. The
+   * handlers sync themselves afterwards.
+   */
+  void stopSyncer() {
+    Thread t;
+    synchronized (this) {
+      if (syncer == null) {
+        return;
+      }
+      syncer.running = false;
+      notifyAll();
+      t = syncerThread;
+      syncerThread = null;
+    }
+    try {
+      t.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Wait for the syncer to sync the given transaction.
+   * @return false if the syncer stopped before
+   */
+  private boolean waitForSyncer(long mytxid) {
+    synchronized (this) {
+      assert editStreams.size() > 0 : "no editlog streams";
+      printStatistics(false);
+
+      // a thread that did not log anything syncs the current transactions
+      mytxid = Math.min(mytxid, txid);
+      if (mytxid <= synctxid) {
+        numTransactionsBatchedInSync++;
+        if (metrics != null) // Metrics is non-null only when used inside name node
+          metrics.transactionsBatchedInSync.inc();
+        return true;
+      }
+      EditLogSyncer s = syncer;
+      if (s == null) {
+        return false;
+      }
+      s.request(mytxid);
+    }
+    long start = FSNamesystem.now();
+    synchronized (syncDone) {
+      while (mytxid > synctxid) {
+        if (syncer == null) {
+          return false;
+        }
+        try {
+          syncDone.wait(1000);
+        } catch (InterruptedException ie) { 
+        }
+      }
+    }
+    if (metrics != null) // Metrics is non-null only when used inside name node
+      metrics.syncLatency.inc(FSNamesystem.now() - start);
+    return true;
+  }
+
+  /**
+   * Syncs the transactions for the handlers waiting in {@link #logSync()}.
+   * <p>
+   * Once a sync is requested, the syncer waits for up to the sync delay
+   * for more transactions to batch, or less if a batch of the sync batch
+   * size is already pending. The edit streams are then flushed in
+   * parallel, each by its own thread.
+   * <p>
+   * The syncer waits on the monitor of the edit log, which the handlers
+   * notify when they request a sync. The handlers wait on syncDone, which
+   * is only notified once a sync completes, so that a request does not
+   * wake up all the other waiting handlers.
+   */
+  private class EditLogSyncer implements Runnable {
+    private final long delay;
+    private final int maxBatch;
+    private final ExecutorService flushers = 
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          return new Daemon(r);
+        }
+      });
+    volatile boolean running = true;
+    private long requested = 0;   // the highest transaction waited for
+
+    // the syncs per second statistics
+    private long rateStart = FSNamesystem.now();
+    private int rateSyncs = 0;
+
+    EditLogSyncer(long delay, int maxBatch) {
+      this.delay = delay;
+      this.maxBatch = maxBatch;
+    }
+
+    /** Request the sync of the given transaction. */
+    void request(long id) {
+      if (id > requested) {
+        requested = id;
+        FSEditLog.this.notifyAll();
+      }
+    }
+
+    public void run() {
+      try {
+        while (syncBatch()) {
+        }
+      } catch (Throwable t) {
+        FSNamesystem.LOG.error("Edit log syncer stopped, the handlers " +
+                               "sync the edits themselves. " + 
+                               StringUtils.stringifyException(t));
+      } finally {
+        synchronized (FSEditLog.this) {
+          syncer = null;
+          FSEditLog.this.notifyAll();
+        }
+        synchronized (syncDone) {
+          syncDone.notifyAll();
+        }
+        flushers.shutdown();
+      }
+    }
+
+    /**
+     * Wait for a sync request, then sync the pending transactions.
+     * @return false if the syncer is stopped
+     */
+    private boolean syncBatch() throws InterruptedException {
+      long syncStart;
+      List<EditLogOutputStream> streams;
+      ArrayList<EditLogOutputStream> errorStreams = null;
+      synchronized (FSEditLog.this) {
+        while (requested <= synctxid || isSyncRunning) {
+          if (!running) {
+            return false;
+          }
+          FSEditLog.this.wait(1000);
+          updateRate();
+        }
+        long deadline = FSNamesystem.now() + delay;
+        while (running && txid - synctxid < maxBatch) {
+          long wait = deadline - FSNamesystem.now();
+          if (wait <= 0) {
+            break;
+          }
+          FSEditLog.this.wait(wait);
+        }
+
+        syncStart = txid;
+        isSyncRunning = true;
+        streams = new ArrayList<EditLogOutputStream>(editStreams);
+        for (Iterator<EditLogOutputStream> it = streams.iterator(); 
+             it.hasNext();) {
+          EditLogOutputStream eStream = it.next();
+          try {
+            eStream.setReadyToFlush();
+          } catch (IOException ie) {
+            if (errorStreams == null) {
+              errorStreams = new ArrayList<EditLogOutputStream>(1);
+            }
+            errorStreams.add(eStream);
+            it.remove();
+          }
+        }
+      }
+
+      // do the sync
+      long start = FSNamesystem.now();
+      errorStreams = flush(streams, errorStreams);
+      long elapsed = FSNamesystem.now() - start;
+
+      long batch;
+      synchronized (FSEditLog.this) {
+        processIOError(errorStreams);
+        batch = syncStart - synctxid;
+        synctxid = syncStart;
+        isSyncRunning = false;
+        FSEditLog.this.notifyAll();
+        rateSyncs++;
+        updateRate();
+      }
+      synchronized (syncDone) {
+        syncDone.notifyAll();
+      }
+
+      if (metrics != null) { // Metrics is non-null only when used inside name node
+        metrics.syncs.inc(elapsed);
+        metrics.syncBatchSize.inc(batch);
+      }
+      return true;
+    }
+
+    /**
+     * Flush the streams in parallel.
+     * @return the streams that encountered an error, added to errorStreams
+     */
+    private ArrayList<EditLogOutputStream> flush(
+                              List<EditLogOutputStream> streams,
+                              ArrayList<EditLogOutputStream> errorStreams
+                              ) throws InterruptedException {
+      List<Future<IOException>> results = 
+        new ArrayList<Future<IOException>>(streams.size());
+      for (int idx = 1; idx < streams.size(); idx++) {
+        final EditLogOutputStream eStream = streams.get(idx);
+        results.add(flushers.submit(new Callable<IOException>() {
+          public IOException call() {
+            try {
+              eStream.flush();
+              return null;
+            } catch (IOException ie) {
+              return ie;
+            }
+          }
+        }));
+      }
+      for (int idx = 0; idx < streams.size(); idx++) {
+        IOException ie = null;
+        if (idx == 0) {
+          try {
+            streams.get(0).flush();
+          } catch (IOException e) {
+            ie = e;
+          }
+        } else {
+          try {
+            ie = results.get(idx - 1).get();
+          } catch (ExecutionException e) {
+            ie = (IOException)new IOException("Flush failed").initCause(e);
+          }
+        }
+        if (ie != null) {
+          //
+          // remember the streams that encountered an error.
+          //
+          if (errorStreams == null) {
+            errorStreams = new ArrayList<EditLogOutputStream>(1);
+          }
+          errorStreams.add(streams.get(idx));
+          FSNamesystem.LOG.error("Unable to sync edit log. " +
+                                 "Fatal Error.");
+        }
+      }
+      return errorStreams;
+    }
+
+    /* publish the syncs per second every second */
+    private void updateRate() {
+      long now = FSNamesystem.now();
+      long elapsed = now - rateStart;
+      if (elapsed < 1000) {
+        return;
+      }
+      if (metrics != null) { // Metrics is non-null only when used inside name node
+        metrics.syncsPerSecond.set((int)(rateSyncs * 1000L / elapsed));
+      }
+      rateStart = now;
+      rateSyncs = 0;
+    }
+  }
+
   //
   // print statistics every 1 minute.
   //
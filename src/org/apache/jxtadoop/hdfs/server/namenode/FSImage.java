@@ -19,6 +19,8 @@ package org.apache.jxtadoop.hdfs.server.namenode;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -27,17 +29,28 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.Math;
 import java.nio.ByteBuffer;
 
@@ -45,16 +58,22 @@ import org.apache.jxtadoop.fs.Path;
 import org.apache.jxtadoop.fs.permission.PermissionStatus;
 import org.apache.jxtadoop.fs.permission.FsPermission;
 import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
 import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.NodeType;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
+import org.apache.jxtadoop.io.Text;
 import org.apache.jxtadoop.io.UTF8;
 import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.compress.CompressionCodec;
+import org.apache.jxtadoop.io.compress.CompressionOutputStream;
+import org.apache.jxtadoop.util.ReflectionUtils;
 import org.apache.jxtadoop.hdfs.server.namenode.NameNode;
 import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
 import org.apache.jxtadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
+import org.apache.jxtadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.jxtadoop.hdfs.server.common.InconsistentFSStateException;
 import org.apache.jxtadoop.hdfs.server.common.Storage;
 import org.apache.jxtadoop.hdfs.server.common.StorageInfo;
@@ -132,9 +151,14 @@ public class FSImage extends Storage {
   /**
    * Used for saving the image to disk
    */
-  static private final FsPermission FILE_PERM = new FsPermission((short)0);
   static private final byte[] PATH_SEPARATOR = INode.string2Bytes(Path.SEPARATOR);
 
+  /* Image saving options, see setImageOptions */
+  private Configuration imageConf = null;
+  private boolean imageCompress = P2PConstants.DFS_IMAGE_COMPRESS;
+  private String imageCodecName = P2PConstants.DFS_IMAGE_COMPRESSION_CODEC;
+  private int imageParallelism = P2PConstants.DFS_IMAGE_PARALLELISM;
+
   /**
    */
   FSImage() {
@@ -142,6 +166,19 @@ public class FSImage extends Storage {
     this.editLog = new FSEditLog(this);
   }
 
+  /**
+   * Set the image saving options from the configuration.
+   */
+  void setImageOptions(Configuration conf) {
+    this.imageConf = conf;
+    this.imageCompress = conf.getBoolean("dfs.image.compress",
+                                         P2PConstants.DFS_IMAGE_COMPRESS);
+    this.imageCodecName = conf.get("dfs.image.compression.codec",
+                                   P2PConstants.DFS_IMAGE_COMPRESSION_CODEC);
+    this.imageParallelism = Math.max(1, conf.getInt("dfs.image.parallelism",
+                                      P2PConstants.DFS_IMAGE_PARALLELISM));
+  }
+
   /**
    */
   FSImage(Collection<File> fsDirs, Collection<File> fsEditsDirs) 
@@ -824,7 +861,7 @@ public class FSImage extends Storage {
     assert curFile != null : "curFile is null";
 
     FSNamesystem fsNamesys = FSNamesystem.getFSNamesystem();
-    FSDirectory fsDir = fsNamesys.dir;
+    long startTime = FSNamesystem.now();
 
     //
     // Load in bits
@@ -865,104 +902,242 @@ public class FSImage extends Storage {
 
       needToSave = (imgVersion != FSConstants.LAYOUT_VERSION);
 
-      // read file info
-      short replication = FSNamesystem.getFSNamesystem().getDefaultReplication();
-
       LOG.info("Number of files = " + numFiles);
 
-      String path;
-      String parentPath = "";
-      INodeDirectory parentINode = fsDir.rootDir;
-      for (long i = 0; i < numFiles; i++) {
-        long modificationTime = 0;
-        long atime = 0;
-        long blockSize = 0;
-        path = readString(in);
-        replication = in.readShort();
-        replication = FSEditLog.adjustReplication(replication);
-        modificationTime = in.readLong();
-        if (imgVersion <= -17) {
-          atime = in.readLong();
-        }
-        if (imgVersion <= -8) {
-          blockSize = in.readLong();
-        }
-        int numBlocks = in.readInt();
-        Block blocks[] = null;
-
-        // for older versions, a blocklist of size 0
-        // indicates a directory.
-        if ((-9 <= imgVersion && numBlocks > 0) ||
-            (imgVersion < -9 && numBlocks >= 0)) {
-          blocks = new Block[numBlocks];
-          for (int j = 0; j < numBlocks; j++) {
-            blocks[j] = new Block();
-            if (-14 < imgVersion) {
-              blocks[j].set(in.readLong(), in.readLong(), 
-                            Block.GRANDFATHER_GENERATION_STAMP);
-            } else {
-              blocks[j].readFields(in);
-            }
-          }
-        }
-        // Older versions of HDFS does not store the block size in inode.
-        // If the file has more than one block, use the size of the 
-        // first block as the blocksize. Otherwise use the default block size.
-        //
-        if (-8 <= imgVersion && blockSize == 0) {
-          if (numBlocks > 1) {
-            blockSize = blocks[0].getNumBytes();
+      if (imgVersion <= -19) {
+        // read the sections through the index footer
+        String codecName = Text.readString(in);
+        loadSections(curFile, imgVersion, codecName, fsNamesys);
+      } else {
+        // read file info
+        loadINodes(imgVersion, in, numFiles, fsNamesys);
+
+        // load datanode info
+        this.loadDatanodes(imgVersion, in);
+
+        // load Files Under Construction
+        this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
+      }
+      LOG.info("Image file of size " + curFile.length() + " loaded in "
+          + (FSNamesystem.now() - startTime)/1000 + " seconds.");
+    } finally {
+      in.close();
+    }
+    
+    return needToSave;
+  }
+
+  /**
+   * Load numFiles inodes from the stream. The parent directory of each
+   * inode must be loaded already.
+   * This only locks the root directory to insert the inodes, so several
+   * threads may load independent parts of the namespace.
+   */
+  private void loadINodes(int imgVersion, DataInputStream in, long numFiles,
+                          FSNamesystem fsNamesys) throws IOException {
+    FSDirectory fsDir = fsNamesys.dir;
+    short replication = fsNamesys.getDefaultReplication();
+    UTF8 pathString = new UTF8();
+    String path;
+    String parentPath = "";
+    INodeDirectory parentINode = fsDir.rootDir;
+    for (long i = 0; i < numFiles; i++) {
+      long modificationTime = 0;
+      long atime = 0;
+      long blockSize = 0;
+      pathString.readFields(in);
+      path = pathString.toString();
+      replication = in.readShort();
+      replication = FSEditLog.adjustReplication(replication);
+      modificationTime = in.readLong();
+      if (imgVersion <= -17) {
+        atime = in.readLong();
+      }
+      if (imgVersion <= -8) {
+        blockSize = in.readLong();
+      }
+      int numBlocks = in.readInt();
+      Block blocks[] = null;
+
+      // for older versions, a blocklist of size 0
+      // indicates a directory.
+      if ((-9 <= imgVersion && numBlocks > 0) ||
+          (imgVersion < -9 && numBlocks >= 0)) {
+        blocks = new Block[numBlocks];
+        for (int j = 0; j < numBlocks; j++) {
+          blocks[j] = new Block();
+          if (-14 < imgVersion) {
+            blocks[j].set(in.readLong(), in.readLong(), 
+                          Block.GRANDFATHER_GENERATION_STAMP);
           } else {
-            long first = ((numBlocks == 1) ? blocks[0].getNumBytes(): 0);
-            blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
+            blocks[j].readFields(in);
           }
         }
-        
-        // get quota only when the node is a directory
-        long nsQuota = -1L;
-        if (imgVersion <= -16 && blocks == null) {
-          nsQuota = in.readLong();
-        }
-        long dsQuota = -1L;
-        if (imgVersion <= -18 && blocks == null) {
-          dsQuota = in.readLong();
+      }
+      // Older versions of HDFS does not store the block size in inode.
+      // If the file has more than one block, use the size of the 
+      // first block as the blocksize. Otherwise use the default block size.
+      //
+      if (-8 <= imgVersion && blockSize == 0) {
+        if (numBlocks > 1) {
+          blockSize = blocks[0].getNumBytes();
+        } else {
+          long first = ((numBlocks == 1) ? blocks[0].getNumBytes(): 0);
+          blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
         }
-        
-        PermissionStatus permissions = fsNamesys.getUpgradePermission();
-        if (imgVersion <= -11) {
-          permissions = PermissionStatus.read(in);
+      }
+      
+      // get quota only when the node is a directory
+      long nsQuota = -1L;
+      if (imgVersion <= -16 && blocks == null) {
+        nsQuota = in.readLong();
+      }
+      long dsQuota = -1L;
+      if (imgVersion <= -18 && blocks == null) {
+        dsQuota = in.readLong();
+      }
+      
+      PermissionStatus permissions = fsNamesys.getUpgradePermission();
+      if (imgVersion <= -11) {
+        permissions = PermissionStatus.read(in);
+      }
+      if (path.length() == 0) { // it is the root
+        // update the root's attributes
+        if (nsQuota != -1 || dsQuota != -1) {
+          fsDir.rootDir.setQuota(nsQuota, dsQuota);
         }
-        if (path.length() == 0) { // it is the root
-          // update the root's attributes
-          if (nsQuota != -1 || dsQuota != -1) {
-            fsDir.rootDir.setQuota(nsQuota, dsQuota);
+        fsDir.rootDir.setModificationTime(modificationTime);
+        fsDir.rootDir.setPermissionStatus(permissions);
+        continue;
+      }
+      // check if the new inode belongs to the same parent
+      if(!isParent(path, parentPath)) {
+        parentINode = null;
+        parentPath = getParent(path);
+      }
+      // add new inode
+      parentINode = fsDir.addToParent(path, parentINode, permissions,
+                                      blocks, replication, modificationTime, 
+                                      atime, nsQuota, dsQuota, blockSize);
+    }
+  }
+
+  /**
+   * Load the sections of an image, in parallel but for the first one,
+   * which holds the upper part of the namespace the others hang from.
+   * The index footer gives the offset, length and number of inodes of each
+   * section, and the offset of the files under construction.
+   */
+  private void loadSections(File curFile, final int imgVersion,
+                            String codecName, final FSNamesystem fsNamesys
+                            ) throws IOException {
+    final CompressionCodec codec = getImageCodec(codecName);
+    final RandomAccessFile raf = new RandomAccessFile(curFile, "r");
+    ExecutorService pool = null;
+    try {
+      raf.seek(raf.length() - 8);
+      raf.seek(raf.readLong());
+      int numSections = raf.readInt();
+      final long[] offsets = new long[numSections];
+      final long[] lengths = new long[numSections];
+      final long[] numINodes = new long[numSections];
+      for (int i = 0; i < numSections; i++) {
+        offsets[i] = raf.readLong();
+        lengths[i] = raf.readLong();
+        numINodes[i] = raf.readLong();
+      }
+      long underConstructionOffset = raf.readLong();
+      LOG.info("Loading " + numSections + " image sections with " 
+               + imageParallelism + " threads");
+
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      pool = Executors.newFixedThreadPool(imageParallelism);
+      for (int i = 0; i < numSections; i++) {
+        final int section = i;
+        Callable<Object> task = new Callable<Object>() {
+          public Object call() throws IOException {
+            byte[] buf = new byte[(int)lengths[section]];
+            synchronized (raf) {
+              raf.seek(offsets[section]);
+              raf.readFully(buf);
+            }
+            DataInputStream in = openSection(buf, codec);
+            try {
+              loadINodes(imgVersion, in, numINodes[section], fsNamesys);
+            } finally {
+              in.close();
+            }
+            return null;
           }
-          fsDir.rootDir.setModificationTime(modificationTime);
-          fsDir.rootDir.setPermissionStatus(permissions);
-          continue;
-        }
-        // check if the new inode belongs to the same parent
-        if(!isParent(path, parentPath)) {
-          parentINode = null;
-          parentPath = getParent(path);
+        };
+        results.add(pool.submit(task));
+        if (i == 0) {
+          // the other sections need the upper namespace
+          waitFor(results.get(0));
         }
-        // add new inode
-        parentINode = fsDir.addToParent(path, parentINode, permissions,
-                                        blocks, replication, modificationTime, 
-                                        atime, nsQuota, dsQuota, blockSize);
       }
-      
-      // load datanode info
-      this.loadDatanodes(imgVersion, in);
+      for (Future<Object> result : results) {
+        waitFor(result);
+      }
 
-      // load Files Under Construction
+      raf.seek(underConstructionOffset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                Channels.newInputStream(raf.getChannel())));
       this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
-      
     } finally {
-      in.close();
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      raf.close();
+    }
+  }
+
+  private static DataInputStream openSection(byte[] buf,
+                                             CompressionCodec codec
+                                             ) throws IOException {
+    InputStream in = new ByteArrayInputStream(buf);
+    if (codec != null) {
+      in = codec.createInputStream(in);
+    }
+    return new DataInputStream(new BufferedInputStream(in));
+  }
+
+  /** Wait for a section task, throwing its exception if it failed. */
+  private static <T> T waitFor(Future<T> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while processing an image section").initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw (IOException)new IOException(
+          "Failed to process an image section").initCause(cause);
+    }
+  }
+
+  /**
+   * Get the codec of the given class name.
+   * @return the codec, or null for the empty name
+   */
+  private CompressionCodec getImageCodec(String codecName) throws IOException {
+    if (codecName.length() == 0) {
+      return null;
+    }
+    if (imageConf == null) {
+      imageConf = new Configuration();
+    }
+    try {
+      Class<?> codecClass = imageConf.getClassByName(codecName);
+      return ReflectionUtils.newInstance(
+          codecClass.asSubclass(CompressionCodec.class), imageConf);
+    } catch (ClassNotFoundException e) {
+      throw (IOException)new IOException(
+          "Image compression codec " + codecName + " not found").initCause(e);
     }
-    
-    return needToSave;
   }
 
   /**
@@ -987,6 +1162,7 @@ public class FSImage extends Storage {
    */
   int loadFSEdits(StorageDirectory sd) throws IOException {
     int numEdits = 0;
+    long startTime = FSNamesystem.now();
     EditLogFileInputStream edits = 
       new EditLogFileInputStream(getImageFile(sd, NameNodeFile.EDITS));
     numEdits = FSEditLog.loadFSEdits(edits);
@@ -997,6 +1173,12 @@ public class FSImage extends Storage {
       numEdits += FSEditLog.loadFSEdits(edits);
       edits.close();
     }
+    long elapsed = FSNamesystem.now() - startTime;
+    int editsPerSec = (int)(numEdits * 1000L / Math.max(1, elapsed));
+    NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+    if (metrics != null) { // null in the secondary namenode
+      metrics.editsReplayRate.set(editsPerSec);
+    }
     // update the counts.
     FSNamesystem.getFSNamesystem().dir.updateCountForINodeWithQuota();    
     return numEdits;
@@ -1004,31 +1186,141 @@ public class FSImage extends Storage {
 
   /**
    * Save the contents of the FS image to the file.
+   * <p>
+   * The inodes are saved in sections, compressed independently and
+   * written in parallel. The first section holds the root and the upper
+   * part of the namespace, each other section a group of subtrees of
+   * similar size. An index footer ends the file, so that the loader can
+   * read the sections in parallel too.
+   * Only a window of sections is compressed in memory at a time, and the
+   * size of a section is capped, so that the heap held by the saving does
+   * not grow with the namespace.
    */
   void saveFSImage(File newFile) throws IOException {
     FSNamesystem fsNamesys = FSNamesystem.getFSNamesystem();
-    FSDirectory fsDir = fsNamesys.dir;
+    final FSDirectory fsDir = fsNamesys.dir;
     long startTime = FSNamesystem.now();
+    final CompressionCodec codec = imageCompress ? 
+                                   getImageCodec(imageCodecName) : null;
+
+    // split the namespace, counting the inodes on the way
+    long maxSectionSize = Math.max(1, Math.min(MAX_SECTION_INODES,
+                                      fsDir.rootDir.numItemsInTree()
+                                      / (imageParallelism * SECTIONS_PER_THREAD)));
+    List<SubTree> subTrees = new ArrayList<SubTree>();
+    long numItems = 1 + splitNamespace(new byte[0], fsDir.rootDir, 
+                                       maxSectionSize, subTrees);
+    final Set<INode> subTreeRoots = 
+      Collections.newSetFromMap(new IdentityHashMap<INode, Boolean>());
+    List<List<SubTree>> sections = new ArrayList<List<SubTree>>();
+    List<SubTree> section = null;
+    long sectionSize = 0;
+    long upperSize = numItems;
+    for (SubTree subTree : subTrees) {
+      subTreeRoots.add(subTree.dir);
+      upperSize -= subTree.size;
+      if (section == null || sectionSize >= maxSectionSize) {
+        section = new ArrayList<SubTree>();
+        sections.add(section);
+        sectionSize = 0;
+      }
+      section.add(subTree);
+      sectionSize += subTree.size;
+    }
+
     //
     // Write out data
     //
+    FileOutputStream fos = new FileOutputStream(newFile);
     DataOutputStream out = new DataOutputStream(
-                                                new BufferedOutputStream(
-                                                                         new FileOutputStream(newFile)));
+                                                new BufferedOutputStream(fos));
+    ExecutorService pool = Executors.newFixedThreadPool(imageParallelism);
     try {
       out.writeInt(FSConstants.LAYOUT_VERSION);
       out.writeInt(namespaceID);
-      out.writeLong(fsDir.rootDir.numItemsInTree());
+      out.writeLong(numItems);
       out.writeLong(fsNamesys.getGenerationStamp());
-      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
-      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
-      // save the root
-      saveINode2Image(strbuf, fsDir.rootDir, out);
-      // save the rest of the nodes
-      saveImage(strbuf, 0, fsDir.rootDir, out);
+      Text.writeString(out, codec == null ? "" : codec.getClass().getName());
+
+      int numSections = sections.size() + 1;
+      long[] offsets = new long[numSections];
+      long[] lengths = new long[numSections];
+      long[] numINodes = new long[numSections];
+      List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+      // save the root and the upper namespace
+      tasks.add(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          ByteBuffer strbuf = ByteBuffer.wrap(
+                                 new byte[4*FSConstants.MAX_PATH_LENGTH]);
+          FsPermission perm = new FsPermission((short)0);
+          SectionOutput sectionOut = new SectionOutput(codec);
+          saveINode2Image(strbuf, fsDir.rootDir, sectionOut.out, perm);
+          saveImage(strbuf, 0, fsDir.rootDir, subTreeRoots, 
+                    sectionOut.out, perm);
+          return sectionOut.toByteArray();
+        }
+      });
+      numINodes[0] = upperSize;
+      // save the subtrees
+      for (int i = 1; i < numSections; i++) {
+        final List<SubTree> sectionTrees = sections.get(i - 1);
+        tasks.add(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            ByteBuffer strbuf = ByteBuffer.wrap(
+                                   new byte[4*FSConstants.MAX_PATH_LENGTH]);
+            FsPermission perm = new FsPermission((short)0);
+            SectionOutput sectionOut = new SectionOutput(codec);
+            for (SubTree subTree : sectionTrees) {
+              strbuf.position(0);
+              strbuf.put(subTree.path);
+              saveImage(strbuf, subTree.path.length, subTree.dir, null,
+                        sectionOut.out, perm);
+            }
+            return sectionOut.toByteArray();
+          }
+        });
+        for (SubTree subTree : sectionTrees) {
+          numINodes[i] += subTree.size;
+        }
+      }
+      // write the sections in order as they complete, keeping at most
+      // a window of them in memory
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      int window = imageParallelism + 1;
+      for (int i = 0; i < numSections && i < window; i++) {
+        results.add(pool.submit(tasks.get(i)));
+      }
+      for (int i = 0; i < numSections; i++) {
+        byte[] bytes = waitFor(results.get(i));
+        results.set(i, null);
+        if (i + window < numSections) {
+          results.add(pool.submit(tasks.get(i + window)));
+        }
+        out.flush();
+        offsets[i] = fos.getChannel().position();
+        lengths[i] = bytes.length;
+        out.write(bytes);
+      }
+
+      out.flush();
+      long underConstructionOffset = fos.getChannel().position();
       fsNamesys.saveFilesUnderConstruction(out);
-      strbuf = null;
+
+      // write the index footer
+      out.flush();
+      long footerOffset = fos.getChannel().position();
+      out.writeInt(numSections);
+      for (int i = 0; i < numSections; i++) {
+        out.writeLong(offsets[i]);
+        out.writeLong(lengths[i]);
+        out.writeLong(numINodes[i]);
+      }
+      out.writeLong(underConstructionOffset);
+      out.writeLong(footerOffset);
+      LOG.info("Saved " + numSections + " image sections with " 
+               + imageParallelism + " threads");
     } finally {
+      pool.shutdownNow();
       out.close();
     }
 
@@ -1036,6 +1328,88 @@ public class FSImage extends Storage {
         + (FSNamesystem.now() - startTime)/1000 + " seconds.");
   }
 
+  /** The number of sections per saving thread, to balance the load */
+  private static final int SECTIONS_PER_THREAD = 4;
+
+  /** The maximum number of inodes of a section, to bound its buffer */
+  private static final long MAX_SECTION_INODES = 1L << 20;
+
+  /** A directory whose descendants are saved in a section */
+  private static class SubTree {
+    final byte[] path;
+    final INodeDirectory dir;
+    final long size;
+
+    SubTree(byte[] path, INodeDirectory dir, long size) {
+      this.path = path;
+      this.dir = dir;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Find the subtrees of at most maxSize descendants to save in sections.
+   * The directories with more descendants are left in the upper namespace
+   * and their smaller sub-directories are taken as subtrees.
+   * @return the number of descendants of the directory
+   */
+  private static long splitNamespace(byte[] path, INodeDirectory dir,
+                                     long maxSize, List<SubTree> subTrees) {
+    List<INode> children = dir.getChildrenRaw();
+    if (children == null) {
+      return 0;
+    }
+    long size = children.size();
+    long[] sizes = new long[children.size()];
+    byte[][] paths = new byte[children.size()][];
+    for (int i = 0; i < children.size(); i++) {
+      INode child = children.get(i);
+      if (child.isDirectory()) {
+        byte[] name = child.getLocalNameBytes();
+        paths[i] = new byte[path.length + PATH_SEPARATOR.length + name.length];
+        System.arraycopy(path, 0, paths[i], 0, path.length);
+        System.arraycopy(PATH_SEPARATOR, 0, paths[i], path.length, 
+                         PATH_SEPARATOR.length);
+        System.arraycopy(name, 0, paths[i], 
+                         path.length + PATH_SEPARATOR.length, name.length);
+        sizes[i] = splitNamespace(paths[i], (INodeDirectory)child, 
+                                  maxSize, subTrees);
+        size += sizes[i];
+      }
+    }
+    if (size > maxSize) {
+      for (int i = 0; i < children.size(); i++) {
+        if (sizes[i] > 0 && sizes[i] <= maxSize) {
+          subTrees.add(new SubTree(paths[i], (INodeDirectory)children.get(i),
+                                   sizes[i]));
+        }
+      }
+    }
+    return size;
+  }
+
+  /** A section being written, compressed with the image codec if any. */
+  private static class SectionOutput {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final CompressionOutputStream compressed;
+    final DataOutputStream out;
+
+    SectionOutput(CompressionCodec codec) throws IOException {
+      compressed = (codec == null) ? null : codec.createOutputStream(bytes);
+      out = new DataOutputStream(new BufferedOutputStream(
+                                 compressed == null ? bytes : compressed));
+    }
+
+    byte[] toByteArray() throws IOException {
+      out.flush();
+      if (compressed != null) {
+        compressed.finish();
+      }
+      out.close();
+      return bytes.toByteArray();
+    }
+  }
+
   /**
    * Save the contents of the FS image
    * and create empty edits.
@@ -1116,7 +1490,8 @@ public class FSImage extends Storage {
    */
   private static void saveINode2Image(ByteBuffer name,
                                       INode node,
-                                      DataOutputStream out) throws IOException {
+                                      DataOutputStream out,
+                                      FsPermission perm) throws IOException {
     int nameLen = name.position();
     out.writeShort(nameLen);
     out.write(name.array(), name.arrayOffset(), nameLen);
@@ -1130,10 +1505,10 @@ public class FSImage extends Storage {
       out.writeInt(blocks.length);
       for (Block blk : blocks)
         blk.write(out);
-      FILE_PERM.fromShort(fileINode.getFsPermissionShort());
+      perm.fromShort(fileINode.getFsPermissionShort());
       PermissionStatus.write(out, fileINode.getUserName(),
                              fileINode.getGroupName(),
-                             FILE_PERM);
+                             perm);
     } else {   // write directory inode
       out.writeShort(0);  // replication
       out.writeLong(node.getModificationTime());
@@ -1142,21 +1517,24 @@ public class FSImage extends Storage {
       out.writeInt(-1);    // # of blocks
       out.writeLong(node.getNsQuota());
       out.writeLong(node.getDsQuota());
-      FILE_PERM.fromShort(node.getFsPermissionShort());
+      perm.fromShort(node.getFsPermissionShort());
       PermissionStatus.write(out, node.getUserName(),
                              node.getGroupName(),
-                             FILE_PERM);
+                             perm);
     }
   }
   /**
    * Save file tree image starting from the given root.
    * This is a recursive procedure, which first saves all children of
-   * a current directory and then moves inside the sub-directories.
+   * a current directory and then moves inside the sub-directories,
+   * but for the ones in skipped.
    */
   private static void saveImage(ByteBuffer parentPrefix,
                                 int prefixLength,
                                 INodeDirectory current,
-                                DataOutputStream out) throws IOException {
+                                Set<INode> skipped,
+                                DataOutputStream out,
+                                FsPermission perm) throws IOException {
     int newPrefixLength = prefixLength;
     if (current.getChildrenRaw() == null)
       return;
@@ -1164,15 +1542,16 @@ public class FSImage extends Storage {
       // print all children first
       parentPrefix.position(prefixLength);
       parentPrefix.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
-      saveINode2Image(parentPrefix, child, out);
+      saveINode2Image(parentPrefix, child, out, perm);
     }
     for(INode child : current.getChildren()) {
-      if(!child.isDirectory())
+      if(!child.isDirectory() || (skipped != null && skipped.contains(child)))
         continue;
       parentPrefix.position(prefixLength);
       parentPrefix.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
       newPrefixLength = parentPrefix.position();
-      saveImage(parentPrefix, newPrefixLength, (INodeDirectory)child, out);
+      saveImage(parentPrefix, newPrefixLength, (INodeDirectory)child, skipped,
+                out, perm);
     }
     parentPrefix.position(prefixLength);
   }
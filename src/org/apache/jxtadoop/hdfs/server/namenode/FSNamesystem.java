@@ -29,9 +29,11 @@ import org.apache.jxtadoop.hdfs.protocol.Block;
 import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.PathResults;
 import org.apache.jxtadoop.hdfs.protocol.UnregisteredDatanodeException;
 import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
@@ -50,6 +52,7 @@ import org.apache.jxtadoop.util.StringUtils;
 import org.apache.jxtadoop.metrics.util.MBeanUtil;
 import org.apache.jxtadoop.net.CachedDNSToSwitchMapping;
 import org.apache.jxtadoop.net.DNSToSwitchMapping;
+import org.apache.jxtadoop.net.LatencyBasedMapping;
 import org.apache.jxtadoop.net.NetworkTopology;
 import org.apache.jxtadoop.net.ScriptBasedMapping;
 import org.apache.jxtadoop.hdfs.server.namenode.LeaseManager.Lease;
@@ -144,6 +147,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   private PermissionStatus defaultPermission;
   // FSNamesystemMetrics counter variables
   private FSNamesystemMetrics myFSMetrics;
+  // the namespace lock, read-only operations share it
+  private final FSNamesystemLock fsLock = new FSNamesystemLock();
   private long capacityTotal = 0L, capacityUsed = 0L, capacityRemaining = 0L;
   private int totalLoad = 0;
 
@@ -229,7 +234,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   // Set of: Block
   //
   private UnderReplicatedBlocks neededReplications = new UnderReplicatedBlocks();
-  private PendingReplicationBlocks pendingReplications;
+  PendingReplicationBlocks pendingReplications;
 
   public LeaseManager leaseManager = new LeaseManager(this); 
 
@@ -241,6 +246,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   public Daemon lmthread = null;   // LeaseMonitor thread
   Daemon smmthread = null;  // SafeModeMonitor thread
   public Daemon replthread = null;  // Replication thread
+  Daemon topologythread = null; // TopologyMonitor thread
   
   private volatile boolean fsRunning = true;
   long systemStart = 0;
@@ -281,7 +287,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     
   // datanode networktoplogy
   NetworkTopology clusterMap = new NetworkTopology();
-  // Use less in P2P : private DNSToSwitchMapping dnsToSwitchMapping;
+  private DNSToSwitchMapping dnsToSwitchMapping;
+  private long topologyRecomputeInterval;
   
   // for block replicas placement
   ReplicationTargetChooser replicator;
@@ -289,6 +296,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   private HostsFileReader hostsReader; 
   private Daemon dnthread = null;
 
+  private int lsLimit;                   // maximum number of entries of a listing page
   private long maxFsObjects = 0;          // maximum number of fs objects
 
   /**
@@ -333,6 +341,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     LOG.info("Finished loading FSImage in " + timeTakenToLoadFSImage + " msecs");
     NameNode.getNameNodeMetrics().fsImageLoadTime.set(
                               (int) timeTakenToLoadFSImage);
+    getEditLog().startSyncer(conf);
     this.safeMode = new SafeModeInfo(conf);
     setBlockTotal();
     pendingReplications = new PendingReplicationBlocks(
@@ -352,10 +361,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
         conf.getInt("dfs.namenode.decommission.nodes.per.interval", 5)));
     dnthread.start();
 
-   /*this.dnsToSwitchMapping = ReflectionUtils.newInstance(
+    this.dnsToSwitchMapping = ReflectionUtils.newInstance(
         conf.getClass("topology.node.switch.mapping.impl", ScriptBasedMapping.class,
             DNSToSwitchMapping.class), conf);
-    */
+    if (dnsToSwitchMapping instanceof LatencyBasedMapping) {
+      this.topologyRecomputeInterval = conf.getLong(
+          "topology.latency.recompute.interval",
+          P2PConstants.TOPOLOGY_LATENCY_RECOMPUTE_INTERVAL) * 1000L;
+      this.topologythread = new Daemon(new TopologyMonitor());
+      topologythread.start();
+    }
+
     /* If the dns to swith mapping supports cache, resolve network 
      * locations of those hosts in the include list, 
      * and store the mapping in the cache; so future calls to resolve
@@ -453,6 +469,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       conf.getInt("dfs.replication.interval", P2PConstants.DEFAULT_DFS_REPLICATION) * 1000L;
     this.defaultBlockSize = conf.getLong("dfs.block.size", P2PConstants.DEFAULT_BLOCK_SIZE);
     this.maxFsObjects = conf.getLong("dfs.max.objects", 0);
+    this.lsLimit = conf.getInt("dfs.ls.limit", P2PConstants.DFS_LS_LIMIT);
     this.blockInvalidateLimit = Math.max(this.blockInvalidateLimit, 
                                          20*(int)(heartbeatInterval/1000));
     this.accessTimePrecision = conf.getLong("dfs.access.time.precision", 0);
@@ -493,6 +510,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       if (replthread != null) replthread.interrupt();
       if (dnthread != null) dnthread.interrupt();
       if (smmthread != null) smmthread.interrupt();
+      if (topologythread != null) topologythread.interrupt();
     } catch (Exception e) {
       LOG.warn("Exception shutting down FSNamesystem", e);
     } finally {
@@ -502,6 +520,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
           lmthread.interrupt();
           lmthread.join(3000);
         }
+        getEditLog().stopSyncer();
         dir.close();
       } catch (InterruptedException ie) {
       } catch (IOException ie) {
@@ -519,62 +538,95 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   /**
    * Dump all metadata into specified file
    */
-  synchronized void metaSave(String filename) throws IOException {
-    checkSuperuserPrivilege();
-    File file = new File(System.getProperty("hadoop.log.dir"), 
-                         filename);
-    PrintWriter out = new PrintWriter(new BufferedWriter(
-                                                         new FileWriter(file, true)));
+  void metaSave(String filename) throws IOException {
+    readLock("metaSave");
+    try {
+      checkSuperuserPrivilege();
+      File file = new File(System.getProperty("hadoop.log.dir"), 
+                           filename);
+      PrintWriter out = new PrintWriter(new BufferedWriter(
+                                                           new FileWriter(file, true)));
  
+      long heapUsage = blocksMap.estimateHeapUsage();
+      out.println("Metasave: Blocks map heap usage: " + heapUsage +
+                  " bytes for " + blocksMap.size() + " blocks, " +
+                  blocksMap.heapUsagePerMillionBlocks(heapUsage) +
+                  " bytes per million blocks");
 
-    //
-    // Dump contents of neededReplication
-    //
-    synchronized (neededReplications) {
-      out.println("Metasave: Blocks waiting for replication: " + 
-                  neededReplications.size());
-      for (Block block : neededReplications) {
-        List<DatanodeDescriptor> containingNodes =
-                                          new ArrayList<DatanodeDescriptor>();
-        NumberReplicas numReplicas = new NumberReplicas();
-        // source node returned is not used
-        chooseSourceDatanode(block, containingNodes, numReplicas);
-        int usableReplicas = numReplicas.liveReplicas() + 
-                             numReplicas.decommissionedReplicas(); 
-        // l: == live:, d: == decommissioned c: == corrupt e: == excess
-        out.print(block + " (replicas:" +
-                  " l: " + numReplicas.liveReplicas() + 
-                  " d: " + numReplicas.decommissionedReplicas() + 
-                  " c: " + numReplicas.corruptReplicas() + 
-                  " e: " + numReplicas.excessReplicas() + 
-                  ((usableReplicas > 0)? "" : " MISSING") + ")"); 
-
-        for (Iterator<DatanodeDescriptor> jt = blocksMap.nodeIterator(block);
-             jt.hasNext();) {
-          DatanodeDescriptor node = jt.next();
-          out.print(" " + node + " : ");
+      //
+      // Dump contents of neededReplication
+      //
+      synchronized (neededReplications) {
+        out.println("Metasave: Blocks waiting for replication: " + 
+                    neededReplications.size());
+        for (Block block : neededReplications) {
+          List<DatanodeDescriptor> containingNodes =
+                                            new ArrayList<DatanodeDescriptor>();
+          NumberReplicas numReplicas = new NumberReplicas();
+          // source node returned is not used
+          chooseSourceDatanode(block, containingNodes, numReplicas);
+          int usableReplicas = numReplicas.liveReplicas() + 
+                               numReplicas.decommissionedReplicas(); 
+          // l: == live:, d: == decommissioned c: == corrupt e: == excess
+          out.print(block + " (replicas:" +
+                    " l: " + numReplicas.liveReplicas() + 
+                    " d: " + numReplicas.decommissionedReplicas() + 
+                    " c: " + numReplicas.corruptReplicas() + 
+                    " e: " + numReplicas.excessReplicas() + 
+                    ((usableReplicas > 0)? "" : " MISSING") + ")"); 
+
+          for (Iterator<DatanodeDescriptor> jt = blocksMap.nodeIterator(block);
+               jt.hasNext();) {
+            DatanodeDescriptor node = jt.next();
+            out.print(" " + node + " : ");
+          }
+          out.println("");
         }
-        out.println("");
       }
+
+      //
+      // Dump blocks from pendingReplication
+      //
+      pendingReplications.metaSave(out);
+
+      //
+      // Dump blocks that are waiting to be deleted
+      //
+      dumpRecentInvalidateSets(out);
+
+      //
+      // Dump all datanodes
+      //
+      datanodeDump(out);
+
+      out.flush();
+      out.close();
+    } finally {
+      readUnlock();
     }
+  }
 
-    //
-    // Dump blocks from pendingReplication
-    //
-    pendingReplications.metaSave(out);
+  /** Acquire the namespace read lock for a read-only operation. */
+  void readLock(String op) {
+    fsLock.readLock(op);
+  }
 
-    //
-    // Dump blocks that are waiting to be deleted
-    //
-    dumpRecentInvalidateSets(out);
+  void readUnlock() {
+    fsLock.readUnlock();
+  }
 
-    //
-    // Dump all datanodes
-    //
-    datanodeDump(out);
+  /** Acquire the namespace write lock for a mutation. */
+  void writeLock(String op) {
+    fsLock.writeLock(op);
+  }
+
+  void writeUnlock() {
+    fsLock.writeUnlock();
+  }
 
-    out.flush();
-    out.close();
+  /** Return the number of threads waiting for the namespace lock. */
+  public int getLockQueueLength() {
+    return fsLock.getQueueLength();
   }
 
   long getDefaultBlockSize() {
@@ -600,15 +652,20 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   }
 
   /* updates a block in under replication queue */
-  synchronized void updateNeededReplications(Block block,
+  void updateNeededReplications(Block block,
                         int curReplicasDelta, int expectedReplicasDelta) {
-    NumberReplicas repl = countNodes(block);
-    int curExpectedReplicas = getReplication(block);
-    neededReplications.update(block, 
-                              repl.liveReplicas(), 
-                              repl.decommissionedReplicas(),
-                              curExpectedReplicas,
-                              curReplicasDelta, expectedReplicasDelta);
+    writeLock("updateNeededReplications");
+    try {
+      NumberReplicas repl = countNodes(block);
+      int curExpectedReplicas = getReplication(block);
+      neededReplications.update(block, 
+                                repl.liveReplicas(), 
+                                repl.decommissionedReplicas(),
+                                curExpectedReplicas,
+                                curReplicasDelta, expectedReplicasDelta);
+    } finally {
+      writeUnlock();
+    }
   }
 
   /////////////////////////////////////////////////////////
@@ -623,43 +680,48 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * @param datanode on which blocks are located
    * @param size total size of blocks
    */
-  synchronized BlocksWithLocations getBlocks(DatanodeID datanode, long size)
+  BlocksWithLocations getBlocks(DatanodeID datanode, long size)
       throws IOException {
-    checkSuperuserPrivilege();
+    readLock("getBlocks");
+    try {
+      checkSuperuserPrivilege();
+
+      DatanodeDescriptor node = getDatanode(datanode);
+      if (node == null) {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.getBlocks: "
+            + "Asking for blocks from an unrecorded node " + datanode.getPeerId());
+        throw new IllegalArgumentException(
+            "Unexpected exception.  Got getBlocks message for datanode " + 
+            datanode.getPeerId() + ", but there is no info for it");
+      }
 
-    DatanodeDescriptor node = getDatanode(datanode);
-    if (node == null) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.getBlocks: "
-          + "Asking for blocks from an unrecorded node " + datanode.getPeerId());
-      throw new IllegalArgumentException(
-          "Unexpected exception.  Got getBlocks message for datanode " + 
-          datanode.getPeerId() + ", but there is no info for it");
-    }
-
-    int numBlocks = node.numBlocks();
-    if(numBlocks == 0) {
-      return new BlocksWithLocations(new BlockWithLocations[0]);
-    }
-    Iterator<Block> iter = node.getBlockIterator();
-    int startBlock = r.nextInt(numBlocks); // starting from a random block
-    // skip blocks
-    for(int i=0; i<startBlock; i++) {
-      iter.next();
-    }
-    List<BlockWithLocations> results = new ArrayList<BlockWithLocations>();
-    long totalSize = 0;
-    while(totalSize<size && iter.hasNext()) {
-      totalSize += addBlock(iter.next(), results);
-    }
-    if(totalSize<size) {
-      iter = node.getBlockIterator(); // start from the beginning
-      for(int i=0; i<startBlock&&totalSize<size; i++) {
+      int numBlocks = node.numBlocks();
+      if(numBlocks == 0) {
+        return new BlocksWithLocations(new BlockWithLocations[0]);
+      }
+      Iterator<Block> iter = node.getBlockIterator();
+      int startBlock = r.nextInt(numBlocks); // starting from a random block
+      // skip blocks
+      for(int i=0; i<startBlock; i++) {
+        iter.next();
+      }
+      List<BlockWithLocations> results = new ArrayList<BlockWithLocations>();
+      long totalSize = 0;
+      while(totalSize<size && iter.hasNext()) {
         totalSize += addBlock(iter.next(), results);
       }
-    }
+      if(totalSize<size) {
+        iter = node.getBlockIterator(); // start from the beginning
+        for(int i=0; i<startBlock&&totalSize<size; i++) {
+          totalSize += addBlock(iter.next(), results);
+        }
+      }
     
-    return new BlocksWithLocations(
-        results.toArray(new BlockWithLocations[results.size()]));
+      return new BlocksWithLocations(
+          results.toArray(new BlockWithLocations[results.size()]));
+    } finally {
+      readUnlock();
+    }
   }
   
   /**
@@ -696,16 +758,21 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Set permissions for an existing file.
    * @throws IOException
    */
-  public synchronized void setPermission(String src, FsPermission permission
+  public void setPermission(String src, FsPermission permission
       ) throws IOException {
-    checkOwner(src);
-    dir.setPermission(src, permission);
-    getEditLog().logSync();
-    if (auditLog.isInfoEnabled()) {
-      final FileStatus stat = dir.getFileInfo(src);
-      logAuditEvent(UserGroupInformation.getCurrentUGI(),
-                    Server.getRemotePeerID(),
-                    "setPermission", src, null, stat);
+    writeLock("setPermission");
+    try {
+      checkOwner(src);
+      dir.setPermission(src, permission);
+      getEditLog().logSync();
+      if (auditLog.isInfoEnabled()) {
+        final FileStatus stat = dir.getFileInfo(src);
+        logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                      Server.getRemotePeerID(),
+                      "setPermission", src, null, stat);
+      }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -713,25 +780,30 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Set owner for an existing file.
    * @throws IOException
    */
-  public synchronized void setOwner(String src, String username, String group
+  public void setOwner(String src, String username, String group
       ) throws IOException {
-    PermissionChecker pc = checkOwner(src);
-    if (!pc.isSuper) {
-      if (username != null && !pc.user.equals(username)) {
-        throw new AccessControlException("Non-super user cannot change owner.");
+    writeLock("setOwner");
+    try {
+      PermissionChecker pc = checkOwner(src);
+      if (!pc.isSuper) {
+        if (username != null && !pc.user.equals(username)) {
+          throw new AccessControlException("Non-super user cannot change owner.");
+        }
+        if (group != null && !pc.containsGroup(group)) {
+          throw new AccessControlException("User does not belong to " + group
+              + " .");
+        }
       }
-      if (group != null && !pc.containsGroup(group)) {
-        throw new AccessControlException("User does not belong to " + group
-            + " .");
+      dir.setOwner(src, username, group);
+      getEditLog().logSync();
+      if (auditLog.isInfoEnabled()) {
+        final FileStatus stat = dir.getFileInfo(src);
+        logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                      Server.getRemotePeerID(),
+                      "setOwner", src, null, stat);
       }
-    }
-    dir.setOwner(src, username, group);
-    getEditLog().logSync();
-    if (auditLog.isInfoEnabled()) {
-      final FileStatus stat = dir.getFileInfo(src);
-      logAuditEvent(UserGroupInformation.getCurrentUGI(),
-                    Server.getRemotePeerID(),
-                    "setOwner", src, null, stat);
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -742,11 +814,16 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    */
   LocatedBlocks getBlockLocations(String clientMachine, String src,
       long offset, long length) throws IOException {
+    return getBlockLocations(clientMachine, src, offset, length, true);
+  }
+
+  private LocatedBlocks getBlockLocations(String clientMachine, String src,
+      long offset, long length, boolean doAccessTime) throws IOException {
     if (isPermissionEnabled) {
       checkPathAccess(src, FsAction.READ);
     }
 
-    LocatedBlocks blocks = getBlockLocations(src, offset, length, true);
+    LocatedBlocks blocks = getBlockLocations(src, offset, length, doAccessTime);
     if (blocks != null) {
       //sort the blocks
       DatanodeDescriptor client = host2DataNodeMap.getDatanodeByHost(
@@ -758,6 +835,46 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return blocks;
   }
 
+  /**
+   * Get block locations of several files within the same range, holding
+   * the namesystem read lock for the whole batch. The access times of the
+   * files opened are updated afterwards.
+   * @see ClientProtocol#getBlockLocations(String[], long, long)
+   */
+  PathResults getBlockLocations(String clientMachine, 
+      String[] srcs, long offset, long length) {
+    PathResults results = new PathResults(LocatedBlocks.class, srcs.length);
+    boolean[] opened = new boolean[srcs.length];
+    readLock("getBlockLocations");
+    try {
+      for (int i = 0; i < srcs.length; i++) {
+        try {
+          LocatedBlocks blocks = getBlockLocations(clientMachine, srcs[i],
+                                                   offset, length, false);
+          results.set(i, blocks);
+          opened[i] = (blocks != null);
+        } catch (IOException e) {
+          results.setError(i, e);
+        }
+      }
+    } finally {
+      readUnlock();
+    }
+    if (isAccessTimeSupported()) {
+      for (int i = 0; i < srcs.length; i++) {
+        INodeFile inode = opened[i] ? dir.getFileINode(srcs[i]) : null;
+        if (inode != null) {
+          try {
+            updateAccessTime(srcs[i], inode);
+          } catch (IOException e) {
+            LOG.warn("Could not update the access time of " + srcs[i], e);
+          }
+        }
+      }
+    }
+    return results;
+  }
+
   /**
    * Get block locations within the specified range.
    * @see ClientProtocol#getBlockLocations(String, long, long)
@@ -789,79 +906,108 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return ret;
   }
 
-  private synchronized LocatedBlocks getBlockLocationsInternal(String src,
+  private LocatedBlocks getBlockLocationsInternal(String src,
                                                        INodeFile inode,
                                                        long offset, 
                                                        long length,
                                                        int nrBlocksToReturn,
                                                        boolean doAccessTime) 
                                                        throws IOException {
-    if(inode == null) {
-      return null;
+    if (doAccessTime && inode != null) {
+      updateAccessTime(src, inode);
     }
-    if (doAccessTime && isAccessTimeSupported()) {
-      dir.setTimes(src, inode, -1, now(), false);
-    }
-    Block[] blocks = inode.getBlocks();
-    if (blocks == null) {
-      return null;
-    }
-    if (blocks.length == 0) {
-      return inode.createLocatedBlocks(new ArrayList<LocatedBlock>(blocks.length));
-    }
-    List<LocatedBlock> results;
-    results = new ArrayList<LocatedBlock>(blocks.length);
-
-    int curBlk = 0;
-    long curPos = 0, blkSize = 0;
-    int nrBlocks = (blocks[0].getNumBytes() == 0) ? 0 : blocks.length;
-    for (curBlk = 0; curBlk < nrBlocks; curBlk++) {
-      blkSize = blocks[curBlk].getNumBytes();
-      assert blkSize > 0 : "Block of size 0";
-      if (curPos + blkSize > offset) {
-        break;
+    readLock("getBlockLocations");
+    try {
+      if(inode == null) {
+        return null;
+      }
+      Block[] blocks = inode.getBlocks();
+      if (blocks == null) {
+        return null;
+      }
+      if (blocks.length == 0) {
+        return inode.createLocatedBlocks(new ArrayList<LocatedBlock>(blocks.length));
+      }
+      List<LocatedBlock> results;
+      results = new ArrayList<LocatedBlock>(blocks.length);
+
+      int curBlk = 0;
+      long curPos = 0, blkSize = 0;
+      int nrBlocks = (blocks[0].getNumBytes() == 0) ? 0 : blocks.length;
+      for (curBlk = 0; curBlk < nrBlocks; curBlk++) {
+        blkSize = blocks[curBlk].getNumBytes();
+        assert blkSize > 0 : "Block of size 0";
+        if (curPos + blkSize > offset) {
+          break;
+        }
+        curPos += blkSize;
       }
-      curPos += blkSize;
-    }
     
-    if (nrBlocks > 0 && curBlk == nrBlocks)   // offset >= end of file
-      return null;
+      if (nrBlocks > 0 && curBlk == nrBlocks)   // offset >= end of file
+        return null;
     
-    long endOff = offset + length;
+      long endOff = offset + length;
     
-    do {
-      // get block locations
-      int numNodes = blocksMap.numNodes(blocks[curBlk]);
-      int numCorruptNodes = countNodes(blocks[curBlk]).corruptReplicas();
-      int numCorruptReplicas = corruptReplicas.numCorruptReplicas(blocks[curBlk]); 
-      if (numCorruptNodes != numCorruptReplicas) {
-        LOG.warn("Inconsistent number of corrupt replicas for " + 
-            blocks[curBlk] + "blockMap has " + numCorruptNodes + 
-            " but corrupt replicas map has " + numCorruptReplicas);
-      }
-      boolean blockCorrupt = (numCorruptNodes == numNodes);
-      int numMachineSet = blockCorrupt ? numNodes : 
-                            (numNodes - numCorruptNodes);
-      DatanodeDescriptor[] machineSet = new DatanodeDescriptor[numMachineSet];
-      if (numMachineSet > 0) {
-        numNodes = 0;
-        for(Iterator<DatanodeDescriptor> it = 
-            blocksMap.nodeIterator(blocks[curBlk]); it.hasNext();) {
-          DatanodeDescriptor dn = it.next();
-          boolean replicaCorrupt = corruptReplicas.isReplicaCorrupt(blocks[curBlk], dn);
-          if (blockCorrupt || (!blockCorrupt && !replicaCorrupt))
-            machineSet[numNodes++] = dn;
+      do {
+        // get block locations
+        int numNodes = blocksMap.numNodes(blocks[curBlk]);
+        int numCorruptNodes = countNodes(blocks[curBlk]).corruptReplicas();
+        int numCorruptReplicas = corruptReplicas.numCorruptReplicas(blocks[curBlk]); 
+        if (numCorruptNodes != numCorruptReplicas) {
+          LOG.warn("Inconsistent number of corrupt replicas for " + 
+              blocks[curBlk] + "blockMap has " + numCorruptNodes + 
+              " but corrupt replicas map has " + numCorruptReplicas);
         }
-      }
-      results.add(new LocatedBlock(blocks[curBlk], machineSet, curPos,
-                  blockCorrupt));
-      curPos += blocks[curBlk].getNumBytes();
-      curBlk++;
-    } while (curPos < endOff 
-          && curBlk < blocks.length 
-          && results.size() < nrBlocksToReturn);
+        boolean blockCorrupt = (numCorruptNodes == numNodes);
+        int numMachineSet = blockCorrupt ? numNodes : 
+                              (numNodes - numCorruptNodes);
+        DatanodeDescriptor[] machineSet = new DatanodeDescriptor[numMachineSet];
+        if (numMachineSet > 0) {
+          numNodes = 0;
+          for(Iterator<DatanodeDescriptor> it = 
+              blocksMap.nodeIterator(blocks[curBlk]); it.hasNext();) {
+            DatanodeDescriptor dn = it.next();
+            boolean replicaCorrupt = corruptReplicas.isReplicaCorrupt(blocks[curBlk], dn);
+            if (blockCorrupt || (!blockCorrupt && !replicaCorrupt))
+              machineSet[numNodes++] = dn;
+          }
+        }
+        results.add(new LocatedBlock(blocks[curBlk], machineSet, curPos,
+                    blockCorrupt));
+        curPos += blocks[curBlk].getNumBytes();
+        curBlk++;
+      } while (curPos < endOff 
+            && curBlk < blocks.length 
+            && results.size() < nrBlocksToReturn);
     
-    return inode.createLocatedBlocks(results);
+      return inode.createLocatedBlocks(results);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  /**
+   * Update the access time of a file being opened. The update is only
+   * logged once per precision interval, so the write lock is only taken
+   * then, and the interval checked again under it. The caller must not
+   * hold the read lock.
+   */
+  private void updateAccessTime(String src, INodeFile inode) throws IOException {
+    if (!isAccessTimeSupported()) {
+      return;
+    }
+    long now = now();
+    if (now - inode.getAccessTime() <= accessTimePrecision) {
+      return;
+    }
+    writeLock("setAccessTime");
+    try {
+      if (now - inode.getAccessTime() > accessTimePrecision) {
+        dir.setTimes(src, inode, -1, now, false);
+      }
+    } finally {
+      writeUnlock();
+    }
   }
 
   /**
@@ -869,27 +1015,32 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * The access time is precise upto an hour. The transaction, if needed, is
    * written to the edits log but is not flushed.
    */
-  public synchronized void setTimes(String src, long mtime, long atime) throws IOException {
-    if (!isAccessTimeSupported() && atime != -1) {
-      throw new IOException("Access time for hdfs is not configured. " +
-                            " Please set dfs.support.accessTime configuration parameter.");
-    }
-    //
-    // The caller needs to have write access to set access & modification times.
-    if (isPermissionEnabled) {
-      checkPathAccess(src, FsAction.WRITE);
-    }
-    INodeFile inode = dir.getFileINode(src);
-    if (inode != null) {
-      dir.setTimes(src, inode, mtime, atime, true);
-      if (auditLog.isInfoEnabled()) {
-        final FileStatus stat = dir.getFileInfo(src);
-        logAuditEvent(UserGroupInformation.getCurrentUGI(),
-                      Server.getRemotePeerID(),
-                      "setTimes", src, null, stat);
+  public void setTimes(String src, long mtime, long atime) throws IOException {
+    writeLock("setTimes");
+    try {
+      if (!isAccessTimeSupported() && atime != -1) {
+        throw new IOException("Access time for hdfs is not configured. " +
+                              " Please set dfs.support.accessTime configuration parameter.");
       }
-    } else {
-      throw new FileNotFoundException("File " + src + " does not exist.");
+      //
+      // The caller needs to have write access to set access & modification times.
+      if (isPermissionEnabled) {
+        checkPathAccess(src, FsAction.WRITE);
+      }
+      INodeFile inode = dir.getFileINode(src);
+      if (inode != null) {
+        dir.setTimes(src, inode, mtime, atime, true);
+        if (auditLog.isInfoEnabled()) {
+          final FileStatus stat = dir.getFileInfo(src);
+          logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                        Server.getRemotePeerID(),
+                        "setTimes", src, null, stat);
+        }
+      } else {
+        throw new FileNotFoundException("File " + src + " does not exist.");
+      }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -918,40 +1069,45 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return status;
   }
 
-  private synchronized boolean setReplicationInternal(String src, 
+  private boolean setReplicationInternal(String src, 
                                              short replication
                                              ) throws IOException {
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot set replication for " + src, safeMode);
-    verifyReplication(src, replication, null);
-    if (isPermissionEnabled) {
-      checkPathAccess(src, FsAction.WRITE);
-    }
+    writeLock("setReplication");
+    try {
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot set replication for " + src, safeMode);
+      verifyReplication(src, replication, null);
+      if (isPermissionEnabled) {
+        checkPathAccess(src, FsAction.WRITE);
+      }
 
-    int[] oldReplication = new int[1];
-    Block[] fileBlocks;
-    fileBlocks = dir.setReplication(src, replication, oldReplication);
-    if (fileBlocks == null)  // file not found or is a directory
-      return false;
-    int oldRepl = oldReplication[0];
-    if (oldRepl == replication) // the same replication
-      return true;
+      int[] oldReplication = new int[1];
+      Block[] fileBlocks;
+      fileBlocks = dir.setReplication(src, replication, oldReplication);
+      if (fileBlocks == null)  // file not found or is a directory
+        return false;
+      int oldRepl = oldReplication[0];
+      if (oldRepl == replication) // the same replication
+        return true;
 
-    // update needReplication priority queues
-    for(int idx = 0; idx < fileBlocks.length; idx++)
-      updateNeededReplications(fileBlocks[idx], 0, replication-oldRepl);
-      
-    if (oldRepl > replication) {  
-      // old replication > the new one; need to remove copies
-      LOG.info("Reducing replication for file " + src 
-               + ". New replication is " + replication);
+      // update needReplication priority queues
       for(int idx = 0; idx < fileBlocks.length; idx++)
-        processOverReplicatedBlock(fileBlocks[idx], replication, null, null);
-    } else { // replication factor is increased
-      LOG.info("Increasing replication for file " + src 
-          + ". New replication is " + replication);
+        updateNeededReplications(fileBlocks[idx], 0, replication-oldRepl);
+      
+      if (oldRepl > replication) {  
+        // old replication > the new one; need to remove copies
+        LOG.info("Reducing replication for file " + src 
+                 + ". New replication is " + replication);
+        for(int idx = 0; idx < fileBlocks.length; idx++)
+          processOverReplicatedBlock(fileBlocks[idx], replication, null, null);
+      } else { // replication factor is increased
+        LOG.info("Increasing replication for file " + src 
+            + ". New replication is " + replication);
+      }
+      return true;
+    } finally {
+      writeUnlock();
     }
-    return true;
   }
     
   long getPreferredBlockSize(String filename) throws IOException {
@@ -1005,7 +1161,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     }
   }
 
-  private synchronized void startFileInternal(String src,
+  private void startFileInternal(String src,
                                               PermissionStatus permissions,
                                               String holder, 
                                               String clientMachine, 
@@ -1014,149 +1170,154 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
                                               short replication,
                                               long blockSize
                                               ) throws IOException {
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: src=" + src
-          + ", holder=" + holder
-          + ", clientMachine=" + clientMachine
-          + ", replication=" + replication
-          + ", overwrite=" + overwrite
-          + ", append=" + append);
-    }
-
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot create file" + src, safeMode);
-    if (!DFSUtil.isValidName(src)) {
-      throw new IOException("Invalid file name: " + src);
-    }
-
-    // Verify that the destination does not exist as a directory already.
-    boolean pathExists = dir.exists(src);
-    if (pathExists && dir.isDir(src)) {
-      throw new IOException("Cannot create file "+ src + "; already exists as a directory.");
-    }
+    writeLock("startFile");
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: src=" + src
+            + ", holder=" + holder
+            + ", clientMachine=" + clientMachine
+            + ", replication=" + replication
+            + ", overwrite=" + overwrite
+            + ", append=" + append);
+      }
 
-    if (isPermissionEnabled) {
-      if (append || (overwrite && pathExists)) {
-        checkPathAccess(src, FsAction.WRITE);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot create file" + src, safeMode);
+      if (!DFSUtil.isValidName(src)) {
+        throw new IOException("Invalid file name: " + src);
       }
-      else {
-        checkAncestorAccess(src, FsAction.WRITE);
+
+      // Verify that the destination does not exist as a directory already.
+      boolean pathExists = dir.exists(src);
+      if (pathExists && dir.isDir(src)) {
+        throw new IOException("Cannot create file "+ src + "; already exists as a directory.");
       }
-    }
 
-    try {
-      INode myFile = dir.getFileINode(src);
-      if (myFile != null && myFile.isUnderConstruction()) {
-        INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction) myFile;
-        //
-        // If the file is under construction , then it must be in our
-        // leases. Find the appropriate lease record.
-        //
-        Lease lease = leaseManager.getLease(holder);
-        //
-        // We found the lease for this file. And surprisingly the original
-        // holder is trying to recreate this file. This should never occur.
-        //
-        if (lease != null) {
-          throw new AlreadyBeingCreatedException(
-                                                 "failed to create file " + src + " for " + holder +
-                                                 " on client " + clientMachine + 
-                                                 " because current leaseholder is trying to recreate file.");
-        }
-        //
-        // Find the original holder.
-        //
-        lease = leaseManager.getLease(pendingFile.clientName);
-        if (lease == null) {
-          throw new AlreadyBeingCreatedException(
-                                                 "failed to create file " + src + " for " + holder +
-                                                 " on client " + clientMachine + 
-                                                 " because pendingCreates is non-null but no leases found.");
+      if (isPermissionEnabled) {
+        if (append || (overwrite && pathExists)) {
+          checkPathAccess(src, FsAction.WRITE);
         }
-        //
-        // If the original holder has not renewed in the last SOFTLIMIT 
-        // period, then start lease recovery.
-        //
-        if (lease.expiredSoftLimit()) {
-          LOG.info("startFile: recover lease " + lease + ", src=" + src);
-          internalReleaseLease(lease, src);
+        else {
+          checkAncestorAccess(src, FsAction.WRITE);
         }
-        throw new AlreadyBeingCreatedException("failed to create file " + src + " for " + holder +
-                                               " on client " + clientMachine + 
-                                               ", because this file is already being created by " +
-                                               pendingFile.getClientName() + 
-                                               " on " + pendingFile.getClientMachine());
       }
 
       try {
-        verifyReplication(src, replication, clientMachine);
-      } catch(IOException e) {
-        throw new IOException("failed to create "+e.getMessage());
-      }
-      if (append) {
-        if (myFile == null) {
-          throw new FileNotFoundException("failed to append to non-existent file "
-              + src + " on client " + clientMachine);
-        } else if (myFile.isDirectory()) {
-          throw new IOException("failed to append to directory " + src 
-                                +" on client " + clientMachine);
+        INode myFile = dir.getFileINode(src);
+        if (myFile != null && myFile.isUnderConstruction()) {
+          INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction) myFile;
+          //
+          // If the file is under construction , then it must be in our
+          // leases. Find the appropriate lease record.
+          //
+          Lease lease = leaseManager.getLease(holder);
+          //
+          // We found the lease for this file. And surprisingly the original
+          // holder is trying to recreate this file. This should never occur.
+          //
+          if (lease != null) {
+            throw new AlreadyBeingCreatedException(
+                                                   "failed to create file " + src + " for " + holder +
+                                                   " on client " + clientMachine + 
+                                                   " because current leaseholder is trying to recreate file.");
+          }
+          //
+          // Find the original holder.
+          //
+          lease = leaseManager.getLease(pendingFile.clientName);
+          if (lease == null) {
+            throw new AlreadyBeingCreatedException(
+                                                   "failed to create file " + src + " for " + holder +
+                                                   " on client " + clientMachine + 
+                                                   " because pendingCreates is non-null but no leases found.");
+          }
+          //
+          // If the original holder has not renewed in the last SOFTLIMIT 
+          // period, then start lease recovery.
+          //
+          if (lease.expiredSoftLimit()) {
+            LOG.info("startFile: recover lease " + lease + ", src=" + src);
+            internalReleaseLease(lease, src);
+          }
+          throw new AlreadyBeingCreatedException("failed to create file " + src + " for " + holder +
+                                                 " on client " + clientMachine + 
+                                                 ", because this file is already being created by " +
+                                                 pendingFile.getClientName() + 
+                                                 " on " + pendingFile.getClientMachine());
         }
-      } else if (!dir.isValidToCreate(src)) {
-        if (overwrite) {
-          delete(src, true);
-        } else {
-          throw new IOException("failed to create file " + src 
-                                +" on client " + clientMachine
-                                +" either because the filename is invalid or the file exists");
+
+        try {
+          verifyReplication(src, replication, clientMachine);
+        } catch(IOException e) {
+          throw new IOException("failed to create "+e.getMessage());
+        }
+        if (append) {
+          if (myFile == null) {
+            throw new FileNotFoundException("failed to append to non-existent file "
+                + src + " on client " + clientMachine);
+          } else if (myFile.isDirectory()) {
+            throw new IOException("failed to append to directory " + src 
+                                  +" on client " + clientMachine);
+          }
+        } else if (!dir.isValidToCreate(src)) {
+          if (overwrite) {
+            delete(src, true);
+          } else {
+            throw new IOException("failed to create file " + src 
+                                  +" on client " + clientMachine
+                                  +" either because the filename is invalid or the file exists");
+          }
         }
-      }
 
-      DatanodeDescriptor clientNode = 
-        host2DataNodeMap.getDatanodeByHost(clientMachine);
+        DatanodeDescriptor clientNode = 
+          host2DataNodeMap.getDatanodeByHost(clientMachine);
 
-      if (append) {
-        //
-        // Replace current node with a INodeUnderConstruction.
-        // Recreate in-memory lease record.
-        //
-        INodeFile node = (INodeFile) myFile;
-        INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-                                        node.getLocalNameBytes(),
-                                        node.getReplication(),
-                                        node.getModificationTime(),
-                                        node.getPreferredBlockSize(),
-                                        node.getBlocks(),
-                                        node.getPermissionStatus(),
-                                        holder,
-                                        clientMachine,
-                                        clientNode);
-        dir.replaceNode(src, node, cons);
-        leaseManager.addLease(cons.clientName, src);
+        if (append) {
+          //
+          // Replace current node with a INodeUnderConstruction.
+          // Recreate in-memory lease record.
+          //
+          INodeFile node = (INodeFile) myFile;
+          INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+                                          node.getLocalNameBytes(),
+                                          node.getReplication(),
+                                          node.getModificationTime(),
+                                          node.getPreferredBlockSize(),
+                                          node.getBlocks(),
+                                          node.getPermissionStatus(),
+                                          holder,
+                                          clientMachine,
+                                          clientNode);
+          dir.replaceNode(src, node, cons);
+          leaseManager.addLease(cons.clientName, src);
 
-      } else {
-       // Now we can add the name to the filesystem. This file has no
-       // blocks associated with it.
-       //
-       checkFsObjectLimit();
-
-        // increment global generation stamp
-        long genstamp = nextGenerationStamp();
-        INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
-            replication, blockSize, holder, clientMachine, clientNode, genstamp);
-        if (newNode == null) {
-          throw new IOException("DIR* NameSystem.startFile: " +
-                                "Unable to add file to namespace.");
-        }
-        leaseManager.addLease(newNode.clientName, src);
-        if (NameNode.stateChangeLog.isDebugEnabled()) {
-          NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
-                                     +"add "+src+" to namespace for "+holder);
+        } else {
+         // Now we can add the name to the filesystem. This file has no
+         // blocks associated with it.
+         //
+         checkFsObjectLimit();
+
+          // increment global generation stamp
+          long genstamp = nextGenerationStamp();
+          INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
+              replication, blockSize, holder, clientMachine, clientNode, genstamp);
+          if (newNode == null) {
+            throw new IOException("DIR* NameSystem.startFile: " +
+                                  "Unable to add file to namespace.");
+          }
+          leaseManager.addLease(newNode.clientName, src);
+          if (NameNode.stateChangeLog.isDebugEnabled()) {
+            NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
+                                       +"add "+src+" to namespace for "+holder);
+          }
         }
+      } catch (IOException ie) {
+        NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
+                                     +ie.getMessage());
+        throw ie;
       }
-    } catch (IOException ie) {
-      NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
-                                   +ie.getMessage());
-      throw ie;
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1179,7 +1340,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     // have a partial block at the end.
     //
     LocatedBlock lb = null;
-    synchronized (this) {
+    writeLock("appendFile");
+    try {
       INodeFileUnderConstruction file = (INodeFileUnderConstruction)dir.getFileINode(src);
 
       Block[] blocks = file.getBlocks();
@@ -1216,6 +1378,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
           }
         }
       }
+    } finally {
+      writeUnlock();
     }
     if (lb != null) {
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -1261,7 +1425,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     NameNode.stateChangeLog.debug("BLOCK* NameSystem.getAdditionalBlock: file "
                                   +src+" for "+clientName);
 
-    synchronized (this) {
+    writeLock("getAdditionalBlock");
+    try {
       if (isInSafeMode()) {
         throw new SafeModeException("Cannot add block to " + src, safeMode);
       }
@@ -1281,6 +1446,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       blockSize = pendingFile.getPreferredBlockSize();
       clientNode = pendingFile.getClientNode();
       replication = (int)pendingFile.getReplication();
+    } finally {
+      writeUnlock();
     }
 
     // choose targets for the new block tobe allocated.
@@ -1295,7 +1462,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     }
 
     // Allocate a new block and record it in the INode. 
-    synchronized (this) {
+    writeLock("getAdditionalBlock");
+    try {
       INode[] pathINodes = dir.getExistingPathINodes(src);
       int inodesLen = pathINodes.length;
       checkLease(src, clientName, pathINodes[inodesLen-1]);
@@ -1313,6 +1481,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
       for (DatanodeDescriptor dn : targets) {
         dn.incBlocksScheduled();
       }      
+    } finally {
+      writeUnlock();
     }
         
     // Create next block
@@ -1322,19 +1492,24 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   /**
    * The client would like to let go of the given block
    */
-  public synchronized boolean abandonBlock(Block b, String src, String holder
+  public boolean abandonBlock(Block b, String src, String holder
       ) throws IOException {
-    //
-    // Remove the block from the pending creates list
-    //
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
-                                  +b+"of file "+src);
-    INodeFileUnderConstruction file = checkLease(src, holder);
-    dir.removeBlock(src, file, b);
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
-                                    + b
-                                    + " is removed from pendingCreates");
-    return true;
+    writeLock("abandonBlock");
+    try {
+      //
+      // Remove the block from the pending creates list
+      //
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
+                                    +b+"of file "+src);
+      INodeFileUnderConstruction file = checkLease(src, holder);
+      dir.removeBlock(src, file, b);
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
+                                      + b
+                                      + " is removed from pendingCreates");
+      return true;
+    } finally {
+      writeUnlock();
+    }
   }
   
   // make sure that we still have the lease on this file.
@@ -1390,37 +1565,42 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   }
 
 
-  private synchronized CompleteFileStatus completeFileInternal(String src, 
+  private CompleteFileStatus completeFileInternal(String src, 
                                                 String holder) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.completeFile: " + src + " for " + holder);
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot complete file " + src, safeMode);
-    INode iFile = dir.getFileINode(src);
-    INodeFileUnderConstruction pendingFile = null;
-    Block[] fileBlocks = null;
-
-    if (iFile != null && iFile.isUnderConstruction()) {
-      pendingFile = (INodeFileUnderConstruction) iFile;
-      fileBlocks =  dir.getFileBlocks(src);
-    }
-    if (fileBlocks == null ) {    
-      NameNode.stateChangeLog.warn("DIR* NameSystem.completeFile: "
-                                   + "failed to complete " + src
-                                   + " because dir.getFileBlocks() is null " + 
-                                   " and pendingFile is " + 
-                                   ((pendingFile == null) ? "null" : 
-                                     ("from " + pendingFile.getClientMachine()))
-                                  );                      
-      return CompleteFileStatus.OPERATION_FAILED;
-    } else if (!checkFileProgress(pendingFile, true)) {
-      return CompleteFileStatus.STILL_WAITING;
-    }
+    writeLock("completeFile");
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.completeFile: " + src + " for " + holder);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot complete file " + src, safeMode);
+      INode iFile = dir.getFileINode(src);
+      INodeFileUnderConstruction pendingFile = null;
+      Block[] fileBlocks = null;
+
+      if (iFile != null && iFile.isUnderConstruction()) {
+        pendingFile = (INodeFileUnderConstruction) iFile;
+        fileBlocks =  dir.getFileBlocks(src);
+      }
+      if (fileBlocks == null ) {    
+        NameNode.stateChangeLog.warn("DIR* NameSystem.completeFile: "
+                                     + "failed to complete " + src
+                                     + " because dir.getFileBlocks() is null " + 
+                                     " and pendingFile is " + 
+                                     ((pendingFile == null) ? "null" : 
+                                       ("from " + pendingFile.getClientMachine()))
+                                    );                      
+        return CompleteFileStatus.OPERATION_FAILED;
+      } else if (!checkFileProgress(pendingFile, true)) {
+        return CompleteFileStatus.STILL_WAITING;
+      }
 
-    finalizeINodeFileUnderConstruction(src, pendingFile);
+      finalizeINodeFileUnderConstruction(src, pendingFile);
 
-    NameNode.stateChangeLog.info("DIR* NameSystem.completeFile: file " + src
-                                  + " is closed by " + holder);
-    return CompleteFileStatus.COMPLETE_SUCCESS;
+      NameNode.stateChangeLog.info("DIR* NameSystem.completeFile: file " + src
+                                    + " is closed by " + holder);
+      return CompleteFileStatus.COMPLETE_SUCCESS;
+    } finally {
+      writeUnlock();
+    }
   }
 
   /** 
@@ -1469,28 +1649,33 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * replicated.  If not, return false. If checkall is true, then check
    * all blocks, otherwise check only penultimate block.
    */
-  synchronized boolean checkFileProgress(INodeFile v, boolean checkall) {
-    if (checkall) {
-      //
-      // check all blocks of the file.
-      //
-      for (Block block: v.getBlocks()) {
-        if (blocksMap.numNodes(block) < this.minReplication) {
-          return false;
+  boolean checkFileProgress(INodeFile v, boolean checkall) {
+    readLock("checkFileProgress");
+    try {
+      if (checkall) {
+        //
+        // check all blocks of the file.
+        //
+        for (Block block: v.getBlocks()) {
+          if (blocksMap.numNodes(block) < this.minReplication) {
+            return false;
+          }
         }
-      }
-    } else {
-      //
-      // check the penultimate block of this file
-      //
-      Block b = v.getPenultimateBlock();
-      if (b != null) {
-        if (blocksMap.numNodes(b) < this.minReplication) {
-          return false;
+      } else {
+        //
+        // check the penultimate block of this file
+        //
+        Block b = v.getPenultimateBlock();
+        if (b != null) {
+          if (blocksMap.numNodes(b) < this.minReplication) {
+            return false;
+          }
         }
       }
+      return true;
+    } finally {
+      readUnlock();
     }
-    return true;
   }
 
   /**
@@ -1548,18 +1733,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   /**
    * dumps the contents of recentInvalidateSets
    */
-  private synchronized void dumpRecentInvalidateSets(PrintWriter out) {
-    int size = recentInvalidateSets.values().size();
-    out.println("Metasave: Blocks " + pendingDeletionBlocksCount 
-        + " waiting deletion from " + size + " datanodes.");
-    if (size == 0) {
-      return;
-    }
-    for(Map.Entry<String,Collection<Block>> entry : recentInvalidateSets.entrySet()) {
-      Collection<Block> blocks = entry.getValue();
-      if (blocks.size() > 0) {
-        out.println(datanodeMap.get(entry.getKey()).getName() + blocks);
+  private void dumpRecentInvalidateSets(PrintWriter out) {
+    readLock("dumpRecentInvalidateSets");
+    try {
+      int size = recentInvalidateSets.values().size();
+      out.println("Metasave: Blocks " + pendingDeletionBlocksCount 
+          + " waiting deletion from " + size + " datanodes.");
+      if (size == 0) {
+        return;
       }
+      for(Map.Entry<String,Collection<Block>> entry : recentInvalidateSets.entrySet()) {
+        Collection<Block> blocks = entry.getValue();
+        if (blocks.size() > 0) {
+          out.println(datanodeMap.get(entry.getKey()).getName() + blocks);
+        }
+      }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -1568,75 +1758,85 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * @param blk Block to be marked as corrupt
    * @param dn Datanode which holds the corrupt replica
    */
-  public synchronized void markBlockAsCorrupt(Block blk, DatanodeInfo dn)
+  public void markBlockAsCorrupt(Block blk, DatanodeInfo dn)
     throws IOException {
-    DatanodeDescriptor node = getDatanode(dn);
-    if (node == null) {
-      throw new IOException("Cannot mark block" + blk.getBlockName() +
-                            " as corrupt because datanode " + dn.getName() +
-                            " does not exist. ");
-    }
+    writeLock("markBlockAsCorrupt");
+    try {
+      DatanodeDescriptor node = getDatanode(dn);
+      if (node == null) {
+        throw new IOException("Cannot mark block" + blk.getBlockName() +
+                              " as corrupt because datanode " + dn.getName() +
+                              " does not exist. ");
+      }
     
-    final BlockInfo storedBlockInfo = blocksMap.getStoredBlock(blk);
-    if (storedBlockInfo == null) {
-      // Check if the replica is in the blockMap, if not 
-      // ignore the request for now. This could happen when BlockScanner
-      // thread of Datanode reports bad block before Block reports are sent
-      // by the Datanode on startup
-      NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
-                                   "block " + blk + " could not be marked " +
-                                   "as corrupt as it does not exists in " +
-                                   "blocksMap");
-    } else {
-      INodeFile inode = storedBlockInfo.getINode();
-      if (inode == null) {
+      final BlockInfo storedBlockInfo = blocksMap.getStoredBlock(blk);
+      if (storedBlockInfo == null) {
+        // Check if the replica is in the blockMap, if not 
+        // ignore the request for now. This could happen when BlockScanner
+        // thread of Datanode reports bad block before Block reports are sent
+        // by the Datanode on startup
         NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
                                      "block " + blk + " could not be marked " +
-                                     "as corrupt as it does not belong to " +
-                                     "any file");
-        addToInvalidates(storedBlockInfo, node);
-        return;
-      } 
-      // Add this replica to corruptReplicas Map 
-      corruptReplicas.addToCorruptReplicasMap(storedBlockInfo, node);
-      if (countNodes(storedBlockInfo).liveReplicas()>inode.getReplication()) {
-        // the block is over-replicated so invalidate the replicas immediately
-        invalidateBlock(storedBlockInfo, node);
+                                     "as corrupt as it does not exists in " +
+                                     "blocksMap");
       } else {
-        // add the block to neededReplication 
-        updateNeededReplications(storedBlockInfo, -1, 0);
+        INodeFile inode = storedBlockInfo.getINode();
+        if (inode == null) {
+          NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
+                                       "block " + blk + " could not be marked " +
+                                       "as corrupt as it does not belong to " +
+                                       "any file");
+          addToInvalidates(storedBlockInfo, node);
+          return;
+        } 
+        // Add this replica to corruptReplicas Map 
+        corruptReplicas.addToCorruptReplicasMap(storedBlockInfo, node);
+        if (countNodes(storedBlockInfo).liveReplicas()>inode.getReplication()) {
+          // the block is over-replicated so invalidate the replicas immediately
+          invalidateBlock(storedBlockInfo, node);
+        } else {
+          // add the block to neededReplication 
+          updateNeededReplications(storedBlockInfo, -1, 0);
+        }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
   /**
    * Invalidates the given block on the given datanode.
    */
-  public synchronized void invalidateBlock(Block blk, DatanodeInfo dn)
+  public void invalidateBlock(Block blk, DatanodeInfo dn)
     throws IOException {
-    NameNode.stateChangeLog.info("DIR* NameSystem.invalidateBlock: " 
-                                 + blk + " on " 
-                                 + dn.getName());
-    DatanodeDescriptor node = getDatanode(dn);
-    if (node == null) {
-      throw new IOException("Cannot invalidate block " + blk +
-                            " because datanode " + dn.getName() +
-                            " does not exist.");
-    }
-
-    // Check how many copies we have of the block.  If we have at least one
-    // copy on a live node, then we can delete it. 
-    int count = countNodes(blk).liveReplicas();
-    if (count > 1) {
-      addToInvalidates(blk, dn);
-      removeStoredBlock(blk, node);
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.invalidateBlocks: "
-                                   + blk + " on " 
-                                   + dn.getName() + " listed for deletion.");
-    } else {
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.invalidateBlocks: "
+    writeLock("invalidateBlock");
+    try {
+      NameNode.stateChangeLog.info("DIR* NameSystem.invalidateBlock: " 
                                    + blk + " on " 
-                                   + dn.getName() + " is the only copy and was not deleted.");
+                                   + dn.getName());
+      DatanodeDescriptor node = getDatanode(dn);
+      if (node == null) {
+        throw new IOException("Cannot invalidate block " + blk +
+                              " because datanode " + dn.getName() +
+                              " does not exist.");
+      }
+
+      // Check how many copies we have of the block.  If we have at least one
+      // copy on a live node, then we can delete it. 
+      int count = countNodes(blk).liveReplicas();
+      if (count > 1) {
+        addToInvalidates(blk, dn);
+        removeStoredBlock(blk, node);
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.invalidateBlocks: "
+                                     + blk + " on " 
+                                     + dn.getName() + " listed for deletion.");
+      } else {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.invalidateBlocks: "
+                                     + blk + " on " 
+                                     + dn.getName() + " is the only copy and was not deleted.");
+      }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1664,30 +1864,35 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return status;
   }
 
-  private synchronized boolean renameToInternal(String src, String dst
+  private boolean renameToInternal(String src, String dst
       ) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot rename " + src, safeMode);
-    if (!DFSUtil.isValidName(dst)) {
-      throw new IOException("Invalid name: " + dst);
-    }
+    writeLock("renameTo");
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot rename " + src, safeMode);
+      if (!DFSUtil.isValidName(dst)) {
+        throw new IOException("Invalid name: " + dst);
+      }
 
-    if (isPermissionEnabled) {
-      //We should not be doing this.  This is move() not renameTo().
-      //but for now,
-      String actualdst = dir.isDir(dst)?
-          dst + Path.SEPARATOR + new Path(src).getName(): dst;
-      checkParentAccess(src, FsAction.WRITE);
-      checkAncestorAccess(actualdst, FsAction.WRITE);
-    }
+      if (isPermissionEnabled) {
+        //We should not be doing this.  This is move() not renameTo().
+        //but for now,
+        String actualdst = dir.isDir(dst)?
+            dst + Path.SEPARATOR + new Path(src).getName(): dst;
+        checkParentAccess(src, FsAction.WRITE);
+        checkAncestorAccess(actualdst, FsAction.WRITE);
+      }
 
-    FileStatus dinfo = dir.getFileInfo(dst);
-    if (dir.renameTo(src, dst)) {
-      changeLease(src, dst, dinfo);     // update lease with new filename
-      return true;
+      FileStatus dinfo = dir.getFileInfo(dst);
+      if (dir.renameTo(src, dst)) {
+        changeLease(src, dst, dinfo);     // update lease with new filename
+        return true;
+      }
+      return false;
+    } finally {
+      writeUnlock();
     }
-    return false;
   }
 
   /**
@@ -1712,18 +1917,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Remove the indicated filename from the namespace.  This may
    * invalidate some blocks that make up the file.
    */
-  synchronized boolean deleteInternal(String src, 
+  boolean deleteInternal(String src, 
       boolean enforcePermission) throws IOException {
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* NameSystem.delete: " + src);
-    }
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot delete " + src, safeMode);
-    if (enforcePermission && isPermissionEnabled) {
-      checkPermission(src, false, null, FsAction.WRITE, null, FsAction.ALL);
-    }
+    writeLock("delete");
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("DIR* NameSystem.delete: " + src);
+      }
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot delete " + src, safeMode);
+      if (enforcePermission && isPermissionEnabled) {
+        checkPermission(src, false, null, FsAction.WRITE, null, FsAction.ALL);
+      }
 
-    return dir.delete(src) != null;
+      return dir.delete(src) != null;
+    } finally {
+      writeUnlock();
+    }
   }
 
   void removePathAndBlocks(String src, List<Block> blocks) throws IOException {
@@ -1748,6 +1958,27 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return dir.getFileInfo(src);
   }
 
+  /** Get the file info of several files, holding the namesystem lock
+   * for the whole batch.
+   * @see ClientProtocol#getFileInfo(String[])
+   */
+  PathResults getFileInfo(String[] srcs) {
+    readLock("getFileInfo");
+    try {
+      PathResults results = new PathResults(FileStatus.class, srcs.length);
+      for (int i = 0; i < srcs.length; i++) {
+        try {
+          results.set(i, getFileInfo(srcs[i]));
+        } catch (IOException e) {
+          results.setError(i, e);
+        }
+      }
+      return results;
+    } finally {
+      readUnlock();
+    }
+  }
+
   /**
    * Create all the necessary directories
    */
@@ -1767,35 +1998,40 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   /**
    * Create all the necessary directories
    */
-  private synchronized boolean mkdirsInternal(String src,
+  private boolean mkdirsInternal(String src,
       PermissionStatus permissions) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
-    if (isPermissionEnabled) {
-      checkTraverse(src);
-    }
-    if (dir.isDir(src)) {
-      // all the users of mkdirs() are used to expect 'true' even if
-      // a new directory is not created.
-      return true;
-    }
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot create directory " + src, safeMode);
-    if (!DFSUtil.isValidName(src)) {
-      throw new IOException("Invalid directory name: " + src);
-    }
-    if (isPermissionEnabled) {
-      checkAncestorAccess(src, FsAction.WRITE);
-    }
+    writeLock("mkdirs");
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
+      if (isPermissionEnabled) {
+        checkTraverse(src);
+      }
+      if (dir.isDir(src)) {
+        // all the users of mkdirs() are used to expect 'true' even if
+        // a new directory is not created.
+        return true;
+      }
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot create directory " + src, safeMode);
+      if (!DFSUtil.isValidName(src)) {
+        throw new IOException("Invalid directory name: " + src);
+      }
+      if (isPermissionEnabled) {
+        checkAncestorAccess(src, FsAction.WRITE);
+      }
 
-    // validate that we have enough inodes. This is, at best, a 
-    // heuristic because the mkdirs() operation migth need to 
-    // create multiple inodes.
-    checkFsObjectLimit();
+      // validate that we have enough inodes. This is, at best, a 
+      // heuristic because the mkdirs() operation migth need to 
+      // create multiple inodes.
+      checkFsObjectLimit();
 
-    if (!dir.mkdirs(src, permissions, false, now())) {
-      throw new IOException("Invalid directory name: " + src);
+      if (!dir.mkdirs(src, permissions, false, now())) {
+        throw new IOException("Invalid directory name: " + src);
+      }
+      return true;
+    } finally {
+      writeUnlock();
     }
-    return true;
   }
 
   ContentSummary getContentSummary(String src) throws IOException {
@@ -1805,6 +2041,27 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return dir.getContentSummary(src);
   }
 
+  /** Get the content summaries of several paths, holding the namesystem 
+   * lock for the whole batch.
+   * @see ClientProtocol#getContentSummary(String[])
+   */
+  PathResults getContentSummary(String[] srcs) {
+    readLock("getContentSummary");
+    try {
+      PathResults results = new PathResults(ContentSummary.class, srcs.length);
+      for (int i = 0; i < srcs.length; i++) {
+        try {
+          results.set(i, getContentSummary(srcs[i]));
+        } catch (IOException e) {
+          results.setError(i, e);
+        }
+      }
+      return results;
+    } finally {
+      readUnlock();
+    }
+  }
+
   /**
    * Set the namespace quota and diskspace quota for a directory.
    * See {@link ClientProtocol#setQuota(String, long, long)} for the 
@@ -1828,12 +2085,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
 
     NameNode.stateChangeLog.info("BLOCK* NameSystem.fsync: file "
                                   + src + " for " + clientName);
-    synchronized (this) {
+    writeLock("fsync");
+    try {
       if (isInSafeMode()) {
         throw new SafeModeException("Cannot fsync file " + src, safeMode);
       }
       INodeFileUnderConstruction pendingFile  = checkLease(src, clientName);
       dir.persistBlocks(src, pendingFile);
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1906,86 +2166,91 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     checkReplicationFactor(newFile);
   }
 
-  synchronized void commitBlockSynchronization(Block lastblock,
+  void commitBlockSynchronization(Block lastblock,
       long newgenerationstamp, long newlength,
       boolean closeFile, boolean deleteblock, DatanodeID[] newtargets
       ) throws IOException {
-    LOG.info("commitBlockSynchronization(lastblock=" + lastblock
-          + ", newgenerationstamp=" + newgenerationstamp
-          + ", newlength=" + newlength
-          + ", newtargets=" + Arrays.asList(newtargets)
-          + ", closeFile=" + closeFile
-          + ", deleteBlock=" + deleteblock
-          + ")");
-    final BlockInfo oldblockinfo = blocksMap.getStoredBlock(lastblock);
-    if (oldblockinfo == null) {
-      throw new IOException("Block (=" + lastblock + ") not found");
-    }
-    INodeFile iFile = oldblockinfo.getINode();
-    if (!iFile.isUnderConstruction()) {
-      throw new IOException("Unexpected block (=" + lastblock
-          + ") since the file (=" + iFile.getLocalName()
-          + ") is not under construction");
-    }
-    INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction)iFile;
-
+    writeLock("commitBlockSynchronization");
+    try {
+      LOG.info("commitBlockSynchronization(lastblock=" + lastblock
+            + ", newgenerationstamp=" + newgenerationstamp
+            + ", newlength=" + newlength
+            + ", newtargets=" + Arrays.asList(newtargets)
+            + ", closeFile=" + closeFile
+            + ", deleteBlock=" + deleteblock
+            + ")");
+      final BlockInfo oldblockinfo = blocksMap.getStoredBlock(lastblock);
+      if (oldblockinfo == null) {
+        throw new IOException("Block (=" + lastblock + ") not found");
+      }
+      INodeFile iFile = oldblockinfo.getINode();
+      if (!iFile.isUnderConstruction()) {
+        throw new IOException("Unexpected block (=" + lastblock
+            + ") since the file (=" + iFile.getLocalName()
+            + ") is not under construction");
+      }
+      INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction)iFile;
 
-    // Remove old block from blocks map. This always have to be done
-    // because the generation stamp of this block is changing.
-    blocksMap.removeBlock(oldblockinfo);
 
-    if (deleteblock) {
-      pendingFile.removeBlock(lastblock);
-    }
-    else {
-      // update last block, construct newblockinfo and add it to the blocks map
-      lastblock.set(lastblock.getBlockId(), newlength, newgenerationstamp);
-      final BlockInfo newblockinfo = blocksMap.addINode(lastblock, pendingFile);
+      // Remove old block from blocks map. This always have to be done
+      // because the generation stamp of this block is changing.
+      blocksMap.removeBlock(oldblockinfo);
 
-      // find the DatanodeDescriptor objects
-      // There should be no locations in the blocksMap till now because the
-      // file is underConstruction
-      DatanodeDescriptor[] descriptors = null;
-      if (newtargets.length > 0) {
-        descriptors = new DatanodeDescriptor[newtargets.length];
-        for(int i = 0; i < newtargets.length; i++) {
-          descriptors[i] = getDatanode(newtargets[i]);
-        }
+      if (deleteblock) {
+        pendingFile.removeBlock(lastblock);
       }
-      if (closeFile) {
-        // the file is getting closed. Insert block locations into blocksMap.
-        // Otherwise fsck will report these blocks as MISSING, especially if the
-        // blocksReceived from Datanodes take a long time to arrive.
-        for (int i = 0; i < descriptors.length; i++) {
-          descriptors[i].addBlock(newblockinfo);
+      else {
+        // update last block, construct newblockinfo and add it to the blocks map
+        lastblock.set(lastblock.getBlockId(), newlength, newgenerationstamp);
+        final BlockInfo newblockinfo = blocksMap.addINode(lastblock, pendingFile);
+
+        // find the DatanodeDescriptor objects
+        // There should be no locations in the blocksMap till now because the
+        // file is underConstruction
+        DatanodeDescriptor[] descriptors = null;
+        if (newtargets.length > 0) {
+          descriptors = new DatanodeDescriptor[newtargets.length];
+          for(int i = 0; i < newtargets.length; i++) {
+            descriptors[i] = getDatanode(newtargets[i]);
+          }
+        }
+        if (closeFile) {
+          // the file is getting closed. Insert block locations into blocksMap.
+          // Otherwise fsck will report these blocks as MISSING, especially if the
+          // blocksReceived from Datanodes take a long time to arrive.
+          for (int i = 0; i < descriptors.length; i++) {
+            descriptors[i].addBlock(newblockinfo);
+          }
+          pendingFile.setLastBlock(newblockinfo, null);
+        } else {
+          // add locations into the INodeUnderConstruction
+          pendingFile.setLastBlock(newblockinfo, descriptors);
         }
-        pendingFile.setLastBlock(newblockinfo, null);
-      } else {
-        // add locations into the INodeUnderConstruction
-        pendingFile.setLastBlock(newblockinfo, descriptors);
       }
-    }
 
-    // If this commit does not want to close the file, persist
-    // blocks only if append is supported and return
-    String src = leaseManager.findPath(pendingFile);
-    if (!closeFile) {
-      if (supportAppends) {
-        dir.persistBlocks(src, pendingFile);
-        getEditLog().logSync();
+      // If this commit does not want to close the file, persist
+      // blocks only if append is supported and return
+      String src = leaseManager.findPath(pendingFile);
+      if (!closeFile) {
+        if (supportAppends) {
+          dir.persistBlocks(src, pendingFile);
+          getEditLog().logSync();
+        }
+        LOG.info("commitBlockSynchronization(" + lastblock + ") successful");
+        return;
       }
-      LOG.info("commitBlockSynchronization(" + lastblock + ") successful");
-      return;
-    }
     
-    //remove lease, close file
-    finalizeINodeFileUnderConstruction(src, pendingFile);
-    getEditLog().logSync();
-    LOG.info("commitBlockSynchronization(newblock=" + lastblock
-          + ", file=" + src
-          + ", newgenerationstamp=" + newgenerationstamp
-          + ", newlength=" + newlength
-          + ", newtargets=" + Arrays.asList(newtargets) + ") successful");
+      //remove lease, close file
+      finalizeINodeFileUnderConstruction(src, pendingFile);
+      getEditLog().logSync();
+      LOG.info("commitBlockSynchronization(newblock=" + lastblock
+            + ", file=" + src
+            + ", newgenerationstamp=" + newgenerationstamp
+            + ", newlength=" + newlength
+            + ", newtargets=" + Arrays.asList(newtargets) + ") successful");
+    } finally {
+      writeUnlock();
+    }
   }
 
 
@@ -2019,6 +2284,52 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return dir.getListing(src);
   }
 
+  /**
+   * Get a page of the listing of 'src', of at most dfs.ls.limit entries.
+   * @see ClientProtocol#getListing(String, String, int)
+   */
+  public DirectoryListing getListing(String src, String startAfter, int limit)
+    throws IOException {
+    if (isPermissionEnabled) {
+      if (dir.isDir(src)) {
+        checkPathAccess(src, FsAction.READ_EXECUTE);
+      }
+      else {
+        checkTraverse(src);
+      }
+    }
+    if (auditLog.isInfoEnabled() && 
+        (startAfter == null || startAfter.length() == 0)) {
+      logAuditEvent(UserGroupInformation.getCurrentUGI(),
+                    Server.getRemotePeerID(),
+                    "listStatus", src, null, null);
+    }
+    return dir.getListing(src, startAfter, 
+                          Math.max(1, Math.min(limit, lsLimit)));
+  }
+
+  /**
+   * Get the listings of several directories, holding the namesystem lock
+   * for the whole batch.
+   * @see ClientProtocol#getListing(String[])
+   */
+  PathResults getListing(String[] srcs) {
+    readLock("getListing");
+    try {
+      PathResults results = new PathResults(FileStatus[].class, srcs.length);
+      for (int i = 0; i < srcs.length; i++) {
+        try {
+          results.set(i, getListing(srcs[i]));
+        } catch (IOException e) {
+          results.setError(i, e);
+        }
+      }
+      return results;
+    } finally {
+      readUnlock();
+    }
+  }
+
   /////////////////////////////////////////////////////////
   //
   // These methods are called by datanodes
@@ -2047,116 +2358,121 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * 
    * @see org.apache.jxtadoop.hdfs.server.datanode.DataNode#register()
    */
-  public synchronized void registerDatanode(DatanodeRegistration nodeReg
+  public void registerDatanode(DatanodeRegistration nodeReg
                                             ) throws IOException {
-    String dnAddress = Server.getRemotePeerID().toString();
-    if (dnAddress == null) {
-      // Mostly called inside an RPC.
-      // But if not, use address passed by the data-node.
-      dnAddress = nodeReg.getPeerId();
-    }     
-
-    // check if the datanode is allowed to be connect to the namenode
-    if (!verifyNodeRegistration(nodeReg, dnAddress)) {
-      throw new DisallowedDatanodeException(nodeReg);
-    }
+    writeLock("registerDatanode");
+    try {
+      String dnAddress = Server.getRemotePeerID().toString();
+      if (dnAddress == null) {
+        // Mostly called inside an RPC.
+        // But if not, use address passed by the data-node.
+        dnAddress = nodeReg.getPeerId();
+      }     
+
+      // check if the datanode is allowed to be connect to the namenode
+      if (!verifyNodeRegistration(nodeReg, dnAddress)) {
+        throw new DisallowedDatanodeException(nodeReg);
+      }
       
-    // update the datanode's name with ip:port
-    DatanodeID dnReg = new DatanodeID(nodeReg.getPeerId(),
-                                      nodeReg.getStorageID(),
-                                      nodeReg.getInfoPipe(),
-                                      nodeReg.getIpcPipe());
+      // update the datanode's name with ip:port
+      DatanodeID dnReg = new DatanodeID(nodeReg.getPeerId(),
+                                        nodeReg.getStorageID(),
+                                        nodeReg.getInfoPipe(),
+                                        nodeReg.getIpcPipe());
     
-    nodeReg.updateRegInfo(dnReg);
+      nodeReg.updateRegInfo(dnReg);
       
-    NameNode.stateChangeLog.info(
-                                 "BLOCK* NameSystem.registerDatanode: "
-                                 + "node registration from " + nodeReg.getPeerId()
-                                 + " storage " + nodeReg.getStorageID());
+      NameNode.stateChangeLog.info(
+                                   "BLOCK* NameSystem.registerDatanode: "
+                                   + "node registration from " + nodeReg.getPeerId()
+                                   + " storage " + nodeReg.getStorageID());
 
-    DatanodeDescriptor nodeS = datanodeMap.get(nodeReg.getStorageID());
-    DatanodeDescriptor nodeN = host2DataNodeMap.getDatanodeByName(nodeReg.getPeerId());
+      DatanodeDescriptor nodeS = datanodeMap.get(nodeReg.getStorageID());
+      DatanodeDescriptor nodeN = host2DataNodeMap.getDatanodeByName(nodeReg.getPeerId());
       
-    if (nodeN != null && nodeN != nodeS) {
-      NameNode.LOG.info("BLOCK* NameSystem.registerDatanode: "
-                        + "node from name: " + nodeN.getPeerId());
-      // nodeN previously served a different data storage, 
-      // which is not served by anybody anymore.
-      removeDatanode(nodeN);
-      // physically remove node from datanodeMap
-      wipeDatanode(nodeN);
-      nodeN = null;
-    }
-
-    if (nodeS != null) {
-      if (nodeN == nodeS) {
-        // The same datanode has been just restarted to serve the same data 
-        // storage. We do not need to remove old data blocks, the delta will
-        // be calculated on the next block report from the datanode
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.registerDatanode: "
-                                      + "node restarted.");
-      } else {
-        // nodeS is found
-        /* The registering datanode is a replacement node for the existing 
-          data storage, which from now on will be served by a new node.
-          If this message repeats, both nodes might have same storageID 
-          by (insanely rare) random chance. User needs to restart one of the
-          nodes with its data cleared (or user can just remove the StorageID
-          value in "VERSION" file under the data directory of the datanode,
-          but this is might not work if VERSION file format has changed 
-       */        
-        NameNode.stateChangeLog.info( "BLOCK* NameSystem.registerDatanode: "
-                                      + "node " + nodeS.getName()
-                                      + " is replaced by " + nodeReg.getPeerId() + 
-                                      " with the same storageID " +
-                                      nodeReg.getStorageID());
-      }
-      // update cluster map
-      clusterMap.remove(nodeS);
-      nodeS.updateRegInfo(nodeReg);
-      nodeS.setHostName(nodeReg.getPeerId());
+      if (nodeN != null && nodeN != nodeS) {
+        NameNode.LOG.info("BLOCK* NameSystem.registerDatanode: "
+                          + "node from name: " + nodeN.getPeerId());
+        // nodeN previously served a different data storage, 
+        // which is not served by anybody anymore.
+        removeDatanode(nodeN);
+        // physically remove node from datanodeMap
+        wipeDatanode(nodeN);
+        nodeN = null;
+      }
+
+      if (nodeS != null) {
+        if (nodeN == nodeS) {
+          // The same datanode has been just restarted to serve the same data 
+          // storage. We do not need to remove old data blocks, the delta will
+          // be calculated on the next block report from the datanode
+          NameNode.stateChangeLog.debug("BLOCK* NameSystem.registerDatanode: "
+                                        + "node restarted.");
+        } else {
+          // nodeS is found
+          /* The registering datanode is a replacement node for the existing 
+            data storage, which from now on will be served by a new node.
+            If this message repeats, both nodes might have same storageID 
+            by (insanely rare) random chance. User needs to restart one of the
+            nodes with its data cleared (or user can just remove the StorageID
+            value in "VERSION" file under the data directory of the datanode,
+            but this is might not work if VERSION file format has changed 
+         */        
+          NameNode.stateChangeLog.info( "BLOCK* NameSystem.registerDatanode: "
+                                        + "node " + nodeS.getName()
+                                        + " is replaced by " + nodeReg.getPeerId() + 
+                                        " with the same storageID " +
+                                        nodeReg.getStorageID());
+        }
+        // update cluster map
+        clusterMap.remove(nodeS);
+        nodeS.updateRegInfo(nodeReg);
+        nodeS.setHostName(nodeReg.getPeerId());
       
-      // resolve network location
-      resolveNetworkLocation(nodeS);
-      clusterMap.add(nodeS);
+        // resolve network location
+        resolveNetworkLocation(nodeS);
+        clusterMap.add(nodeS);
         
-      // also treat the registration message as a heartbeat
-      synchronized(heartbeats) {
-        if( !heartbeats.contains(nodeS)) {
-          heartbeats.add(nodeS);
-          //update its timestamp
-          nodeS.updateHeartbeat(0L, 0L, 0L, 0);
-          nodeS.isAlive = true;
+        // also treat the registration message as a heartbeat
+        synchronized(heartbeats) {
+          if( !heartbeats.contains(nodeS)) {
+            heartbeats.add(nodeS);
+            //update its timestamp
+            nodeS.updateHeartbeat(0L, 0L, 0L, 0);
+            nodeS.isAlive = true;
+          }
         }
-      }
-      return;
-    } 
+        return;
+      } 
 
-    // this is a new datanode serving a new data storage
-    if (nodeReg.getStorageID().equals("")) {
-      // this data storage has never been registered
-      // it is either empty or was created by pre-storageID version of DFS
-      nodeReg.storageID = newStorageID();
-      NameNode.stateChangeLog.debug(
-                                    "BLOCK* NameSystem.registerDatanode: "
-                                    + "new storageID " + nodeReg.getStorageID() + " assigned.");
-    }
-    // register new datanode
-    DatanodeDescriptor nodeDescr 
-      = new DatanodeDescriptor(nodeReg, NetworkTopology.DEFAULT_RACK, nodeReg.getPeerId());
+      // this is a new datanode serving a new data storage
+      if (nodeReg.getStorageID().equals("")) {
+        // this data storage has never been registered
+        // it is either empty or was created by pre-storageID version of DFS
+        nodeReg.storageID = newStorageID();
+        NameNode.stateChangeLog.debug(
+                                      "BLOCK* NameSystem.registerDatanode: "
+                                      + "new storageID " + nodeReg.getStorageID() + " assigned.");
+      }
+      // register new datanode
+      DatanodeDescriptor nodeDescr 
+        = new DatanodeDescriptor(nodeReg, NetworkTopology.DEFAULT_RACK, nodeReg.getPeerId());
     
-    resolveNetworkLocation(nodeDescr);
-    unprotectedAddDatanode(nodeDescr);
-    clusterMap.add(nodeDescr);
+      resolveNetworkLocation(nodeDescr);
+      unprotectedAddDatanode(nodeDescr);
+      clusterMap.add(nodeDescr);
       
-    // also treat the registration message as a heartbeat
-    synchronized(heartbeats) {
-      heartbeats.add(nodeDescr);
-      nodeDescr.isAlive = true;
-      // no need to update its timestamp
-      // because its is done when the descriptor is created
+      // also treat the registration message as a heartbeat
+      synchronized(heartbeats) {
+        heartbeats.add(nodeDescr);
+        nodeDescr.isAlive = true;
+        // no need to update its timestamp
+        // because its is done when the descriptor is created
+      }
+      return;
+    } finally {
+      writeUnlock();
     }
-    return;
   }
     
   /* Resolve a node's network location */
@@ -2174,17 +2490,78 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     //}
     
     // resolve its network location
-    //List<String> rName = dnsToSwitchMapping.resolve(names);
+    List<String> rName = dnsToSwitchMapping.resolve(names);
     String networkLocation;
-    /*if (rName == null) {
+    if (rName == null) {
       LOG.error("The resolve call returned null! Using " + 
-          NetworkTopology.DEFAULT_RACK + " for host " + names);*/
+          NetworkTopology.DEFAULT_RACK + " for host " + names);
       networkLocation = NetworkTopology.DEFAULT_RACK;
-    /*} else {
+    } else {
       networkLocation = rName.get(0);
-    }*/
+    }
     node.setNetworkLocation(networkLocation);
   }
+
+  /**
+   * Record the round trip times measured by a datanode to its peers.
+   */
+  void reportLatencies(DatanodeID nodeID, String[] peers, long[] rtts
+                       ) throws IOException {
+    if (!(dnsToSwitchMapping instanceof LatencyBasedMapping)) {
+      return;
+    }
+    readLock("reportLatencies");
+    try {
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null) {
+        throw new IOException("ReportLatencies from unregisterted node: "
+                              + nodeID.getPeerId());
+      }
+      ((LatencyBasedMapping)dnsToSwitchMapping).addLatencies(
+          node.getHostName(), peers, rtts);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  /**
+   * Cluster the datanodes into racks from their latencies, and move the
+   * datanodes whose rack changed in the network topology.
+   */
+  void recomputeTopology() {
+    LatencyBasedMapping mapping = (LatencyBasedMapping)dnsToSwitchMapping;
+    List<String> names = new ArrayList<String>();
+    readLock("recomputeTopology");
+    try {
+      for (DatanodeDescriptor node : datanodeMap.values()) {
+        names.add(node.getHostName());
+      }
+    } finally {
+      readUnlock();
+    }
+    int numRacks = mapping.recompute(names);
+
+    int moved = 0;
+    writeLock("recomputeTopology");
+    try {
+      for (DatanodeDescriptor node : datanodeMap.values()) {
+        if (!clusterMap.contains(node)) {
+          continue;
+        }
+        String oldLocation = node.getNetworkLocation();
+        clusterMap.remove(node);
+        resolveNetworkLocation(node);
+        clusterMap.add(node);
+        if (!oldLocation.equals(node.getNetworkLocation())) {
+          moved++;
+        }
+      }
+    } finally {
+      writeUnlock();
+    }
+    LOG.info("Network topology recomputed: " + numRacks +
+             " latency racks, " + moved + " datanodes moved");
+  }
   
   /**
    * Get registrationID for datanodes based on the namespaceID.
@@ -2332,6 +2709,26 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     }
   }
 
+  /**
+   * Periodically calls recomputeTopology().
+   */
+  class TopologyMonitor implements Runnable {
+    public void run() {
+      while (fsRunning) {
+        try {
+          Thread.sleep(topologyRecomputeInterval);
+        } catch (InterruptedException ie) {
+          continue;
+        }
+        try {
+          recomputeTopology();
+        } catch (Exception e) {
+          FSNamesystem.LOG.error(StringUtils.stringifyException(e));
+        }
+      }
+    }
+  }
+
   /**
    * Periodically calls computeReplicationWork().
    */
@@ -2387,11 +2784,14 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     workFound = computeReplicationWork(blocksToProcess); 
     
     // Update FSNamesystemMetrics counters
-    synchronized (this) {
+    writeLock("computeDatanodeWork");
+    try {
       pendingReplicationBlocksCount = pendingReplications.size();
       underReplicatedBlocksCount = neededReplications.size();
       scheduledReplicationBlocksCount = workFound;
       corruptReplicaBlocksCount = corruptReplicas.size();
+    } finally {
+      writeUnlock();
     }
     
     workFound += computeInvalidateWork(nodesToProcess);
@@ -2443,56 +2843,61 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * @return Return a list of block lists to be replicated. 
    *         The block list index represents its replication priority.
    */
-  synchronized List<List<Block>> chooseUnderReplicatedBlocks(int blocksToProcess) {
-    // initialize data structure for the return value
-    List<List<Block>> blocksToReplicate = 
-      new ArrayList<List<Block>>(UnderReplicatedBlocks.LEVEL);
-    for (int i=0; i<UnderReplicatedBlocks.LEVEL; i++) {
-      blocksToReplicate.add(new ArrayList<Block>());
-    }
-    
-    synchronized(neededReplications) {
-      if (neededReplications.size() == 0) {
-        missingBlocksInCurIter = 0;
-        missingBlocksInPrevIter = 0;
-        return blocksToReplicate;
+  List<List<Block>> chooseUnderReplicatedBlocks(int blocksToProcess) {
+    writeLock("chooseUnderReplicatedBlocks");
+    try {
+      // initialize data structure for the return value
+      List<List<Block>> blocksToReplicate = 
+        new ArrayList<List<Block>>(UnderReplicatedBlocks.LEVEL);
+      for (int i=0; i<UnderReplicatedBlocks.LEVEL; i++) {
+        blocksToReplicate.add(new ArrayList<Block>());
       }
-      
-      // Go through all blocks that need replications.
-      BlockIterator neededReplicationsIterator = neededReplications.iterator();
-      // skip to the first unprocessed block, which is at replIndex 
-      for(int i=0; i < replIndex && neededReplicationsIterator.hasNext(); i++) {
-        neededReplicationsIterator.next();
-      }
-      // # of blocks to process equals either twice the number of live 
-      // data-nodes or the number of under-replicated blocks whichever is less
-      blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
-
-      for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
-        if( ! neededReplicationsIterator.hasNext()) {
-          // start from the beginning
-          replIndex = 0;
-          missingBlocksInPrevIter = missingBlocksInCurIter;
+    
+      synchronized(neededReplications) {
+        if (neededReplications.size() == 0) {
           missingBlocksInCurIter = 0;
-          blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
-          if(blkCnt >= blocksToProcess)
-            break;
-          neededReplicationsIterator = neededReplications.iterator();
-          assert neededReplicationsIterator.hasNext() : 
-                                  "neededReplications should not be empty.";
+          missingBlocksInPrevIter = 0;
+          return blocksToReplicate;
         }
-
-        Block block = neededReplicationsIterator.next();
-        int priority = neededReplicationsIterator.getPriority();
-        if (priority < 0 || priority >= blocksToReplicate.size()) {
-          LOG.warn("Unexpected replication priority: " + priority + " " + block);
-        } else {
-          blocksToReplicate.get(priority).add(block);
+      
+        // Go through all blocks that need replications.
+        BlockIterator neededReplicationsIterator = neededReplications.iterator();
+        // skip to the first unprocessed block, which is at replIndex 
+        for(int i=0; i < replIndex && neededReplicationsIterator.hasNext(); i++) {
+          neededReplicationsIterator.next();
         }
-      } // end for
-    } // end synchronized
-    return blocksToReplicate;
- }
+        // # of blocks to process equals either twice the number of live 
+        // data-nodes or the number of under-replicated blocks whichever is less
+        blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
+
+        for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
+          if( ! neededReplicationsIterator.hasNext()) {
+            // start from the beginning
+            replIndex = 0;
+            missingBlocksInPrevIter = missingBlocksInCurIter;
+            missingBlocksInCurIter = 0;
+            blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
+            if(blkCnt >= blocksToProcess)
+              break;
+            neededReplicationsIterator = neededReplications.iterator();
+            assert neededReplicationsIterator.hasNext() : 
+                                    "neededReplications should not be empty.";
+          }
+
+          Block block = neededReplicationsIterator.next();
+          int priority = neededReplicationsIterator.getPriority();
+          if (priority < 0 || priority >= blocksToReplicate.size()) {
+            LOG.warn("Unexpected replication priority: " + priority + " " + block);
+          } else {
+            blocksToReplicate.get(priority).add(block);
+          }
+        } // end for
+      } // end synchronized
+      return blocksToReplicate;
+    } finally {
+      writeUnlock();
+    }
+  }
   
   /** Replicate a block
    * 
@@ -2505,7 +2910,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     List<DatanodeDescriptor> containingNodes;
     DatanodeDescriptor srcNode;
     
-    synchronized (this) {
+    writeLock("computeReplicationWorkForBlock");
+    try {
       synchronized (neededReplications) {
         // block should belong to a file
         INodeFile fileINode = blocksMap.getINode(block);
@@ -2540,6 +2946,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
           return false;
         }
       }
+    } finally {
+      writeUnlock();
     }
 
     // choose replication targets: NOT HODING THE GLOBAL LOCK
@@ -2549,7 +2957,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     if(targets.length == 0)
       return false;
 
-    synchronized (this) {
+    writeLock("computeReplicationWorkForBlock");
+    try {
       synchronized (neededReplications) {
         // Recheck since global lock was released
         // block should belong to a file
@@ -2610,6 +3019,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
                     + " pendingReplications = " + pendingReplications.size());
         }
       }
+    } finally {
+      writeUnlock();
     }
     
     return true;
@@ -2690,53 +3101,58 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * 
    * @return number of blocks scheduled for removal during this iteration.
    */
-  private synchronized int invalidateWorkForOneNode() {
-    // blocks should not be replicated or removed if safe mode is on
-    if (isInSafeMode())
-      return 0;
-    if(recentInvalidateSets.isEmpty())
-      return 0;
-    // get blocks to invalidate for the first node
-    String firstNodeId = recentInvalidateSets.keySet().iterator().next();
-    assert firstNodeId != null;
-    DatanodeDescriptor dn = datanodeMap.get(firstNodeId);
-    if (dn == null) {
-       removeFromInvalidates(firstNodeId);
-       return 0;
-    }
+  private int invalidateWorkForOneNode() {
+    writeLock("invalidateWorkForOneNode");
+    try {
+      // blocks should not be replicated or removed if safe mode is on
+      if (isInSafeMode())
+        return 0;
+      if(recentInvalidateSets.isEmpty())
+        return 0;
+      // get blocks to invalidate for the first node
+      String firstNodeId = recentInvalidateSets.keySet().iterator().next();
+      assert firstNodeId != null;
+      DatanodeDescriptor dn = datanodeMap.get(firstNodeId);
+      if (dn == null) {
+         removeFromInvalidates(firstNodeId);
+         return 0;
+      }
 
-    Collection<Block> invalidateSet = recentInvalidateSets.get(firstNodeId);
-    if(invalidateSet == null)
-      return 0;
+      Collection<Block> invalidateSet = recentInvalidateSets.get(firstNodeId);
+      if(invalidateSet == null)
+        return 0;
 
-    ArrayList<Block> blocksToInvalidate = 
-      new ArrayList<Block>(blockInvalidateLimit);
+      ArrayList<Block> blocksToInvalidate = 
+        new ArrayList<Block>(blockInvalidateLimit);
 
-    // # blocks that can be sent in one message is limited
-    Iterator<Block> it = invalidateSet.iterator();
-    for(int blkCount = 0; blkCount < blockInvalidateLimit && it.hasNext();
-                                                                blkCount++) {
-      blocksToInvalidate.add(it.next());
-      it.remove();
-    }
+      // # blocks that can be sent in one message is limited
+      Iterator<Block> it = invalidateSet.iterator();
+      for(int blkCount = 0; blkCount < blockInvalidateLimit && it.hasNext();
+                                                                  blkCount++) {
+        blocksToInvalidate.add(it.next());
+        it.remove();
+      }
 
-    // If we send everything in this message, remove this node entry
-    if (!it.hasNext()) {
-      removeFromInvalidates(firstNodeId);
-    }
+      // If we send everything in this message, remove this node entry
+      if (!it.hasNext()) {
+        removeFromInvalidates(firstNodeId);
+      }
 
-    dn.addBlocksToBeInvalidated(blocksToInvalidate);
+      dn.addBlocksToBeInvalidated(blocksToInvalidate);
 
-    if(NameNode.stateChangeLog.isInfoEnabled()) {
-      StringBuffer blockList = new StringBuffer();
-      for(Block blk : blocksToInvalidate) {
-        blockList.append(' ');
-        blockList.append(blk);
+      if(NameNode.stateChangeLog.isInfoEnabled()) {
+        StringBuffer blockList = new StringBuffer();
+        for(Block blk : blocksToInvalidate) {
+          blockList.append(' ');
+          blockList.append(blk);
+        }
+        NameNode.stateChangeLog.info("BLOCK* ask "
+            + dn.getName() + " to delete " + blockList);
       }
-      NameNode.stateChangeLog.info("BLOCK* ask "
-          + dn.getName() + " to delete " + blockList);
+      return blocksToInvalidate.size();
+    } finally {
+      writeUnlock();
     }
-    return blocksToInvalidate.size();
   }
 
   public void setNodeReplicationLimit(int limit) {
@@ -2750,7 +3166,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   void processPendingReplications() {
     Block[] timedOutItems = pendingReplications.getTimedOutBlocks();
     if (timedOutItems != null) {
-      synchronized (this) {
+      writeLock("processPendingReplications");
+      try {
         for (int i = 0; i < timedOutItems.length; i++) {
           NumberReplicas num = countNodes(timedOutItems[i]);
           neededReplications.add(timedOutItems[i], 
@@ -2758,6 +3175,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
                                  num.decommissionedReplicas(),
                                  getReplication(timedOutItems[i]));
         }
+      } finally {
+        writeUnlock();
       }
       /* If we know the target datanodes where the replication timedout,
        * we could invoke decBlocksScheduled() on it. Its ok for now.
@@ -2769,14 +3188,19 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * remove a datanode descriptor
    * @param nodeID datanode ID
    */
-  synchronized public void removeDatanode(DatanodeID nodeID) 
+  public void removeDatanode(DatanodeID nodeID) 
     throws IOException {
-    DatanodeDescriptor nodeInfo = getDatanode(nodeID);
-    if (nodeInfo != null) {
-      removeDatanode(nodeInfo);
-    } else {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.removeDatanode: "
-                                   + nodeID.getPeerId() + " does not exist");
+    writeLock("removeDatanode");
+    try {
+      DatanodeDescriptor nodeInfo = getDatanode(nodeID);
+      if (nodeInfo != null) {
+        removeDatanode(nodeInfo);
+      } else {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.removeDatanode: "
+                                     + nodeID.getPeerId() + " does not exist");
+      }
+    } finally {
+      writeUnlock();
     }
   }
   
@@ -2872,7 +3296,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
 
       // acquire the fsnamesystem lock, and then remove the dead node.
       if (foundDead) {
-        synchronized (this) {
+        writeLock("heartbeatCheck");
+        try {
           synchronized(heartbeats) {
             synchronized (datanodeMap) {
               DatanodeDescriptor nodeInfo = null;
@@ -2888,6 +3313,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
               }
             }
           }
+        } finally {
+          writeUnlock();
         }
       }
       allAlive = !foundDead;
@@ -2898,49 +3325,121 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * The given node is reporting all its blocks.  Use this info to 
    * update the (machine-->blocklist) and (block-->machinelist) tables.
    */
-  public synchronized void processReport(DatanodeID nodeID, 
+  public void processReport(DatanodeID nodeID, 
                                          BlockListAsLongs newReport
                                         ) throws IOException {
-    long startTime = now();
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: "
-                             + "from " + nodeID.getPeerId()+" " + 
-                             newReport.getNumberOfBlocks()+" blocks");
-    }
-    DatanodeDescriptor node = getDatanode(nodeID);
-    if (node == null) {
-      throw new IOException("ProcessReport from unregisterted node: "
-                            + nodeID.getPeerId());
-    }
+    writeLock("processReport");
+    try {
+      long startTime = now();
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: "
+                               + "from " + nodeID.getPeerId()+" " + 
+                               newReport.getNumberOfBlocks()+" blocks");
+      }
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null) {
+        throw new IOException("ProcessReport from unregisterted node: "
+                              + nodeID.getPeerId());
+      }
 
-    // Check if this datanode should actually be shutdown instead.
-    if (shouldNodeShutdown(node)) {
-      setDatanodeDead(node);
-      throw new DisallowedDatanodeException(node);
-    }
+      // Check if this datanode should actually be shutdown instead.
+      if (shouldNodeShutdown(node)) {
+        setDatanodeDead(node);
+        throw new DisallowedDatanodeException(node);
+      }
     
-    //
-    // Modify the (block-->datanode) map, according to the difference
-    // between the old and new block report.
-    //
-    Collection<Block> toAdd = new LinkedList<Block>();
-    Collection<Block> toRemove = new LinkedList<Block>();
-    Collection<Block> toInvalidate = new LinkedList<Block>();
-    node.reportDiff(blocksMap, newReport, toAdd, toRemove, toInvalidate);
+      //
+      // Modify the (block-->datanode) map, according to the difference
+      // between the old and new block report.
+      //
+      Collection<Block> toAdd = new LinkedList<Block>();
+      Collection<Block> toRemove = new LinkedList<Block>();
+      Collection<Block> toInvalidate = new LinkedList<Block>();
+      node.reportDiff(blocksMap, newReport, toAdd, toRemove, toInvalidate);
         
-    for (Block b : toRemove) {
-      removeStoredBlock(b, node);
-    }
-    for (Block b : toAdd) {
-      addStoredBlock(b, node, null);
+      for (Block b : toRemove) {
+        removeStoredBlock(b, node);
+      }
+      for (Block b : toAdd) {
+        addStoredBlock(b, node, null);
+      }
+      for (Block b : toInvalidate) {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: block " 
+            + b + " on " + node.getName() + " size " + b.getNumBytes()
+            + " does not belong to any file.");
+        addToInvalidates(b, node);
+      }
+      node.setBlockReportGeneration(0);
+      NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
+    } finally {
+      writeUnlock();
     }
-    for (Block b : toInvalidate) {
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: block " 
-          + b + " on " + node.getName() + " size " + b.getNumBytes()
-          + " does not belong to any file.");
-      addToInvalidates(b, node);
+  }
+
+  /**
+   * The given node is reporting the blocks added and removed since its
+   * last acknowledged block report. Only these blocks are looked up.
+   * @return false if the generation does not match the one of the node,
+   *         in which case nothing is applied and a full report is needed.
+   */
+  public boolean processReportDelta(DatanodeID nodeID,
+                                    long generation,
+                                    BlockListAsLongs added,
+                                    BlockListAsLongs removed
+                                    ) throws IOException {
+    writeLock("processReportDelta");
+    try {
+      long startTime = now();
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReportDelta: "
+                               + "from " + nodeID.getPeerId() + " generation "
+                               + generation + " " + added.getNumberOfBlocks()
+                               + " added " + removed.getNumberOfBlocks()
+                               + " removed blocks");
+      }
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null) {
+        throw new IOException("ProcessReportDelta from unregisterted node: "
+                              + nodeID.getPeerId());
+      }
+
+      // Check if this datanode should actually be shutdown instead.
+      if (shouldNodeShutdown(node)) {
+        setDatanodeDead(node);
+        throw new DisallowedDatanodeException(node);
+      }
+
+      if (generation < 0 || generation != node.getBlockReportGeneration()) {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.processReportDelta: "
+            + "generation " + generation + " of " + node.getName()
+            + " does not match " + node.getBlockReportGeneration()
+            + ", asking for a full block report");
+        return false;
+      }
+
+      Collection<Block> toAdd = new LinkedList<Block>();
+      Collection<Block> toRemove = new LinkedList<Block>();
+      Collection<Block> toInvalidate = new LinkedList<Block>();
+      node.deltaDiff(blocksMap, added, removed, toAdd, toRemove, toInvalidate);
+
+      for (Block b : toRemove) {
+        removeStoredBlock(b, node);
+      }
+      for (Block b : toAdd) {
+        addStoredBlock(b, node, null);
+      }
+      for (Block b : toInvalidate) {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.processReportDelta: block " 
+            + b + " on " + node.getName() + " size " + b.getNumBytes()
+            + " does not belong to any file.");
+        addToInvalidates(b, node);
+      }
+      node.setBlockReportGeneration(generation + 1);
+      NameNode.getNameNodeMetrics().blockReportDelta.inc((int) (now() - startTime));
+      return true;
+    } finally {
+      writeUnlock();
     }
-    NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
   }
 
   /**
@@ -2948,166 +3447,171 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * needed replications if this takes care of the problem.
    * @return the block that is stored in blockMap.
    */
-  synchronized Block addStoredBlock(Block block, 
+  Block addStoredBlock(Block block, 
                                     DatanodeDescriptor node,
                                     DatanodeDescriptor delNodeHint) {
-    BlockInfo storedBlock = blocksMap.getStoredBlock(block);
-    if(storedBlock == null || storedBlock.getINode() == null) {
-      // If this block does not belong to anyfile, then we are done.
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
-                                   + "addStoredBlock request received for " 
-                                   + block + " on " + node.getName()
-                                   + " size " + block.getNumBytes()
-                                   + " But it does not belong to any file.");
-      // we could add this block to invalidate set of this datanode. 
-      // it will happen in next block report otherwise.
-      return block;      
-    }
+    writeLock("addStoredBlock");
+    try {
+      BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+      if(storedBlock == null || storedBlock.getINode() == null) {
+        // If this block does not belong to anyfile, then we are done.
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
+                                     + "addStoredBlock request received for " 
+                                     + block + " on " + node.getName()
+                                     + " size " + block.getNumBytes()
+                                     + " But it does not belong to any file.");
+        // we could add this block to invalidate set of this datanode. 
+        // it will happen in next block report otherwise.
+        return block;      
+      }
      
-    // add block to the data-node
-    boolean added = node.addBlock(storedBlock);
+      // add block to the data-node
+      boolean added = node.addBlock(storedBlock);
     
-    assert storedBlock != null : "Block must be stored by now";
-
-    if (block != storedBlock) {
-      if (block.getNumBytes() >= 0) {
-        long cursize = storedBlock.getNumBytes();
-        if (cursize == 0) {
-          storedBlock.setNumBytes(block.getNumBytes());
-        } else if (cursize != block.getNumBytes()) {
-          LOG.warn("Inconsistent size for block " + block + 
-                   " reported from " + node.getName() + 
-                   " current size is " + cursize +
-                   " reported size is " + block.getNumBytes());
-          try {
-            if (cursize > block.getNumBytes()) {
-              // new replica is smaller in size than existing block.
-              // Mark the new replica as corrupt.
-              LOG.warn("Mark new replica " + block + " from " + node.getName() + 
-                  "as corrupt because its length is shorter than existing ones");
-              markBlockAsCorrupt(block, node);
-            } else {
-              // new replica is larger in size than existing block.
-              // Mark pre-existing replicas as corrupt.
-              int numNodes = blocksMap.numNodes(block);
-              int count = 0;
-              DatanodeDescriptor nodes[] = new DatanodeDescriptor[numNodes];
-              Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
-              for (; it != null && it.hasNext(); ) {
-                DatanodeDescriptor dd = it.next();
-                if (!dd.equals(node)) {
-                  nodes[count++] = dd;
-                }
-              }
-              for (int j = 0; j < count; j++) {
-                LOG.warn("Mark existing replica " + block + " from " + node.getName() + 
-                " as corrupt because its length is shorter than the new one");
-                markBlockAsCorrupt(block, nodes[j]);
-              }
-              //
-              // change the size of block in blocksMap
-              //
-              storedBlock = blocksMap.getStoredBlock(block); //extra look up!
-              if (storedBlock == null) {
-                LOG.warn("Block " + block + 
-                   " reported from " + node.getName() + 
-                   " does not exist in blockMap. Surprise! Surprise!");
+      assert storedBlock != null : "Block must be stored by now";
+
+      if (block != storedBlock) {
+        if (block.getNumBytes() >= 0) {
+          long cursize = storedBlock.getNumBytes();
+          if (cursize == 0) {
+            storedBlock.setNumBytes(block.getNumBytes());
+          } else if (cursize != block.getNumBytes()) {
+            LOG.warn("Inconsistent size for block " + block + 
+                     " reported from " + node.getName() + 
+                     " current size is " + cursize +
+                     " reported size is " + block.getNumBytes());
+            try {
+              if (cursize > block.getNumBytes()) {
+                // new replica is smaller in size than existing block.
+                // Mark the new replica as corrupt.
+                LOG.warn("Mark new replica " + block + " from " + node.getName() + 
+                    "as corrupt because its length is shorter than existing ones");
+                markBlockAsCorrupt(block, node);
               } else {
-                storedBlock.setNumBytes(block.getNumBytes());
+                // new replica is larger in size than existing block.
+                // Mark pre-existing replicas as corrupt.
+                int numNodes = blocksMap.numNodes(block);
+                int count = 0;
+                DatanodeDescriptor nodes[] = new DatanodeDescriptor[numNodes];
+                Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
+                for (; it != null && it.hasNext(); ) {
+                  DatanodeDescriptor dd = it.next();
+                  if (!dd.equals(node)) {
+                    nodes[count++] = dd;
+                  }
+                }
+                for (int j = 0; j < count; j++) {
+                  LOG.warn("Mark existing replica " + block + " from " + node.getName() + 
+                  " as corrupt because its length is shorter than the new one");
+                  markBlockAsCorrupt(block, nodes[j]);
+                }
+                //
+                // change the size of block in blocksMap
+                //
+                storedBlock = blocksMap.getStoredBlock(block); //extra look up!
+                if (storedBlock == null) {
+                  LOG.warn("Block " + block + 
+                     " reported from " + node.getName() + 
+                     " does not exist in blockMap. Surprise! Surprise!");
+                } else {
+                  storedBlock.setNumBytes(block.getNumBytes());
+                }
               }
+            } catch (IOException e) {
+              LOG.warn("Error in deleting bad block " + block + e);
             }
-          } catch (IOException e) {
-            LOG.warn("Error in deleting bad block " + block + e);
           }
-        }
         
-        //Updated space consumed if required.
-        INodeFile file = (storedBlock != null) ? storedBlock.getINode() : null;
-        long diff = (file == null) ? 0 :
-                    (file.getPreferredBlockSize() - storedBlock.getNumBytes());
+          //Updated space consumed if required.
+          INodeFile file = (storedBlock != null) ? storedBlock.getINode() : null;
+          long diff = (file == null) ? 0 :
+                      (file.getPreferredBlockSize() - storedBlock.getNumBytes());
         
-        if (diff > 0 && file.isUnderConstruction() &&
-            cursize < storedBlock.getNumBytes()) {
-          try {
-            String path = /* For finding parents */ 
-              leaseManager.findPath((INodeFileUnderConstruction)file);
-            dir.updateSpaceConsumed(path, 0, -diff*file.getReplication());
-          } catch (IOException e) {
-            LOG.warn("Unexpected exception while updating disk space : " +
-                     e.getMessage());
+          if (diff > 0 && file.isUnderConstruction() &&
+              cursize < storedBlock.getNumBytes()) {
+            try {
+              String path = /* For finding parents */ 
+                leaseManager.findPath((INodeFileUnderConstruction)file);
+              dir.updateSpaceConsumed(path, 0, -diff*file.getReplication());
+            } catch (IOException e) {
+              LOG.warn("Unexpected exception while updating disk space : " +
+                       e.getMessage());
+            }
           }
         }
+        block = storedBlock;
       }
-      block = storedBlock;
-    }
-    assert storedBlock == block : "Block must be stored by now";
+      assert storedBlock == block : "Block must be stored by now";
         
-    int curReplicaDelta = 0;
+      int curReplicaDelta = 0;
         
-    if (added) {
-      curReplicaDelta = 1;
-      // 
-      // At startup time, because too many new blocks come in
-      // they take up lots of space in the log file. 
-      // So, we log only when namenode is out of safemode.
-      //
-      if (!isInSafeMode()) {
-        NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
-                                      +"blockMap updated: "+node.getName()+" is added to "+block+" size "+block.getNumBytes());
+      if (added) {
+        curReplicaDelta = 1;
+        // 
+        // At startup time, because too many new blocks come in
+        // they take up lots of space in the log file. 
+        // So, we log only when namenode is out of safemode.
+        //
+        if (!isInSafeMode()) {
+          NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
+                                        +"blockMap updated: "+node.getName()+" is added to "+block+" size "+block.getNumBytes());
+        }
+      } else {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.addStoredBlock: "
+                                     + "Redundant addStoredBlock request received for " 
+                                     + block + " on " + node.getName()
+                                     + " size " + block.getNumBytes());
       }
-    } else {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.addStoredBlock: "
-                                   + "Redundant addStoredBlock request received for " 
-                                   + block + " on " + node.getName()
-                                   + " size " + block.getNumBytes());
-    }
 
-    // filter out containingNodes that are marked for decommission.
-    NumberReplicas num = countNodes(storedBlock);
-    int numLiveReplicas = num.liveReplicas();
-    int numCurrentReplica = numLiveReplicas
-      + pendingReplications.getNumReplicas(block);
+      // filter out containingNodes that are marked for decommission.
+      NumberReplicas num = countNodes(storedBlock);
+      int numLiveReplicas = num.liveReplicas();
+      int numCurrentReplica = numLiveReplicas
+        + pendingReplications.getNumReplicas(block);
 
-    // check whether safe replication is reached for the block
-    incrementSafeBlockCount(numCurrentReplica);
+      // check whether safe replication is reached for the block
+      incrementSafeBlockCount(numCurrentReplica);
  
-    //
-    // if file is being actively written to, then do not check 
-    // replication-factor here. It will be checked when the file is closed.
-    //
-    INodeFile fileINode = null;
-    fileINode = storedBlock.getINode();
-    if (fileINode.isUnderConstruction()) {
-      return block;
-    }
+      //
+      // if file is being actively written to, then do not check 
+      // replication-factor here. It will be checked when the file is closed.
+      //
+      INodeFile fileINode = null;
+      fileINode = storedBlock.getINode();
+      if (fileINode.isUnderConstruction()) {
+        return block;
+      }
 
-    // do not handle mis-replicated blocks during startup
-    if(isInSafeMode())
-      return block;
+      // do not handle mis-replicated blocks during startup
+      if(isInSafeMode())
+        return block;
 
-    // handle underReplication/overReplication
-    short fileReplication = fileINode.getReplication();
-    if (numCurrentReplica >= fileReplication) {
-      neededReplications.remove(block, numCurrentReplica, 
-                                num.decommissionedReplicas, fileReplication);
-    } else {
-      updateNeededReplications(block, curReplicaDelta, 0);
-    }
-    if (numCurrentReplica > fileReplication) {
-      processOverReplicatedBlock(block, fileReplication, node, delNodeHint);
-    }
-    // If the file replication has reached desired value
-    // we can remove any corrupt replicas the block may have
-    int corruptReplicasCount = corruptReplicas.numCorruptReplicas(block); 
-    int numCorruptNodes = num.corruptReplicas();
-    if ( numCorruptNodes != corruptReplicasCount) {
-      LOG.warn("Inconsistent number of corrupt replicas for " + 
-          block + "blockMap has " + numCorruptNodes + 
-          " but corrupt replicas map has " + corruptReplicasCount);
+      // handle underReplication/overReplication
+      short fileReplication = fileINode.getReplication();
+      if (numCurrentReplica >= fileReplication) {
+        neededReplications.remove(block, numCurrentReplica, 
+                                  num.decommissionedReplicas, fileReplication);
+      } else {
+        updateNeededReplications(block, curReplicaDelta, 0);
+      }
+      if (numCurrentReplica > fileReplication) {
+        processOverReplicatedBlock(block, fileReplication, node, delNodeHint);
+      }
+      // If the file replication has reached desired value
+      // we can remove any corrupt replicas the block may have
+      int corruptReplicasCount = corruptReplicas.numCorruptReplicas(block); 
+      int numCorruptNodes = num.corruptReplicas();
+      if ( numCorruptNodes != corruptReplicasCount) {
+        LOG.warn("Inconsistent number of corrupt replicas for " + 
+            block + "blockMap has " + numCorruptNodes + 
+            " but corrupt replicas map has " + corruptReplicasCount);
+      }
+      if ((corruptReplicasCount > 0) && (numLiveReplicas >= fileReplication)) 
+        invalidateCorruptReplicas(block);
+      return block;
+    } finally {
+      writeUnlock();
     }
-    if ((corruptReplicasCount > 0) && (numLiveReplicas >= fileReplication)) 
-      invalidateCorruptReplicas(block);
-    return block;
   }
 
   /**
@@ -3148,39 +3652,48 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * For each block in the name-node verify whether it belongs to any file,
    * over or under replicated. Place it into the respective queue.
    */
-  private synchronized void processMisReplicatedBlocks() {
-    long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
-    neededReplications.clear();
-    for(BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
-      INodeFile fileINode = block.getINode();
-      if(fileINode == null) {
-        // block does not belong to any file
-        nrInvalid++;
-        addToInvalidates(block);
-        continue;
-      }
-      // calculate current replication
-      short expectedReplication = fileINode.getReplication();
-      NumberReplicas num = countNodes(block);
-      int numCurrentReplica = num.liveReplicas();
-      // add to under-replicated queue if need to be
-      if (neededReplications.add(block, 
-                                 numCurrentReplica,
-                                 num.decommissionedReplicas(),
-                                 expectedReplication)) {
-        nrUnderReplicated++;
-      }
+  private void processMisReplicatedBlocks() {
+    writeLock("processMisReplicatedBlocks");
+    try {
+      long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
+      neededReplications.clear();
+      for(BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
+        INodeFile fileINode = block.getINode();
+        if(fileINode == null) {
+          // block does not belong to any file
+          nrInvalid++;
+          addToInvalidates(block);
+          continue;
+        }
+        // calculate current replication
+        short expectedReplication = fileINode.getReplication();
+        NumberReplicas num = countNodes(block);
+        int numCurrentReplica = num.liveReplicas();
+        // add to under-replicated queue if need to be
+        if (neededReplications.add(block, 
+                                   numCurrentReplica,
+                                   num.decommissionedReplicas(),
+                                   expectedReplication)) {
+          nrUnderReplicated++;
+        }
 
-      if (numCurrentReplica > expectedReplication) {
-        // over-replicated block
-        nrOverReplicated++;
-        processOverReplicatedBlock(block, expectedReplication, null, null);
+        if (numCurrentReplica > expectedReplication) {
+          // over-replicated block
+          nrOverReplicated++;
+          processOverReplicatedBlock(block, expectedReplication, null, null);
+        }
       }
+      LOG.info("Total number of blocks = " + blocksMap.size());
+      long heapUsage = blocksMap.estimateHeapUsage();
+      LOG.info("Blocks map heap usage = " + heapUsage + " bytes, "
+               + blocksMap.heapUsagePerMillionBlocks(heapUsage)
+               + " bytes per million blocks");
+      LOG.info("Number of invalid blocks = " + nrInvalid);
+      LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
+      LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Total number of blocks = " + blocksMap.size());
-    LOG.info("Number of invalid blocks = " + nrInvalid);
-    LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
-    LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
   }
 
   /**
@@ -3337,95 +3850,105 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Modify (block-->datanode) map.  Possibly generate 
    * replication tasks, if the removed block is still valid.
    */
-  synchronized void removeStoredBlock(Block block, DatanodeDescriptor node) {
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-                                  +block + " from "+node.getName());
-    if (!blocksMap.removeNode(block, node)) {
+  void removeStoredBlock(Block block, DatanodeDescriptor node) {
+    writeLock("removeStoredBlock");
+    try {
       NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-                                    +block+" has already been removed from node "+node);
-      return;
-    }
+                                    +block + " from "+node.getName());
+      if (!blocksMap.removeNode(block, node)) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
+                                      +block+" has already been removed from node "+node);
+        return;
+      }
         
-    //
-    // It's possible that the block was removed because of a datanode
-    // failure.  If the block is still valid, check if replication is
-    // necessary.  In that case, put block on a possibly-will-
-    // be-replicated list.
-    //
-    INode fileINode = blocksMap.getINode(block);
-    if (fileINode != null) {
-      decrementSafeBlockCount(block);
-      updateNeededReplications(block, -1, 0);
-    }
+      //
+      // It's possible that the block was removed because of a datanode
+      // failure.  If the block is still valid, check if replication is
+      // necessary.  In that case, put block on a possibly-will-
+      // be-replicated list.
+      //
+      INode fileINode = blocksMap.getINode(block);
+      if (fileINode != null) {
+        decrementSafeBlockCount(block);
+        updateNeededReplications(block, -1, 0);
+      }
 
-    //
-    // We've removed a block from a node, so it's definitely no longer
-    // in "excess" there.
-    //
-    Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
-    if (excessBlocks != null) {
-      if (excessBlocks.remove(block)) {
-        excessBlocksCount--;
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-            + block + " is removed from excessBlocks");
-        if (excessBlocks.size() == 0) {
-          excessReplicateMap.remove(node.getStorageID());
+      //
+      // We've removed a block from a node, so it's definitely no longer
+      // in "excess" there.
+      //
+      Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
+      if (excessBlocks != null) {
+        if (excessBlocks.remove(block)) {
+          excessBlocksCount--;
+          NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
+              + block + " is removed from excessBlocks");
+          if (excessBlocks.size() == 0) {
+            excessReplicateMap.remove(node.getStorageID());
+          }
         }
       }
-    }
     
-    // Remove the replica from corruptReplicas
-    corruptReplicas.removeFromCorruptReplicasMap(block, node);
+      // Remove the replica from corruptReplicas
+      corruptReplicas.removeFromCorruptReplicasMap(block, node);
+    } finally {
+      writeUnlock();
+    }
   }
 
   /**
    * The given node is reporting that it received a certain block.
    */
-  public synchronized void blockReceived(DatanodeID nodeID,  
+  public void blockReceived(DatanodeID nodeID,  
                                          Block block,
                                          String delHint
                                          ) throws IOException {
-    DatanodeDescriptor node = getDatanode(nodeID);
-    if (node == null) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
-                                   + block + " is received from an unrecorded node " 
-                                   + nodeID.getPeerId());
-      throw new IllegalArgumentException(
-                                         "Unexpected exception.  Got blockReceived message from node " 
-                                         + block + ", but there is no info for it");
-    }
+    writeLock("blockReceived");
+    try {
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null) {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
+                                     + block + " is received from an unrecorded node " 
+                                     + nodeID.getPeerId());
+        throw new IllegalArgumentException(
+                                           "Unexpected exception.  Got blockReceived message from node " 
+                                           + block + ", but there is no info for it");
+      }
         
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: "
-                                    +block+" is received from " + nodeID.getPeerId());
-    }
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: "
+                                      +block+" is received from " + nodeID.getPeerId());
+      }
 
-    // Check if this datanode should actually be shutdown instead.
-    if (shouldNodeShutdown(node)) {
-      setDatanodeDead(node);
-      throw new DisallowedDatanodeException(node);
-    }
+      // Check if this datanode should actually be shutdown instead.
+      if (shouldNodeShutdown(node)) {
+        setDatanodeDead(node);
+        throw new DisallowedDatanodeException(node);
+      }
 
-    // decrement number of blocks scheduled to this datanode.
-    node.decBlocksScheduled();
+      // decrement number of blocks scheduled to this datanode.
+      node.decBlocksScheduled();
     
-    // get the deletion hint node
-    DatanodeDescriptor delHintNode = null;
-    if(delHint!=null && delHint.length()!=0) {
-      delHintNode = datanodeMap.get(delHint);
-      if(delHintNode == null) {
-        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
-            + block
-            + " is expected to be removed from an unrecorded node " 
-            + delHint);
+      // get the deletion hint node
+      DatanodeDescriptor delHintNode = null;
+      if(delHint!=null && delHint.length()!=0) {
+        delHintNode = datanodeMap.get(delHint);
+        if(delHintNode == null) {
+          NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
+              + block
+              + " is expected to be removed from an unrecorded node " 
+              + delHint);
+        }
       }
-    }
 
-    //
-    // Modify the blocks->datanode map and node's map.
-    // 
-    pendingReplications.remove(block);
-    addStoredBlock(block, node, delHintNode );
+      //
+      // Modify the blocks->datanode map and node's map.
+      // 
+      pendingReplications.remove(block);
+      addStoredBlock(block, node, delHintNode );
+    } finally {
+      writeUnlock();
+    }
   }
 
   public long getMissingBlocksCount() {
@@ -3518,70 +4041,80 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return getDatanodeListForReport(type).size(); 
   }
 
-  private synchronized ArrayList<DatanodeDescriptor> getDatanodeListForReport(
-                                                      DatanodeReportType type) {                  
+  private ArrayList<DatanodeDescriptor> getDatanodeListForReport(
+                                                      DatanodeReportType type) {
+    readLock("getDatanodeListForReport");
+    try {
     
-    boolean listLiveNodes = type == DatanodeReportType.ALL ||
-                            type == DatanodeReportType.LIVE;
-    boolean listDeadNodes = type == DatanodeReportType.ALL ||
-                            type == DatanodeReportType.DEAD;
+      boolean listLiveNodes = type == DatanodeReportType.ALL ||
+                              type == DatanodeReportType.LIVE;
+      boolean listDeadNodes = type == DatanodeReportType.ALL ||
+                              type == DatanodeReportType.DEAD;
 
-    HashMap<String, String> mustList = new HashMap<String, String>();
+      HashMap<String, String> mustList = new HashMap<String, String>();
     
-    if (listDeadNodes) {
-      //first load all the nodes listed in include and exclude files.
-      for (Iterator<String> it = hostsReader.getHosts().iterator(); 
-           it.hasNext();) {
-        mustList.put(it.next(), "");
-      }
-      for (Iterator<String> it = hostsReader.getExcludedHosts().iterator(); 
-           it.hasNext();) {
-        mustList.put(it.next(), "");
+      if (listDeadNodes) {
+        //first load all the nodes listed in include and exclude files.
+        for (Iterator<String> it = hostsReader.getHosts().iterator(); 
+             it.hasNext();) {
+          mustList.put(it.next(), "");
+        }
+        for (Iterator<String> it = hostsReader.getExcludedHosts().iterator(); 
+             it.hasNext();) {
+          mustList.put(it.next(), "");
+        }
       }
-    }
    
-    ArrayList<DatanodeDescriptor> nodes = null;
+      ArrayList<DatanodeDescriptor> nodes = null;
     
-    synchronized (datanodeMap) {
-      nodes = new ArrayList<DatanodeDescriptor>(datanodeMap.size() + 
-                                                mustList.size());
+      synchronized (datanodeMap) {
+        nodes = new ArrayList<DatanodeDescriptor>(datanodeMap.size() + 
+                                                  mustList.size());
       
-      for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); 
-                                                               it.hasNext();) {
-        DatanodeDescriptor dn = it.next();
-        boolean isDead = isDatanodeDead(dn);
-        if ( (isDead && listDeadNodes) || (!isDead && listLiveNodes) ) {
-          nodes.add(dn);
+        for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); 
+                                                                 it.hasNext();) {
+          DatanodeDescriptor dn = it.next();
+          boolean isDead = isDatanodeDead(dn);
+          if ( (isDead && listDeadNodes) || (!isDead && listLiveNodes) ) {
+            nodes.add(dn);
+          }
+          //Remove any form of the this datanode in include/exclude lists.
+          mustList.remove(dn.getName());
+          mustList.remove(dn.getPeerId());
+          mustList.remove(dn.getHostName());
         }
-        //Remove any form of the this datanode in include/exclude lists.
-        mustList.remove(dn.getName());
-        mustList.remove(dn.getPeerId());
-        mustList.remove(dn.getHostName());
       }
-    }
     
-    if (listDeadNodes) {
-      for (Iterator<String> it = mustList.keySet().iterator(); it.hasNext();) {
-        DatanodeDescriptor dn = 
-            new DatanodeDescriptor(new DatanodeID(it.next()));
-        dn.setLastUpdate(0);
-        nodes.add(dn);
+      if (listDeadNodes) {
+        for (Iterator<String> it = mustList.keySet().iterator(); it.hasNext();) {
+          DatanodeDescriptor dn = 
+              new DatanodeDescriptor(new DatanodeID(it.next()));
+          dn.setLastUpdate(0);
+          nodes.add(dn);
+        }
       }
-    }
     
-    return nodes;
+      return nodes;
+    } finally {
+      readUnlock();
+    }
   }
 
-  public synchronized DatanodeInfo[] datanodeReport( DatanodeReportType type
+  public DatanodeInfo[] datanodeReport( DatanodeReportType type
       ) throws AccessControlException {
-    checkSuperuserPrivilege();
+    readLock("datanodeReport");
+    try {
+      checkSuperuserPrivilege();
 
-    ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(type);
-    DatanodeInfo[] arr = new DatanodeInfo[results.size()];
-    for (int i=0; i<arr.length; i++) {
-      arr[i] = new DatanodeInfo(results.get(i));
+      ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(type);
+      DatanodeInfo[] arr = new DatanodeInfo[results.size()];
+      for (int i=0; i<arr.length; i++) {
+        arr[i] = new DatanodeInfo(results.get(i));
+      }
+      return arr;
+    } finally {
+      readUnlock();
     }
-    return arr;
   }
 
   /**
@@ -3592,42 +4125,57 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * @throws AccessControlException if superuser privilege is violated.
    * @throws IOException if 
    */
-  synchronized void saveNamespace() throws AccessControlException, IOException {
-    checkSuperuserPrivilege();
-    if(!isInSafeMode()) {
-      throw new IOException("Safe mode should be turned ON " +
-                            "in order to create namespace image.");
+  void saveNamespace() throws AccessControlException, IOException {
+    writeLock("saveNamespace");
+    try {
+      checkSuperuserPrivilege();
+      if(!isInSafeMode()) {
+        throw new IOException("Safe mode should be turned ON " +
+                              "in order to create namespace image.");
+      }
+      getFSImage().saveFSImage();
+      LOG.info("New namespace image has been created.");
+    } finally {
+      writeUnlock();
     }
-    getFSImage().saveFSImage();
-    LOG.info("New namespace image has been created.");
   }
 
   /**
    */
-  public synchronized void DFSNodesStatus(ArrayList<DatanodeDescriptor> live, 
+  public void DFSNodesStatus(ArrayList<DatanodeDescriptor> live, 
                                           ArrayList<DatanodeDescriptor> dead) {
+    readLock("DFSNodesStatus");
+    try {
 
-    ArrayList<DatanodeDescriptor> results = 
-                            getDatanodeListForReport(DatanodeReportType.ALL);    
-    for(Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
-      DatanodeDescriptor node = it.next();
-      if (isDatanodeDead(node))
-        dead.add(node);
-      else
-        live.add(node);
+      ArrayList<DatanodeDescriptor> results = 
+                              getDatanodeListForReport(DatanodeReportType.ALL);    
+      for(Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
+        DatanodeDescriptor node = it.next();
+        if (isDatanodeDead(node))
+          dead.add(node);
+        else
+          live.add(node);
+      }
+    } finally {
+      readUnlock();
     }
   }
 
   /**
    * Prints information about all datanodes.
    */
-  private synchronized void datanodeDump(PrintWriter out) {
-    synchronized (datanodeMap) {
-      out.println("Metasave: Number of datanodes: " + datanodeMap.size());
-      for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); it.hasNext();) {
-        DatanodeDescriptor node = it.next();
-        out.println(node.dumpDatanode());
+  private void datanodeDump(PrintWriter out) {
+    readLock("datanodeDump");
+    try {
+      synchronized (datanodeMap) {
+        out.println("Metasave: Number of datanodes: " + datanodeMap.size());
+        for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); it.hasNext();) {
+          DatanodeDescriptor node = it.next();
+          out.println(node.dumpDatanode());
+        }
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -3855,7 +4403,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     hostsReader.updateFileNames(conf.get("dfs.hosts",""), 
                                 conf.get("dfs.hosts.exclude", ""));
     hostsReader.refresh();
-    synchronized (this) {
+    writeLock("refreshNodes");
+    try {
       for (Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator();
            it.hasNext();) {
         DatanodeDescriptor node = it.next();
@@ -3876,6 +4425,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
           }
         }
       }
+    } finally {
+      writeUnlock();
     } 
       
   }
@@ -3893,22 +4444,27 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Returns TRUE if node is registered (including when it is on the 
    * exclude list and is being decommissioned). 
    */
-  private synchronized boolean verifyNodeRegistration(DatanodeRegistration nodeReg, String ipAddr) 
+  private boolean verifyNodeRegistration(DatanodeRegistration nodeReg, String ipAddr) 
     throws IOException {
-    if (!inHostsList(nodeReg, ipAddr)) {
-      return false;    
-    }
-    if (inExcludedHostsList(nodeReg, ipAddr)) {
-      DatanodeDescriptor node = getDatanode(nodeReg);
-      if (node == null) {
-        throw new IOException("verifyNodeRegistration: unknown datanode " +
-                              nodeReg.getPeerId());
-      }
-      if (!checkDecommissionStateInternal(node)) {
-        startDecommission(node);
+    writeLock("verifyNodeRegistration");
+    try {
+      if (!inHostsList(nodeReg, ipAddr)) {
+        return false;    
       }
-    } 
-    return true;
+      if (inExcludedHostsList(nodeReg, ipAddr)) {
+        DatanodeDescriptor node = getDatanode(nodeReg);
+        if (node == null) {
+          throw new IOException("verifyNodeRegistration: unknown datanode " +
+                                nodeReg.getPeerId());
+        }
+        if (!checkDecommissionStateInternal(node)) {
+          startDecommission(node);
+        }
+      } 
+      return true;
+    } finally {
+      writeUnlock();
+    }
   }
     
   /**
@@ -4386,29 +4942,39 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Enter safe mode manually.
    * @throws IOException
    */
-  synchronized void enterSafeMode() throws IOException {
-    if (!isInSafeMode()) {
-      safeMode = new SafeModeInfo();
-      return;
+  void enterSafeMode() throws IOException {
+    writeLock("enterSafeMode");
+    try {
+      if (!isInSafeMode()) {
+        safeMode = new SafeModeInfo();
+        return;
+      }
+      safeMode.setManual();
+      NameNode.stateChangeLog.info("STATE* Safe mode is ON. " 
+                                  + safeMode.getTurnOffTip());
+    } finally {
+      writeUnlock();
     }
-    safeMode.setManual();
-    NameNode.stateChangeLog.info("STATE* Safe mode is ON. " 
-                                + safeMode.getTurnOffTip());
   }
 
   /**
    * Leave safe mode.
    * @throws IOException
    */
-  synchronized void leaveSafeMode(boolean checkForUpgrades) throws SafeModeException {
-    if (!isInSafeMode()) {
-      NameNode.stateChangeLog.info("STATE* Safe mode is already OFF."); 
-      return;
+  void leaveSafeMode(boolean checkForUpgrades) throws SafeModeException {
+    writeLock("leaveSafeMode");
+    try {
+      if (!isInSafeMode()) {
+        NameNode.stateChangeLog.info("STATE* Safe mode is already OFF."); 
+        return;
+      }
+      if(getDistributedUpgradeState())
+        throw new SafeModeException("Distributed upgrade is in progress",
+                                    safeMode);
+      safeMode.leave(checkForUpgrades);
+    } finally {
+      writeUnlock();
     }
-    if(getDistributedUpgradeState())
-      throw new SafeModeException("Distributed upgrade is in progress",
-                                  safeMode);
-    safeMode.leave(checkForUpgrades);
   }
     
   String getSafeModeTip() {
@@ -4421,22 +4987,32 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return getEditLog().getEditLogSize();
   }
 
-  synchronized CheckpointSignature rollEditLog() throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException("Checkpoint not created",
-                                  safeMode);
+  CheckpointSignature rollEditLog() throws IOException {
+    writeLock("rollEditLog");
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Checkpoint not created",
+                                    safeMode);
+      }
+      LOG.info("Roll Edit Log from " + Server.getRemoteAddress());
+      return getFSImage().rollEditLog();
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Roll Edit Log from " + Server.getRemoteAddress());
-    return getFSImage().rollEditLog();
   }
 
-  synchronized void rollFSImage() throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException("Checkpoint not created",
-                                  safeMode);
+  void rollFSImage() throws IOException {
+    writeLock("rollFSImage");
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Checkpoint not created",
+                                    safeMode);
+      }
+      LOG.info("Roll FSImage from " + Server.getRemoteAddress());
+      getFSImage().rollFSImage();
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Roll FSImage from " + Server.getRemoteAddress());
-    getFSImage().rollFSImage();
   }
 
   /**
@@ -4582,8 +5158,13 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     return excessBlocksCount;
   }
   
-  public synchronized int getBlockCapacity() {
-    return blocksMap.getCapacity();
+  public int getBlockCapacity() {
+    readLock("getBlockCapacity");
+    try {
+      return blocksMap.getCapacity();
+    } finally {
+      readUnlock();
+    }
   }
 
   public String getFSState() {
@@ -4602,6 +5183,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
     StandardMBean bean;
     try {
       myFSMetrics = new FSNamesystemMetrics(conf);
+      fsLock.setMetrics(myFSMetrics);
       bean = new StandardMBean(this,FSNamesystemMBean.class);
       mbeanName = MBeanUtil.registerMBean("NameNode", "FSNamesystemState", bean);
     } catch (NotCompliantMBeanException e) {
@@ -4624,6 +5206,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
   public void shutdown() {
     if (mbeanName != null)
       MBeanUtil.unregisterMBean(mbeanName);
+    if (myFSMetrics != null)
+      myFSMetrics.shutdown();
   }
   
 
@@ -4691,25 +5275,30 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean {
    * Verifies that the block is associated with a file that has a lease.
    * Increments, logs and then returns the stamp
    */
-  synchronized long nextGenerationStampForBlock(Block block) throws IOException {
-    BlockInfo storedBlock = blocksMap.getStoredBlock(block);
-    if (storedBlock == null) {
-      String msg = block + " is already commited, storedBlock == null.";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    INodeFile fileINode = storedBlock.getINode();
-    if (!fileINode.isUnderConstruction()) {
-      String msg = block + " is already commited, !fileINode.isUnderConstruction().";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    if (!((INodeFileUnderConstruction)fileINode).setLastRecoveryTime(now())) {
-      String msg = block + " is beening recovered, ignoring this request.";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    return nextGenerationStamp();
+  long nextGenerationStampForBlock(Block block) throws IOException {
+    writeLock("nextGenerationStampForBlock");
+    try {
+      BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+      if (storedBlock == null) {
+        String msg = block + " is already commited, storedBlock == null.";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      INodeFile fileINode = storedBlock.getINode();
+      if (!fileINode.isUnderConstruction()) {
+        String msg = block + " is already commited, !fileINode.isUnderConstruction().";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      if (!((INodeFileUnderConstruction)fileINode).setLastRecoveryTime(now())) {
+        String msg = block + " is beening recovered, ignoring this request.";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      return nextGenerationStamp();
+    } finally {
+      writeUnlock();
+    }
   }
 
   // rename was successful. If any part of the renamed subtree had
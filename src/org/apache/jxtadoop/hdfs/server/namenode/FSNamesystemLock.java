@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.jxtadoop.hdfs.server.namenode.metrics.FSNamesystemMetrics;
+
+/**
+ * The namespace lock of {@link FSNamesystem}.
+ * <p>
+ * A fair read-write lock : the read-only operations share the read lock
+ * and the mutations hold the write lock. Both locks are reentrant and the
+ * write lock holder may take the read lock, but a read lock holder must
+ * never ask for the write lock.
+ * <p>
+ * The time spent waiting for the outermost acquisition of a thread and
+ * the time the lock is then held are reported per operation to the
+ * {@link FSNamesystemMetrics}, in microseconds.
+ */
+class FSNamesystemLock {
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+  private volatile FSNamesystemMetrics metrics = null;
+
+  /* The operation and acquisition time of the outermost hold of a thread */
+  private static class Hold {
+    String op;
+    long acquired;
+  }
+  private final ThreadLocal<Hold> holds = new ThreadLocal<Hold>() {
+    protected Hold initialValue() {
+      return new Hold();
+    }
+  };
+
+  void setMetrics(FSNamesystemMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  void readLock(String op) {
+    long start = System.nanoTime();
+    lock.readLock().lock();
+    if (lock.getReadHoldCount() == 1 && !lock.isWriteLockedByCurrentThread()) {
+      acquired(op, start, false);
+    }
+  }
+
+  void readUnlock() {
+    if (lock.getReadHoldCount() == 1 && !lock.isWriteLockedByCurrentThread()) {
+      released(false);
+    }
+    lock.readLock().unlock();
+  }
+
+  void writeLock(String op) {
+    long start = System.nanoTime();
+    lock.writeLock().lock();
+    if (lock.getWriteHoldCount() == 1) {
+      acquired(op, start, true);
+    }
+  }
+
+  void writeUnlock() {
+    if (lock.getWriteHoldCount() == 1) {
+      released(true);
+    }
+    lock.writeLock().unlock();
+  }
+
+  /** Return the number of threads waiting for the lock. */
+  int getQueueLength() {
+    return lock.getQueueLength();
+  }
+
+  private void acquired(String op, long start, boolean write) {
+    Hold hold = holds.get();
+    hold.op = op;
+    hold.acquired = System.nanoTime();
+    FSNamesystemMetrics m = metrics;
+    if (m != null) {
+      m.addLockWaitTime(op, write, (hold.acquired - start) / 1000);
+    }
+  }
+
+  private void released(boolean write) {
+    Hold hold = holds.get();
+    FSNamesystemMetrics m = metrics;
+    if (m != null && hold.op != null) {
+      m.addLockHoldTime(hold.op, write, (System.nanoTime() - hold.acquired) / 1000);
+    }
+    hold.op = null;
+  }
+}
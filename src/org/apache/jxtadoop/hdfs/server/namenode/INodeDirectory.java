@@ -98,7 +98,7 @@ class INodeDirectory extends INode {
     return getChildINode(string2Bytes(name));
   }
 
-  private INode getChildINode(byte[] name) {
+  INode getChildINode(byte[] name) {
     if (children == null) {
       return null;
     }
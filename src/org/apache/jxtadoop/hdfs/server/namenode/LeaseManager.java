@@ -342,8 +342,11 @@ public class LeaseManager {
     /** Check leases periodically. */
     public void run() {
       for(; fsnamesystem.isRunning(); ) {
-        synchronized(fsnamesystem) {
+        fsnamesystem.writeLock("checkLeases");
+        try {
           checkLeases();
+        } finally {
+          fsnamesystem.writeUnlock();
         }
 
         try {
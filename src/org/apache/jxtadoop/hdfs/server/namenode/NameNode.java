@@ -40,9 +40,11 @@ import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.jxtadoop.hdfs.protocol.ClientProtocol;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
 import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.DirectoryListing;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
 import org.apache.jxtadoop.hdfs.protocol.FSConstants;
 import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.protocol.PathResults;
 import org.apache.jxtadoop.hdfs.protocol.UnregisteredDatanodeException;
 import org.apache.jxtadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.jxtadoop.hdfs.server.common.IncorrectVersionException;
@@ -336,6 +338,15 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return namesystem.getBlockLocations(getClientMachine(), 
                                         src, offset, length);
   }
+
+  /** {@inheritDoc} */
+  public PathResults getBlockLocations(String[] srcs, 
+                                       long offset, 
+                                       long length) throws IOException {
+    myMetrics.numGetBlockLocations.inc(srcs.length);
+    return namesystem.getBlockLocations(getClientMachine(), 
+                                        srcs, offset, length);
+  }
   
   private static String getClientMachine() {
     String clientMachine = Server.getRemoteAddress();
@@ -555,6 +566,22 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return files;
   }
 
+  /** {@inheritDoc} */
+  public DirectoryListing getListing(String src, String startAfter, int limit)
+    throws IOException {
+    DirectoryListing listing = namesystem.getListing(src, startAfter, limit);
+    if (listing != null) {
+      myMetrics.numGetListingOps.inc();
+    }
+    return listing;
+  }
+
+  /** {@inheritDoc} */
+  public PathResults getListing(String[] srcs) throws IOException {
+    myMetrics.numGetListingOps.inc(srcs.length);
+    return namesystem.getListing(srcs);
+  }
+
   /**
    * Get the file info for a specific file.
    * @param src The string representation of the path to the file
@@ -567,6 +594,12 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return namesystem.getFileInfo(src);
   }
 
+  /** {@inheritDoc} */
+  public PathResults getFileInfo(String[] srcs) throws IOException {
+    myMetrics.numFileInfoOps.inc(srcs.length);
+    return namesystem.getFileInfo(srcs);
+  }
+
   /** @inheritDoc */
   public long[] getStats() throws IOException {
     return namesystem.getStats();
@@ -655,6 +688,11 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return namesystem.getContentSummary(path);
   }
 
+  /** {@inheritDoc} */
+  public PathResults getContentSummary(String[] paths) throws IOException {
+    return namesystem.getContentSummary(paths);
+  }
+
   /** {@inheritDoc} */
   public void setQuota(String path, long namespaceQuota, long diskspaceQuota) 
                        throws IOException {
@@ -713,6 +751,34 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     return null;
   }
 
+  public DatanodeCommand blockReportDelta(DatanodeRegistration nodeReg,
+                                          long generation,
+                                          long[] added,
+                                          long[] removed) throws IOException {
+    verifyRequest(nodeReg);
+    BlockListAsLongs addedList = new BlockListAsLongs(added);
+    BlockListAsLongs removedList = new BlockListAsLongs(removed);
+    stateChangeLog.debug("*BLOCK* NameNode.blockReportDelta: "
+           +"from "+nodeReg.getPeerId()+" "+addedList.getNumberOfBlocks()
+           +" added "+removedList.getNumberOfBlocks()+" removed blocks");
+
+    if (!namesystem.processReportDelta(nodeReg, generation,
+                                       addedList, removedList))
+      return DatanodeCommand.BLOCKREPORT;
+    if (getFSImage().isUpgradeFinalized())
+      return DatanodeCommand.FINALIZE;
+    return null;
+  }
+
+  public void reportLatencies(DatanodeRegistration nodeReg,
+                              String[] peers,
+                              long[] rtts) throws IOException {
+    verifyRequest(nodeReg);
+    stateChangeLog.debug("*BLOCK* NameNode.reportLatencies: "
+           +"from "+nodeReg.getPeerId()+" "+peers.length+" peers");
+    namesystem.reportLatencies(nodeReg, peers, rtts);
+  }
+
   public void blockReceived(DatanodeRegistration nodeReg, 
                             Block blocks[],
                             String delHints[]) throws IOException {
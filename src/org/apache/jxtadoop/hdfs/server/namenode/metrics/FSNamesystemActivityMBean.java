@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode.metrics;
+
+import javax.management.ObjectName;
+
+import org.apache.jxtadoop.metrics.util.MBeanUtil;
+import org.apache.jxtadoop.metrics.util.MetricsDynamicMBeanBase;
+import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+
+/**
+ * 
+ * This is the JMX MBean for reporting the FSNamesystem metrics, the
+ * namespace lock wait and hold time histograms included.
+ * The MBean is register using the name
+ *        "hadoop:service=NameNode,name=FSNamesystemActivity"
+ * <p>
+ * The histograms of an operation appear once it first took the lock, the
+ * MBean info being rebuilt when the registry grows.
+ */
+public class FSNamesystemActivityMBean extends MetricsDynamicMBeanBase {
+  final private ObjectName mbeanName;
+
+  protected FSNamesystemActivityMBean(final MetricsRegistry mr) {
+    super(mr, "Activity statistics of the FSNamesystem");
+    mbeanName = MBeanUtil.registerMBean("NameNode", "FSNamesystemActivity", this);
+  }
+
+  public void shutdown() {
+    if (mbeanName != null)
+      MBeanUtil.unregisterMBean(mbeanName);
+  }
+}
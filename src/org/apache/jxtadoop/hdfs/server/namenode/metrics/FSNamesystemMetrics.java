@@ -20,6 +20,11 @@ package org.apache.jxtadoop.hdfs.server.namenode.metrics;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.hdfs.server.namenode.FSNamesystem;
 import org.apache.jxtadoop.metrics.MetricsContext;
@@ -27,6 +32,7 @@ import org.apache.jxtadoop.metrics.MetricsRecord;
 import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.Updater;
 import org.apache.jxtadoop.metrics.util.MetricsBase;
+import org.apache.jxtadoop.metrics.util.MetricsHistogram;
 import org.apache.jxtadoop.metrics.util.MetricsIntValue;
 import org.apache.jxtadoop.metrics.util.MetricsLongValue;
 import org.apache.jxtadoop.metrics.util.MetricsRegistry;
@@ -37,6 +43,13 @@ import org.apache.jxtadoop.metrics.util.MetricsRegistry;
  * and publishing them through the metrics interfaces.
  * The SNamesystem creates and registers the JMX MBean.
  * <p>
+ * The namespace lock histograms are registered on the first use of the
+ * lock by each operation, so the registry is copied under its lock before
+ * being pushed, and they are published over JMX by the
+ * {@link FSNamesystemActivityMBean}. They are then looked up without
+ * locking, so that the readers of the namespace do not wait for each other
+ * on the metrics.
+ * <p>
  * This class has a number of metrics variables that are publicly accessible;
  * these variables (objects) have methods to update their values;
  *  for example:
@@ -62,6 +75,18 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue scheduledReplicationBlocks = new MetricsIntValue("ScheduledReplicationBlocks", registry);
   final MetricsIntValue missingBlocks = new MetricsIntValue("MissingBlocks", registry);    
   final MetricsIntValue blockCapacity = new MetricsIntValue("BlockCapacity", registry);
+  final MetricsIntValue lockQueueLength = new MetricsIntValue("LockQueueLength", registry);
+  private final FSNamesystemActivityMBean fsNamesystemActivityMBean;
+
+  /* the lock histograms by operation */
+  private final ConcurrentMap<String, MetricsHistogram> readLockWait =
+    new ConcurrentHashMap<String, MetricsHistogram>();
+  private final ConcurrentMap<String, MetricsHistogram> readLockHold =
+    new ConcurrentHashMap<String, MetricsHistogram>();
+  private final ConcurrentMap<String, MetricsHistogram> writeLockWait =
+    new ConcurrentHashMap<String, MetricsHistogram>();
+  private final ConcurrentMap<String, MetricsHistogram> writeLockHold =
+    new ConcurrentHashMap<String, MetricsHistogram>();
    
   public FSNamesystemMetrics(Configuration conf) {
     String sessionId = conf.get("session.id");
@@ -71,10 +96,61 @@ public class FSNamesystemMetrics implements Updater {
     metricsRecord = MetricsUtil.createRecord(metricsContext, "FSNamesystem");
     metricsRecord.setTag("sessionId", sessionId);
     metricsContext.registerUpdater(this);
+    fsNamesystemActivityMBean = new FSNamesystemActivityMBean(registry);
     log.info("Initializing FSNamesystemMetrics using context object:" +
               metricsContext.getClass().getName());
   }
 
+  public void shutdown() {
+    if (fsNamesystemActivityMBean != null)
+      fsNamesystemActivityMBean.shutdown();
+  }
+
+  /**
+   * Count the time spent waiting for the namespace lock.
+   * @param op the operation taking the lock
+   * @param write true for the write lock
+   * @param time the wait time in microseconds
+   */
+  public void addLockWaitTime(String op, boolean write, long time) {
+    if (write) {
+      getLockHistogram(writeLockWait, "WriteLockWait_", op).inc(time);
+    } else {
+      getLockHistogram(readLockWait, "ReadLockWait_", op).inc(time);
+    }
+  }
+
+  /**
+   * Count the time the namespace lock was held.
+   * @param op the operation holding the lock
+   * @param write true for the write lock
+   * @param time the hold time in microseconds
+   */
+  public void addLockHoldTime(String op, boolean write, long time) {
+    if (write) {
+      getLockHistogram(writeLockHold, "WriteLockHold_", op).inc(time);
+    } else {
+      getLockHistogram(readLockHold, "ReadLockHold_", op).inc(time);
+    }
+  }
+
+  private MetricsHistogram getLockHistogram(
+      ConcurrentMap<String, MetricsHistogram> histograms, String prefix, String op) {
+    MetricsHistogram histogram = histograms.get(op);
+    if (histogram != null) {
+      return histogram;
+    }
+    String name = prefix + op;
+    synchronized (registry) {
+      histogram = (MetricsHistogram)registry.get(name);
+      if (histogram == null) {
+        histogram = new MetricsHistogram(name, registry);
+      }
+    }
+    histograms.putIfAbsent(op, histogram);
+    return histogram;
+  }
+
   private int roundBytesToGBytes(long bytes) {
     return Math.round(((float)bytes/(1024 * 1024 * 1024)));
   }
@@ -117,8 +193,13 @@ public class FSNamesystemMetrics implements Updater {
                                       getScheduledReplicationBlocks());
       missingBlocks.set((int)fsNameSystem.getMissingBlocksCount());
       blockCapacity.set(fsNameSystem.getBlockCapacity());
+      lockQueueLength.set(fsNameSystem.getLockQueueLength());
 
-      for (MetricsBase m : registry.getMetricsList()) {
+      List<MetricsBase> metrics;
+      synchronized (registry) {
+        metrics = new ArrayList<MetricsBase>(registry.getMetricsList());
+      }
+      for (MetricsBase m : metrics) {
         m.pushMetric(metricsRecord);
       }
     }
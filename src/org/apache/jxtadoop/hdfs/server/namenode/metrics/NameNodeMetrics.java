@@ -76,12 +76,22 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("Syncs", registry, "Journal Sync");
     public MetricsTimeVaryingInt transactionsBatchedInSync = 
                     new MetricsTimeVaryingInt("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
+    public MetricsTimeVaryingRate syncLatency =
+                    new MetricsTimeVaryingRate("SyncLatency", registry, "Journal Sync Wait of the handlers");
+    public MetricsTimeVaryingRate syncBatchSize =
+                    new MetricsTimeVaryingRate("SyncBatchSize", registry, "Journal Transactions per Sync");
+    public MetricsIntValue syncsPerSecond =
+                    new MetricsIntValue("SyncsPerSecond", registry, "Journal Syncs per second");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate blockReportDelta =
+                    new MetricsTimeVaryingRate("blockReportDelta", registry, "Block Report Delta");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
                     new MetricsIntValue("fsImageLoadTime", registry, "Time loading FS Image at Startup");
+    public MetricsIntValue editsReplayRate =
+                    new MetricsIntValue("EditsReplayRate", registry, "Edits per second replayed at Startup");
     public MetricsIntValue numBlocksCorrupted =
                     new MetricsIntValue("BlocksCorrupted", registry);
 
@@ -127,6 +137,9 @@ public class NameNodeMetrics implements Updater {
     public void resetAllMinMax() {
       transactions.resetMinMax();
       syncs.resetMinMax();
+      syncLatency.resetMinMax();
+      syncBatchSize.resetMinMax();
       blockReport.resetMinMax();
+      blockReportDelta.resetMinMax();
     }
 }
@@ -37,8 +37,10 @@ public interface DatanodeProtocol extends VersionedProtocol {
   /**
    * 19: SendHeartbeat returns an array of DatanodeCommand objects
    *     in stead of a DatanodeCommand object.
+   * 20: blockReportDelta introduced.
+   * 21: reportLatencies introduced.
    */
-  public static final long versionID = 19L;
+  public static final long versionID = 21L;
   
   // error code
   final static int NOTIFY = 0;
@@ -56,6 +58,7 @@ public interface DatanodeProtocol extends VersionedProtocol {
   final static int DNA_REGISTER = 4;   // re-register
   final static int DNA_FINALIZE = 5;   // finalize previous upgrade
   final static int DNA_RECOVERBLOCK = 6;  // request a block recovery
+  final static int DNA_BLOCKREPORT = 7;   // send a full block report
 
   /** 
    * Register Datanode.
@@ -99,6 +102,39 @@ public interface DatanodeProtocol extends VersionedProtocol {
    */
   public DatanodeCommand blockReport(DatanodeRegistration registration,
                                      long[] blocks) throws IOException;
+
+  /**
+   * blockReportDelta() tells the NameNode about the blocks added and
+   * removed since the last block report it acknowledged. The delta is
+   * only applied when the generation matches the one of the NameNode,
+   * which is 0 after a full report and is incremented by each delta.
+   * @param registration
+   * @param generation - the generation of the last acknowledged report
+   * @param added - the blocks added, as an array of longs
+   * @param removed - the blocks removed, as an array of longs
+   * 
+   * @return - {@link DatanodeCommand#BLOCKREPORT} if the generation does
+   *     not match and a full report is required, the next command for DN
+   *     to process otherwise.
+   * @throws IOException
+   */
+  public DatanodeCommand blockReportDelta(DatanodeRegistration registration,
+                                          long generation,
+                                          long[] added,
+                                          long[] removed) throws IOException;
+
+  /**
+   * reportLatencies() tells the NameNode about the round trip times the
+   * DataNode measured to its peers since the last report. The NameNode
+   * clusters the DataNodes into racks from them.
+   * @param registration
+   * @param peers - the peer identifiers, without URN header
+   * @param rtts - the round trip times to the peers, in ms
+   * @throws IOException
+   */
+  public void reportLatencies(DatanodeRegistration registration,
+                              String[] peers,
+                              long[] rtts) throws IOException;
     
   /**
    * blockReceived() allows the DataNode to tell the NameNode about
@@ -18,6 +18,10 @@ import java.io.InputStream;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,6 +41,7 @@ import org.apache.jxtadoop.io.DataOutputBuffer;
 import org.apache.jxtadoop.ipc.RemoteException;
 import org.apache.jxtadoop.net.NetUtils;
 import org.apache.jxtadoop.hdfs.p2p.P2PNetUtils;
+import org.apache.jxtadoop.hdfs.p2p.PeerLatencyTracker;
 import org.apache.jxtadoop.security.UserGroupInformation;
 import org.apache.jxtadoop.util.ReflectionUtils;
 
@@ -162,6 +167,86 @@ public class Client {
     }
   }
 
+  /** Notified on the connection thread when an asynchronous call completes.
+   * Implementations must not block. */
+  public interface Callback {
+    /** The call returned a value. */
+    void completed(Writable value);
+    
+    /** The call failed, either locally or remotely. */
+    void failed(IOException error);
+  }
+
+  /** A call whose caller does not wait for the result. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final JxtaSocketAddress jssa;
+    private final Callback callback;
+    
+    AsyncCall(Writable param, JxtaSocketAddress jssa, Callback callback) {
+      super(param);
+      this.jssa = jssa;
+      this.callback = callback;
+    }
+    
+    @Override
+    protected synchronized void callComplete() {
+      this.done = true;
+      notifyAll();                              // notify the waiting getters
+      if (callback != null) {
+        if (error != null) {
+          callback.failed(error);
+        } else {
+          callback.completed(value);
+        }
+      }
+    }
+    
+    /** An IPC call can not be withdrawn once sent. */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+    
+    public boolean isCancelled() {
+      return false;
+    }
+    
+    public synchronized boolean isDone() {
+      return done;
+    }
+    
+    public synchronized Writable get() 
+      throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return result();
+    }
+    
+    public synchronized Writable get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (!done) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call to " + jssa + " timed out");
+        }
+        wait(remaining);
+      }
+      return result();
+    }
+    
+    private Writable result() throws ExecutionException {
+      if (error == null) {
+        return value;
+      } else if (error instanceof RemoteException) {
+        error.fillInStackTrace();
+        throw new ExecutionException(error);
+      } else { // local exception
+        throw new ExecutionException(wrapException(jssa, error));
+      }
+    }
+  }
+
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
    * socket: responses may be delivered out of order. */
@@ -499,7 +584,10 @@ public class Client {
 
         int state = in.readInt();     // read call status
         if (state == Status.SUCCESS.state) {
-          Writable value = ReflectionUtils.newInstance(valueClass, conf);
+          Writable value = (call.param instanceof RPC.Invocation) ? 
+              ((RPC.Invocation)call.param).newValue(conf) : null;
+          if (value == null)
+            value = ReflectionUtils.newInstance(valueClass, conf);
           value.readFields(in);                 // read value
           call.setValue(value);
         } else if (state == Status.ERROR.state) {
@@ -709,6 +797,7 @@ public class Client {
                        throws InterruptedException, IOException {
     Call call = new Call(param);
     Connection connection = getConnection(pg, jssa, protocol, ticket, call);
+    long start = System.currentTimeMillis();
     connection.sendParam(call);                 // send the parameter
     boolean interrupted = false;
     synchronized (call) {
@@ -734,11 +823,32 @@ public class Client {
           throw wrapException(jssa, call.error);
         }
       } else {
+        // the fastest calls to a peer give its round trip time
+        PeerLatencyTracker.getTracker().addSample(jssa.getPeerId(),
+            System.currentTimeMillis() - start);
         return call.value;
       }
     }
   }
 
+  /** Send a call, passing <code>param</code>, to the IPC server running at
+   * <code>address</code> which is servicing the <code>protocol</code> protocol, 
+   * with the <code>ticket</code> credentials, without waiting for its value.
+   * Many calls can be in flight at once on the connection.
+   * @param callback notified when the call completes, may be null
+   * @return the future value of the call; the cause of an 
+   *         {@link ExecutionException} is an {@link IOException} 
+   */
+  public Future<Writable> callAsync(Writable param, PeerGroup pg, 
+                                    JxtaSocketAddress jssa, Class<?> protocol, 
+                                    UserGroupInformation ticket, 
+                                    Callback callback) throws IOException {
+    AsyncCall call = new AsyncCall(param, jssa, callback);
+    Connection connection = getConnection(pg, jssa, protocol, ticket, call);
+    connection.sendParam(call);                 // send the parameter
+    return call;
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
@@ -0,0 +1,312 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jxtadoop.conf.Configurable;
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.io.MD5Hash;
+import org.apache.jxtadoop.io.UTF8;
+import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableFactories;
+import org.apache.jxtadoop.io.WritableUtils;
+
+/**
+ * The compact RPC encoding negotiated between the peers of a protocol.
+ * <p>
+ * Both sides build the same {@link MethodTable} from the protocol interface,
+ * so that a call carries the table fingerprint and a method index instead of
+ * the method and parameter class names. Values are written against the
+ * class declared by the method : the class name is only sent for a
+ * {@link Writable} whose class is not the declared one, and arrays no longer
+ * repeat the component class name for each element.
+ */
+class CompactCodec {
+  /* Value tags of the non primitive values */
+  private static final byte NULL = 0;
+  private static final byte DECLARED = 1;
+  private static final byte NAMED = 2;
+
+  private static final Map<Class<?>, MethodTable> TABLES_BY_PROTOCOL =
+    new ConcurrentHashMap<Class<?>, MethodTable>();
+  private static final Map<Long, MethodTable> TABLES_BY_FINGERPRINT =
+    new ConcurrentHashMap<Long, MethodTable>();
+
+  private CompactCodec() {}
+
+  /**
+   * The methods of a protocol sorted by signature.
+   */
+  static class MethodTable {
+    private final Class<?> protocol;
+    private final Method[] methods;
+    private final Map<Method, Integer> indexes = new HashMap<Method, Integer>();
+    private final long fingerprint;
+
+    private MethodTable(Class<?> protocol) {
+      this.protocol = protocol;
+      this.methods = protocol.getMethods();
+      Arrays.sort(methods, new Comparator<Method>() {
+        public int compare(Method m1, Method m2) {
+          return signature(m1).compareTo(signature(m2));
+        }
+      });
+
+      StringBuilder sb = new StringBuilder(protocol.getName());
+      for (int i = 0; i < methods.length; i++) {
+        indexes.put(methods[i], i);
+        sb.append(';').append(signature(methods[i]));
+      }
+      fingerprint = MD5Hash.digest(sb.toString()).halfDigest();
+    }
+
+    private static String signature(Method method) {
+      StringBuilder sb = new StringBuilder(method.getName()).append('(');
+      for (Class<?> c : method.getParameterTypes()) {
+        sb.append(c.getName()).append(',');
+      }
+      return sb.append(')').append(method.getReturnType().getName()).toString();
+    }
+
+    Class<?> getProtocol() { return protocol; }
+
+    long getFingerprint() { return fingerprint; }
+
+    /** Return the index of the method, -1 if not part of the protocol */
+    int indexOf(Method method) {
+      Integer index = indexes.get(method);
+      return (index == null) ? -1 : index.intValue();
+    }
+
+    Method get(int index) throws IOException {
+      if (index < 0 || index >= methods.length)
+        throw new IOException("Unknown method #" + index + " of " + protocol.getName());
+      return methods[index];
+    }
+  }
+
+  /**
+   * Get the method table of a protocol and make it known to the readers.
+   * @param protocol the protocol interface
+   * @return the method table
+   */
+  static MethodTable getTable(Class<?> protocol) {
+    MethodTable table = TABLES_BY_PROTOCOL.get(protocol);
+    if (table == null) {
+      table = new MethodTable(protocol);
+      TABLES_BY_PROTOCOL.put(protocol, table);
+      TABLES_BY_FINGERPRINT.put(table.getFingerprint(), table);
+    }
+    return table;
+  }
+
+  /**
+   * Get a method table already negotiated.
+   * @param fingerprint the table fingerprint
+   * @return the method table
+   * @throws IOException if the table has not been negotiated
+   */
+  static MethodTable getTable(long fingerprint) throws IOException {
+    MethodTable table = TABLES_BY_FINGERPRINT.get(fingerprint);
+    if (table == null)
+      throw new IOException("Unknown method table " + Long.toHexString(fingerprint));
+    return table;
+  }
+
+  /** Write a value against its declared class. */
+  static void writeObject(DataOutput out, Object instance,
+                          Class<?> declaredClass) throws IOException {
+    if (declaredClass.isPrimitive()) {
+      if (declaredClass == Boolean.TYPE) {
+        out.writeBoolean(((Boolean)instance).booleanValue());
+      } else if (declaredClass == Character.TYPE) {
+        out.writeChar(((Character)instance).charValue());
+      } else if (declaredClass == Byte.TYPE) {
+        out.writeByte(((Byte)instance).byteValue());
+      } else if (declaredClass == Short.TYPE) {
+        out.writeShort(((Short)instance).shortValue());
+      } else if (declaredClass == Integer.TYPE) {
+        out.writeInt(((Integer)instance).intValue());
+      } else if (declaredClass == Long.TYPE) {
+        out.writeLong(((Long)instance).longValue());
+      } else if (declaredClass == Float.TYPE) {
+        out.writeFloat(((Float)instance).floatValue());
+      } else if (declaredClass == Double.TYPE) {
+        out.writeDouble(((Double)instance).doubleValue());
+      } else if (declaredClass != Void.TYPE) {
+        throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+      }
+      return;
+    }
+
+    if (instance == null) {
+      out.writeByte(NULL);
+      return;
+    }
+
+    if (declaredClass.isArray()) {
+      out.writeByte(DECLARED);
+      Class<?> componentClass = declaredClass.getComponentType();
+      int length = Array.getLength(instance);
+      WritableUtils.writeVInt(out, length);
+      if (componentClass == Byte.TYPE) {
+        out.write((byte[])instance, 0, length);
+      } else if (componentClass == Long.TYPE) {
+        long[] longs = (long[])instance;
+        for (int i = 0; i < length; i++)
+          out.writeLong(longs[i]);
+      } else {
+        for (int i = 0; i < length; i++)
+          writeObject(out, Array.get(instance, i), componentClass);
+      }
+    } else if (declaredClass == String.class) {
+      out.writeByte(DECLARED);
+      UTF8.writeString(out, (String)instance);
+    } else if (declaredClass.isEnum()) {
+      out.writeByte(DECLARED);
+      UTF8.writeString(out, ((Enum<?>)instance).name());
+    } else if (Writable.class.isAssignableFrom(declaredClass)) {
+      if (instance.getClass() == declaredClass) {
+        out.writeByte(DECLARED);
+      } else {
+        out.writeByte(NAMED);
+        UTF8.writeString(out, instance.getClass().getName());
+      }
+      ((Writable)instance).write(out);
+    } else {
+      throw new IOException("Can't write: "+instance+" as "+declaredClass);
+    }
+  }
+
+  /** Read a value written against its declared class. */
+  @SuppressWarnings("unchecked")
+  static Object readObject(DataInput in, Class<?> declaredClass,
+                           Configuration conf) throws IOException {
+    if (declaredClass.isPrimitive()) {
+      if (declaredClass == Boolean.TYPE) {
+        return Boolean.valueOf(in.readBoolean());
+      } else if (declaredClass == Character.TYPE) {
+        return Character.valueOf(in.readChar());
+      } else if (declaredClass == Byte.TYPE) {
+        return Byte.valueOf(in.readByte());
+      } else if (declaredClass == Short.TYPE) {
+        return Short.valueOf(in.readShort());
+      } else if (declaredClass == Integer.TYPE) {
+        return Integer.valueOf(in.readInt());
+      } else if (declaredClass == Long.TYPE) {
+        return Long.valueOf(in.readLong());
+      } else if (declaredClass == Float.TYPE) {
+        return Float.valueOf(in.readFloat());
+      } else if (declaredClass == Double.TYPE) {
+        return Double.valueOf(in.readDouble());
+      } else if (declaredClass == Void.TYPE) {
+        return null;
+      }
+      throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+    }
+
+    byte tag = in.readByte();
+    if (tag == NULL)
+      return null;
+
+    if (declaredClass.isArray()) {
+      Class<?> componentClass = declaredClass.getComponentType();
+      int length = WritableUtils.readVInt(in);
+      if (componentClass == Byte.TYPE) {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+      } else if (componentClass == Long.TYPE) {
+        long[] longs = new long[length];
+        for (int i = 0; i < length; i++)
+          longs[i] = in.readLong();
+        return longs;
+      }
+      Object instance = Array.newInstance(componentClass, length);
+      for (int i = 0; i < length; i++)
+        Array.set(instance, i, readObject(in, componentClass, conf));
+      return instance;
+    } else if (declaredClass == String.class) {
+      return UTF8.readString(in);
+    } else if (declaredClass.isEnum()) {
+      return Enum.valueOf((Class<? extends Enum>)declaredClass, UTF8.readString(in));
+    }
+
+    Class<?> instanceClass = declaredClass;
+    if (tag == NAMED) {
+      String className = UTF8.readString(in);
+      try {
+        instanceClass = conf.getClassByName(className);
+      } catch (ClassNotFoundException e) {
+        throw new IOException("readObject can't find class " + className);
+      }
+    }
+    Writable writable =
+      WritableFactories.newInstance((Class<? extends Writable>)instanceClass, conf);
+    writable.readFields(in);
+    return writable;
+  }
+
+  /**
+   * A return value written against the return type of the method called.
+   */
+  static class Value implements Writable, Configurable {
+    private Class<?> declaredClass;
+    private Object instance;
+    private Configuration conf;
+
+    Value(Class<?> declaredClass, Object instance, Configuration conf) {
+      this.declaredClass = declaredClass;
+      this.instance = instance;
+      this.conf = conf;
+    }
+
+    /** Return the instance, or null if none. */
+    public Object get() { return instance; }
+
+    public void readFields(DataInput in) throws IOException {
+      instance = readObject(in, declaredClass, conf);
+    }
+
+    public void write(DataOutput out) throws IOException {
+      writeObject(out, instance, declaredClass);
+    }
+
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+    }
+
+    public Configuration getConf() {
+      return conf;
+    }
+
+    public String toString() {
+      return "CV[class=" + declaredClass + ",value=" + instance + "]";
+    }
+  }
+}
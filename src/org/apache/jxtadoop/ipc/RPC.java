@@ -30,6 +30,10 @@ import java.net.SocketTimeoutException;
 import java.io.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -49,6 +53,7 @@ import org.apache.jxtadoop.conf.Configuration;
 import org.apache.jxtadoop.io.ObjectWritable;
 import org.apache.jxtadoop.io.UTF8;
 import org.apache.jxtadoop.io.Writable;
+import org.apache.jxtadoop.io.WritableUtils;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -77,13 +82,23 @@ public class RPC {
 
   private RPC() {}                                  // no public ctor
 
+  /** The pseudo method negotiating the compact encoding of a protocol */
+  static final String NEGOTIATE_COMPACT_METHOD = "$negotiateCompactEncoding";
 
-  /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  /** A method invocation, including the method name and its parameters.
+   * A compact invocation carries the index of the method in the negotiated
+   * {@link CompactCodec.MethodTable} instead of the method and class names.
+   */
+  static class Invocation implements Writable, Configurable {
+    /** Starts a compact invocation, where the method name length is. */
+    private static final short COMPACT = -1;
+    
     private String methodName;
     private Class[] parameterClasses;
     private Object[] parameters;
     private Configuration conf;
+    private CompactCodec.MethodTable table = null;
+    private Method method = null;
 
     public Invocation() {}
 
@@ -93,6 +108,40 @@ public class RPC {
       this.parameters = parameters;
     }
 
+    /** Use the compact encoding if the method belongs to the table. */
+    Invocation(Method method, Object[] parameters, 
+               CompactCodec.MethodTable table) {
+      this(method, parameters);
+      if (table != null && table.indexOf(method) >= 0) {
+        this.table = table;
+        this.method = method;
+      }
+    }
+
+    Invocation(String methodName, Class[] parameterClasses, 
+               Object[] parameters) {
+      this.methodName = methodName;
+      this.parameterClasses = parameterClasses;
+      this.parameters = parameters;
+    }
+
+    /** True if the invocation uses the compact encoding. */
+    boolean isCompact() { return table != null; }
+
+    /** The method invoked, only known for a compact invocation. */
+    Method getMethod() { return method; }
+
+    /** The table the method belongs to, null for a legacy invocation. */
+    CompactCodec.MethodTable getTable() { return table; }
+
+    /** Return the writable the value of a compact invocation is read into,
+     * null for the legacy encoding. */
+    Writable newValue(Configuration conf) {
+      if (table == null)
+        return null;
+      return new CompactCodec.Value(method.getReturnType(), null, conf);
+    }
+
     /** The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
@@ -103,7 +152,22 @@ public class RPC {
     public Object[] getParameters() { return parameters; }
 
     public void readFields(DataInput in) throws IOException {
-      methodName = UTF8.readString(in);
+      short length = in.readShort();
+      if (length == COMPACT) {
+        table = CompactCodec.getTable(in.readLong());
+        method = table.get(WritableUtils.readVInt(in));
+        methodName = method.getName();
+        parameterClasses = method.getParameterTypes();
+        parameters = new Object[parameterClasses.length];
+        for (int i = 0; i < parameters.length; i++) {
+          parameters[i] = CompactCodec.readObject(in, parameterClasses[i], this.conf);
+        }
+        return;
+      }
+      
+      byte[] name = new byte[length & 0xffff];
+      in.readFully(name);
+      methodName = new String(name, "UTF-8");
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
       ObjectWritable objectWritable = new ObjectWritable();
@@ -114,6 +178,16 @@ public class RPC {
     }
 
     public void write(DataOutput out) throws IOException {
+      if (table != null) {
+        out.writeShort(COMPACT);
+        out.writeLong(table.getFingerprint());
+        WritableUtils.writeVInt(out, table.indexOf(method));
+        for (int i = 0; i < parameterClasses.length; i++) {
+          CompactCodec.writeObject(out, parameters[i], parameterClasses[i]);
+        }
+        return;
+      }
+      
       UTF8.writeString(out, methodName);
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
@@ -210,6 +284,7 @@ public class RPC {
     private UserGroupInformation ticket;
     private Client client;
     private boolean isClosed = false;
+    private CompactCodec.MethodTable table = null;
 
     public Invoker(PeerGroup pg, JxtaSocketAddress js, UserGroupInformation ticket, 
                    Configuration conf, SocketFactory factory) {
@@ -227,12 +302,47 @@ public class RPC {
         startTime = System.currentTimeMillis();
       }
 
-      ObjectWritable value = (ObjectWritable) client.call(new Invocation(method, args), rpcpg, jssockadd,method.getDeclaringClass(),ticket);
+      Writable value = client.call(new Invocation(method, args, table), rpcpg, jssockadd,method.getDeclaringClass(),ticket);
       
       long callTime = System.currentTimeMillis() - startTime;
       LOG.debug("Call: " + method.getName() + " " + callTime + " at peer ..."+jssockadd.getPeerId().toString().substring(jssockadd.getPeerId().toString().length()-8));
       
-      return value.get();
+      return unwrap(value);
+    }
+    
+    /* Send the call without waiting for its value */
+    private Future<Writable> invokeAsync(Method method, Object[] args, 
+                                         Client.Callback callback) throws IOException {
+      return client.callAsync(new Invocation(method, args, table), rpcpg, jssockadd, 
+                              method.getDeclaringClass(), ticket, callback);
+    }
+    
+    private static Object unwrap(Writable value) {
+      if (value instanceof CompactCodec.Value)
+        return ((CompactCodec.Value)value).get();
+      return ((ObjectWritable)value).get();
+    }
+    
+    /* Agree with the server on the method table of the protocol. A server
+     * not supporting the compact encoding rejects the pseudo method and 
+     * the legacy encoding is kept.
+     */
+    private void negotiateCompactEncoding(Class<?> protocol) throws IOException {
+      CompactCodec.MethodTable t = CompactCodec.getTable(protocol);
+      Invocation negotiation = new Invocation(NEGOTIATE_COMPACT_METHOD, 
+          new Class[] { String.class, Long.TYPE }, 
+          new Object[] { protocol.getName(), t.getFingerprint() });
+      try {
+        ObjectWritable value = (ObjectWritable) client.call(negotiation, rpcpg, jssockadd, protocol, ticket);
+        if (Boolean.TRUE.equals(value.get())) {
+          table = t;
+        }
+      } catch (RemoteException re) {
+        LOG.debug("Compact encoding not supported for " + protocol.getName() + " : " + re.getClassName());
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      LOG.debug("Encoding of " + protocol.getName() + " : " + (table == null ? "legacy" : "compact"));
     }
     
     /* close the IPC client that's responsible for this invoker's RPCs */ 
@@ -367,6 +477,9 @@ public class RPC {
     long serverVersion = proxy.getProtocolVersion(protocol.getName(), clientVersion);
     
     if (serverVersion == clientVersion) {
+      if (conf.getBoolean("ipc.rpc.compact.encoding", true)) {
+        ((Invoker)Proxy.getInvocationHandler(proxy)).negotiateCompactEncoding(protocol);
+      }
       return proxy;
     } else {
       throw new VersionMismatch(protocol.getName(), clientVersion, 
@@ -391,6 +504,88 @@ public class RPC {
     return getProxy(protocol, clientVersion, pg, jsocka, conf, NetUtils.getDefaultSocketFactory(conf));
   }
 
+  /**
+   * Issues the calls of a proxy without waiting for their values, so that
+   * many calls can be in flight on the connection to the server.
+   */
+  public static class AsyncProxy {
+    private final Invoker invoker;
+    
+    private AsyncProxy(Invoker invoker) {
+      this.invoker = invoker;
+    }
+    
+    /**
+     * Call a method of the protocol.
+     * @param method the protocol method
+     * @param args the method arguments
+     * @return the future return value; the cause of an 
+     *         {@link ExecutionException} is an {@link IOException}
+     * @throws IOException if the call could not be sent
+     */
+    public Future<Object> call(Method method, Object[] args) throws IOException {
+      return new ValueFuture(invoker.invokeAsync(method, args, null));
+    }
+    
+    /**
+     * Call a method of the protocol and get notified when it completes.
+     * @param method the protocol method
+     * @param args the method arguments
+     * @param callback notified on the connection thread, must not block
+     * @return the future return value
+     * @throws IOException if the call could not be sent
+     */
+    public Future<Object> call(Method method, Object[] args, 
+                               Client.Callback callback) throws IOException {
+      return new ValueFuture(invoker.invokeAsync(method, args, callback));
+    }
+  }
+  
+  /* Unwraps the value returned by the server */
+  private static class ValueFuture implements Future<Object> {
+    private final Future<Writable> future;
+    
+    ValueFuture(Future<Writable> future) {
+      this.future = future;
+    }
+    
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return future.cancel(mayInterruptIfRunning);
+    }
+    
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+    
+    public boolean isDone() {
+      return future.isDone();
+    }
+    
+    public Object get() throws InterruptedException, ExecutionException {
+      return Invoker.unwrap(future.get());
+    }
+    
+    public Object get(long timeout, TimeUnit unit) 
+      throws InterruptedException, ExecutionException, TimeoutException {
+      return Invoker.unwrap(future.get(timeout, unit));
+    }
+  }
+  
+  /**
+   * Get the asynchronous view of a proxy built by {@link #getProxy}.
+   * It shares the connection of the proxy.
+   * @param proxy the proxy
+   * @return the asynchronous proxy, null if not an RPC proxy
+   */
+  public static AsyncProxy getAsyncProxy(VersionedProtocol proxy) {
+    if (proxy == null || !Proxy.isProxyClass(proxy.getClass()))
+      return null;
+    InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+    if (!(handler instanceof Invoker))
+      return null;
+    return new AsyncProxy((Invoker)handler);
+  }
+
   /**
    * Stop this proxy and release its invoker's resource
    * @param proxy the proxy to be stopped
@@ -494,7 +689,22 @@ public class RPC {
     	this.instance = instance;
     	this.verbose = verbose;
     	this.authorize = conf.getBoolean(ServiceAuthorizationManager.SERVICE_AUTHORIZATION_CONFIG, false);
+    	
+    	// the method tables of the protocols served have to be known before
+    	// any negotiation, clients keep theirs across server restarts
+    	for (Class<?> c = instance.getClass(); c != null; c = c.getSuperclass()) {
+    	  registerMethodTables(c.getInterfaces());
+    	}
 }
+    
+    private static void registerMethodTables(Class<?>[] protocols) {
+      for (Class<?> protocol : protocols) {
+        if (VersionedProtocol.class.isAssignableFrom(protocol)) {
+          CompactCodec.getTable(protocol);
+          registerMethodTables(protocol.getInterfaces());
+        }
+      }
+    }
 
     public Writable call(Class<?> protocol, Writable param, long receivedTime) 
     throws IOException {
@@ -502,9 +712,21 @@ public class RPC {
         Invocation call = (Invocation)param;
         if (verbose) LOG.debug("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
+        if (NEGOTIATE_COMPACT_METHOD.equals(call.getMethodName())) {
+          return new ObjectWritable(Boolean.TYPE, 
+              negotiateCompactEncoding(protocol, call.getParameters()));
+        }
+        
+        Method method;
+        if (call.isCompact()) {
+          method = call.getMethod();
+          if (protocol == null || !method.getDeclaringClass().isAssignableFrom(protocol))
+            throw new IOException("Method " + call.getMethodName() + 
+                " is not part of " + protocol);
+        } else {
+          method = protocol.getMethod(call.getMethodName(),
                                    call.getParameterClasses());
+        }
         method.setAccessible(true);
 
         long startTime = System.currentTimeMillis();
@@ -536,6 +758,8 @@ public class RPC {
 
         if (verbose) LOG.debug("Return: "+value);
 
+        if (call.isCompact())
+          return new CompactCodec.Value(method.getReturnType(), value, getConf());
         return new ObjectWritable(method.getReturnType(), value);
 
       } catch (InvocationTargetException e) {
@@ -554,6 +778,17 @@ public class RPC {
       }
     }
 
+    /* Accept the compact encoding if the client built the same method 
+     * table for the protocol of the connection.
+     */
+    private boolean negotiateCompactEncoding(Class<?> protocol, Object[] params) {
+      if (protocol == null || !getConf().getBoolean("ipc.rpc.compact.encoding", true))
+        return false;
+      CompactCodec.MethodTable table = CompactCodec.getTable(protocol);
+      return protocol.getName().equals(params[0]) && 
+        Long.valueOf(table.getFingerprint()).equals(params[1]);
+    }
+
     @Override
     public void authorize(Subject user, ConnectionHeader connection) 
     throws AuthorizationException {
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A pool of the byte arrays the IPC responses are serialized into.
+ * <p>
+ * The arrays are grouped in power of two size classes, from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes. Each class keeps at most
+ * {@link #MAX_POOLED_BYTES_PER_CLASS} bytes of free arrays. Larger
+ * responses get an array of their own which is left to the garbage
+ * collector.
+ */
+class ResponseBufferPool {
+  static final int MIN_SIZE_SHIFT = 10;
+  static final int MAX_SIZE_SHIFT = 20;
+  static final int MIN_SIZE = 1 << MIN_SIZE_SHIFT;
+  static final int MAX_SIZE = 1 << MAX_SIZE_SHIFT;
+  static final int MAX_POOLED_BYTES_PER_CLASS = 1024 * 1024;
+
+  private final LinkedList<byte[]>[] freeArrays;
+
+  @SuppressWarnings("unchecked")
+  ResponseBufferPool() {
+    freeArrays = new LinkedList[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+    for (int i = 0; i < freeArrays.length; i++) {
+      freeArrays[i] = new LinkedList<byte[]>();
+    }
+  }
+
+  /** Return the index of the smallest size class holding size bytes,
+   * -1 if the size is larger than the largest class. */
+  private static int sizeClass(int size) {
+    if (size > MAX_SIZE)
+      return -1;
+    int shift = MIN_SIZE_SHIFT;
+    while ((1 << shift) < size)
+      shift++;
+    return shift - MIN_SIZE_SHIFT;
+  }
+
+  /**
+   * Get an array of at least size bytes.
+   * @param size the minimum length of the array
+   * @return a pooled array when the size has a size class
+   */
+  byte[] acquire(int size) {
+    int sc = sizeClass(size);
+    if (sc < 0)
+      return new byte[size];
+
+    LinkedList<byte[]> free = freeArrays[sc];
+    synchronized (free) {
+      if (!free.isEmpty())
+        return free.removeLast();
+    }
+    return new byte[1 << (sc + MIN_SIZE_SHIFT)];
+  }
+
+  /**
+   * Give an array back to the pool once its content has been written.
+   * Arrays not matching a size class or beyond the class budget are dropped.
+   * @param buf the array
+   */
+  void release(byte[] buf) {
+    if (buf == null || buf.length < MIN_SIZE || buf.length > MAX_SIZE
+        || Integer.bitCount(buf.length) != 1)
+      return;
+
+    LinkedList<byte[]> free = freeArrays[sizeClass(buf.length)];
+    synchronized (free) {
+      if ((free.size() + 1) * buf.length <= Math.max(MAX_POOLED_BYTES_PER_CLASS, buf.length))
+        free.addLast(buf);
+    }
+  }
+
+  /**
+   * An output stream serializing a response straight into a pooled array.
+   * The array is handed over with {@link #detach()} and the stream can
+   * then be reused for the next response.
+   */
+  class ResponseOutputStream extends OutputStream {
+    private byte[] buf = null;
+    private int count = 0;
+
+    private void ensureCapacity(int size) {
+      if (buf == null) {
+        buf = acquire(Math.max(size, MIN_SIZE));
+      } else if (size > buf.length) {
+        byte[] newbuf = acquire(Math.max(size, buf.length << 1));
+        System.arraycopy(buf, 0, newbuf, 0, count);
+        release(buf);
+        buf = newbuf;
+      }
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    /** Drop the content written so far. */
+    void reset() {
+      count = 0;
+    }
+
+    /**
+     * Hand the serialized response over. The returned buffer wraps the
+     * pooled array, which has to be {@link ResponseBufferPool#release(byte[])
+     * released} once written.
+     * @return the response
+     */
+    ByteBuffer detach() {
+      ensureCapacity(count);
+      ByteBuffer response = ByteBuffer.wrap(buf, 0, count);
+      buf = null;
+      count = 0;
+      return response;
+    }
+  }
+}
@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 
 import java.nio.ByteBuffer;
 
@@ -29,9 +28,14 @@ import java.util.List;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.security.auth.Subject;
 
@@ -76,6 +80,30 @@ public abstract class Server {
    * How many calls/handler are allowed in the queue.
    */
   private static final int MAX_QUEUE_SIZE_PER_HANDLER = 100;
+  /**
+   * How many connections can be multiplexed over the pooled readers.
+   */
+  private static final int MAX_READER_QUEUE_SIZE = 1024;
+  /**
+   * How long a pooled reader waits when none of its connections has data.
+   */
+  private static final int READER_IDLE_WAIT = 10;
+  /**
+   * How many calls a pooled reader takes from a connection before moving
+   * to the next one.
+   */
+  private static final int MAX_FRAMES_PER_READ = 16;
+  /**
+   * The largest connection header or call a client may send. Longer frames
+   * close the connection before anything is allocated for them.
+   */
+  private static final int MAX_DATA_LENGTH = 64*1024*1024;
+  /**
+   * A connection keeps its call buffer for the next calls only up to this
+   * size, so that a single large call does not pin its buffer for the
+   * lifetime of the connection.
+   */
+  private static final int MAX_RETAINED_DATA_LENGTH = 64*1024;
   /**
    * When the read or write buffer size is larger than this limit, i/o will be 
    * done in chunks of this size. Most RPC requests and responses would be
@@ -138,6 +166,11 @@ public abstract class Server {
   
   private int port;                               // port we listen on
   private int handlerCount;                       // number of handler threads
+  private int readerPoolSize;                     // number of pooled reader threads,
+                                                  // 0 for one reader per connection
+  private int readerQueueSize;                    // the max number of connections
+                                                  // served by the pooled readers
+  private int maxDataLength;                      // the max length of a frame
   private Class<? extends Writable> paramClass;   // class of call parameters
   private int maxIdleTime;                        // the maximum idle time after 
                                                   // which a client may be disconnected
@@ -167,6 +200,8 @@ public abstract class Server {
   private Responder responder = null;
   private int numConnections = 0;
   private Handler[] handlers = null;
+  private ReaderPool readerPool = null;
+  private final ResponseBufferPool responseBufferPool = new ResponseBufferPool();
 
   /**
    * A convenience method to bind to a given address and report 
@@ -207,6 +242,7 @@ public abstract class Server {
     private long timestamp;     // the time received when response is null
                                    // the time served when response is not null
     private ByteBuffer response;                      // the response for this call
+    private long responseQueued;  // the time the response was queued
 
     public Call(int id, Writable param, Connection connection) { 
       this.id = id;
@@ -264,6 +300,14 @@ public abstract class Server {
         this.setDaemon(true);
     }
     
+    public Listener(ServerSocket server) {
+    	acceptServer = server;
+    	port = server.getLocalPort();
+    	
+    	this.setName("IPC Server listener on " + port);
+    	this.setDaemon(true);
+    }
+    
     /** cleanup connections from connectionList. Choose a random range
      * to scan and also have a limit on the number of the connections
      * that will be cleanedup per run. The criteria for cleanup is the time
@@ -322,13 +366,15 @@ public abstract class Server {
       SERVER.set(Server.this);
       
       while (running) {	        
-    	 JxtaSocket s = null;
+    	 Socket s = null;
     	  
     	 try {
-			s = (JxtaSocket) acceptServer.accept();
+			s = acceptServer.accept();
 				
 			if(s != null) {
-				Connection c = new Connection(s, System.currentTimeMillis());
+				Connection c = (s instanceof JxtaSocket) ?
+						new Connection((JxtaSocket)s, System.currentTimeMillis()) :
+						new Connection(s, System.currentTimeMillis());
 		        
 				synchronized (connectionList) {
 			          connectionList.add(numConnections, c);
@@ -340,8 +386,15 @@ public abstract class Server {
 			              "; # active connections: " + numConnections +
 			              "; # queued calls: " + callQueue.size());
 				
-				Thread readthr = new Thread(new Reader(c),"Connection Reader Thread "+numConnections);
-				readthr.start();
+				if (readerPool != null) {
+					if (!readerPool.add(c)) {
+						LOG.warn(getName() + ": too many connections for the readers, disconnecting client " + c.getHostAddress());
+						closeConnection(c);
+					}
+				} else {
+					Thread readthr = new Thread(new Reader(c),"Connection Reader Thread "+numConnections);
+					readthr.start();
+				}
 			}						
 		}catch (OutOfMemoryError e) {
 	          LOG.warn("Out of Memory in server select", e);
@@ -351,7 +404,8 @@ public abstract class Server {
 		} catch (SocketTimeoutException e) {
 				cleanupConnections(true); 
 		} catch (IOException e) {
-			e.printStackTrace();
+			if (running)
+				e.printStackTrace();
 		} catch (Exception e) {
 			closeCurrentConnection(s, e);
         }
@@ -418,6 +472,11 @@ public abstract class Server {
   private class Responder extends Thread {
 			final static int PURGE_INTERVAL = 900000;
 			
+			// connections with responses left to be written
+			private final BlockingQueue<Connection> pendingConnections = 
+				new LinkedBlockingQueue<Connection>();
+			private final Timer purgeTimer = new Timer("IPC Server Responder purge", true);
+			
 		    Responder() throws IOException {
 		      this.setName("IPC Server Responder");
 		      this.setDaemon(true);
@@ -429,164 +488,192 @@ public abstract class Server {
 		      LOG.info(getName() + ": starting");
 		      SERVER.set(Server.this);
 		      
-		      long lastPurgeTime = 0;
+		      purgeTimer.schedule(new TimerTask() {
+		    	  public void run() {
+		    		  purge(System.currentTimeMillis());
+		    	  }
+		      }, PURGE_INTERVAL, PURGE_INTERVAL);
 
 		      while (running) {
+		    	  Connection c;
 		    	  try {
-						this.sleep(1000);
-		    	  } catch (InterruptedException e1) {}
-					
-		          // Step 1 : Processing connection call queues
-		    	  synchronized(connectionList) {
-		        	try {
-			        	for(int i=0; i < connectionList.size();i++) {
-			        		Connection c = connectionList.get(i);
-					        			
-					       	if (c.responseQueue.size() > 0) {
-					       		LOG.debug("Pending calls for connection "+c+" : "+c.responseQueue.size());
-					       		processResponse(c.responseQueue, false);
-					       	}
-			        	}
-		        	} catch (Exception e) {
-		        		LOG.warn("Exception in Responder " + 
-		        				StringUtils.stringifyException(e));
-		        	}		        	
-		        }
-		        
-		        // Step 2 : Purging call queues & old connections 
-		        long now = System.currentTimeMillis();
-		        if (now < lastPurgeTime + PURGE_INTERVAL) {
-		            continue;
-		        }
-		        lastPurgeTime = now;
-		        
-		        synchronized(connectionList) {
-		        	try {
-		        		int purge =0;
-		        		
-			        	for(int i=0; i < connectionList.size();i++) {
-			        		Connection c = connectionList.get(i);
-			        		
-			        		if (c.responseQueue.size() > 0) {
-			        			LOG.debug("Response queue not empty for connection "+c);
-			        			Call call;
-			        			
-				        		synchronized(c.responseQueue) {
-				        			call = c.responseQueue.removeFirst();
-				        	        
-				        			if (now > call.timestamp + PURGE_INTERVAL) {
-				        	            purge++;
-				        				closeConnection(c);
-				        	        }
-				        		}
-				        	} else if (now > c.lastContact + PURGE_INTERVAL) {
-				        		purge++;
-				        		closeConnection(c);
-				        	}
-			        	}
-			        	
-				        LOG.debug("Purged "+purge+" connections ");
-				        
-			        } catch (Exception e) {
-			        	LOG.warn("Exception in Responder " + 
-			        			StringUtils.stringifyException(e));
-			        }
-		        }
+		    		  c = pendingConnections.take();
+		    	  } catch (InterruptedException e) {
+		    		  continue;
+		    	  }
+		    	  
+		    	  try {
+		    		  LOG.debug("Pending calls for connection "+c+" : "+c.responseQueue.size());
+		    		  processResponse(c, false);
+		    	  } catch (Exception e) {
+		    		  LOG.warn("Exception in Responder " + 
+		    				  StringUtils.stringifyException(e));
+		    	  }
 		      }
+		      
+		      purgeTimer.cancel();
 		      LOG.info("Stopping " + this.getName());
 		    }
+		    
+		    // Close the connections whose oldest response has been waiting
+		    // for too long and the ones idle for too long.
+		    //
+		    private void purge(long now) {
+		    	int purge = 0;
+		    	Connection[] connections;
+		    	
+		    	synchronized(connectionList) {
+		    		connections = connectionList.toArray(new Connection[connectionList.size()]);
+		    	}
+		    	
+		    	for (Connection c : connections) {
+		    		boolean expired;
+		    		
+		    		synchronized(c.responseQueue) {
+		    			if (c.responseQueue.size() > 0) {
+		    				LOG.debug("Response queue not empty for connection "+c);
+		    				expired = now > c.responseQueue.getFirst().responseQueued + PURGE_INTERVAL;
+		    			} else {
+		    				expired = now > c.lastContact + PURGE_INTERVAL;
+		    			}
+		    		}
+		    		
+		    		if (expired) {
+		    			purge++;
+		    			closeConnection(c);
+		    		}
+		    	}
+		    	
+		    	LOG.debug("Purged "+purge+" connections ");
+		    }
 
-		    // Processes one response. Returns true if there are no more pending
-		    // data for this channel.
+		    // Writes all the responses queued for the connection at once.
+		    // Returns true if there are no more pending data for this channel,
+		    // otherwise the connection is handed over to the responder thread.
 		    //
-		    private boolean processResponse(LinkedList<Call> responseQueue,
+		    private boolean processResponse(Connection connection,
 		                                    boolean inHandler) throws IOException {
 		      // LOG.debug("Methode : responder - processResponse()");
+		      LinkedList<Call> responseQueue = connection.responseQueue;
+		      Call[] calls;
+		      
+		      synchronized (responseQueue) {
+		        //
+		        // If there are no items for this channel, then we are done
+		        //
+		        if (responseQueue.isEmpty()) {
+		          connection.responding = false;
+		          return true;              // no more data for this channel.
+		        }
+		        calls = responseQueue.toArray(new Call[responseQueue.size()]);
+		        responseQueue.clear();
+		      }
+		      
 		      boolean error = true;
-		      boolean done = false;       // there is more data for this channel.
-		      int numElements = 0;
-		      Call call = null;
+		      int written = 0;
 		      try {
-		        synchronized (responseQueue) {
-		          //
-		          // If there are no items for this channel, then we are done
-		          //
-		          numElements = responseQueue.size();
-		          if (numElements == 0) {
-		            error = false;
-		            return true;              // no more data for this channel.
-		          }
-		          //
-		          // Extract the first call
-		          //
-		          call = responseQueue.removeFirst();
-		          Socket remoteclient = call.connection.socket;
-	  
-		          //
-		          // Send as much data as we can in the non-blocking fashion
-		          //
-		          BufferedOutputStream bos = new BufferedOutputStream(remoteclient.getOutputStream());
-		          byte[] reponsemsg = call.response.array();
-		          bos.write(reponsemsg,0,reponsemsg.length);
-		          bos.flush();   
-		          
-		          call.connection.decRpcCount();
-		          call.connection.setLastContact(System.currentTimeMillis());
-		          
-		          numElements = responseQueue.size();
-		          if (numElements == 0) {    // last call fully processes.
-		              done = true;             // no more data for this channel.
-		          } else {
-		        	  LOG.warn("More calls pending");
-		              done = false;            // more calls pending to be sent.
-		          }
-		          
-		          if (LOG.isDebugEnabled()) {
-		              LOG.debug(getName() + ": responding to #" + call.id + "; Wrote " + reponsemsg.length + " bytes.");
-		            }
-		          		          
-		          error = false;              // everything went off well
+		        //
+		        // Coalesce the responses in a single write
+		        //
+		        if (connection.responseStream == null) {
+		          Socket remoteclient = connection.socket;
+		          connection.responseStream = 
+		            new BufferedOutputStream(remoteclient.getOutputStream(), NIO_BUFFER_LIMIT);
+		        }
+		        BufferedOutputStream bos = connection.responseStream;
+		        for (Call call : calls) {
+		          int length = call.response.remaining();
+		          bos.write(call.response.array(), call.response.arrayOffset(), length);
+		          written += length;
+		        }
+		        bos.flush();
+		        
+		        long now = System.currentTimeMillis();
+		        for (Call call : calls) {
+		          connection.decRpcCount();
+		          rpcMetrics.addResponseDwellTime(now - call.responseQueued);
+		        }
+		        connection.setLastContact(now);
+		        rpcMetrics.sentBytes.inc(written);
+		        
+		        if (LOG.isDebugEnabled()) {
+		          LOG.debug(getName() + ": responding to " + calls.length + " calls up to #" + 
+		              calls[calls.length - 1].id + "; Wrote " + written + " bytes.");
 		        }
+		        error = false;              // everything went off well
 		      } finally {
-		        if (error && call != null) {
-		          LOG.warn(getName()+", call " + call + ": output error");
-		          done = true;               // error. no more data for this channel.
-		          closeConnection(call.connection);
+		        for (Call call : calls) {
+		          responseBufferPool.release(call.response.array());
+		          call.response = null;
+		        }
+		        if (error) {
+		          LOG.warn(getName()+", call " + calls[0] + ": output error");
+		          synchronized (responseQueue) {
+		            connection.responding = false;
+		          }
+		          closeConnection(connection);
+		        }
+		      }
+		      
+		      synchronized (responseQueue) {
+		        if (responseQueue.isEmpty()) {    // last call fully processes.
+		          connection.responding = false;
+		          return true;             // no more data for this channel.
 		        }
 		      }
-		      return done;
+		      
+		      // more calls pending to be sent, let the responder write them
+		      pendingConnections.offer(connection);
+		      return false;
 		    }
 
 		    //
-		    // Enqueue a response from the application.
+		    // Enqueue a response from the application. The handler writes it
+		    // unless the connection is already being written to.
 		    //
 		    void doRespond(Call call) throws IOException {
 		      // LOG.debug("Methode : responder - doRespond()");
-		      synchronized (call.connection.responseQueue) {
-		        call.connection.responseQueue.addLast(call);
-		        if (call.connection.responseQueue.size() == 1) {
-		          processResponse(call.connection.responseQueue, true);
+		      Connection connection = call.connection;
+		      
+		      synchronized (connection.responseQueue) {
+		        call.responseQueued = System.currentTimeMillis();
+		        connection.responseQueue.addLast(call);
+		        if (connection.responding) {
+		          return;
 		        }
+		        connection.responding = true;
 		      }
+		      processResponse(connection, true);
 		    }
 
 	 }
 
   /** Reads calls from a connection and queues them for handling. */
   private class Connection {
-    private boolean versionRead = false; //if initial signature and
-                                         //version are read
     private boolean headerRead = false;  //if the connection header that
                                          //follows version is read.
 
     private BufferedInputStream bis;
     private ByteBuffer data, headerdata;
+    private byte[] frameLength = new byte[4];
+    /* The part of the frame being read : the preamble, the length of the
+     * frame or its body, and how much of it was read */
+    private static final int STAGE_PREAMBLE = 0;
+    private static final int STAGE_LENGTH = 1;
+    private static final int STAGE_BODY = 2;
+    private int stage = STAGE_PREAMBLE;
+    private byte[] stageBuf = new byte[5];
+    private int stageLen = 5;
+    private int stageRead = 0;
     private LinkedList<Call> responseQueue;
+    private BufferedOutputStream responseStream = null;
+    private boolean responding = false; // a thread is writing the responses
     private volatile int rpcCount = 0; // number of outstanding rpcs
     private long lastContact;
+    private final long acceptTime;
     private int dataLength = 0;
     private int headerLength = 0;
-    private boolean connectionrunning = true;
+    private volatile boolean connectionrunning = true;
     private Socket socket;
     private JxtaSocket jsocket;
     private SocketAddress hostAddress;
@@ -600,7 +687,8 @@ public abstract class Server {
     private final int AUTHROIZATION_FAILED_CALLID = -1;
     private final Call authFailedCall = 
       new Call(AUTHROIZATION_FAILED_CALLID, null, null);
-    private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
+    private ResponseBufferPool.ResponseOutputStream authFailedResponse = 
+      responseBufferPool.new ResponseOutputStream();
     
     public Connection(JxtaSocket jsock, long lastContact) {
     	this((Socket)jsock,lastContact);
@@ -610,6 +698,7 @@ public abstract class Server {
     public Connection(Socket sock, long lastContact) {
     	this.socket = sock;
     	this.lastContact = lastContact;
+    	this.acceptTime = lastContact;
     	this.data = null;  
     	this.headerdata = null;
     	   	
@@ -662,142 +751,194 @@ public abstract class Server {
     }
 
     public int readAndProcess() throws IOException, InterruptedException {
-    	ByteBuffer sockbb = ByteBuffer.allocate(NIO_BUFFER_LIMIT);
+    	while (connectionrunning) {
+    		if (readFrame() < 0)
+    			return -1;
+    	}
     	
-    	bis = new BufferedInputStream(socket.getInputStream());
+    	return -1;
+    }
+    
+    /* Read and process one frame: the connection preamble and header,
+     * a ping or a call. Return -1 if the connection has to be closed.
+     */
+    int readFrame() throws IOException, InterruptedException {
+    	if (bis == null)
+    		bis = new BufferedInputStream(socket.getInputStream(), NIO_BUFFER_LIMIT);
     	
-    	while (connectionrunning) {
-	        /* Read at most one RPC. If the header is not read completely yet
-	         * then iterate until we read first RPC or until there is no data left.
-	         */  
+    	while (true) {
+    		if (!readFully(stageBuf, stageRead, stageLen - stageRead))
+    			return -1;
+    		stageRead = stageLen;
     		
-    		//hrpc 03. 00. 00. 00. 88.%org.jxtadoop.ipc.VersionedProtocol 01. 0A.STRING_UGI 06.franck 0B. 06.franck 03.adm 07.dialout 05.cdrom 05.video 07.plugdev 07.lpadmin 05.admin 0A.sambashare 06.bacula 06.davfs2 00. 00. 00.c 00. 00. 00. 00. 00. 12.getProtocolVersion 00. 00. 00. 02. 00. 10.java.lang.String 00.%org.jxtadoop.rpc.RpcClientProtocol 00. 04.long 00. 00. 00. 00. 00. 00. 00. 01.
-    		//hrpc 03. 00. 00. 00. 88.%org.jxtadoop.rpc.RpcClientProtocol 01. 0A.STRING_UGI 06.franck 0B. 06.franck 03.adm 07.dialout 05.cdrom 05.video 07.plugdev 07.lpadmin 05.admin 0A.sambashare 06.bacula 06.davfs2 00. 00. 00. 13. 00. 00. 00. 01. 00. 09.heartbeat 00. 00. 00. 00.
-
+    		int r = endStage();
+    		if (r != 0)
+    			return (r < 0) ? -1 : 0;
+    	}
+    }
+    
+    /* Read the bytes the client already sent, without blocking, and
+     * process the frames they complete. A frame only partly received is
+     * kept for the next call, so that a slow client never holds a pooled
+     * reader. Return the number of bytes read, or -1 if the connection
+     * has to be closed.
+     */
+    int readAvailable(int maxFrames) throws IOException, InterruptedException {
+    	if (bis == null)
+    		bis = new BufferedInputStream(socket.getInputStream(), NIO_BUFFER_LIMIT);
+    	
+    	int bytes = 0;
+    	int frames = 0;
+    	while (frames < maxFrames && connectionrunning) {
+    		if (stageRead < stageLen) {
+    			int available = bis.available();
+    			if (available <= 0)
+    				break;
+    			
+    			int count = bis.read(stageBuf, stageRead, Math.min(available, stageLen - stageRead));
+    			if (count < 0)
+    				return -1;
+    			stageRead += count;
+    			bytes += count;
+    			if (stageRead < stageLen)
+    				continue;
+    		}
     		
-	        int count = 0;
-	        int pos = 0;
-	        sockbb.clear();
-	        	
-	        try {
-	        	while ((count = bis.read()) > -1) {
-	        		sockbb.put(pos,(byte)count);
-		        	pos++;
-		 	       
-		        	/*if(count >= 33 && count <=126)
-		        		System.out.printf("%c", count);
-		        	else 
-		        		System.out.printf(" %02X.", count);*/
-				   		   	
-		        	if (bis.available() == 0) break;
-		        }
-	        } catch (SocketTimeoutException ste) { 
-	        	continue;
-	        }
-	        //System.out.printf("\n");
-	        
-	        if ( count == -1 ) {
-	        	Thread.sleep(1000);
-	        	continue;
-	        }
-       	
-	        byte[] h = new byte[4];
-	        sockbb.get(h, 0, 4);
-	        ByteBuffer bb = ByteBuffer.wrap(h);
-	        if (HEADER.equals(bb)) {
-	        	versionRead = false;
-	        	headerRead = false;
-	        	data = null;
-	        	headerdata=null;
-	        }
-	        sockbb.rewind();
-	        	        
-	        if (!versionRead) {           	
-	        	int version = sockbb.get(4);
-	        	
-	        	byte[] headerb = new byte[4];
-	          
-	        	sockbb.get(headerb, 0, 4);
-	        	ByteBuffer headerbb = ByteBuffer.wrap(headerb);
-	          	          	          	        
-	        	if (!HEADER.equals(headerbb) || version != CURRENT_VERSION) {
-	        		// Warning is ok since this is not supposed to happen.
-	        		LOG.warn("Incorrect header or version mismatch from \n" + this.getHostAddress() + "\n got version "
-	        				+ version + " expected version " + CURRENT_VERSION);
-		            return -1;
-	        	} 
-	        	versionRead = true;
-	        }
-	        
-	        if (!headerRead) {
-	        	if (headerdata == null) {
-	            	sockbb.position(5);
-	            	headerLength = sockbb.getInt();
-	            	dataLength = pos - 8 - headerLength;
-	           
-	              if (headerLength == Client.PING_CALL_ID) {
-	                sockbb.clear();
-	                return 0;  //ping message
-	              }
-	              
-	              byte[] headerb = new byte[headerLength];
-	              sockbb.get(headerb,0,headerLength);
-	              headerdata = ByteBuffer.wrap(headerb);
-	        
-	              headerdata.position(headerdata.remaining());
-	         
-	              if (headerdata.remaining() == 0) {
-	                  headerdata.flip();
-	              }
-	              
-	              processHeader();
-		          
-		          try {
-		        	  authorize(user, header);
-		              
-		              if (LOG.isDebugEnabled()) {
-		                LOG.debug("Successfully authorized " + header);
-		              }
-		          } catch (AuthorizationException ae) {
-		        	  authFailedCall.connection = this;
-		        	  setupResponse(authFailedResponse, authFailedCall, 
-		                            Status.FATAL, null, 
-		                            ae.getClass().getName(), ae.getMessage());
-		        	  responder.doRespond(authFailedCall);
-		              
-		              // Close this connection
-		        	  return -1;
-		          }
-	        	}    
-	        } else {
-	        	sockbb.position(0);
-	        	dataLength = sockbb.getInt();
-	        }
-	                
-	        incRpcCount();  // Increment the rpc count               
-	        
-	        if (!headerRead) {
-	        	headerRead = true;
-	        	sockbb.rewind();
-	        	sockbb.position(4+1+4+headerLength+4);
-	        } else {
-	        	sockbb.position(4);
-	        }
-	        
-	        if (headerRead) {
-	        	if (dataLength < 1)
-	        		continue;
-	        	LOG.debug("Data length : "+dataLength);
-	        	byte[] datab = new byte[dataLength];
-			    sockbb.get(datab,0,dataLength);
-			    data = ByteBuffer.wrap(datab);
-			          
-		        processData();
-		        data = null;
-	        }
-    	} 
+    		int r = endStage();
+    		if (r < 0)
+    			return -1;
+    		frames += r;
+    	}
     	
-    	return -1;
+    	return bytes;
+    }
+    
+    /* Set the part of the frame to be read next. */
+    private void setStage(int stage, byte[] buf, int len) {
+    	this.stage = stage;
+    	this.stageBuf = buf;
+    	this.stageLen = len;
+    	this.stageRead = 0;
+    }
+    
+    /* Process the part of the frame just read. Every frame starts with its
+     * length. The connection preamble is "hrpc" and the version, followed
+     * by the frame of the connection header. Return -1 if the connection
+     * has to be closed, 1 if a frame is complete and 0 otherwise.
+     */
+    private int endStage() throws IOException, InterruptedException {
+    	switch (stage) {
+    	case STAGE_PREAMBLE:
+    		int version = stageBuf[4];
+    		
+    		if (!HEADER.equals(ByteBuffer.wrap(stageBuf, 0, 4)) || version != CURRENT_VERSION) {
+    			// Warning is ok since this is not supposed to happen.
+    			LOG.warn("Incorrect header or version mismatch from \n" + this.getHostAddress() + "\n got version "
+    					+ version + " expected version " + CURRENT_VERSION);
+    			return -1;
+    		}
+    		setStage(STAGE_LENGTH, frameLength, 4);
+    		return 0;
+    	
+    	case STAGE_LENGTH:
+    		int length = ByteBuffer.wrap(frameLength).getInt();
+    		
+    		if (length == Client.PING_CALL_ID) {
+    			setStage(STAGE_LENGTH, frameLength, 4);
+    			return 1;  //ping message
+    		}
+    		
+    		if (length < 0 || length > maxDataLength) {
+    			LOG.warn("Unexpected data length " + length + " from " + this.getHostAddress() + 
+    					", the maximum is " + maxDataLength);
+    			return -1;
+    		}
+    		
+    		if (!headerRead) {
+    			headerLength = length;
+    			headerdata = ByteBuffer.allocate(headerLength);
+    			setStage(STAGE_BODY, headerdata.array(), headerLength);
+    			return 0;
+    		}
+    		
+    		dataLength = length;
+    		LOG.debug("Data length : "+dataLength);
+    		
+    		// the buffer is reused by the next calls of this connection
+    		if (data == null || data.capacity() < dataLength) {
+    			int capacity = (data == null) ? NIO_BUFFER_LIMIT : data.capacity();
+    			while (capacity < dataLength)
+    				capacity = (capacity > Integer.MAX_VALUE / 2) ? dataLength : capacity * 2;
+    			data = ByteBuffer.allocate(capacity);
+    		}
+    		data.clear();
+    		data.limit(dataLength);
+    		setStage(STAGE_BODY, data.array(), dataLength);
+    		return 0;
+    	
+    	default:
+    		setStage(STAGE_LENGTH, frameLength, 4);
+    		
+    		if (!headerRead) {
+    			processHeader();
+    			headerRead = true;
+    			rpcMetrics.rpcAcceptTime.inc(System.currentTimeMillis() - acceptTime);
+    			
+    			try {
+    				authorize(user, header);
+    				
+    				if (LOG.isDebugEnabled()) {
+    					LOG.debug("Successfully authorized " + header);
+    				}
+    			} catch (AuthorizationException ae) {
+    				authFailedCall.connection = this;
+    				setupResponse(authFailedResponse, authFailedCall, 
+    						Status.FATAL, null, 
+    						ae.getClass().getName(), ae.getMessage());
+    				responder.doRespond(authFailedCall);
+    				
+    				// Close this connection
+    				return -1;
+    			}
+    			return 1;
+    		}
+    		
+    		incRpcCount();  // Increment the rpc count
+    		rpcMetrics.receivedBytes.inc(4 + dataLength);
+    		setLastContact(System.currentTimeMillis());
+    		processData();
+    		
+    		// the call is parsed, drop a buffer grown by a large call
+    		if (data.capacity() > MAX_RETAINED_DATA_LENGTH)
+    			data = null;
+    		return 1;
+    	}
+    }
+    
+    /* Read exactly len bytes, waiting across socket timeouts so that a
+     * frame is never left half read. Return false at the end of the stream
+     * or once the connection is closed.
+     */
+    private boolean readFully(byte[] b, int off, int len) throws IOException {
+    	int n = 0;
+    	
+    	while (n < len) {
+    		if (!connectionrunning)
+    			return false;
+    		
+    		int count;
+    		try {
+    			count = bis.read(b, off + n, len - n);
+    		} catch (SocketTimeoutException ste) {
+    			continue;
+    		}
+    		
+    		if (count < 0)
+    			return false;
+    		n += count;
+    	}
+    	
+    	return true;
     }
 
     /// Reads the connection header following version
@@ -821,7 +962,7 @@ public abstract class Server {
     
     private void processData() throws  IOException, InterruptedException {
       DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(data.array()));
+        new DataInputStream(new ByteArrayInputStream(data.array(), 0, dataLength));
       int id = dis.readInt();                    // try to read an id
         
       if (LOG.isDebugEnabled())
@@ -836,7 +977,6 @@ public abstract class Server {
 
     private synchronized void close() throws IOException {
 	    LOG.debug("Closing connection");  
-    	data = null;
 	    connectionrunning = false;
 	       
 	      try {
@@ -859,7 +999,8 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
-      ByteArrayOutputStream buf = new ByteArrayOutputStream(10240);
+      ResponseBufferPool.ResponseOutputStream buf = 
+        responseBufferPool.new ResponseOutputStream();
       while (running) {
         try {
           final Call call = callQueue.take(); // pop the queue; maybe blocked here
@@ -954,6 +1095,135 @@ public abstract class Server {
 		}
 	}
 	 	  
+  /** Multiplexes the connections over a fixed number of reader threads.
+   * A reader only reads the bytes a connection already received, then
+   * moves on to the next connection ; the frames are completed over as
+   * many passes as needed. The JXTA streams cannot be selected on, so the
+   * readers poll them and back off once every connection was found idle.
+   */
+  private class ReaderPool {
+    private final BlockingQueue<Connection> connections = 
+      new LinkedBlockingQueue<Connection>();
+    private final AtomicInteger numReaderConnections = new AtomicInteger(0);
+    private final AtomicLong busyTime = new AtomicLong(0);
+    private final PooledReader[] readers;
+    private long lastUtilisationTime = System.currentTimeMillis();
+    private long lastBusyTime = 0;
+    
+    ReaderPool(int size) {
+      readers = new PooledReader[size];
+      for (int i = 0; i < size; i++) {
+        readers[i] = new PooledReader(i);
+      }
+    }
+    
+    void start() {
+      for (PooledReader reader : readers) {
+        reader.start();
+      }
+    }
+    
+    void stop() {
+      for (PooledReader reader : readers) {
+        reader.interrupt();
+      }
+    }
+    
+    /* Hand a new connection over to the readers. Return false if there
+     * are already too many connections.
+     */
+    boolean add(Connection c) {
+      if (numReaderConnections.incrementAndGet() > readerQueueSize) {
+        numReaderConnections.decrementAndGet();
+        return false;
+      }
+      connections.add(c);
+      return true;
+    }
+    
+    /* Percentage of the time the readers spent reading since the last call */
+    synchronized int getUtilisation() {
+      long now = System.currentTimeMillis();
+      long busy = busyTime.get();
+      long elapsed = (now - lastUtilisationTime) * readers.length;
+      int utilisation = (elapsed <= 0) ? 0 : 
+        (int) Math.min(100, (busy - lastBusyTime) * 100 / elapsed);
+      
+      lastUtilisationTime = now;
+      lastBusyTime = busy;
+      return utilisation;
+    }
+    
+    private class PooledReader extends Thread {
+      PooledReader(int instanceNumber) {
+        this.setDaemon(true);
+        this.setName("IPC Server reader " + instanceNumber);
+      }
+      
+      @Override
+      public void run() {
+        LOG.info(getName() + ": starting");
+        SERVER.set(Server.this);
+        int idlePolls = 0;
+        
+        while (running) {
+          Connection c;
+          try {
+            c = connections.poll(READER_IDLE_WAIT, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            continue;
+          }
+          if (c == null) 
+            continue;
+          
+          if (!c.connectionrunning) {
+            numReaderConnections.decrementAndGet();
+            continue;
+          }
+          
+          boolean close = false;
+          int bytes = 0;
+          long start = System.currentTimeMillis();
+          try {
+            bytes = c.readAvailable(MAX_FRAMES_PER_READ);
+            if (bytes < 0) {
+              close = true;
+            }
+          } catch (IOException e) {
+            LOG.debug(getName() + ": error reading from " + c.getHostAddress() + ": " + e);
+            close = true;
+          } catch (InterruptedException e) {
+            close = true;
+          }
+          
+          if (bytes != 0)
+            busyTime.addAndGet(System.currentTimeMillis() - start);
+          
+          if (close) {
+            if (LOG.isDebugEnabled())
+              LOG.debug("Disconnecting client " + c.getHostAddress() + 
+                        ". Number of active connections: "+ numConnections);
+            numReaderConnections.decrementAndGet();
+            closeConnection(c);
+          } else {
+            connections.add(c);
+          }
+          
+          // back off once every connection has been found idle
+          if (bytes > 0) {
+            idlePolls = 0;
+          } else if (++idlePolls > connections.size()) {
+            idlePolls = 0;
+            try {
+              Thread.sleep(READER_IDLE_WAIT);
+            } catch (InterruptedException e) {}
+          }
+        }
+        LOG.info(getName() + ": exiting");
+      }
+    }
+  }
+  
   protected Server(PeerGroup pg, JxtaSocketAddress jssa,
           Class<? extends Writable> paramClass, int handlerCount, 
           Configuration conf)
@@ -971,17 +1241,10 @@ public abstract class Server {
           Class<? extends Writable> paramClass, int handlerCount, 
           Configuration conf, String serverName) 
   			throws IOException {
+		this(paramClass, handlerCount, conf);
 		this.p2pServerSockAddr = (SocketAddress)jssa;
 		this.jxtaServerSockAddr = jssa;
 		this.rpcpg = pg;
-		this.conf = conf;
-		this.paramClass = paramClass;
-		this.handlerCount = handlerCount;
-		this.maxQueueSize = handlerCount * MAX_QUEUE_SIZE_PER_HANDLER;
-		this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
-		this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
-		this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
-		this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
 		
 		// Start the listener here and let it bind to the port
 		listener = new Listener(rpcpg, jxtaServerSockAddr);   
@@ -991,6 +1254,34 @@ public abstract class Server {
 		responder = new Responder();
   }
   
+  /** Constructs a server accepting the connections of a plain server socket
+   * instead of a Jxta pipe, to run the server in process.
+   */
+  Server(ServerSocket acceptServer, Class<? extends Writable> paramClass, 
+          int handlerCount, Configuration conf, String serverName) 
+  			throws IOException {
+		this(paramClass, handlerCount, conf);
+		listener = new Listener(acceptServer);
+		this.rpcMetrics = new RpcMetrics(serverName,Integer.toString(this.port), this);
+		responder = new Responder();
+  }
+  
+  private Server(Class<? extends Writable> paramClass, int handlerCount, 
+          Configuration conf) {
+		this.conf = conf;
+		this.paramClass = paramClass;
+		this.handlerCount = handlerCount;
+		this.maxQueueSize = handlerCount * 
+			conf.getInt("ipc.server.handler.queue.size", MAX_QUEUE_SIZE_PER_HANDLER);
+		this.readerPoolSize = conf.getInt("ipc.server.reader.pool.size", 0);
+		this.readerQueueSize = conf.getInt("ipc.server.reader.queue.size", MAX_READER_QUEUE_SIZE);
+		this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+		this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
+		this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
+		this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
+		this.maxDataLength = conf.getInt("ipc.maximum.data.length", MAX_DATA_LENGTH);
+  }
+  
   
   private void closeConnection(Connection connection) {
     //synchronized (connectionList) {
@@ -1006,7 +1297,7 @@ public abstract class Server {
   /**
    * Setup response for the IPC Call.
    * 
-   * @param response buffer to serialize the response into
+   * @param response pooled buffer to serialize the response into
    * @param call {@link Call} to which we are setting up the response
    * @param status {@link Status} of the IPC call
    * @param rv return value for the IPC Call, if the call was successful
@@ -1014,7 +1305,7 @@ public abstract class Server {
    * @param error error message, if the call failed
    * @throws IOException
    */
-  private void setupResponse(ByteArrayOutputStream response, 
+  private void setupResponse(ResponseBufferPool.ResponseOutputStream response, 
                              Call call, Status status, 
                              Writable rv, String errorClass, String error) 
   throws IOException {
@@ -1029,7 +1320,7 @@ public abstract class Server {
       WritableUtils.writeString(out, errorClass);
       WritableUtils.writeString(out, error);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    call.setResponse(response.detach());
   }
   
   Configuration getConf() {
@@ -1040,6 +1331,10 @@ public abstract class Server {
   public synchronized void start() throws IOException {
     responder.start();
     listener.start();
+    if (readerPoolSize > 0) {
+      readerPool = new ReaderPool(readerPoolSize);
+      readerPool.start();
+    }
     handlers = new Handler[handlerCount];
     
     for (int i = 0; i < handlerCount; i++) {
@@ -1059,6 +1354,9 @@ public abstract class Server {
         }
       }
     }
+    if (readerPool != null) {
+      readerPool.stop();
+    }
     listener.interrupt();
     listener.doStop();
     responder.interrupt();
@@ -1125,6 +1423,16 @@ public abstract class Server {
   public int getCallQueueLen() {
     return callQueue.size();
   }
+  
+  /**
+   * The percentage of time the pooled readers spent reading calls since
+   * the previous invocation.
+   * @return The reader utilisation, 0 without a reader pool
+   */
+  public int getReaderUtilisation() {
+    ReaderPool pool = readerPool;
+    return (pool == null) ? 0 : pool.getUtilisation();
+  }
 
 public static PeerID getRemotePeerID() {
 	Call call = CurCall.get();
@@ -17,6 +17,9 @@
  */
 package org.apache.jxtadoop.ipc.metrics;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.jxtadoop.ipc.Server;
@@ -26,7 +29,9 @@ import org.apache.jxtadoop.metrics.MetricsUtil;
 import org.apache.jxtadoop.metrics.Updater;
 import org.apache.jxtadoop.metrics.util.MetricsBase;
 import org.apache.jxtadoop.metrics.util.MetricsIntValue;
+import org.apache.jxtadoop.metrics.util.MetricsLongValue;
 import org.apache.jxtadoop.metrics.util.MetricsRegistry;
+import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.jxtadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -79,6 +84,56 @@ public class RpcMetrics implements Updater {
           new MetricsIntValue("NumOpenConnections", registry);
   public MetricsIntValue callQueueLen = 
           new MetricsIntValue("callQueueLen", registry);
+  public MetricsTimeVaryingLong receivedBytes = 
+          new MetricsTimeVaryingLong("ReceivedBytes", registry);
+  public MetricsTimeVaryingLong sentBytes = 
+          new MetricsTimeVaryingLong("SentBytes", registry);
+  public MetricsTimeVaryingRate rpcAcceptTime =
+          new MetricsTimeVaryingRate("RpcAcceptTime", registry);
+  public MetricsIntValue readerUtilisation = 
+          new MetricsIntValue("RpcReaderUtilisation", registry);
+  public MetricsLongValue rpcResponseDwellTime50 = 
+          new MetricsLongValue("RpcResponseDwellTime50thPercentile", registry);
+  public MetricsLongValue rpcResponseDwellTime99 = 
+          new MetricsLongValue("RpcResponseDwellTime99thPercentile", registry);
+  
+  /**
+   * Number of response queue dwell times sampled per interval
+   */
+  static final int DWELL_SAMPLE_SIZE = 1024;
+  private final long[] dwellSamples = new long[DWELL_SAMPLE_SIZE];
+  private int numDwellTimes = 0;
+  private final Random random = new Random();
+  
+  /**
+   * Record the time a response waited in its connection response queue.
+   * A uniform sample of the interval is kept for the percentiles.
+   * @param time the dwell time in ms
+   */
+  public synchronized void addResponseDwellTime(long time) {
+    if (numDwellTimes < DWELL_SAMPLE_SIZE) {
+      dwellSamples[numDwellTimes] = time;
+    } else {
+      int i = random.nextInt(numDwellTimes + 1);
+      if (i < DWELL_SAMPLE_SIZE)
+        dwellSamples[i] = time;
+    }
+    numDwellTimes++;
+  }
+  
+  private void updateDwellTimePercentiles() {
+    int n = Math.min(numDwellTimes, DWELL_SAMPLE_SIZE);
+    if (n == 0) {
+      rpcResponseDwellTime50.set(0);
+      rpcResponseDwellTime99.set(0);
+      return;
+    }
+    long[] sorted = Arrays.copyOf(dwellSamples, n);
+    Arrays.sort(sorted);
+    rpcResponseDwellTime50.set(sorted[(n - 1) / 2]);
+    rpcResponseDwellTime99.set(sorted[(int) Math.ceil(0.99 * n) - 1]);
+    numDwellTimes = 0;
+  }
   
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
@@ -90,6 +145,8 @@ public class RpcMetrics implements Updater {
       // the metrics do not have be copied here.
       numOpenConnections.set(myServer.getNumOpenConnections());
       callQueueLen.set(myServer.getCallQueueLen());
+      readerUtilisation.set(myServer.getReaderUtilisation());
+      updateDwellTimePercentiles();
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
@@ -57,6 +57,9 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
   private final static String MIN_TIME = "MinTime";
   private final static String MAX_TIME = "MaxTime";
   private final static String NUM_OPS = "NumOps";
+  private final static String MEDIAN = "Median";
+  private final static String PERCENTILE_99TH = "99thPercentile";
+  private final static String MAX = "Max";
   private final static String RESET_ALL_MIN_MAX_OP = "resetAllMinMax";
   private MetricsRegistry metricsRegistry;
   private MBeanInfo mbeanInfo;
@@ -80,9 +83,13 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
     boolean needsMinMaxResetOperation = false;
     List<MBeanAttributeInfo> attributesInfo = new ArrayList<MBeanAttributeInfo>();
     MBeanOperationInfo[] operationsInfo = null;
-    numEntriesInRegistry = metricsRegistry.size();
+    List<MetricsBase> metricsList;
+    synchronized (metricsRegistry) {
+      numEntriesInRegistry = metricsRegistry.size();
+      metricsList = new ArrayList<MetricsBase>(metricsRegistry.getMetricsList());
+    }
     
-    for (MetricsBase o : metricsRegistry.getMetricsList()) {
+    for (MetricsBase o : metricsList) {
 
       if (MetricsTimeVaryingRate.class.isInstance(o)) {
         // For each of the metrics there are 3 different attributes
@@ -103,6 +110,19 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         metricsRateAttributeMod.put(o.getName() + MIN_TIME, o);
         metricsRateAttributeMod.put(o.getName() + MAX_TIME, o);
         
+      } else if (MetricsHistogram.class.isInstance(o)) {
+        attributesInfo.add(new MBeanAttributeInfo(o.getName() + NUM_OPS, "java.lang.Integer",
+            o.getDescription(), true, false, false));
+        attributesInfo.add(new MBeanAttributeInfo(o.getName() + MEDIAN, "java.lang.Long",
+            o.getDescription(), true, false, false));
+        attributesInfo.add(new MBeanAttributeInfo(o.getName() + PERCENTILE_99TH, "java.lang.Long",
+            o.getDescription(), true, false, false));
+        attributesInfo.add(new MBeanAttributeInfo(o.getName() + MAX, "java.lang.Long",
+            o.getDescription(), true, false, false));
+        metricsRateAttributeMod.put(o.getName() + NUM_OPS, o);
+        metricsRateAttributeMod.put(o.getName() + MEDIAN, o);
+        metricsRateAttributeMod.put(o.getName() + PERCENTILE_99TH, o);
+        metricsRateAttributeMod.put(o.getName() + MAX, o);
       }  else if ( MetricsIntValue.class.isInstance(o) || MetricsTimeVaryingInt.class.isInstance(o) ) {
         attributesInfo.add(new MBeanAttributeInfo(o.getName(), "java.lang.Integer",
             o.getDescription(), true, false, false)); 
@@ -161,6 +181,20 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         MetricsUtil.LOG.error("Unexpected attrubute suffix");
         throw new AttributeNotFoundException();
       }
+    } else if (o instanceof MetricsHistogram) {
+      MetricsHistogram oh = (MetricsHistogram) o;
+      if (attributeName.endsWith(NUM_OPS))
+        return oh.getPreviousIntervalNumOps();
+      else if (attributeName.endsWith(MEDIAN))
+        return oh.getPreviousIntervalMedian();
+      else if (attributeName.endsWith(PERCENTILE_99TH))
+        return oh.getPreviousInterval99thPercentile();
+      else if (attributeName.endsWith(MAX))
+        return oh.getPreviousIntervalMax();
+      else {
+        MetricsUtil.LOG.error("Unexpected attrubute suffix");
+        throw new AttributeNotFoundException();
+      }
     } else {
         MetricsUtil.LOG.error("unknown metrics type: " + o.getClass().getName());
         throw new AttributeNotFoundException();
@@ -204,9 +238,11 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         mbeanInfo.getOperations().length != 1) {
       throw new ReflectionException(new NoSuchMethodException(actionName));
     }
-    for (MetricsBase m : metricsRegistry.getMetricsList())  {
-      if ( MetricsTimeVaryingRate.class.isInstance(m) ) {
-        MetricsTimeVaryingRate.class.cast(m).resetMinMax();
+    synchronized (metricsRegistry) {
+      for (MetricsBase m : metricsRegistry.getMetricsList())  {
+        if ( MetricsTimeVaryingRate.class.isInstance(m) ) {
+          MetricsTimeVaryingRate.class.cast(m).resetMinMax();
+        }
       }
     }
     return null;
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.metrics.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.jxtadoop.metrics.MetricsRecord;
+import org.apache.jxtadoop.util.StringUtils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The MetricsHistogram class is for the distribution of a value that
+ * varies over time (e.g. the time a lock is held).
+ * The values are counted in power of two buckets, so that the
+ * percentiles published at each interval heart beat are the upper
+ * bound of the bucket they fall in.
+ * <p>
+ * The values are counted without locking, so that the threads counting
+ * them do not wait for each other ; they are folded into the interval
+ * published when the metric is pushed.
+ */
+public class MetricsHistogram extends MetricsBase {
+
+  private static final Log LOG =
+    LogFactory.getLog("org.apache.jxtadoop.metrics.util");
+
+  /* bucket i > 0 counts the values in [2^(i-1), 2^i - 1], bucket 0 the zeros */
+  private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE + 1);
+  private final AtomicLong max = new AtomicLong();
+
+  /* the interval being pushed, folded from the counts */
+  private final long[] buckets = new long[Long.SIZE + 1];
+  private int numOperations = 0;
+  private long maxValue = 0;
+
+  /* the values published for the previous interval, for JMX */
+  private int previousNumOperations = 0;
+  private long previousMedian = 0;
+  private long previous99thPercentile = 0;
+  private long previousMaxValue = 0;
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry, final String description) {
+    super(nam, description);
+    registry.add(nam, this);
+  }
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   * A description of {@link #NO_DESCRIPTION} is used
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry) {
+    this(nam, registry, NO_DESCRIPTION);
+  }
+
+  /**
+   * Count a value
+   * @param value a non negative value
+   */
+  public void inc(final long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  /* take the values counted since the last push */
+  private void fold() {
+    numOperations = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = counts.getAndSet(i, 0);
+      numOperations += buckets[i];
+    }
+    maxValue = max.getAndSet(0);
+  }
+
+  /* upper bound of the bucket holding the given fraction of the values */
+  private long percentile(final double fraction) {
+    long rank = (long) Math.ceil(fraction * numOperations);
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i];
+      if (count >= rank) {
+        long upperBound = (i == 0) ? 0 : (i == Long.SIZE) ?
+                          Long.MAX_VALUE : (1L << i) - 1;
+        return Math.min(upperBound, maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  /**
+   * Push the number of values, their median, 99th percentile and maximum
+   * since the last push to the mr, and start a new interval.
+   * @param mr
+   */
+  public synchronized void pushMetric(final MetricsRecord mr) {
+    fold();
+    previousNumOperations = numOperations;
+    previousMedian = percentile(0.5);
+    previous99thPercentile = percentile(0.99);
+    previousMaxValue = maxValue;
+    try {
+      mr.incrMetric(getName() + "_num_ops", previousNumOperations);
+      mr.setMetric(getName() + "_50th_percentile", previousMedian);
+      mr.setMetric(getName() + "_99th_percentile", previous99thPercentile);
+      mr.setMetric(getName() + "_max", previousMaxValue);
+    } catch (Exception e) {
+      LOG.info("pushMetric failed for " + getName() + "\n" +
+          StringUtils.stringifyException(e));
+    }
+  }
+
+  /**
+   * The number of values in the previous interval
+   * @return - values in prev interval
+   */
+  public synchronized int getPreviousIntervalNumOps() {
+    return previousNumOperations;
+  }
+
+  /**
+   * The median of the values in the previous interval
+   * @return - median in prev interval
+   */
+  public synchronized long getPreviousIntervalMedian() {
+    return previousMedian;
+  }
+
+  /**
+   * The 99th percentile of the values in the previous interval
+   * @return - 99th percentile in prev interval
+   */
+  public synchronized long getPreviousInterval99thPercentile() {
+    return previous99thPercentile;
+  }
+
+  /**
+   * The maximum of the values in the previous interval
+   * @return - max in prev interval
+   */
+  public synchronized long getPreviousIntervalMax() {
+    return previousMaxValue;
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.net;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jxtadoop.conf.Configurable;
+import org.apache.jxtadoop.conf.Configuration;
+
+/**
+ * This class implements the {@link DNSToSwitchMapping} interface by
+ * clustering the nodes into synthetic racks from the round trip times
+ * measured between them.
+ * <p>
+ * The nodes report the round trip times to their peers through
+ * {@link #addLatencies(String, String[], long[])}, and the racks are
+ * rebuilt by {@link #recompute(Collection)}. A rack gathers the nodes
+ * within topology.latency.rack.threshold milliseconds of its first node.
+ * The first nodes of the previous racks are kept first, so that the racks
+ * remain stable between two computations.
+ * <p>
+ * The nodes without any measurement remain on the
+ * {@link NetworkTopology#DEFAULT_RACK}.
+ */
+public class LatencyBasedMapping implements DNSToSwitchMapping, Configurable {
+  static final String THRESHOLD_KEY = "topology.latency.rack.threshold";
+  static final long DEFAULT_THRESHOLD = 20;
+  static final String RACK_PREFIX = "/latency-";
+
+  /* weight of a new measurement in the smoothed round trip time */
+  private static final double SAMPLE_WEIGHT = 0.5;
+
+  private Configuration conf;
+  private long threshold = DEFAULT_THRESHOLD;
+
+  /* the smoothed round trip times in ms, in both directions of a pair */
+  private final Map<String, Map<String, Double>> rtts =
+    new HashMap<String, Map<String, Double>>();
+  /* the first node of each rack, in computation order */
+  private Set<String> centers = new LinkedHashSet<String>();
+  private volatile Map<String, String> racks = new HashMap<String, String>();
+
+  public LatencyBasedMapping() {
+  }
+
+  public LatencyBasedMapping(Configuration conf) {
+    setConf(conf);
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.threshold = conf.getLong(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+  }
+
+  /** {@inheritDoc} */
+  public List<String> resolve(List<String> names) {
+    Map<String, String> current = racks;
+    List<String> result = new ArrayList<String>(names.size());
+    for (String name : names) {
+      String rack = current.get(name);
+      result.add(rack == null ? NetworkTopology.DEFAULT_RACK : rack);
+    }
+    return result;
+  }
+
+  /**
+   * Record the round trip times measured by a node to its peers.
+   * @param name the reporting node
+   * @param peers the peers
+   * @param times the round trip times to the peers, in ms
+   */
+  public synchronized void addLatencies(String name, String[] peers,
+                                        long[] times) {
+    for (int i = 0; i < peers.length && i < times.length; i++) {
+      if (peers[i] == null || peers[i].equals(name) || times[i] < 0) {
+        continue;
+      }
+      Double old = getLatency(name, peers[i]);
+      double rtt = (old == null) ? times[i] :
+        SAMPLE_WEIGHT * times[i] + (1 - SAMPLE_WEIGHT) * old;
+      setLatency(name, peers[i], rtt);
+      setLatency(peers[i], name, rtt);
+    }
+  }
+
+  /**
+   * Get the smoothed round trip time between two nodes.
+   * @return the round trip time in ms, or null if never measured
+   */
+  public synchronized Double getLatency(String name1, String name2) {
+    Map<String, Double> peers = rtts.get(name1);
+    return peers == null ? null : peers.get(name2);
+  }
+
+  private void setLatency(String name1, String name2, double rtt) {
+    Map<String, Double> peers = rtts.get(name1);
+    if (peers == null) {
+      peers = new HashMap<String, Double>();
+      rtts.put(name1, peers);
+    }
+    peers.put(name2, rtt);
+  }
+
+  /**
+   * Cluster the given nodes into racks. The round trip times to the
+   * other nodes are forgotten.
+   * @param names the nodes of the cluster
+   * @return the number of racks
+   */
+  public synchronized int recompute(Collection<String> names) {
+    final Set<String> live = new HashSet<String>(names);
+    for (Iterator<Map.Entry<String, Map<String, Double>>> it =
+           rtts.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Map<String, Double>> e = it.next();
+      if (!live.contains(e.getKey())) {
+        it.remove();
+      } else {
+        e.getValue().keySet().retainAll(live);
+      }
+    }
+
+    // the previous rack centers first, then the nodes with most neighbours
+    final Map<String, Integer> neighbours = new HashMap<String, Integer>();
+    List<String> others = new ArrayList<String>();
+    for (String name : live) {
+      Map<String, Double> peers = rtts.get(name);
+      if (peers == null || peers.isEmpty() || centers.contains(name)) {
+        continue;
+      }
+      int count = 0;
+      for (double rtt : peers.values()) {
+        if (rtt <= threshold) {
+          count++;
+        }
+      }
+      neighbours.put(name, count);
+      others.add(name);
+    }
+    Collections.sort(others, new Comparator<String>() {
+      public int compare(String n1, String n2) {
+        int c = neighbours.get(n2).compareTo(neighbours.get(n1));
+        return c != 0 ? c : n1.compareTo(n2);
+      }
+    });
+    List<String> order = new ArrayList<String>();
+    for (String center : centers) {
+      Map<String, Double> peers = rtts.get(center);
+      if (peers != null && !peers.isEmpty()) {
+        order.add(center);
+      }
+    }
+    order.addAll(others);
+
+    Map<String, String> newRacks = new HashMap<String, String>();
+    Set<String> newCenters = new LinkedHashSet<String>();
+    for (String center : order) {
+      if (newRacks.containsKey(center)) {
+        continue;
+      }
+      String rack = RACK_PREFIX + Integer.toHexString(center.hashCode());
+      newCenters.add(center);
+      newRacks.put(center, rack);
+      for (Map.Entry<String, Double> peer : rtts.get(center).entrySet()) {
+        if (peer.getValue() <= threshold &&
+            !newRacks.containsKey(peer.getKey())) {
+          newRacks.put(peer.getKey(), rack);
+        }
+      }
+    }
+    centers = newCenters;
+    racks = newRacks;
+    return newCenters.size();
+  }
+}
@@ -642,8 +642,10 @@ public class NetworkTopology {
       }
 
       // swap the local rack node and the node at position tempIndex
-      if(localRackNode != -1 && localRackNode != tempIndex ) {
-        swap(nodes, tempIndex, localRackNode);
+      if(localRackNode != -1) {
+        if(localRackNode != tempIndex) {
+          swap(nodes, tempIndex, localRackNode);
+        }
         tempIndex++;
       }
     }
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FSDataInputStream;
+import org.apache.jxtadoop.fs.FSDataOutputStream;
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.fs.FileSystem;
+import org.apache.jxtadoop.fs.Path;
+import org.apache.jxtadoop.hdfs.p2p.P2PConstants;
+
+/**
+ * Benchmark of the sequential read throughput of a running cluster, to
+ * measure the effect of the block prefetch.
+ * A file of the given size is written with small blocks, unless it
+ * already exists with that size, then read sequentially the given number
+ * of times. The throughput of each read is reported.
+ * <pre>
+ * SequentialReadBenchmark &lt;path&gt; &lt;sizeMB&gt; [-prefetch &lt;blocks&gt;]
+ *     [-blocksize &lt;bytes&gt;] [-runs &lt;n&gt;]
+ * </pre>
+ * The client of a process is shared, so the benchmark is run once with
+ * -prefetch 0 and once with the prefetch to compare.
+ */
+public class SequentialReadBenchmark {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: SequentialReadBenchmark <path> <sizeMB>" +
+                         " [-prefetch <blocks>] [-blocksize <bytes>]" +
+                         " [-runs <n>]");
+      System.exit(-1);
+    }
+    Path path = new Path(args[0]);
+    long size = Long.parseLong(args[1]) * 1024 * 1024;
+    long blockSize = 1024 * 1024;
+    int runs = 3;
+    Configuration conf = new Configuration();
+    for (int i = 2; i < args.length; i++) {
+      if ("-prefetch".equals(args[i])) {
+        conf.setInt("dfs.client.read.prefetch.blocks",
+                    Integer.parseInt(args[++i]));
+      } else if ("-blocksize".equals(args[i])) {
+        blockSize = Long.parseLong(args[++i]);
+      } else if ("-runs".equals(args[i])) {
+        runs = Integer.parseInt(args[++i]);
+      }
+    }
+
+    FileSystem fs = FileSystem.get(conf);
+    if (!fs.exists(path) || fs.getFileStatus(path).getLen() != size) {
+      writeFile(fs, path, size, blockSize);
+    }
+    FileStatus stat = fs.getFileStatus(path);
+    System.out.println("Reading " + stat.getLen() + " bytes in blocks of " +
+        stat.getBlockSize() + " bytes with " +
+        conf.getInt("dfs.client.read.prefetch.blocks",
+                    P2PConstants.DFS_CLIENT_READ_PREFETCH_BLOCKS) +
+        " prefetched blocks");
+
+    byte[] buf = new byte[BUFFER_SIZE];
+    for (int run = 0; run < runs; run++) {
+      long start = System.currentTimeMillis();
+      long read = 0;
+      FSDataInputStream in = fs.open(path, BUFFER_SIZE);
+      try {
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          read += n;
+        }
+      } finally {
+        in.close();
+      }
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      System.out.println("Run " + run + ": read " + read + " bytes in " +
+          elapsed + " msec, " + (read * 1000 / elapsed / 1024) + " KB/s");
+    }
+    fs.close();
+  }
+
+  private static void writeFile(FileSystem fs, Path path, long size,
+                                long blockSize) throws IOException {
+    long start = System.currentTimeMillis();
+    byte[] buf = new byte[BUFFER_SIZE];
+    new Random(size).nextBytes(buf);
+    FSDataOutputStream out = fs.create(path, true, BUFFER_SIZE,
+        fs.getDefaultReplication(), blockSize);
+    try {
+      for (long written = 0; written < size; written += buf.length) {
+        out.write(buf, 0, (int)Math.min(buf.length, size - written));
+      }
+    } finally {
+      out.close();
+    }
+    System.out.println("Wrote " + size + " bytes in " +
+        (System.currentTimeMillis() - start) + " msec");
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.common.Storage.StorageDirectory;
+import org.apache.jxtadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.jxtadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.jxtadoop.util.DataChecksum;
+
+/**
+ * Stress test of the block locks of {@link FSDataset} : writers create
+ * and finalize blocks while readers look up and read the finalized ones.
+ * The readers must always find a finalized block with its full content.
+ * The waits on the block locks are reported from the
+ * {@link DataNodeMetrics}.
+ */
+public class TestFSDatasetConcurrency extends TestCase {
+  private static final int NUM_VOLUMES = 2;
+  private static final int NUM_WRITERS = 4;
+  private static final int NUM_READERS = 4;
+  private static final int BLOCKS_PER_WRITER = 250;
+  private static final int BLOCK_LENGTH = 4096;
+  /* few stripes, so that the writers and readers meet on the locks */
+  private static final int LOCK_STRIPES = 4;
+
+  /** A storage of the given volume directories, without version files */
+  private static class TestStorage extends DataStorage {
+    TestStorage(File[] dirs) {
+      super(1, 0, "DS-test");
+      for (File dir : dirs) {
+        addStorageDir(new StorageDirectory(dir));
+      }
+    }
+  }
+
+  private File root;
+  private FSDataset dataset;
+  private DataNodeMetrics metrics;
+
+  protected void setUp() throws Exception {
+    root = new File(System.getProperty("test.build.data", "/tmp"),
+                    "TestFSDatasetConcurrency");
+    FileUtil.fullyDelete(root);
+    File[] volumes = new File[NUM_VOLUMES];
+    for (int i = 0; i < volumes.length; i++) {
+      volumes[i] = new File(root, "data" + i);
+      if (!new File(volumes[i], "current").mkdirs()) {
+        throw new IOException("Cannot create " + volumes[i]);
+      }
+    }
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.dataset.lock.stripes", LOCK_STRIPES);
+    conf.setBoolean("dfs.datanode.replica.cache", false);
+    dataset = new FSDataset(new TestStorage(volumes), conf);
+    metrics = new DataNodeMetrics(conf, "DS-test");
+    dataset.setMetrics(metrics);
+  }
+
+  protected void tearDown() throws IOException {
+    dataset.shutdown();
+    metrics.shutdown();
+    FileUtil.fullyDelete(root);
+  }
+
+  private static byte contentOf(long blockId, int offset) {
+    return (byte)(blockId * 31 + offset);
+  }
+
+  private void writeBlock(Block b) throws IOException {
+    BlockWriteStreams streams = dataset.writeToBlock(b, false);
+    try {
+      byte[] data = new byte[BLOCK_LENGTH];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = contentOf(b.getBlockId(), i);
+      }
+      streams.dataOut.write(data);
+      BlockMetadataHeader.writeHeader(new DataOutputStream(streams.checksumOut),
+          DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512));
+    } finally {
+      streams.dataOut.close();
+      streams.checksumOut.close();
+    }
+    b.setNumBytes(BLOCK_LENGTH);
+    dataset.finalizeBlock(b);
+  }
+
+  private void readBlock(Block b) throws IOException {
+    Block stored = dataset.getStoredBlock(b.getBlockId());
+    if (stored == null || !stored.equals(b) ||
+        stored.getNumBytes() != BLOCK_LENGTH) {
+      throw new AssertionError("Bad stored block " + stored + " for " + b);
+    }
+    InputStream in = dataset.getBlockInputStream(b);
+    try {
+      byte[] data = new byte[BLOCK_LENGTH];
+      int n = 0;
+      while (n < data.length) {
+        int r = in.read(data, n, data.length - n);
+        if (r < 0) {
+          throw new AssertionError("Short block " + b + " of " + n + " bytes");
+        }
+        n += r;
+      }
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] != contentOf(b.getBlockId(), i)) {
+          throw new AssertionError("Bad content of " + b + " at " + i);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testReadersDuringWrites() throws Exception {
+    final List<Block> finalized = new CopyOnWriteArrayList<Block>();
+    final AtomicLong nextId = new AtomicLong(1);
+    final AtomicLong reads = new AtomicLong();
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < NUM_WRITERS; t++) {
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < BLOCKS_PER_WRITER; i++) {
+              Block b = new Block(nextId.getAndIncrement(), 0,
+                                  GenerationStamp.FIRST_VALID_STAMP);
+              writeBlock(b);
+              finalized.add(b);
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      });
+    }
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int t = 0; t < NUM_READERS; t++) {
+      final Random r = new Random(t);
+      readers.add(new Thread() {
+        public void run() {
+          try {
+            while (!done.get()) {
+              int n = finalized.size();
+              if (n == 0) {
+                Thread.yield();
+                continue;
+              }
+              readBlock(finalized.get(r.nextInt(n)));
+              reads.incrementAndGet();
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      });
+    }
+
+    long start = System.currentTimeMillis();
+    for (Thread t : readers) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    done.set(true);
+    for (Thread t : readers) {
+      t.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    if (!failures.isEmpty()) {
+      throw new AssertionError(failures.get(0));
+    }
+
+    assertEquals(NUM_WRITERS * BLOCKS_PER_WRITER, finalized.size());
+    assertEquals(finalized.size(), dataset.getBlockReport().length);
+    for (Block b : finalized) {
+      readBlock(b);
+    }
+
+    metrics.doUpdates(null);
+    System.out.println(finalized.size() + " blocks written and " + reads.get() +
+        " read in " + elapsed + " msec ; datasetLockWaits: " +
+        metrics.datasetLockWaits.getPreviousIntervalNumOps() + " waits, " +
+        metrics.datasetLockWaits.getPreviousIntervalAverageTime() + " us average, " +
+        metrics.datasetLockWaits.getMaxTime() + " us max");
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.datanode;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.datanode.DataBlockScanner.BlockScanInfo;
+import org.apache.jxtadoop.hdfs.server.datanode.DataBlockScanner.ScanType;
+
+/**
+ * Tests the {@link ReplicaMap} and reports the heap it takes for a
+ * million replicas, each scheduled for a verification.
+ */
+public class TestReplicaMap extends TestCase {
+  private static final int NUM_REPLICAS = 1000000;
+  private static final int NUM_SEGMENTS = 16;
+  private static final int NUM_VOLUMES = 4;
+  /* the ids are allocated in runs, as the namenode does for a writer */
+  private static final int RUN_LENGTH = 1000;
+
+  /** The block ids: runs of consecutive ids starting at random places */
+  private static long[] blockIds(int n) {
+    Random r = new Random(n);
+    long[] ids = new long[n];
+    long id = 0;
+    for (int i = 0; i < n; i++) {
+      id = (i % RUN_LENGTH == 0) ? r.nextLong() : id + 1;
+      ids[i] = id;
+    }
+    return ids;
+  }
+
+  private static Block block(long id) {
+    return new Block(id, id & 0xfffff, 1000 + (id & 0xff));
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+    }
+    return used;
+  }
+
+  public void testHeapPerMillionReplicas() {
+    long[] ids = blockIds(NUM_REPLICAS);
+    long before = usedHeap();
+    long start = System.currentTimeMillis();
+    ReplicaMap map = new ReplicaMap(NUM_SEGMENTS);
+    for (int i = 0; i < ids.length; i++) {
+      Block b = block(ids[i]);
+      map.put(b, i % NUM_VOLUMES, i % 64);
+      BlockScanInfo info = new BlockScanInfo(b);
+      info.lastScanTime = ids[i] & 0xffffff;
+      info.lastScanType = ScanType.VERIFICATION_SCAN;
+      map.putScanInfo(info);
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    long heap = usedHeap() - before;
+    System.out.println("ReplicaMap: " + NUM_REPLICAS + " replicas added in " +
+        elapsed + " msec, " + (heap / (1024 * 1024)) + " MB of heap, " +
+        (heap / NUM_REPLICAS) + " bytes per replica");
+
+    assertEquals(NUM_REPLICAS, map.size());
+    assertEquals(NUM_REPLICAS, map.getNumScans());
+    // 52 bytes per slot, with the tables between 3/8 and 3/4 full
+    assertTrue("Heap per replica " + heap / NUM_REPLICAS,
+               heap / NUM_REPLICAS <= 52 * 8 / 3 + 8);
+  }
+
+  public void testPutGetRemove() {
+    long[] ids = blockIds(10 * RUN_LENGTH);
+    ReplicaMap map = new ReplicaMap(NUM_SEGMENTS);
+    for (int i = 0; i < ids.length; i++) {
+      map.put(block(ids[i]), i % NUM_VOLUMES, i % 64);
+    }
+    for (int i = 0; i < ids.length; i++) {
+      long location = map.getLocation(block(ids[i]));
+      assertEquals(i % NUM_VOLUMES, ReplicaMap.getVolume(location));
+      assertEquals(i % 64, ReplicaMap.getDir(location));
+    }
+    // a replica with another generation stamp is another replica
+    Block b = block(ids[0]);
+    b.setGenerationStamp(b.getGenerationStamp() + 1);
+    assertEquals(ReplicaMap.NO_REPLICA, map.getLocation(b));
+
+    // remove every other replica, the others must remain reachable
+    for (int i = 0; i < ids.length; i += 2) {
+      assertTrue(map.remove(block(ids[i])));
+    }
+    assertEquals(ids.length / 2, map.size());
+    for (int i = 0; i < ids.length; i++) {
+      long location = map.getLocation(block(ids[i]));
+      if (i % 2 == 0) {
+        assertEquals(ReplicaMap.NO_REPLICA, location);
+      } else {
+        assertEquals(i % NUM_VOLUMES, ReplicaMap.getVolume(location));
+      }
+    }
+  }
+
+  public void testScanOrder() {
+    long[] ids = blockIds(10 * RUN_LENGTH);
+    ReplicaMap map = new ReplicaMap(NUM_SEGMENTS);
+    Random r = new Random(0);
+    for (int i = 0; i < ids.length; i++) {
+      Block b = block(ids[i]);
+      map.put(b, 0, 0);
+      BlockScanInfo info = new BlockScanInfo(b);
+      info.lastScanTime = r.nextInt(1000000);
+      info.lastScanType = ScanType.VERIFICATION_SCAN;
+      map.putScanInfo(info);
+    }
+    long last = -1;
+    for (int i = 0; i < ids.length; i++) {
+      BlockScanInfo first = map.firstScanInfo();
+      assertTrue(first.lastScanTime >= last);
+      last = first.lastScanTime;
+      assertTrue(map.removeScanInfo(first.block));
+    }
+    assertNull(map.firstScanInfo());
+  }
+}
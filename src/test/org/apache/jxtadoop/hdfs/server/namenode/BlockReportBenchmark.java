@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.jxtadoop.net.NetworkTopology;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Benchmark of the full block reports against the delta reports.
+ * A synthetic namespace of the given number of files, one block each, is
+ * created with {@link ImageBenchmark} and a single datanode reports all
+ * the blocks. Each round the datanode loses then gets back the given
+ * percentage of its blocks, once through delta reports and once through
+ * full reports of the same block population. The time of each kind of
+ * report is reported.
+ * <pre>
+ * BlockReportBenchmark &lt;numFiles&gt; [changedPercent] [rounds]
+ * </pre>
+ */
+public class BlockReportBenchmark {
+
+  /** The report of the blocks from first to last, skipping one in step
+   * blocks if step is positive. */
+  private static BlockListAsLongs report(long first, long last, long step) {
+    int count = 0;
+    for (long id = first; id <= last; id++) {
+      if (step <= 0 || id % step != 0) {
+        count++;
+      }
+    }
+    long[] longs = new long[3 * count];
+    int i = 0;
+    for (long id = first; id <= last; id++) {
+      if (step <= 0 || id % step != 0) {
+        longs[i++] = id;
+        longs[i++] = ImageBenchmark.BLOCK_SIZE;
+        longs[i++] = GenerationStamp.FIRST_VALID_STAMP;
+      }
+    }
+    return new BlockListAsLongs(longs);
+  }
+
+  /** The blocks skipped by report(first, last, step). */
+  private static BlockListAsLongs changed(long first, long last, long step) {
+    int count = 0;
+    for (long id = first; id <= last; id++) {
+      if (id % step == 0) {
+        count++;
+      }
+    }
+    long[] longs = new long[3 * count];
+    int i = 0;
+    for (long id = first; id <= last; id++) {
+      if (id % step == 0) {
+        longs[i++] = id;
+        longs[i++] = ImageBenchmark.BLOCK_SIZE;
+        longs[i++] = GenerationStamp.FIRST_VALID_STAMP;
+      }
+    }
+    return new BlockListAsLongs(longs);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: BlockReportBenchmark <numFiles>" +
+                         " [changedPercent] [rounds]");
+      System.exit(-1);
+    }
+    long numFiles = Long.parseLong(args[0]);
+    double changedPercent = (args.length > 1) ? Double.parseDouble(args[1]) : 1;
+    int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+    long step = Math.max(1, Math.round(100 / changedPercent));
+
+    // one line per block otherwise
+    Logger.getLogger("org.apache.jxtadoop.hdfs.StateChange").setLevel(Level.WARN);
+
+    Configuration conf = new Configuration();
+    if (NameNode.myMetrics == null) {
+      NameNode.myMetrics = new NameNodeMetrics(conf, null);
+    }
+    FSNamesystem namesystem = new FSNamesystem(new FSImage(), conf);
+    namesystem.pendingReplications = new PendingReplicationBlocks();
+    try {
+      long start = System.currentTimeMillis();
+      ImageBenchmark.createNamespace(namesystem.dir, numFiles);
+      System.out.println("Created " + numFiles + " files in " +
+          (System.currentTimeMillis() - start) + " msec");
+
+      DatanodeID id = new DatanodeID("peer-0");
+      id.storageID = "storage-0";
+      DatanodeDescriptor node = new DatanodeDescriptor(id,
+          NetworkTopology.DEFAULT_RACK, "peer-0");
+      namesystem.unprotectedAddDatanode(node);
+
+      BlockListAsLongs all = report(1, numFiles, 0);
+      BlockListAsLongs partial = report(1, numFiles, step);
+      BlockListAsLongs delta = changed(1, numFiles, step);
+      BlockListAsLongs none = new BlockListAsLongs(new long[0]);
+      namesystem.processReport(node, all);
+
+      long fullTime = 0;
+      long deltaTime = 0;
+      for (int r = 0; r < rounds; r++) {
+        start = System.nanoTime();
+        namesystem.processReport(node, partial);
+        namesystem.processReport(node, all);
+        fullTime += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        if (!namesystem.processReportDelta(node, 0, none, delta) ||
+            !namesystem.processReportDelta(node, 1, delta, none)) {
+          throw new IllegalStateException("Delta report rejected");
+        }
+        deltaTime += System.nanoTime() - start;
+
+        if (node.numBlocks() != numFiles) {
+          throw new IllegalStateException("Datanode has " + node.numBlocks() +
+              " blocks instead of " + numFiles);
+        }
+      }
+
+      int reports = 2 * rounds;
+      System.out.println(reports + " full reports of " +
+          partial.getNumberOfBlocks() + " or " + all.getNumberOfBlocks() +
+          " blocks: " + (fullTime / 1000000 / reports) + " msec each");
+      System.out.println(reports + " delta reports of " + delta.getNumberOfBlocks() +
+          " blocks: " + (deltaTime / 1000 / reports) + " usec each");
+    } finally {
+      namesystem.pendingReplications.stop();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.jxtadoop.fs.permission.FsPermission;
+import org.apache.jxtadoop.fs.permission.PermissionStatus;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.Storage.StorageDirectory;
+import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Generator of synthetic edit logs.
+ * The files are created under /dN/dM directories of FILES_PER_DIR files
+ * each, as a client would do it: a mkdir per directory, then an open and
+ * a close record per file, with one block. One file out of DELETE_EVERY
+ * is deleted afterwards.
+ * <pre>
+ * CreateEditsLog &lt;numFiles&gt; &lt;dir&gt;
+ * </pre>
+ * The edit log is written to dir/current/edits.
+ */
+public class CreateEditsLog {
+  static final int FILES_PER_DIR = 100;
+  static final int DIRS_PER_DIR = 100;
+  static final int DELETE_EVERY = 10;
+  static final short REPLICATION = 3;
+  static final long BLOCK_SIZE = 64L * 1024 * 1024;
+  private static final int EDITS_PER_SYNC = 1000;
+
+  /**
+   * Write an edit log creating the given number of files.
+   * @return the edit log file
+   */
+  static File createEditsLog(File dir, long numFiles) throws IOException {
+    File current = new File(dir, "current");
+    if (!current.isDirectory() && !current.mkdirs()) {
+      throw new IOException("Cannot create directory " + current);
+    }
+    FSImage image = new FSImage(dir);
+    StorageDirectory sd = image.dirIterator().next();
+    File editsFile = image.getEditFile(sd);
+    FSEditLog editLog = image.getEditLog();
+    editLog.createEditLogFile(editsFile);
+    editLog.open();
+
+    PermissionStatus perm = new PermissionStatus("bench", "bench",
+                                                 new FsPermission((short)0755));
+    long now = FSNamesystem.now();
+    long blockId = 1;
+    long numEdits = 0;
+    long numDirs = (numFiles + FILES_PER_DIR - 1) / FILES_PER_DIR;
+    try {
+      for (long d = 0; d < numDirs; d++) {
+        String parent = "/d" + (d / DIRS_PER_DIR);
+        if (d % DIRS_PER_DIR == 0) {
+          editLog.logMkDir(parent, new INodeDirectory(parent, perm));
+          numEdits++;
+        }
+        String path = parent + "/d" + (d % DIRS_PER_DIR);
+        editLog.logMkDir(path, new INodeDirectory(path, perm));
+        numEdits++;
+        for (int f = 0; f < FILES_PER_DIR && d * FILES_PER_DIR + f < numFiles; 
+             f++) {
+          String file = path + "/f" + f;
+          INodeFileUnderConstruction inode = new INodeFileUnderConstruction(
+              INode.string2Bytes(file), REPLICATION, now, BLOCK_SIZE,
+              new BlockInfo[0], perm, "client", "localhost", null);
+          editLog.logOpenFile(file, inode);
+          inode.addBlock(new BlockInfo(new Block(blockId++, BLOCK_SIZE, 1),
+                                       REPLICATION));
+          editLog.logCloseFile(file, inode);
+          numEdits += 2;
+          if (f % DELETE_EVERY == DELETE_EVERY - 1) {
+            editLog.logDelete(file, now);
+            numEdits++;
+          }
+          if (numEdits % EDITS_PER_SYNC == 0) {
+            editLog.logSync();
+          }
+        }
+      }
+      editLog.logSync();
+    } finally {
+      editLog.close();
+    }
+    return editsFile;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: CreateEditsLog <numFiles> <dir>");
+      System.exit(-1);
+    }
+    long start = System.currentTimeMillis();
+    File editsFile = createEditsLog(new File(args[1]), Long.parseLong(args[0]));
+    System.out.println("Created edit log " + editsFile + " of " +
+        editsFile.length() + " bytes in " +
+        (System.currentTimeMillis() - start) + " msec");
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
+
+/**
+ * Benchmark of the edit log replay.
+ * An edit log creating the given number of files is generated with
+ * {@link CreateEditsLog} in a temporary directory, then replayed into an
+ * empty namesystem. The replay time and rate are reported.
+ * <pre>
+ * EditsReplayBenchmark &lt;numFiles&gt;
+ * </pre>
+ */
+public class EditsReplayBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: EditsReplayBenchmark <numFiles>");
+      System.exit(-1);
+    }
+    long numFiles = Long.parseLong(args[0]);
+
+    File dir = File.createTempFile("edits", ".bench");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create directory " + dir);
+    }
+    try {
+      long start = System.currentTimeMillis();
+      File editsFile = CreateEditsLog.createEditsLog(dir, numFiles);
+      System.out.println("Created edit log of " + editsFile.length() +
+          " bytes in " + (System.currentTimeMillis() - start) + " msec");
+
+      FSImage image = new FSImage();
+      FSNamesystem namesystem = new FSNamesystem(image, new Configuration());
+      EditLogFileInputStream edits = new EditLogFileInputStream(editsFile);
+      start = System.currentTimeMillis();
+      int numEdits;
+      try {
+        numEdits = FSEditLog.loadFSEdits(edits);
+      } finally {
+        edits.close();
+      }
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      System.out.println("Replayed " + numEdits + " edits in " + elapsed +
+          " msec, " + (numEdits * 1000L / elapsed) + " edits/sec");
+    } finally {
+      FileUtil.fullyDelete(dir);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.permission.FsPermission;
+import org.apache.jxtadoop.fs.permission.PermissionStatus;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+
+/**
+ * Benchmark of the image saving and loading.
+ * A synthetic namespace of the given number of files, one block each,
+ * spread over directories of FILES_PER_DIR files, is saved to a temporary
+ * image and loaded back into a new namesystem. The wall time of both is
+ * reported.
+ * <pre>
+ * ImageBenchmark &lt;numFiles&gt; [-parallelism &lt;n&gt;] [-compress]
+ * </pre>
+ */
+public class ImageBenchmark {
+  static final int FILES_PER_DIR = 100;
+  static final int DIRS_PER_DIR = 100;
+  private static final short REPLICATION = 3;
+  static final long BLOCK_SIZE = 64L * 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: ImageBenchmark <numFiles>" +
+                         " [-parallelism <n>] [-compress]");
+      System.exit(-1);
+    }
+    long numFiles = Long.parseLong(args[0]);
+    Configuration conf = new Configuration();
+    for (int i = 1; i < args.length; i++) {
+      if ("-parallelism".equals(args[i])) {
+        conf.setInt("dfs.image.parallelism", Integer.parseInt(args[++i]));
+      } else if ("-compress".equals(args[i])) {
+        conf.setBoolean("dfs.image.compress", true);
+      }
+    }
+
+    File imageFile = File.createTempFile("fsimage", ".bench");
+    try {
+      FSImage image = new FSImage();
+      FSNamesystem namesystem = new FSNamesystem(image, conf);
+      long start = System.currentTimeMillis();
+      createNamespace(namesystem.dir, numFiles);
+      namesystem.dir.updateCountForINodeWithQuota();
+      System.out.println("Created " + numFiles + " files in " +
+          (System.currentTimeMillis() - start) + " msec");
+
+      start = System.currentTimeMillis();
+      image.saveFSImage(imageFile);
+      System.out.println("Saved image of " + imageFile.length() +
+          " bytes in " + (System.currentTimeMillis() - start) + " msec");
+      namesystem = null;
+      image = null;
+      System.gc();
+
+      image = new FSImage();
+      namesystem = new FSNamesystem(image, conf);
+      start = System.currentTimeMillis();
+      image.loadFSImage(imageFile);
+      namesystem.dir.updateCountForINodeWithQuota();
+      System.out.println("Loaded image of " +
+          namesystem.dir.rootDir.numItemsInTree() + " inodes in " +
+          (System.currentTimeMillis() - start) + " msec");
+    } finally {
+      imageFile.delete();
+    }
+  }
+
+  /**
+   * Create the files under /dN/dM directories, each directory holding
+   * FILES_PER_DIR files.
+   */
+  static void createNamespace(FSDirectory dir, long numFiles)
+                              throws IOException {
+    PermissionStatus perm = new PermissionStatus("bench", "bench",
+                                                 new FsPermission((short)0755));
+    long now = FSNamesystem.now();
+    long blockId = 1;
+    long numDirs = (numFiles + FILES_PER_DIR - 1) / FILES_PER_DIR;
+    for (long d = 0; d < numDirs; d++) {
+      String parent = "/d" + (d / DIRS_PER_DIR);
+      if (d % DIRS_PER_DIR == 0) {
+        dir.unprotectedMkdir(parent, perm, now);
+      }
+      String path = parent + "/d" + (d % DIRS_PER_DIR);
+      dir.unprotectedMkdir(path, perm, now);
+      for (int f = 0; f < FILES_PER_DIR && d * FILES_PER_DIR + f < numFiles; f++) {
+        Block[] blocks = new Block[] {new Block(blockId++, BLOCK_SIZE,
+                                              GenerationStamp.FIRST_VALID_STAMP)};
+        if (dir.unprotectedAddFile(path + "/f" + f, perm, blocks, REPLICATION,
+                                   now, now, BLOCK_SIZE) == null) {
+          throw new IOException("Failed to create " + path + "/f" + f);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.fs.permission.FsPermission;
+import org.apache.jxtadoop.fs.permission.PermissionStatus;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Tests the open addressed table of {@link BlocksMap}.
+ */
+public class TestBlocksMap extends TestCase {
+  private static final int CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final INodeFile inode = new INodeFile(
+      new PermissionStatus("test", "test", FsPermission.getDefault()),
+      1, (short)3, 0L, 0L, 64L * 1024 * 1024);
+
+  private static Block block(long id) {
+    return new Block(id, 0, GenerationStamp.FIRST_VALID_STAMP);
+  }
+
+  /** Return count block ids whose home slot in a table of CAPACITY
+   * slots is the given one. */
+  private static List<Long> idsAt(int slot, int count, long from) {
+    List<Long> ids = new ArrayList<Long>();
+    for (long id = from; ids.size() < count; id++) {
+      if (BlocksMap.indexFor(id, CAPACITY) == slot) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  private static void check(BlocksMap map, Set<Long> present, Set<Long> removed) {
+    assertEquals(present.size(), map.size());
+    for (long id : present) {
+      BlockInfo info = map.getStoredBlock(block(id));
+      assertNotNull("Block " + id + " lost", info);
+      assertEquals(id, info.getBlockId());
+    }
+    for (long id : removed) {
+      assertFalse("Block " + id + " still present", map.contains(block(id)));
+    }
+    Set<Long> iterated = new HashSet<Long>();
+    for (BlockInfo info : map.getBlocks()) {
+      assertTrue(iterated.add(info.getBlockId()));
+    }
+    assertEquals(present, iterated);
+  }
+
+  public void testPutGetRemove() {
+    BlocksMap map = new BlocksMap(CAPACITY, LOAD_FACTOR);
+    assertNull(map.getStoredBlock(block(1)));
+    BlockInfo info = map.addINode(block(1), inode);
+    assertSame(info, map.getStoredBlock(block(1)));
+    assertSame(inode, map.getINode(block(1)));
+    assertSame(info, map.addINode(block(1), inode));
+    assertEquals(1, map.size());
+
+    // another generation stamp is another block, the wildcard matches
+    Block newer = new Block(1, 0, GenerationStamp.FIRST_VALID_STAMP + 1);
+    assertNull(map.getStoredBlock(newer));
+    map.removeINode(newer);
+    assertEquals(1, map.size());
+    assertSame(info, map.getStoredBlock(
+        new Block(1, 0, GenerationStamp.WILDCARD_STAMP)));
+
+    map.removeINode(block(1));
+    assertNull(map.getStoredBlock(block(1)));
+    assertEquals(0, map.size());
+    map.removeINode(block(1));
+    assertEquals(0, map.size());
+  }
+
+  /**
+   * Blocks probing across the end of the table must stay reachable
+   * whatever the order of the removals.
+   */
+  public void testRemoveAcrossWrapAround() {
+    List<Long> ids = new ArrayList<Long>();
+    ids.addAll(idsAt(CAPACITY - 2, 2, 1));
+    ids.addAll(idsAt(CAPACITY - 1, 3, 1));
+    ids.addAll(idsAt(0, 2, 1));
+    ids.addAll(idsAt(1, 1, 1));
+    assertTrue(ids.size() <= CAPACITY * LOAD_FACTOR);
+
+    Random r = new Random(0);
+    for (int round = 0; round < 200; round++) {
+      BlocksMap map = new BlocksMap(CAPACITY, LOAD_FACTOR);
+      List<Long> order = new ArrayList<Long>(ids);
+      Collections.shuffle(order, r);
+      for (long id : order) {
+        map.addINode(block(id), inode);
+      }
+      assertEquals(CAPACITY, map.getCapacity());
+
+      Set<Long> present = new HashSet<Long>(ids);
+      Set<Long> removed = new HashSet<Long>();
+      Collections.shuffle(order, r);
+      for (long id : order) {
+        map.removeINode(block(id));
+        present.remove(id);
+        removed.add(id);
+        check(map, present, removed);
+
+        // a block put back lands in the freed slots
+        if (r.nextBoolean()) {
+          long back = removed.iterator().next();
+          map.addINode(block(back), inode);
+          removed.remove(back);
+          present.add(back);
+          check(map, present, removed);
+          map.removeINode(block(back));
+          present.remove(back);
+          removed.add(back);
+        }
+      }
+      check(map, present, removed);
+    }
+  }
+
+  public void testIteratorFailsOnModification() {
+    BlocksMap map = new BlocksMap(CAPACITY, LOAD_FACTOR);
+    for (long id = 1; id <= 5; id++) {
+      map.addINode(block(id), inode);
+    }
+
+    Iterator<BlockInfo> it = map.getBlocks().iterator();
+    it.next();
+    map.addINode(block(6), inode);
+    try {
+      it.next();
+      fail("Expected ConcurrentModificationException");
+    } catch (ConcurrentModificationException e) {
+    }
+
+    it = map.getBlocks().iterator();
+    it.next();
+    map.removeINode(block(1));
+    try {
+      it.next();
+      fail("Expected ConcurrentModificationException");
+    } catch (ConcurrentModificationException e) {
+    }
+
+    // updating a block in place is not a modification of the table
+    it = map.getBlocks().iterator();
+    it.next();
+    map.addINode(block(2), inode);
+    it.next();
+    try {
+      it.remove();
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) {
+    }
+  }
+
+  public void testResize() {
+    BlocksMap map = new BlocksMap(CAPACITY, LOAD_FACTOR);
+    Set<Long> present = new HashSet<Long>();
+    Random r = new Random(1);
+    while (present.size() < 5000) {
+      long id = r.nextLong();
+      if (present.add(id)) {
+        map.addINode(block(id), inode);
+      }
+      int capacity = map.getCapacity();
+      assertEquals(1, Integer.bitCount(capacity));
+      assertTrue(map.size() <= capacity * LOAD_FACTOR);
+    }
+    assertEquals(8192, map.getCapacity());
+    check(map, present, Collections.<Long>emptySet());
+
+    // the table does not shrink
+    Set<Long> removed = new HashSet<Long>();
+    for (Iterator<Long> i = present.iterator(); i.hasNext(); ) {
+      long id = i.next();
+      if (id % 2 == 0) {
+        map.removeINode(block(id));
+        i.remove();
+        removed.add(id);
+      }
+    }
+    assertEquals(8192, map.getCapacity());
+    check(map, present, removed);
+  }
+
+  /**
+   * Block ids are allocated in runs. They must not pile up in a few
+   * clusters of the table.
+   */
+  public void testSequentialIds() {
+    int numBlocks = 100000;
+    BlocksMap map = new BlocksMap(numBlocks * 2, LOAD_FACTOR);
+    int capacity = map.getCapacity();
+    Set<Long> present = new HashSet<Long>();
+    for (long id = 1; id <= numBlocks; id++) {
+      map.addINode(block(id), inode);
+      present.add(id);
+    }
+    assertEquals(capacity, map.getCapacity());
+
+    // simulate the probes : the longest run of occupied slots stays short
+    boolean[] used = new boolean[capacity];
+    long probes = 0;
+    for (long id = 1; id <= numBlocks; id++) {
+      int i = BlocksMap.indexFor(id, capacity);
+      while (used[i]) {
+        i = (i + 1) & (capacity - 1);
+        probes++;
+      }
+      used[i] = true;
+    }
+    assertTrue("Average probe length " + (double)probes / numBlocks,
+               probes < numBlocks);
+
+    Set<Long> removed = new HashSet<Long>();
+    for (long id = 1; id <= numBlocks; id += 3) {
+      map.removeINode(block(id));
+      present.remove(id);
+      removed.add(id);
+    }
+    check(map, present, removed);
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
+import org.apache.jxtadoop.hdfs.protocol.FSConstants;
+import org.apache.jxtadoop.net.LatencyBasedMapping;
+import org.apache.jxtadoop.net.NetworkTopology;
+import org.apache.jxtadoop.net.Node;
+
+/**
+ * Simulates the latency based placement: round trip times between three
+ * sites of datanodes are injected in a {@link LatencyBasedMapping}, the
+ * datanodes are placed in the racks it computes, and the targets chosen
+ * by the {@link ReplicationTargetChooser} and the read ordering are
+ * checked against the sites.
+ */
+public class TestLatencyPlacement extends TestCase {
+  private static final int NUM_SITES = 3;
+  private static final int NODES_PER_SITE = 4;
+  private static final long BLOCK_SIZE = 1024;
+  /* round trip times within a site and between sites, in ms */
+  private static final int LOCAL_RTT = 2;
+  private static final int LOCAL_JITTER = 8;
+  private static final int REMOTE_RTT = 80;
+  private static final int REMOTE_JITTER = 120;
+
+  private final Random r = new Random(0xC0FFEE);
+  private LatencyBasedMapping mapping;
+  private String[] names;
+  private long[][] rtts;
+
+  protected void setUp() {
+    Configuration conf = new Configuration();
+    conf.setLong("topology.latency.rack.threshold", 20);
+    mapping = new LatencyBasedMapping(conf);
+    names = new String[NUM_SITES * NODES_PER_SITE];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = "peer-" + site(i) + "-" + (i % NODES_PER_SITE);
+    }
+    rtts = new long[names.length][names.length];
+    for (int i = 0; i < names.length; i++) {
+      for (int j = i + 1; j < names.length; j++) {
+        rtts[i][j] = rtts[j][i] = (site(i) == site(j)) ?
+          LOCAL_RTT + r.nextInt(LOCAL_JITTER) :
+          REMOTE_RTT + r.nextInt(REMOTE_JITTER);
+      }
+    }
+  }
+
+  private static int site(int node) {
+    return node / NODES_PER_SITE;
+  }
+
+  /** Report the injected round trip times, as the datanodes would. */
+  private void reportLatencies() {
+    for (int i = 0; i < names.length; i++) {
+      mapping.addLatencies(names[i], names, rtts[i]);
+    }
+  }
+
+  private String rackOf(String name) {
+    return mapping.resolve(Arrays.asList(name)).get(0);
+  }
+
+  public void testSitesAreRacks() {
+    reportLatencies();
+    assertEquals(NUM_SITES, mapping.recompute(Arrays.asList(names)));
+    for (int i = 0; i < names.length; i++) {
+      for (int j = 0; j < names.length; j++) {
+        assertEquals(names[i] + " and " + names[j],
+                     site(i) == site(j), rackOf(names[i]).equals(rackOf(names[j])));
+      }
+    }
+    assertEquals(NetworkTopology.DEFAULT_RACK, rackOf("peer-unmeasured"));
+  }
+
+  public void testRacksAreStable() {
+    reportLatencies();
+    mapping.recompute(Arrays.asList(names));
+    String[] racks = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      racks[i] = rackOf(names[i]);
+    }
+    // new samples of the same sites must not rename the racks
+    for (int i = 0; i < names.length; i++) {
+      for (int j = i + 1; j < names.length; j++) {
+        rtts[i][j] = rtts[j][i] = (site(i) == site(j)) ?
+          LOCAL_RTT + r.nextInt(LOCAL_JITTER) :
+          REMOTE_RTT + r.nextInt(REMOTE_JITTER);
+      }
+    }
+    reportLatencies();
+    mapping.recompute(Arrays.asList(names));
+    for (int i = 0; i < names.length; i++) {
+      assertEquals(names[i], racks[i], rackOf(names[i]));
+    }
+  }
+
+  public void testPlacement() {
+    reportLatencies();
+    mapping.recompute(Arrays.asList(names));
+    NetworkTopology clusterMap = new NetworkTopology();
+    DatanodeDescriptor[] nodes = new DatanodeDescriptor[names.length];
+    for (int i = 0; i < names.length; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID(names[i]),
+                                        rackOf(names[i]), names[i]);
+      nodes[i].updateHeartbeat(
+          2 * FSConstants.MIN_BLOCKS_FOR_WRITE * BLOCK_SIZE, 0,
+          2 * FSConstants.MIN_BLOCKS_FOR_WRITE * BLOCK_SIZE, 0);
+      clusterMap.add(nodes[i]);
+    }
+    ReplicationTargetChooser chooser =
+      new ReplicationTargetChooser(false, null, clusterMap);
+
+    for (int w = 0; w < nodes.length; w++) {
+      DatanodeDescriptor writer = nodes[w];
+      DatanodeDescriptor[] targets = chooser.chooseTarget(3, writer,
+          new ArrayList<Node>(), BLOCK_SIZE);
+      assertEquals(3, targets.length);
+      // the first replica on the writer, the two others together on
+      // one remote site: a single wide area hop per block
+      assertSame(writer, targets[0]);
+      Set<String> racks = new HashSet<String>();
+      for (DatanodeDescriptor target : targets) {
+        racks.add(target.getNetworkLocation());
+      }
+      assertEquals(2, racks.size());
+      assertFalse(clusterMap.isOnSameRack(writer, targets[1]));
+      assertTrue(clusterMap.isOnSameRack(targets[1], targets[2]));
+    }
+
+    // a reader is sent to a replica on its own site first
+    for (int reader = 0; reader < nodes.length; reader++) {
+      List<DatanodeDescriptor> replicas = new ArrayList<DatanodeDescriptor>();
+      for (int i = 0; i < nodes.length; i++) {
+        if (i != reader && (site(i) != site(reader) ||
+                            i % NODES_PER_SITE == 0 ||
+                            reader % NODES_PER_SITE == 0)) {
+          replicas.add(nodes[i]);
+        }
+      }
+      DatanodeDescriptor[] sorted =
+        replicas.toArray(new DatanodeDescriptor[replicas.size()]);
+      clusterMap.pseudoSortByDistance(nodes[reader], sorted);
+      assertTrue(clusterMap.isOnSameRack(nodes[reader], sorted[0]));
+    }
+  }
+}
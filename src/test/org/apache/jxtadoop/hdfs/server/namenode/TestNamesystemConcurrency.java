@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.fs.FileStatus;
+import org.apache.jxtadoop.fs.FileUtil;
+import org.apache.jxtadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeID;
+import org.apache.jxtadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.jxtadoop.hdfs.protocol.LocatedBlock;
+import org.apache.jxtadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.jxtadoop.net.NetworkTopology;
+
+/**
+ * Stress test of the namespace lock : readers of the block locations and
+ * of the file info run while the block reports of the datanodes keep
+ * changing the replicas. The readers must make progress during the
+ * reports, and only see the replicas of a block on the datanodes holding
+ * it.
+ */
+public class TestNamesystemConcurrency extends TestCase {
+  private static final int NUM_FILES = 2000;
+  private static final int NUM_NODES = 6;
+  private static final int REPLICATION = 3;
+  private static final int NUM_READERS = 4;
+  private static final int NUM_REPORTS = 60;
+  private static final long TIMEOUT = 120000;
+
+  private File dir;
+  private FSNamesystem namesystem;
+  private DatanodeDescriptor[] nodes;
+
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.permissions", false);
+    // the opens take the write lock now and then to update the access time
+    conf.setLong("dfs.access.time.precision", 50);
+    if (NameNode.myMetrics == null) {
+      NameNode.myMetrics = new NameNodeMetrics(conf, null);
+    }
+    // the access times are logged
+    dir = new File(System.getProperty("test.build.data", "/tmp"),
+                   "TestNamesystemConcurrency");
+    FileUtil.fullyDelete(dir);
+    if (!new File(dir, "current").mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    FSImage image = new FSImage(dir);
+    image.getEditLog().createEditLogFile(
+        image.getEditFile(image.dirIterator().next()));
+    image.getEditLog().open();
+    namesystem = new FSNamesystem(image, conf);
+    namesystem.registerMBean(conf);
+    namesystem.pendingReplications = new PendingReplicationBlocks();
+    ImageBenchmark.createNamespace(namesystem.dir, NUM_FILES);
+    nodes = new DatanodeDescriptor[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      DatanodeID id = new DatanodeID("peer-" + i);
+      id.storageID = "storage-" + i;
+      nodes[i] = new DatanodeDescriptor(id, NetworkTopology.DEFAULT_RACK,
+                                        "peer-" + i);
+      namesystem.unprotectedAddDatanode(nodes[i]);
+    }
+  }
+
+  protected void tearDown() throws IOException {
+    namesystem.pendingReplications.stop();
+    namesystem.getEditLog().close();
+    FileUtil.fullyDelete(dir);
+    if (namesystem.getFSNamesystemMetrics() != null) {
+      namesystem.getFSNamesystemMetrics().shutdown();
+    }
+  }
+
+  /* the file of a block, as created by ImageBenchmark */
+  private static String pathOf(long blockId) {
+    long f = blockId - 1;
+    long d = f / ImageBenchmark.FILES_PER_DIR;
+    return "/d" + (d / ImageBenchmark.DIRS_PER_DIR) +
+           "/d" + (d % ImageBenchmark.DIRS_PER_DIR) +
+           "/f" + (f % ImageBenchmark.FILES_PER_DIR);
+  }
+
+  /* whether a datanode holds a block */
+  private static boolean holds(int node, long blockId) {
+    return (blockId - node + NUM_NODES) % NUM_NODES < REPLICATION;
+  }
+
+  /** The report of a datanode, half of its blocks if partial. */
+  private BlockListAsLongs report(int node, boolean partial) {
+    List<Long> ids = new ArrayList<Long>();
+    for (long id = 1; id <= NUM_FILES; id++) {
+      if (holds(node, id) && (!partial || id % 2 == 0)) {
+        ids.add(id);
+      }
+    }
+    long[] longs = new long[3 * ids.size()];
+    for (int i = 0; i < ids.size(); i++) {
+      longs[3 * i] = ids.get(i);
+      longs[3 * i + 1] = ImageBenchmark.BLOCK_SIZE;
+      longs[3 * i + 2] = GenerationStamp.FIRST_VALID_STAMP;
+    }
+    return new BlockListAsLongs(longs);
+  }
+
+  public void testReadersDuringReports() throws Exception {
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong readsDuringReports = new AtomicLong();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    Thread[] readers = new Thread[NUM_READERS];
+    for (int t = 0; t < readers.length; t++) {
+      final Random r = new Random(t);
+      readers[t] = new Thread() {
+        public void run() {
+          try {
+            while (!done.get()) {
+              long id = 1 + r.nextInt(NUM_FILES);
+              String src = pathOf(id);
+              if (r.nextBoolean()) {
+                checkLocations(id, namesystem.getBlockLocations(
+                                     src, 0, Long.MAX_VALUE, true));
+              } else {
+                FileStatus stat = namesystem.getFileInfo(src);
+                if (stat == null ||
+                    stat.getLen() != ImageBenchmark.BLOCK_SIZE) {
+                  throw new AssertionError("Bad file info of " + src);
+                }
+              }
+              reads.incrementAndGet();
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      for (int i = 0; i < NUM_REPORTS; i++) {
+        long before = reads.get();
+        int node = i % NUM_NODES;
+        // the last round restores the full reports
+        boolean partial = (i / NUM_NODES) % 2 == 0 && i < NUM_REPORTS - NUM_NODES;
+        namesystem.processReport(nodes[node], report(node, partial));
+        readsDuringReports.addAndGet(reads.get() - before);
+        assertTrue("Timed out", System.currentTimeMillis() - start < TIMEOUT);
+      }
+    } finally {
+      done.set(true);
+      for (Thread t : readers) {
+        t.join();
+      }
+    }
+    if (!failures.isEmpty()) {
+      throw new AssertionError(failures.get(0));
+    }
+    assertTrue("No read during the reports", readsDuringReports.get() > 0);
+
+    // all the blocks are fully replicated after the last full reports
+    for (long id = 1; id <= NUM_FILES; id++) {
+      LocatedBlocks blocks = namesystem.getBlockLocations(pathOf(id), 0,
+                                                          Long.MAX_VALUE);
+      checkLocations(id, blocks);
+      assertEquals(REPLICATION,
+                   blocks.getLocatedBlocks().get(0).getLocations().length);
+    }
+    assertNotNull(namesystem.getFSNamesystemMetrics().registry.get(
+                    "ReadLockHold_getBlockLocations"));
+    assertNotNull(namesystem.getFSNamesystemMetrics().registry.get(
+                    "WriteLockHold_processReport"));
+    System.out.println(reads.get() + " reads, " + readsDuringReports.get() +
+                       " during " + NUM_REPORTS + " block reports, in " +
+                       (System.currentTimeMillis() - start) + " msec");
+  }
+
+  private static void checkLocations(long id, LocatedBlocks blocks) {
+    if (blocks == null || blocks.getLocatedBlocks().size() != 1) {
+      throw new AssertionError("Bad locations of " + pathOf(id));
+    }
+    LocatedBlock b = blocks.getLocatedBlocks().get(0);
+    if (b.getBlock().getBlockId() != id ||
+        b.getLocations().length > REPLICATION) {
+      throw new AssertionError("Bad block " + b.getBlock() + " for " + pathOf(id));
+    }
+    for (DatanodeInfo dn : b.getLocations()) {
+      int node = Integer.parseInt(dn.getPeerId().substring("peer-".length()));
+      if (!holds(node, id)) {
+        throw new AssertionError("Block " + id + " located on " + dn.getPeerId());
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.hdfs.protocol.Block;
+import org.apache.jxtadoop.hdfs.protocol.ClientProtocol;
+import org.apache.jxtadoop.hdfs.server.common.GenerationStamp;
+import org.apache.jxtadoop.hdfs.server.protocol.DatanodeProtocol;
+import org.apache.jxtadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.apache.jxtadoop.io.DataInputBuffer;
+import org.apache.jxtadoop.io.DataOutputBuffer;
+import org.apache.jxtadoop.ipc.RPC.Invocation;
+
+/**
+ * Benchmark of the encodings of the RPC invocations.
+ * Typical calls of the DatanodeProtocol and of the ClientProtocol are
+ * encoded with the legacy format, which names the method and the class of
+ * each parameter, and with the compact format negotiated by the proxies,
+ * then decoded back as the server does. The bytes per call and the calls
+ * per second of an encoding and a decoding are reported for each call and
+ * for the mix of the calls of each protocol. Calls larger than a kilobyte
+ * are timed on proportionally fewer iterations.
+ * <pre>
+ * InvocationBenchmark [iterations]
+ * </pre>
+ */
+public class InvocationBenchmark {
+
+  /** A call of a protocol method. */
+  static class Call {
+    final String name;
+    final Method method;
+    final Object[] parameters;
+
+    Call(String name, Class<?> protocol, String method, Class<?>[] types,
+         Object... parameters) throws NoSuchMethodException {
+      this.name = name;
+      this.method = protocol.getMethod(method, types);
+      this.parameters = parameters;
+    }
+
+    Invocation newInvocation(boolean compact, Configuration conf) {
+      Invocation invocation = compact ?
+        new Invocation(method, parameters,
+                       CompactCodec.getTable(method.getDeclaringClass())) :
+        new Invocation(method, parameters);
+      invocation.setConf(conf);
+      return invocation;
+    }
+  }
+
+  /** Encodes and decodes the invocations of a call. */
+  static class Codec {
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+    private final Configuration conf;
+
+    Codec(Configuration conf) {
+      this.conf = conf;
+    }
+
+    /** Encode the invocation and return its length. */
+    int encode(Invocation invocation) throws IOException {
+      out.reset();
+      invocation.write(out);
+      return out.getLength();
+    }
+
+    /** Decode the last invocation encoded. */
+    Invocation decode() throws IOException {
+      in.reset(out.getData(), out.getLength());
+      Invocation invocation = new Invocation();
+      invocation.setConf(conf);
+      invocation.readFields(in);
+      return invocation;
+    }
+  }
+
+  private static long[] blocks(int count) {
+    long[] longs = new long[3 * count];
+    for (int i = 0; i < count; i++) {
+      longs[3 * i] = 4611686018427387904L + i * 7919L;
+      longs[3 * i + 1] = 64L * 1024 * 1024;
+      longs[3 * i + 2] = GenerationStamp.FIRST_VALID_STAMP + i;
+    }
+    return longs;
+  }
+
+  static List<Call> datanodeCalls() throws NoSuchMethodException {
+    DatanodeRegistration reg = new DatanodeRegistration(
+        "urn:jxta:cbid-59616261646162614A78746150325033A1B2C3D4E5F60718293A4B5C6D7E8F9003");
+    reg.storageID = "DS-1290284534-urn:jxta:cbid-59616261646162614A787461-1287331200000";
+    Class<?> p = DatanodeProtocol.class;
+    List<Call> calls = new ArrayList<Call>();
+    calls.add(new Call("sendHeartbeat", p, "sendHeartbeat",
+        new Class<?>[] { DatanodeRegistration.class, long.class, long.class,
+                         long.class, int.class, int.class },
+        reg, 1L << 40, 3L << 38, 1L << 39, 0, 4));
+    Block[] received = { new Block(blocks(1)[0], 1 << 20, 1001),
+                         new Block(blocks(2)[3], 1 << 20, 1002) };
+    calls.add(new Call("blockReceived", p, "blockReceived",
+        new Class<?>[] { DatanodeRegistration.class, Block[].class, String[].class },
+        reg, received, new String[] { "", "" }));
+    calls.add(new Call("blockReport(9)", p, "blockReport",
+        new Class<?>[] { DatanodeRegistration.class, long[].class },
+        reg, blocks(9)));
+    calls.add(new Call("blockReport(1000)", p, "blockReport",
+        new Class<?>[] { DatanodeRegistration.class, long[].class },
+        reg, blocks(1000)));
+    calls.add(new Call("blockReportDelta", p, "blockReportDelta",
+        new Class<?>[] { DatanodeRegistration.class, long.class, long[].class, long[].class },
+        reg, 12L, blocks(3), new long[0]));
+    return calls;
+  }
+
+  static List<Call> clientCalls() throws NoSuchMethodException {
+    String src = "/user/bench/output/part-00042";
+    String client = "DFSClient_-1843372541";
+    Class<?> p = ClientProtocol.class;
+    List<Call> calls = new ArrayList<Call>();
+    calls.add(new Call("getBlockLocations", p, "getBlockLocations",
+        new Class<?>[] { String.class, long.class, long.class },
+        src, 0L, 64L * 1024 * 1024));
+    calls.add(new Call("getFileInfo", p, "getFileInfo",
+        new Class<?>[] { String.class }, src));
+    calls.add(new Call("addBlock", p, "addBlock",
+        new Class<?>[] { String.class, String.class }, src, client));
+    calls.add(new Call("complete", p, "complete",
+        new Class<?>[] { String.class, String.class }, src, client));
+    calls.add(new Call("renewLease", p, "renewLease",
+        new Class<?>[] { String.class }, client));
+    return calls;
+  }
+
+  /** Encode and decode the invocation, return the elapsed nanoseconds. */
+  static long time(Codec codec, Invocation invocation, int iterations)
+      throws IOException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      codec.encode(invocation);
+      codec.decode();
+    }
+    return Math.max(1, System.nanoTime() - start);
+  }
+
+  static void run(String protocol, List<Call> calls, int iterations,
+                  Configuration conf) throws IOException {
+    Codec codec = new Codec(conf);
+    System.out.println(protocol);
+    System.out.println(String.format("  %-20s %10s %10s %12s %12s", "call",
+        "legacy B", "compact B", "legacy/s", "compact/s"));
+    long[] totalBytes = new long[2];
+    double[] totalTime = new double[2];       // nanoseconds for one of each
+    for (Call call : calls) {
+      int[] bytes = new int[2];
+      long[] rate = new long[2];
+      for (int c = 0; c < 2; c++) {
+        Invocation invocation = call.newInvocation(c == 1, conf);
+        bytes[c] = codec.encode(invocation);
+        Invocation decoded = codec.decode();
+        if (!decoded.getMethodName().equals(call.method.getName()) ||
+            decoded.getParameters().length != call.parameters.length) {
+          throw new IOException("Bad decoding of " + call.name);
+        }
+        // large calls are timed on fewer iterations
+        int count = Math.max(100, iterations / Math.max(1, bytes[0] / 1000));
+        time(codec, invocation, Math.max(1, count / 10));   // warm up
+        long elapsed = time(codec, invocation, count);
+        rate[c] = count * 1000000000L / elapsed;
+        totalBytes[c] += bytes[c];
+        totalTime[c] += (double)elapsed / count;
+      }
+      System.out.println(String.format("  %-20s %10d %10d %12d %12d",
+          call.name, bytes[0], bytes[1], rate[0], rate[1]));
+    }
+    long n = calls.size();
+    System.out.println(String.format("  %-20s %10d %10d %12d %12d", "mix",
+        totalBytes[0] / n, totalBytes[1] / n,
+        (long)(n * 1e9 / totalTime[0]), (long)(n * 1e9 / totalTime[1])));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    Configuration conf = new Configuration();
+    run("DatanodeProtocol", datanodeCalls(), iterations, conf);
+    run("ClientProtocol", clientCalls(), iterations, conf);
+  }
+}
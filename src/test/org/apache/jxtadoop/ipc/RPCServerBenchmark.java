@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.io.DataOutputBuffer;
+import org.apache.jxtadoop.io.Text;
+import org.apache.jxtadoop.io.Writable;
+
+/**
+ * Benchmark of the IPC server call path.
+ * An echo server is run in process over a loopback server socket, and each
+ * client thread sends the given number of calls carrying a {@link Text} of
+ * the given size, waiting for each response. The calls per second are
+ * reported with one reader thread per connection, then with the pooled
+ * readers.
+ * <pre>
+ * RPCServerBenchmark &lt;numClients&gt; &lt;callsPerClient&gt; [callSize]
+ * </pre>
+ */
+public class RPCServerBenchmark {
+
+  /** Returns the parameter of each call. */
+  static class EchoServer extends Server {
+    EchoServer(ServerSocket acceptServer, Configuration conf) throws IOException {
+      super(acceptServer, Text.class, 4, conf, "RPCServerBenchmark");
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receiveTime) {
+      return param;
+    }
+  }
+
+  /** Writes the frames of the IPC protocol on a plain socket. */
+  static class RawClient {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final DataOutputBuffer buf = new DataOutputBuffer();
+
+    RawClient(int port) throws IOException {
+      socket = new Socket(InetAddress.getByName("localhost"), port);
+      socket.setTcpNoDelay(true);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+      out.write(Server.HEADER.array());
+      out.write(Server.CURRENT_VERSION);
+      buf.reset();
+      new ConnectionHeader(VersionedProtocol.class.getName(), null).write(buf);
+      out.writeInt(buf.getLength());
+      out.write(buf.getData(), 0, buf.getLength());
+      out.flush();
+    }
+
+    /** Send a call and return the value of its response. */
+    Text call(int id, Text param) throws IOException {
+      buf.reset();
+      buf.writeInt(id);
+      param.write(buf);
+      out.writeInt(buf.getLength());
+      out.write(buf.getData(), 0, buf.getLength());
+      out.flush();
+
+      if (in.readInt() != id) {
+        throw new IOException("Response out of order for call " + id);
+      }
+      if (in.readInt() != Status.SUCCESS.state) {
+        throw new IOException("Call " + id + " failed");
+      }
+      Text value = new Text();
+      value.readFields(in);
+      return value;
+    }
+
+    /** Send a frame of the given length without its content. */
+    void sendLength(int length) throws IOException {
+      out.writeInt(length);
+      out.flush();
+    }
+
+    /** Return true if the server closed the connection. */
+    boolean isClosed() throws IOException {
+      return in.read() < 0;
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  static long run(int readerPoolSize, int numClients, final int numCalls,
+      final Text param) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("ipc.server.reader.pool.size", readerPoolSize);
+    ServerSocket acceptServer =
+      new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+    final int port = acceptServer.getLocalPort();
+    Server server = new EchoServer(acceptServer, conf);
+    server.start();
+    try {
+      Thread[] clients = new Thread[numClients];
+      final Exception[] failure = new Exception[1];
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < numClients; i++) {
+        clients[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              RawClient client = new RawClient(port);
+              try {
+                for (int id = 0; id < numCalls; id++) {
+                  if (client.call(id, param).getLength() != param.getLength()) {
+                    throw new IOException("Wrong response for call " + id);
+                  }
+                }
+              } finally {
+                client.close();
+              }
+            } catch (Exception e) {
+              synchronized (failure) {
+                failure[0] = e;
+              }
+            }
+          }
+        };
+        clients[i].start();
+      }
+      for (Thread client : clients) {
+        client.join();
+      }
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      synchronized (failure) {
+        if (failure[0] != null) {
+          throw failure[0];
+        }
+      }
+      return elapsed;
+    } finally {
+      server.stop();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: RPCServerBenchmark <numClients> <callsPerClient> [callSize]");
+      System.exit(-1);
+    }
+    int numClients = Integer.parseInt(args[0]);
+    int numCalls = Integer.parseInt(args[1]);
+    int callSize = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+    byte[] bytes = new byte[callSize];
+    for (int i = 0; i < callSize; i++) {
+      bytes[i] = (byte)('a' + i % 26);
+    }
+    Text param = new Text(bytes);
+    long calls = (long)numClients * numCalls;
+
+    // warm up the call path
+    run(0, numClients, Math.min(numCalls, 1000), param);
+
+    int[] readerPoolSizes = { 0, Math.max(1, numClients / 4) };
+    for (int readerPoolSize : readerPoolSizes) {
+      long elapsed = run(readerPoolSize, numClients, numCalls, param);
+      System.out.println((readerPoolSize == 0 ? "Reader per connection" :
+          readerPoolSize + " pooled readers") + ": " + calls + " calls of " +
+          callSize + " bytes in " + elapsed + " msec, " +
+          (calls * 1000L / elapsed) + " calls/sec");
+    }
+  }
+}
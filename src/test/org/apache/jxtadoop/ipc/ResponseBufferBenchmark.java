@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Benchmark of the serialization of the IPC responses.
+ * Each thread plays a handler serializing responses of the given size,
+ * the call id and status followed by the value, then releasing them once
+ * "written". The responses are serialized into the arrays of a
+ * {@link ResponseBufferPool}, into a ByteArrayOutputStream kept by the
+ * handler and copied for each response, as the server did before the pool,
+ * and into a ByteArrayOutputStream created for each response. The time,
+ * the rate and the garbage collections of each are reported.
+ * <pre>
+ * ResponseBufferBenchmark &lt;numResponses&gt; &lt;responseSize&gt; [numThreads]
+ * </pre>
+ */
+public class ResponseBufferBenchmark {
+
+  private static abstract class Serializer {
+    /** Serialize a response and return it. */
+    abstract ByteBuffer serialize(int id, byte[] value) throws IOException;
+
+    /** Called once the response has been written. */
+    void written(ByteBuffer response) {}
+
+    static void write(OutputStream stream, int id, byte[] value)
+        throws IOException {
+      DataOutputStream out = new DataOutputStream(stream);
+      out.writeInt(id);
+      out.writeInt(Status.SUCCESS.state);
+      out.write(value);
+    }
+  }
+
+  private static Serializer newSerializer(String mode,
+      final ResponseBufferPool pool) {
+    if (mode.equals("pooled")) {
+      return new Serializer() {
+        private final ResponseBufferPool.ResponseOutputStream buf =
+          pool.new ResponseOutputStream();
+
+        ByteBuffer serialize(int id, byte[] value) throws IOException {
+          buf.reset();
+          write(buf, id, value);
+          return buf.detach();
+        }
+
+        void written(ByteBuffer response) {
+          pool.release(response.array());
+        }
+      };
+    } else if (mode.equals("copied")) {
+      return new Serializer() {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(10240);
+
+        ByteBuffer serialize(int id, byte[] value) throws IOException {
+          buf.reset();
+          write(buf, id, value);
+          return ByteBuffer.wrap(buf.toByteArray());
+        }
+      };
+    } else {
+      return new Serializer() {
+        ByteBuffer serialize(int id, byte[] value) throws IOException {
+          ByteArrayOutputStream buf = new ByteArrayOutputStream();
+          write(buf, id, value);
+          return ByteBuffer.wrap(buf.toByteArray());
+        }
+      };
+    }
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  static void run(final String mode, int numThreads, final int numResponses,
+      final byte[] value, boolean report) throws Exception {
+    final ResponseBufferPool pool = new ResponseBufferPool();
+    Thread[] threads = new Thread[numThreads];
+    final Exception[] failure = new Exception[1];
+    final long[] checksum = new long[numThreads];
+
+    long gcs = gcCount();
+    long start = System.currentTimeMillis();
+    for (int t = 0; t < numThreads; t++) {
+      final int index = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          Serializer serializer = newSerializer(mode, pool);
+          try {
+            for (int id = 0; id < numResponses; id++) {
+              ByteBuffer response = serializer.serialize(id, value);
+              checksum[index] += response.remaining();
+              serializer.written(response);
+            }
+          } catch (IOException e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    gcs = gcCount() - gcs;
+    synchronized (failure) {
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+    }
+
+    if (report) {
+      long responses = (long)numThreads * numResponses;
+      long bytes = 0;
+      for (long c : checksum) {
+        bytes += c;
+      }
+      System.out.println(mode + ": " + responses + " responses of " +
+          value.length + " bytes in " + elapsed + " msec, " +
+          (responses * 1000L / elapsed) + " responses/sec, " +
+          (bytes * 1000L / elapsed / (1024 * 1024)) + " MB/sec, " +
+          gcs + " collections");
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: ResponseBufferBenchmark <numResponses> <responseSize> [numThreads]");
+      System.exit(-1);
+    }
+    int numResponses = Integer.parseInt(args[0]);
+    int responseSize = Integer.parseInt(args[1]);
+    int numThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+    byte[] value = new byte[responseSize];
+
+    String[] modes = { "pooled", "copied", "per-call" };
+    for (String mode : modes) {
+      run(mode, numThreads, Math.min(numResponses, 10000), value, false);
+    }
+    for (String mode : modes) {
+      run(mode, numThreads, numResponses, value, true);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the size classes and the budget of {@link ResponseBufferPool}.
+ */
+public class TestResponseBufferPool extends TestCase {
+
+  /** Release the arrays, then return how many of them the pool gives back. */
+  private static int countPooled(ResponseBufferPool pool, List<byte[]> arrays) {
+    Set<byte[]> released =
+      Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    for (byte[] buf : arrays) {
+      pool.release(buf);
+      released.add(buf);
+    }
+    int pooled = 0;
+    for (int i = 0; i <= arrays.size(); i++) {
+      if (released.contains(pool.acquire(arrays.get(0).length))) {
+        pooled++;
+      }
+    }
+    return pooled;
+  }
+
+  private static List<byte[]> allocate(int count, int size) {
+    List<byte[]> arrays = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      arrays.add(new byte[size]);
+    }
+    return arrays;
+  }
+
+  public void testSizeClasses() {
+    ResponseBufferPool pool = new ResponseBufferPool();
+    assertEquals(ResponseBufferPool.MIN_SIZE, pool.acquire(0).length);
+    assertEquals(ResponseBufferPool.MIN_SIZE, pool.acquire(1).length);
+    assertEquals(ResponseBufferPool.MIN_SIZE,
+        pool.acquire(ResponseBufferPool.MIN_SIZE).length);
+    assertEquals(2 * ResponseBufferPool.MIN_SIZE,
+        pool.acquire(ResponseBufferPool.MIN_SIZE + 1).length);
+    assertEquals(64 * 1024, pool.acquire(40000).length);
+    assertEquals(ResponseBufferPool.MAX_SIZE,
+        pool.acquire(ResponseBufferPool.MAX_SIZE - 1).length);
+    assertEquals(ResponseBufferPool.MAX_SIZE,
+        pool.acquire(ResponseBufferPool.MAX_SIZE).length);
+
+    // larger arrays are not rounded and never pooled
+    byte[] large = pool.acquire(ResponseBufferPool.MAX_SIZE + 1);
+    assertEquals(ResponseBufferPool.MAX_SIZE + 1, large.length);
+    pool.release(large);
+    assertNotSame(large, pool.acquire(ResponseBufferPool.MAX_SIZE + 1));
+  }
+
+  public void testReuse() {
+    ResponseBufferPool pool = new ResponseBufferPool();
+    byte[] buf = pool.acquire(3000);
+    pool.release(buf);
+    assertSame(buf, pool.acquire(2049));
+    assertNotSame(buf, pool.acquire(2049));
+
+    // a released array only serves its own size class
+    pool.release(buf);
+    assertNotSame(buf, pool.acquire(1024));
+    assertNotSame(buf, pool.acquire(4097));
+    assertSame(buf, pool.acquire(4096));
+  }
+
+  public void testReleaseDropsForeignArrays() {
+    ResponseBufferPool pool = new ResponseBufferPool();
+    assertEquals(0, countPooled(pool, allocate(4, 3000)));
+    assertEquals(0, countPooled(pool, allocate(4, ResponseBufferPool.MIN_SIZE / 2)));
+    assertEquals(0, countPooled(pool, allocate(4, 2 * ResponseBufferPool.MAX_SIZE)));
+    pool.release(null);
+  }
+
+  public void testBudgetPerClass() {
+    int budget = ResponseBufferPool.MAX_POOLED_BYTES_PER_CLASS;
+    ResponseBufferPool pool = new ResponseBufferPool();
+
+    int size = ResponseBufferPool.MIN_SIZE;
+    assertEquals(budget / size, countPooled(pool, allocate(budget / size + 10, size)));
+
+    size = 64 * 1024;
+    assertEquals(budget / size, countPooled(pool, allocate(budget / size + 1, size)));
+
+    // the largest class always keeps one array
+    size = ResponseBufferPool.MAX_SIZE;
+    assertEquals(Math.max(1, budget / size), countPooled(pool, allocate(3, size)));
+
+    // a full class does not limit the other classes
+    assertEquals(4, countPooled(pool, allocate(4, 2 * ResponseBufferPool.MIN_SIZE)));
+  }
+
+  public void testOutputStream() {
+    ResponseBufferPool pool = new ResponseBufferPool();
+    ResponseBufferPool.ResponseOutputStream out = pool.new ResponseOutputStream();
+
+    byte[] data = new byte[5000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)i;
+    }
+    out.write(data[0]);
+    out.write(data, 1, data.length - 1);
+    ByteBuffer response = out.detach();
+    assertEquals(data.length, response.remaining());
+    assertEquals(8192, response.array().length);
+    for (int i = 0; i < data.length; i++) {
+      assertEquals(data[i], response.get(i));
+    }
+
+    pool.release(response.array());
+    assertSame(response.array(), pool.acquire(5000));
+
+    // the stream is reusable once detached
+    out.write(7);
+    out.reset();
+    out.write(data, 0, 10);
+    response = out.detach();
+    assertEquals(10, response.remaining());
+    assertEquals(ResponseBufferPool.MIN_SIZE, response.array().length);
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jxtadoop.ipc;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+import org.apache.jxtadoop.conf.Configuration;
+import org.apache.jxtadoop.io.Text;
+import org.apache.jxtadoop.ipc.RPCServerBenchmark.EchoServer;
+import org.apache.jxtadoop.ipc.RPCServerBenchmark.RawClient;
+
+/**
+ * Tests the framing of the calls read by the IPC server.
+ */
+public class TestServerFrames extends TestCase {
+  private static final int MAX_DATA_LENGTH = 1024 * 1024;
+
+  private Server server;
+  private int port;
+
+  @Override
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("ipc.maximum.data.length", MAX_DATA_LENGTH);
+    ServerSocket acceptServer =
+      new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+    port = acceptServer.getLocalPort();
+    server = new EchoServer(acceptServer, conf);
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+  }
+
+  private static Text text(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte)('a' + i % 26);
+    }
+    return new Text(bytes);
+  }
+
+  public void testCalls() throws Exception {
+    RawClient client = new RawClient(port);
+    try {
+      int[] sizes = { 10, 100 * 1024, 10, MAX_DATA_LENGTH / 2, 1 };
+      for (int id = 0; id < sizes.length; id++) {
+        Text param = text(sizes[id]);
+        assertEquals(param, client.call(id, param));
+      }
+    } finally {
+      client.close();
+    }
+  }
+
+  public void testMaximumDataLength() throws Exception {
+    RawClient client = new RawClient(port);
+    try {
+      assertEquals(text(10), client.call(0, text(10)));
+      client.sendLength(MAX_DATA_LENGTH + 1);
+      assertTrue(client.isClosed());
+    } finally {
+      client.close();
+    }
+
+    client = new RawClient(port);
+    try {
+      client.sendLength(Integer.MAX_VALUE);
+      assertTrue(client.isClosed());
+    } finally {
+      client.close();
+    }
+  }
+}